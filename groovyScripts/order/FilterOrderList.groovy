@@ -27,11 +27,20 @@ import org.apache.ofbiz.order.order.OrderListState
 orderHeaderList = context.orderHeaderList
 productStore = ProductStoreWorker.getProductStore(request)
 
+// the helpers of all the listed orders, loaded together the first time a filter needs them
+orderReadHelpers = null
+getOrderReadHelper = { orderHeader ->
+    if (orderReadHelpers == null) {
+        orderReadHelpers = OrderReadHelper.loadAll(delegator, orderHeaderList.collect { it.orderId })
+    }
+    return orderReadHelpers.get(orderHeader.orderId)
+}
+
 filterInventoryProblems = []
 
 if (state.hasFilter("filterInventoryProblems") && orderHeaderList) {
     orderHeaderList.each { orderHeader ->
-        orderReadHelper = OrderReadHelper.getHelper(orderHeader)
+        orderReadHelper = getOrderReadHelper(orderHeader)
         backorderQty = orderReadHelper.getOrderBackorderQuantity()
         if (backorderQty.compareTo(BigDecimal.ZERO) > 0) {
             filterInventoryProblems.add(orderHeader.orderId)
@@ -50,7 +59,7 @@ if ((state.hasFilter("filterPartiallyReceivedPOs") ||
         state.hasFilter("filterPOsWithRejectedItems")) &&
         orderHeaderList) {
     orderHeaderList.each { orderHeader ->
-        orderReadHelper = OrderReadHelper.getHelper(orderHeader)
+        orderReadHelper = getOrderReadHelper(orderHeader)
         if ("PURCHASE_ORDER".equals(orderHeader.orderTypeId)) {
             if (orderReadHelper.getRejectedOrderItems() &&
                     state.hasFilter("filterPOsWithRejectedItems")) {
@@ -70,7 +79,7 @@ filterAuthProblems = []
 
 if (state.hasFilter("filterAuthProblems") && orderHeaderList) {
     orderHeaderList.each { orderHeader ->
-        orderReadHelper = OrderReadHelper.getHelper(orderHeader)
+        orderReadHelper = getOrderReadHelper(orderHeader)
         paymentPrefList = orderReadHelper.getPaymentPreferences()
         paymentPrefList.each { paymentPref ->
             if ("PAYMENT_NOT_AUTH".equals(paymentPref.statusId)) {
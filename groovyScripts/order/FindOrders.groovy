@@ -150,6 +150,9 @@ viewSize = request.getParameter("viewSize") ? Integer.valueOf(request.getParamet
                                                                 EntityUtilProperties.getPropertyValue("widget", "widget.form.defaultViewSize", "20", delegator)
 context.viewSize = viewSize
 
+// N to count all the orders found, Y to only find out if there is a next page
+context.skipOrderCount = request.getParameter("skipOrderCount") ?: EntityUtilProperties.getPropertyValue("order", "order.findOrders.skipOrderCount", "N", delegator)
+
 // get the lookup flag
 lookupFlag = request.getParameter("lookupFlag")
 
@@ -167,6 +170,10 @@ context.orderList = orderList
 
 orderListSize = request.getAttribute("orderListSize")
 context.orderListSize = orderListSize
+// the key of the last order of the page, the next page is read from it on (keyset paging)
+context.hasMoreOrders = request.getAttribute("hasMoreOrders")
+context.nextOrderDate = request.getAttribute("nextOrderDate")?.toString()
+context.nextOrderId = request.getAttribute("nextOrderId")
 
 context.filterInventoryProblems = request.getAttribute("filterInventoryProblemsList")
 context.filterPOsWithRejectedItems = request.getAttribute("filterPOsWithRejectedItemsList")
@@ -66,12 +66,13 @@ if (orderHeader) {
     context.hasPermission = true
     context.canViewInternalDetails = true
 
-    orderReadHelper = new OrderReadHelper(orderHeader)
+    // the page reads most of the order, load its records up front
+    orderReadHelper = OrderReadHelper.loadSnapshot(delegator, orderId)
     orderItems = orderReadHelper.getOrderItems()
     orderAdjustments = orderReadHelper.getAdjustments()
     orderHeaderAdjustments = orderReadHelper.getOrderHeaderAdjustments()
     orderSubTotal = orderReadHelper.getOrderItemsSubTotal()
-    orderTerms = orderHeader.getRelated("OrderTerm", null, null, false)
+    orderTerms = orderReadHelper.getOrderTerms()
 
     context.orderHeader = orderHeader
     context.comments = comments
@@ -84,7 +85,7 @@ if (orderHeader) {
     context.orderTerms = orderTerms
 
     // get sales reps
-    context.salesReps = orderHeader.getRelated("OrderRole", [orderId : orderHeader.orderId, roleTypeId : "SALES_REP"], null, false)
+    context.salesReps = orderReadHelper.getOrderRoles("SALES_REP")
     
     // get the order type
     orderType = orderHeader.orderTypeId
@@ -148,15 +149,15 @@ if (orderHeader) {
         allShipmentsMap[primaryShipment.shipmentId] = primaryShipment
     }
     itemIssuancesPerItem = [:]
-    itemIssuances = orderHeader.getRelated("ItemIssuance", null, ["shipmentId", "shipmentItemSeqId"], false)
-    itemIssuances.each { itemIssuance ->
-        if (!allShipmentsMap.containsKey(itemIssuance.shipmentId)) {
-            iiShipment = itemIssuance.getRelatedOne("Shipment", false)
-            if (iiShipment) {
-                allShipmentsMap[iiShipment.shipmentId] = iiShipment
-            }
+    itemIssuances = orderReadHelper.getOrderItemIssuances()
+    // the shipments of the issuances that are not primary shipments of the order, read at once
+    otherShipmentIds = itemIssuances*.shipmentId.findAll { it && !allShipmentsMap.containsKey(it) }.unique()
+    if (otherShipmentIds) {
+        from("Shipment").where(EntityCondition.makeCondition("shipmentId", EntityOperator.IN, otherShipmentIds)).queryList().each { iiShipment ->
+            allShipmentsMap[iiShipment.shipmentId] = iiShipment
         }
-
+    }
+    itemIssuances.each { itemIssuance ->
         perItemList = itemIssuancesPerItem[itemIssuance.orderItemSeqId]
         if (!perItemList) {
             perItemList = []
@@ -171,15 +172,11 @@ if (orderHeader) {
     orderBilling = from("OrderItemBilling").where("orderId", orderId).orderBy("invoiceId").queryList()
     context.invoices = orderBilling*.invoiceId.unique()
 
-    ecl = EntityCondition.makeCondition([
-                                    EntityCondition.makeCondition("orderId", EntityOperator.EQUALS, orderId),
-                                    EntityCondition.makeCondition("statusId", EntityOperator.NOT_EQUAL, "PAYMENT_CANCELLED")],
-                                EntityOperator.AND)
-    orderPaymentPreferences = from("OrderPaymentPreference").where(ecl).queryList()
+    orderPaymentPreferences = (orderReadHelper.getPaymentPreferences() ?: []).findAll { !"PAYMENT_CANCELLED".equals(it.statusId) }
     context.orderPaymentPreferences = orderPaymentPreferences
 
     // ship groups
-    shipGroups = from("OrderItemShipGroup").where("orderId", orderId).orderBy("shipGroupSeqId").queryList()
+    shipGroups = orderReadHelper.getOrderItemShipGroups()
     context.shipGroups = shipGroups
 
 
@@ -192,10 +189,8 @@ if (orderHeader) {
         } else {
             quantityOrdered = quantity
         }
-        OISGAssContents = []
-        shipGroups.each { shipGroup ->
-            OISGAssContents.addAll(EntityUtil.filterByAnd(shipGroup.getRelated("OrderItemShipGroupAssoc", null, null, false), UtilMisc.toMap("orderItemSeqId", orderItem.getString("orderItemSeqId"))))
-        }
+        // copies, as the quantities are changed below and the snapshot records are shared by the helper getters
+        OISGAssContents = orderReadHelper.getOrderItemShipGroupAssocs(orderItem).collect { it.clone() }
         BigDecimal totalQuantityPlanned = 0
         OISGAssContents.each { OISGAssContent ->
            BigDecimal cancelQty = OISGAssContent.get("cancelQuantity")
@@ -211,7 +206,7 @@ if (orderHeader) {
         }
         totalQuantityToPlan = totalQuantityPlanned - quantityOrdered
         BigDecimal quantityNotAvailable = 0
-        List<GenericValue> oisgirs = orderItem.getRelated("OrderItemShipGrpInvRes", null, null, false)
+        List<GenericValue> oisgirs = orderReadHelper.getOrderItemShipGrpInvResList(orderItem)
         for (GenericValue oisgir : oisgirs) {
             if (UtilValidate.isNotEmpty(oisgir.get("quantityNotAvailable"))) {
                 quantityNotAvailable = quantityNotAvailable.add(oisgir.getBigDecimal("quantityNotAvailable"))
@@ -220,7 +215,7 @@ if (orderHeader) {
         orderItemData = [:]
         orderItemData.put("orderItem", orderItem)
         orderItemData.put("OISGAssContents", OISGAssContents)
-        orderItemData.put("product", orderItem.getRelatedOne("Product", false))
+        orderItemData.put("product", orderItem.getRelatedOne("Product", true))
         orderItemData.put("quantityOrdered", quantityOrdered)
         orderItemData.put("totalQuantityPlanned", totalQuantityPlanned)
         orderItemData.put("totalQuantityToPlan", totalQuantityToPlan)
@@ -0,0 +1,139 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *******************************************************************************/
+package org.apache.ofbiz.order.finaccount;
+
+import java.sql.Timestamp;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+import org.apache.ofbiz.base.util.Debug;
+import org.apache.ofbiz.entity.Delegator;
+import org.apache.ofbiz.entity.GenericEntityException;
+import org.apache.ofbiz.entity.GenericValue;
+import org.apache.ofbiz.entity.transaction.TransactionUtil;
+import org.apache.ofbiz.entity.util.EntityListIterator;
+import org.apache.ofbiz.entity.util.EntityQuery;
+import org.apache.ofbiz.service.DispatchContext;
+import org.apache.ofbiz.service.ServiceUtil;
+
+/**
+ * Services keeping the FinAccountBalance and FinAccountBalanceCheckpoint records read by
+ * {@link FinAccountHelper#getBalance} and {@link FinAccountHelper#getAvailableBalance}.
+ */
+public class FinAccountBalanceServices {
+
+    public static final String module = FinAccountBalanceServices.class.getName();
+
+    /** Computes the balance of the account again in the transaction writing its FinAccountTrans or FinAccountAuth */
+    public static Map<String, Object> updateFinAccountBalance(DispatchContext dctx, Map<String, ? extends Object> context) {
+        Delegator delegator = dctx.getDelegator();
+        String finAccountId = (String) context.get("finAccountId");
+        Timestamp transactionDate = (Timestamp) context.get("transactionDate");
+        Timestamp authorizationDate = (Timestamp) context.get("authorizationDate");
+        if (!FinAccountHelper.isMaterializedBalanceEnabled()) {
+            return ServiceUtil.returnSuccess();
+        }
+        try {
+            FinAccountHelper.updateFinAccountBalance(finAccountId, transactionDate, authorizationDate, delegator);
+        } catch (GenericEntityException e) {
+            Debug.logError(e, "Error calling updateFinAccountBalance service", module);
+            return ServiceUtil.returnError(e.getMessage());
+        }
+        return ServiceUtil.returnSuccess();
+    }
+
+    /** Removes the balance checkpoints from the stored transactionDate of a FinAccountTrans on, before it is changed or removed */
+    public static Map<String, Object> removeFinAccountBalanceCheckpoints(DispatchContext dctx, Map<String, ? extends Object> context) {
+        Delegator delegator = dctx.getDelegator();
+        String finAccountTransId = (String) context.get("finAccountTransId");
+        String finAccountId = (String) context.get("finAccountId");
+        if (!FinAccountHelper.isMaterializedBalanceEnabled()) {
+            return ServiceUtil.returnSuccess();
+        }
+        try {
+            FinAccountHelper.removeFinAccountBalanceCheckpoints(finAccountTransId, finAccountId, delegator);
+        } catch (GenericEntityException e) {
+            Debug.logError(e, "Error calling removeFinAccountBalanceCheckpoints service", module);
+            return ServiceUtil.returnError(e.getMessage());
+        }
+        return ServiceUtil.returnSuccess();
+    }
+
+    /** Drops the authorization totals of the balance checkpoints from the stored authorizationDate of a FinAccountAuth on, before it is changed or removed */
+    public static Map<String, Object> clearFinAccountAuthCheckpoints(DispatchContext dctx, Map<String, ? extends Object> context) {
+        Delegator delegator = dctx.getDelegator();
+        String finAccountAuthId = (String) context.get("finAccountAuthId");
+        if (!FinAccountHelper.isMaterializedBalanceEnabled()) {
+            return ServiceUtil.returnSuccess();
+        }
+        try {
+            FinAccountHelper.clearFinAccountAuthCheckpoints(finAccountAuthId, delegator);
+        } catch (GenericEntityException e) {
+            Debug.logError(e, "Error calling clearFinAccountAuthCheckpoints service", module);
+            return ServiceUtil.returnError(e.getMessage());
+        }
+        return ServiceUtil.returnSuccess();
+    }
+
+    /** Takes a balance checkpoint of every account with transactions since its latest one, each account in a transaction of its own */
+    public static Map<String, Object> checkpointFinAccountBalances(DispatchContext dctx, Map<String, ? extends Object> context) {
+        final Delegator delegator = dctx.getDelegator();
+        if (!FinAccountHelper.isMaterializedBalanceEnabled()) {
+            return ServiceUtil.returnSuccess();
+        }
+        int accounts = 0;
+        int checkpoints = 0;
+        EntityListIterator finAccounts = null;
+        try {
+            finAccounts = EntityQuery.use(delegator).select("finAccountId").from("FinAccount").orderBy("finAccountId").queryIterator();
+            GenericValue finAccount;
+            while ((finAccount = finAccounts.next()) != null) {
+                final String finAccountId = finAccount.getString("finAccountId");
+                try {
+                    Boolean taken = TransactionUtil.doNewTransaction(new Callable<Boolean>() {
+                        @Override
+                        public Boolean call() throws Exception {
+                            return FinAccountHelper.checkpointFinAccountBalance(finAccountId, delegator);
+                        }
+                    }, "checkpointFinAccountBalance", 0, true);
+                    if (Boolean.TRUE.equals(taken)) {
+                        checkpoints++;
+                    }
+                } catch (GenericEntityException e) {
+                    // the next run tries again, the balance is still summed from the previous checkpoint
+                    Debug.logError(e, "Could not take the balance checkpoint of FinAccount " + finAccountId, module);
+                }
+                accounts++;
+            }
+        } catch (GenericEntityException e) {
+            Debug.logError(e, "Error calling checkpointFinAccountBalances service", module);
+            return ServiceUtil.returnError(e.getMessage());
+        } finally {
+            if (finAccounts != null) {
+                try {
+                    finAccounts.close();
+                } catch (GenericEntityException e) {
+                    Debug.logError(e, module);
+                }
+            }
+        }
+        Debug.logInfo("Took " + checkpoints + " balance checkpoints of " + accounts + " financial accounts", module);
+        return ServiceUtil.returnSuccess();
+    }
+}
@@ -21,6 +21,8 @@ package org.apache.ofbiz.order.finaccount;
 
 import java.math.BigDecimal;
 import java.sql.Timestamp;
+import java.util.HashSet;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Random;
 
@@ -28,12 +30,14 @@ import org.apache.ofbiz.base.util.Debug;
 import org.apache.ofbiz.base.util.UtilDateTime;
 import org.apache.ofbiz.base.util.UtilMisc;
 import org.apache.ofbiz.base.util.UtilNumber;
+import org.apache.ofbiz.base.util.UtilProperties;
 import org.apache.ofbiz.base.util.UtilValidate;
 import org.apache.ofbiz.entity.Delegator;
 import org.apache.ofbiz.entity.GenericEntityException;
 import org.apache.ofbiz.entity.GenericValue;
 import org.apache.ofbiz.entity.condition.EntityCondition;
 import org.apache.ofbiz.entity.condition.EntityOperator;
+import org.apache.ofbiz.entity.model.ModelEntity;
 import org.apache.ofbiz.entity.util.EntityQuery;
 
 /**
@@ -156,6 +160,14 @@ public class FinAccountHelper {
      }
 
 
+     /**
+      * Returns true if the balances are read from the FinAccountBalance records, kept by the updateFinAccountBalance
+      * entity ECA, and summed from the latest FinAccountBalanceCheckpoint for the other dates
+      */
+     public static boolean isMaterializedBalanceEnabled() {
+         return UtilProperties.propertyValueEqualsIgnoreCase("order", "order.finAccountBalance.enable", "Y");
+     }
+
      /**
       * Sum of all DEPOSIT and ADJUSTMENT transactions minus all WITHDRAWAL transactions whose transactionDate is before asOfDateTime
       * @param finAccountId the financial account id
@@ -167,34 +179,11 @@ public class FinAccountHelper {
      public static BigDecimal getBalance(String finAccountId, Timestamp asOfDateTime, Delegator delegator) throws GenericEntityException {
         if (asOfDateTime == null) asOfDateTime = UtilDateTime.nowTimestamp();
 
-        BigDecimal incrementTotal = ZERO;  // total amount of transactions which increase balance
-        BigDecimal decrementTotal = ZERO;  // decrease balance
-
-        // find the sum of all transactions which increase the value
-        List<GenericValue> transSums = EntityQuery.use(delegator)
-                .select("amount")
-                .from("FinAccountTransSum")
-                .where(EntityCondition.makeCondition("finAccountId", EntityOperator.EQUALS, finAccountId),
-                        EntityCondition.makeCondition("transactionDate", EntityOperator.LESS_THAN_EQUAL_TO, asOfDateTime),
-                        EntityCondition.makeCondition(UtilMisc.toList(
-                                EntityCondition.makeCondition("finAccountTransTypeId", EntityOperator.EQUALS, "DEPOSIT"),
-                                EntityCondition.makeCondition("finAccountTransTypeId", EntityOperator.EQUALS, "ADJUSTMENT")),
-                            EntityOperator.OR))
-                .queryList();
-        incrementTotal = addFirstEntryAmount(incrementTotal, transSums, "amount", (decimals+1), rounding);
-
-        // now find sum of all transactions with decrease the value
-        transSums = EntityQuery.use(delegator)
-                .select("amount")
-                .from("FinAccountTransSum")
-                .where(EntityCondition.makeCondition("finAccountId", EntityOperator.EQUALS, finAccountId),
-                        EntityCondition.makeCondition("transactionDate", EntityOperator.LESS_THAN_EQUAL_TO, asOfDateTime),
-                        EntityCondition.makeCondition("finAccountTransTypeId", EntityOperator.EQUALS, "WITHDRAWAL"))
-                .queryList();
-        decrementTotal = addFirstEntryAmount(decrementTotal, transSums, "amount", (decimals+1), rounding);
-
-        // the net balance is just the incrementTotal minus the decrementTotal
-        return incrementTotal.subtract(decrementTotal).setScale(decimals, rounding);
+        GenericValue finAccountBalance = getFinAccountBalance(finAccountId, asOfDateTime, delegator);
+        if (finAccountBalance != null) {
+            return finAccountBalance.getBigDecimal("balance").setScale(decimals, rounding);
+        }
+        return sumBalance(finAccountId, asOfDateTime, delegator).setScale(decimals, rounding);
     }
 
      /**
@@ -208,20 +197,308 @@ public class FinAccountHelper {
     public static BigDecimal getAvailableBalance(String finAccountId, Timestamp asOfDateTime, Delegator delegator) throws GenericEntityException {
         if (asOfDateTime == null) asOfDateTime = UtilDateTime.nowTimestamp();
 
-        BigDecimal netBalance = getBalance(finAccountId, asOfDateTime, delegator);
+        GenericValue finAccountBalance = getFinAccountBalance(finAccountId, asOfDateTime, delegator);
+        if (finAccountBalance != null) {
+            return finAccountBalance.getBigDecimal("balance").subtract(finAccountBalance.getBigDecimal("authorizationsTotal")).setScale(decimals, rounding);
+        }
+
+        BigDecimal netBalance = sumBalance(finAccountId, asOfDateTime, delegator);
+        BigDecimal authorizationsTotal = sumAuthorizations(finAccountId, asOfDateTime, delegator);
+
+        // the total available balance is transactions total minus authorizations total
+        return netBalance.subtract(authorizationsTotal).setScale(decimals, rounding);
+    }
 
-        // find sum of all authorizations which are not expired and which were authorized before as of time
+    /**
+     * Computes the FinAccountBalance record of the account again, in the transaction writing one of its FinAccountTrans
+     * or FinAccountAuth records; the checkpoints taken from the transactionDate of a written FinAccountTrans on are
+     * removed as they no longer add up, and the authorization totals of those taken from the authorizationDate of a
+     * written FinAccountAuth on are dropped.
+     * @param finAccountId the financial account id
+     * @param transactionDate the transactionDate of the written FinAccountTrans, null for a FinAccountAuth
+     * @param authorizationDate the authorizationDate of the written FinAccountAuth, null for a FinAccountTrans
+     * @param delegator the delegator
+     * @throws GenericEntityException
+     */
+    public static void updateFinAccountBalance(String finAccountId, Timestamp transactionDate, Timestamp authorizationDate, Delegator delegator) throws GenericEntityException {
+        // lock the account so the writers of its transactions and the checkpoint job update the balance one after the other
+        GenericValue finAccount = EntityQuery.use(delegator).from("FinAccount").where("finAccountId", finAccountId).forUpdate(true).queryOne();
+        if (finAccount == null) {
+            return;
+        }
+        if (transactionDate != null) {
+            delegator.removeByCondition("FinAccountBalanceCheckpoint", EntityCondition.makeCondition(
+                    EntityCondition.makeCondition("finAccountId", EntityOperator.EQUALS, finAccountId),
+                    EntityCondition.makeCondition("checkpointDate", EntityOperator.GREATER_THAN_EQUAL_TO, transactionDate)));
+        }
+        if (authorizationDate != null) {
+            clearCheckpointAuthorizations(finAccountId, authorizationDate, delegator);
+        }
+        storeFinAccountBalance(finAccountId, UtilDateTime.nowTimestamp(), delegator);
+    }
+
+    /**
+     * Drops the authorization totals of the checkpoints taken from the stored authorizationDate of a FinAccountAuth on,
+     * before the authorization is changed or removed; the ECA computing the balance after the write only knows the new
+     * authorizationDate.
+     * @param finAccountAuthId the id of the FinAccountAuth about to be written
+     * @param delegator the delegator
+     * @throws GenericEntityException
+     */
+    public static void clearFinAccountAuthCheckpoints(String finAccountAuthId, Delegator delegator) throws GenericEntityException {
+        GenericValue storedAuth = EntityQuery.use(delegator).select("finAccountId", "authorizationDate").from("FinAccountAuth")
+                .where("finAccountAuthId", finAccountAuthId).queryOne();
+        if (storedAuth == null || storedAuth.get("finAccountId") == null || storedAuth.get("authorizationDate") == null) {
+            return;
+        }
+        // the same lock as updateFinAccountBalance
+        GenericValue finAccount = EntityQuery.use(delegator).from("FinAccount").where("finAccountId", storedAuth.get("finAccountId")).forUpdate(true).queryOne();
+        if (finAccount == null) {
+            return;
+        }
+        clearCheckpointAuthorizations(storedAuth.getString("finAccountId"), storedAuth.getTimestamp("authorizationDate"), delegator);
+    }
+
+    /** Drops the authorization totals of the checkpoints of the account from the date on, the authorizations are summed from an earlier one */
+    private static void clearCheckpointAuthorizations(String finAccountId, Timestamp fromDate, Delegator delegator) throws GenericEntityException {
+        delegator.storeByCondition("FinAccountBalanceCheckpoint", UtilMisc.toMap("authorizationsTotal", null, "authorizationsValidThruDate", null),
+                EntityCondition.makeCondition(EntityCondition.makeCondition("finAccountId", EntityOperator.EQUALS, finAccountId),
+                        EntityCondition.makeCondition("checkpointDate", EntityOperator.GREATER_THAN_EQUAL_TO, fromDate)));
+    }
+
+    /**
+     * Removes the checkpoints taken from the stored transactionDate of a FinAccountTrans on, before the transaction is
+     * changed or removed; the ECA computing the balance after the write only knows the new transactionDate, so with
+     * this the checkpoints are removed from the earlier of the old and the new date. If the transaction moves to
+     * another account, the FinAccountBalance of the account it leaves is removed too; its balances are summed until
+     * its next update or checkpoint.
+     * @param finAccountTransId the id of the FinAccountTrans about to be written
+     * @param finAccountId the finAccountId written to the FinAccountTrans
+     * @param delegator the delegator
+     * @throws GenericEntityException
+     */
+    public static void removeFinAccountBalanceCheckpoints(String finAccountTransId, String finAccountId, Delegator delegator) throws GenericEntityException {
+        GenericValue storedTrans = EntityQuery.use(delegator).select("finAccountId", "transactionDate").from("FinAccountTrans")
+                .where("finAccountTransId", finAccountTransId).queryOne();
+        if (storedTrans == null || storedTrans.get("finAccountId") == null) {
+            return;
+        }
+        String storedFinAccountId = storedTrans.getString("finAccountId");
+        // the same lock as updateFinAccountBalance
+        GenericValue finAccount = EntityQuery.use(delegator).from("FinAccount").where("finAccountId", storedFinAccountId).forUpdate(true).queryOne();
+        if (finAccount == null) {
+            return;
+        }
+        Timestamp storedTransactionDate = storedTrans.getTimestamp("transactionDate");
+        if (storedTransactionDate != null) {
+            delegator.removeByCondition("FinAccountBalanceCheckpoint", EntityCondition.makeCondition(
+                    EntityCondition.makeCondition("finAccountId", EntityOperator.EQUALS, storedFinAccountId),
+                    EntityCondition.makeCondition("checkpointDate", EntityOperator.GREATER_THAN_EQUAL_TO, storedTransactionDate)));
+        }
+        if (!storedFinAccountId.equals(finAccountId)) {
+            delegator.removeByAnd("FinAccountBalance", UtilMisc.toMap("finAccountId", storedFinAccountId));
+        }
+    }
+
+    /**
+     * Takes a FinAccountBalanceCheckpoint of the account if it has transactions or authorizations since its latest one,
+     * and computes its FinAccountBalance record again; nothing is written for an account without new ones. To be
+     * called in a transaction of its own.
+     * @param finAccountId the financial account id
+     * @param delegator the delegator
+     * @return true if a checkpoint was taken
+     * @throws GenericEntityException
+     */
+    public static boolean checkpointFinAccountBalance(String finAccountId, Delegator delegator) throws GenericEntityException {
+        GenericValue finAccount = EntityQuery.use(delegator).from("FinAccount").where("finAccountId", finAccountId).forUpdate(true).queryOne();
+        if (finAccount == null) {
+            return false;
+        }
+        Timestamp nowTimestamp = UtilDateTime.nowTimestamp();
+        GenericValue latestCheckpoint = getLatestCheckpoint(finAccountId, nowTimestamp, delegator);
+        List<EntityCondition> conditions = UtilMisc.<EntityCondition>toList(
+                EntityCondition.makeCondition("finAccountId", EntityOperator.EQUALS, finAccountId),
+                EntityCondition.makeCondition("transactionDate", EntityOperator.LESS_THAN_EQUAL_TO, nowTimestamp));
+        if (latestCheckpoint != null) {
+            conditions.add(EntityCondition.makeCondition("transactionDate", EntityOperator.GREATER_THAN, latestCheckpoint.getTimestamp("checkpointDate")));
+        }
+        GenericValue newTrans = EntityQuery.use(delegator).select("finAccountTransId").from("FinAccountTrans").where(conditions).queryFirst();
+        if (newTrans == null) {
+            List<EntityCondition> authConditions = UtilMisc.<EntityCondition>toList(
+                    EntityCondition.makeCondition("finAccountId", EntityOperator.EQUALS, finAccountId),
+                    EntityCondition.makeCondition("authorizationDate", EntityOperator.LESS_THAN_EQUAL_TO, nowTimestamp));
+            if (latestCheckpoint != null) {
+                authConditions.add(EntityCondition.makeCondition("authorizationDate", EntityOperator.GREATER_THAN, latestCheckpoint.getTimestamp("checkpointDate")));
+            }
+            GenericValue newAuth = EntityQuery.use(delegator).select("finAccountAuthId").from("FinAccountAuth").where(authConditions).queryFirst();
+            if (newAuth == null) {
+                return false;
+            }
+        }
+
+        GenericValue finAccountBalance = storeFinAccountBalance(finAccountId, nowTimestamp, delegator);
+        GenericValue checkpoint = delegator.makeValue("FinAccountBalanceCheckpoint");
+        checkpoint.set("finAccountId", finAccountId);
+        checkpoint.set("checkpointDate", nowTimestamp);
+        checkpoint.set("balance", finAccountBalance.get("balance"));
+        checkpoint.set("authorizationsTotal", finAccountBalance.get("authorizationsTotal"));
+        // an authorization counted in the total starts or stops counting from this date on
+        checkpoint.set("authorizationsValidThruDate", getNextAuthorizationDate(finAccountId, nowTimestamp, delegator));
+        checkpoint.create();
+        return true;
+    }
+
+    /** Gets the FinAccountBalance record of the account if it holds the balance as of the date */
+    private static GenericValue getFinAccountBalance(String finAccountId, Timestamp asOfDateTime, Delegator delegator) throws GenericEntityException {
+        if (!isMaterializedBalanceEnabled()) {
+            return null;
+        }
+        GenericValue finAccountBalance = EntityQuery.use(delegator).from("FinAccountBalance").where("finAccountId", finAccountId).queryOne();
+        if (finAccountBalance == null) {
+            return null;
+        }
+        Timestamp computedDate = finAccountBalance.getTimestamp("computedDate");
+        Timestamp validThruDate = finAccountBalance.getTimestamp("validThruDate");
+        if (asOfDateTime.before(computedDate) || (validThruDate != null && !asOfDateTime.before(validThruDate))) {
+            return null;
+        }
+        return finAccountBalance;
+    }
+
+    /** Computes and stores the FinAccountBalance record of the account as of now, returns it */
+    private static GenericValue storeFinAccountBalance(String finAccountId, Timestamp nowTimestamp, Delegator delegator) throws GenericEntityException {
+        GenericValue finAccountBalance = delegator.makeValue("FinAccountBalance");
+        finAccountBalance.set("finAccountId", finAccountId);
+        finAccountBalance.set("balance", sumBalance(finAccountId, nowTimestamp, delegator));
+        finAccountBalance.set("authorizationsTotal", sumAuthorizations(finAccountId, nowTimestamp, delegator));
+        finAccountBalance.set("computedDate", nowTimestamp);
+        // the totals change without a write once a dated transaction or authorization is reached
+        Timestamp validThruDate = getNextDate("FinAccountTrans", UtilMisc.toList("transactionDate"), finAccountId, nowTimestamp, delegator);
+        Timestamp nextAuthorizationDate = getNextAuthorizationDate(finAccountId, nowTimestamp, delegator);
+        if (nextAuthorizationDate != null && (validThruDate == null || nextAuthorizationDate.before(validThruDate))) {
+            validThruDate = nextAuthorizationDate;
+        }
+        finAccountBalance.set("validThruDate", validThruDate);
+        delegator.createOrStore(finAccountBalance);
+        return finAccountBalance;
+    }
+
+    /** The balance as of the date, summed from the latest checkpoint before it; not rounded */
+    private static BigDecimal sumBalance(String finAccountId, Timestamp asOfDateTime, Delegator delegator) throws GenericEntityException {
+        BigDecimal balance = ZERO;
+        Timestamp afterDateTime = null;
+        GenericValue checkpoint = isMaterializedBalanceEnabled() ? getLatestCheckpoint(finAccountId, asOfDateTime, delegator) : null;
+        if (checkpoint != null) {
+            balance = checkpoint.getBigDecimal("balance");
+            afterDateTime = checkpoint.getTimestamp("checkpointDate");
+        }
+
+        // the sum of all transactions which increase the value, minus the sum of all transactions which decrease it
+        BigDecimal incrementTotal = sumTransactions(finAccountId, afterDateTime, asOfDateTime, UtilMisc.toList("DEPOSIT", "ADJUSTMENT"), delegator);
+        BigDecimal decrementTotal = sumTransactions(finAccountId, afterDateTime, asOfDateTime, UtilMisc.toList("WITHDRAWAL"), delegator);
+        return balance.add(incrementTotal).subtract(decrementTotal);
+    }
+
+    private static BigDecimal sumTransactions(String finAccountId, Timestamp afterDateTime, Timestamp asOfDateTime, List<String> finAccountTransTypeIds, Delegator delegator) throws GenericEntityException {
+        List<EntityCondition> conditions = UtilMisc.<EntityCondition>toList(
+                EntityCondition.makeCondition("finAccountId", EntityOperator.EQUALS, finAccountId),
+                EntityCondition.makeCondition("transactionDate", EntityOperator.LESS_THAN_EQUAL_TO, asOfDateTime),
+                EntityCondition.makeCondition("finAccountTransTypeId", EntityOperator.IN, finAccountTransTypeIds));
+        if (afterDateTime != null) {
+            conditions.add(EntityCondition.makeCondition("transactionDate", EntityOperator.GREATER_THAN, afterDateTime));
+        }
+        List<GenericValue> transSums = EntityQuery.use(delegator)
+                .select("amount")
+                .from("FinAccountTransSum")
+                .where(conditions)
+                .queryList();
+        return addFirstEntryAmount(ZERO, transSums, "amount", (decimals+1), rounding);
+    }
+
+    /**
+     * The sum of all authorizations which are not expired and which were authorized before as of time; not rounded.
+     * It is summed from the latest checkpoint before the date whose authorization total still holds: an authorization
+     * starts or stops counting at its fromDate or thruDate, so the total of a checkpoint only holds until the first of
+     * these dates after it (authorizationsValidThruDate).
+     */
+    private static BigDecimal sumAuthorizations(String finAccountId, Timestamp asOfDateTime, Delegator delegator) throws GenericEntityException {
+        BigDecimal authorizationsTotal = ZERO;
+        List<EntityCondition> conditions = UtilMisc.<EntityCondition>toList(
+                EntityCondition.makeCondition("finAccountId", EntityOperator.EQUALS, finAccountId),
+                EntityCondition.makeCondition("authorizationDate", EntityOperator.LESS_THAN_EQUAL_TO, asOfDateTime));
+        if (isMaterializedBalanceEnabled()) {
+            GenericValue checkpoint = EntityQuery.use(delegator).from("FinAccountBalanceCheckpoint")
+                    .where(EntityCondition.makeCondition("finAccountId", EntityOperator.EQUALS, finAccountId),
+                            EntityCondition.makeCondition("checkpointDate", EntityOperator.LESS_THAN_EQUAL_TO, asOfDateTime),
+                            EntityCondition.makeCondition("authorizationsTotal", EntityOperator.NOT_EQUAL, null),
+                            EntityCondition.makeCondition(EntityCondition.makeCondition("authorizationsValidThruDate", EntityOperator.EQUALS, null),
+                                    EntityOperator.OR,
+                                    EntityCondition.makeCondition("authorizationsValidThruDate", EntityOperator.GREATER_THAN, asOfDateTime)))
+                    .orderBy("-checkpointDate").queryFirst();
+            if (checkpoint != null) {
+                authorizationsTotal = checkpoint.getBigDecimal("authorizationsTotal");
+                conditions.add(EntityCondition.makeCondition("authorizationDate", EntityOperator.GREATER_THAN, checkpoint.getTimestamp("checkpointDate")));
+            }
+        }
         List<GenericValue> authSums = EntityQuery.use(delegator)
                 .select("amount")
                 .from("FinAccountAuthSum")
-                .where(EntityCondition.makeCondition("finAccountId", EntityOperator.EQUALS, finAccountId),
-                        EntityCondition.makeCondition("authorizationDate", EntityOperator.LESS_THAN_EQUAL_TO, asOfDateTime))
+                .where(conditions)
                 .queryList();
+        return addFirstEntryAmount(authorizationsTotal, authSums, "amount", (decimals+1), rounding);
+    }
 
-        BigDecimal authorizationsTotal = addFirstEntryAmount(ZERO, authSums, "amount", (decimals+1), rounding);
+    private static GenericValue getLatestCheckpoint(String finAccountId, Timestamp asOfDateTime, Delegator delegator) throws GenericEntityException {
+        return EntityQuery.use(delegator).from("FinAccountBalanceCheckpoint")
+                .where(EntityCondition.makeCondition("finAccountId", EntityOperator.EQUALS, finAccountId),
+                        EntityCondition.makeCondition("checkpointDate", EntityOperator.LESS_THAN_EQUAL_TO, asOfDateTime))
+                .orderBy("-checkpointDate").queryFirst();
+    }
 
-        // the total available balance is transactions total minus authorizations total
-        return netBalance.subtract(authorizationsTotal).setScale(decimals, rounding);
+    /** Returns the first authorizationDate, fromDate or thruDate of the authorizations of the account after the date, or null */
+    private static Timestamp getNextAuthorizationDate(String finAccountId, Timestamp afterDateTime, Delegator delegator) throws GenericEntityException {
+        return getNextDate("FinAccountAuth", UtilMisc.toList("authorizationDate", "fromDate", "thruDate"), finAccountId, afterDateTime, delegator);
+    }
+
+    /**
+     * Returns the first value after the date of the given date fields of the records of the account, or null; the fields
+     * are read with one query, the records with one of them after the date.
+     */
+    private static Timestamp getNextDate(String entityName, List<String> fieldNames, String finAccountId, Timestamp afterDateTime, Delegator delegator) throws GenericEntityException {
+        ModelEntity modelEntity = delegator.getModelEntity(entityName);
+        List<String> dateFieldNames = new LinkedList<String>();
+        List<EntityCondition> dateConditions = new LinkedList<EntityCondition>();
+        for (String fieldName : fieldNames) {
+            if (modelEntity.isField(fieldName)) {
+                dateFieldNames.add(fieldName);
+                dateConditions.add(EntityCondition.makeCondition(fieldName, EntityOperator.GREATER_THAN, afterDateTime));
+            }
+        }
+        if (dateFieldNames.isEmpty()) {
+            return null;
+        }
+        EntityQuery query = EntityQuery.use(delegator).select(new HashSet<String>(dateFieldNames)).from(entityName)
+                .where(EntityCondition.makeCondition("finAccountId", EntityOperator.EQUALS, finAccountId),
+                        EntityCondition.makeCondition(dateConditions, EntityOperator.OR));
+        List<GenericValue> nextValues;
+        if (dateFieldNames.size() == 1) {
+            nextValues = UtilMisc.toList(query.orderBy(dateFieldNames.get(0)).queryFirst());
+        } else {
+            nextValues = query.queryList();
+        }
+        Timestamp nextDate = null;
+        for (GenericValue next : nextValues) {
+            if (next == null) {
+                continue;
+            }
+            for (String fieldName : dateFieldNames) {
+                Timestamp date = next.getTimestamp(fieldName);
+                if (date != null && date.after(afterDateTime) && (nextDate == null || date.before(nextDate))) {
+                    nextDate = date;
+                }
+            }
+        }
+        return nextDate;
     }
 
     public static boolean validateFinAccount(GenericValue finAccount) {
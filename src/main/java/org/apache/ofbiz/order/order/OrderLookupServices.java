@@ -20,6 +20,8 @@
 package org.apache.ofbiz.order.order;
 
 import java.math.BigDecimal;
+import java.sql.Timestamp;
+import java.util.HashSet;
 import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
@@ -31,6 +33,7 @@ import org.apache.ofbiz.base.util.Debug;
 import org.apache.ofbiz.base.util.GeneralException;
 import org.apache.ofbiz.base.util.ObjectType;
 import org.apache.ofbiz.base.util.StringUtil;
+import org.apache.ofbiz.base.util.UtilDateTime;
 import org.apache.ofbiz.base.util.UtilGenerics;
 import org.apache.ofbiz.base.util.UtilMisc;
 import org.apache.ofbiz.base.util.UtilProperties;
@@ -41,11 +44,13 @@ import org.apache.ofbiz.entity.GenericEntityException;
 import org.apache.ofbiz.entity.GenericValue;
 import org.apache.ofbiz.entity.condition.EntityComparisonOperator;
 import org.apache.ofbiz.entity.condition.EntityCondition;
-import org.apache.ofbiz.entity.condition.EntityConditionList;
+import org.apache.ofbiz.entity.condition.EntityConditionSubSelect;
 import org.apache.ofbiz.entity.condition.EntityExpr;
 import org.apache.ofbiz.entity.condition.EntityOperator;
 import org.apache.ofbiz.entity.model.DynamicViewEntity;
 import org.apache.ofbiz.entity.model.ModelKeyMap;
+import org.apache.ofbiz.entity.model.ModelViewEntity;
+import org.apache.ofbiz.entity.util.EntityListIterator;
 import org.apache.ofbiz.entity.util.EntityQuery;
 import org.apache.ofbiz.security.Security;
 import org.apache.ofbiz.service.DispatchContext;
@@ -77,6 +82,12 @@ public class OrderLookupServices {
             showAll = "N";
         }
 
+        // keyset paging: the orderDate and orderId of the last order of the previous page
+        Timestamp afterOrderDate = (Timestamp) context.get("afterOrderDate");
+        String afterOrderId = (String) context.get("afterOrderId");
+        boolean keysetPaging = afterOrderDate != null && UtilValidate.isNotEmpty(afterOrderId);
+        boolean skipOrderCount = "Y".equals(context.get("skipOrderCount"));
+
         // list of fields to select (initial list)
         Set<String> fieldsToSelect = new LinkedHashSet<String>();
         fieldsToSelect.add("orderId");
@@ -271,71 +282,75 @@ public class OrderLookupServices {
             conditions.add(makeExpr("isViewed", isViewed));
         }
 
+        // the filters on other entities than OrderHeader are added as semi-joins (orderId IN sub-select) rather than
+        // joined into the view, so they don't multiply the rows and no DISTINCT is needed
+        List<String> lookupPlan = new LinkedList<String>();
+
         // Shipment Method
         String shipmentMethod = (String) context.get("shipmentMethod");
         if (UtilValidate.isNotEmpty(shipmentMethod)) {
             String carrierPartyId = shipmentMethod.substring(0, shipmentMethod.indexOf("@"));
             String ShippingMethodTypeId = shipmentMethod.substring(shipmentMethod.indexOf("@")+1);
-            dve.addMemberEntity("OISG", "OrderItemShipGroup");
-            dve.addAlias("OISG", "shipmentMethodTypeId");
-            dve.addAlias("OISG", "carrierPartyId");
-            dve.addViewLink("OH", "OISG", Boolean.FALSE, UtilMisc.toList(new ModelKeyMap("orderId", "orderId")));
+            DynamicViewEntity shipGroupView = makeOrderSubView("OISG", "OrderItemShipGroup");
+            shipGroupView.addAlias("OISG", "shipmentMethodTypeId");
+            shipGroupView.addAlias("OISG", "carrierPartyId");
+            List<EntityCondition> shipGroupConditions = new LinkedList<EntityCondition>();
 
             if (UtilValidate.isNotEmpty(carrierPartyId)) {
                 paramList.add("carrierPartyId=" + carrierPartyId);
-                conditions.add(makeExpr("carrierPartyId", carrierPartyId));
+                shipGroupConditions.add(makeExpr("carrierPartyId", carrierPartyId));
             }
 
             if (UtilValidate.isNotEmpty(ShippingMethodTypeId)) {
                 paramList.add("ShippingMethodTypeId=" + ShippingMethodTypeId);
-                conditions.add(makeExpr("shipmentMethodTypeId", ShippingMethodTypeId));
+                shipGroupConditions.add(makeExpr("shipmentMethodTypeId", ShippingMethodTypeId));
             }
+            addOrderExistsCondition(delegator, conditions, lookupPlan, shipGroupView, shipGroupConditions);
         }
         // PaymentGatewayResponse
         String gatewayAvsResult = (String) context.get("gatewayAvsResult");
         String gatewayScoreResult = (String) context.get("gatewayScoreResult");
         if (UtilValidate.isNotEmpty(gatewayAvsResult) || UtilValidate.isNotEmpty(gatewayScoreResult)) {
-            dve.addMemberEntity("OPP", "OrderPaymentPreference");
-            dve.addMemberEntity("PGR", "PaymentGatewayResponse");
-            dve.addAlias("OPP", "orderPaymentPreferenceId");
-            dve.addAlias("PGR", "gatewayAvsResult");
-            dve.addAlias("PGR", "gatewayScoreResult");
-            dve.addViewLink("OH", "OPP", Boolean.FALSE, UtilMisc.toList(new ModelKeyMap("orderId", "orderId")));
-            dve.addViewLink("OPP", "PGR", Boolean.FALSE, UtilMisc.toList(new ModelKeyMap("orderPaymentPreferenceId", "orderPaymentPreferenceId")));
-        }
+            DynamicViewEntity gatewayView = makeOrderSubView("OPP", "OrderPaymentPreference");
+            gatewayView.addMemberEntity("PGR", "PaymentGatewayResponse");
+            gatewayView.addAlias("PGR", "gatewayAvsResult");
+            gatewayView.addAlias("PGR", "gatewayScoreResult");
+            gatewayView.addViewLink("OPP", "PGR", Boolean.FALSE, UtilMisc.toList(new ModelKeyMap("orderPaymentPreferenceId", "orderPaymentPreferenceId")));
+            List<EntityCondition> gatewayConditions = new LinkedList<EntityCondition>();
+
+            if (UtilValidate.isNotEmpty(gatewayAvsResult)) {
+                paramList.add("gatewayAvsResult=" + gatewayAvsResult);
+                gatewayConditions.add(EntityCondition.makeCondition("gatewayAvsResult", gatewayAvsResult));
+            }
 
-        if (UtilValidate.isNotEmpty(gatewayAvsResult)) {
-            paramList.add("gatewayAvsResult=" + gatewayAvsResult);
-            conditions.add(EntityCondition.makeCondition("gatewayAvsResult", gatewayAvsResult));
+            if (UtilValidate.isNotEmpty(gatewayScoreResult)) {
+                paramList.add("gatewayScoreResult=" + gatewayScoreResult);
+                gatewayConditions.add(EntityCondition.makeCondition("gatewayScoreResult", gatewayScoreResult));
+            }
+            addOrderExistsCondition(delegator, conditions, lookupPlan, gatewayView, gatewayConditions);
         }
 
-        if (UtilValidate.isNotEmpty(gatewayScoreResult)) {
-            paramList.add("gatewayScoreResult=" + gatewayScoreResult);
-            conditions.add(EntityCondition.makeCondition("gatewayScoreResult", gatewayScoreResult));
-        }
+        // the role data, party and role type have to match on the same OrderRole
+        if (roleTypeList != null || UtilValidate.isNotEmpty(partyId)) {
+            DynamicViewEntity roleView = makeOrderSubView("OT", "OrderRole");
+            roleView.addAlias("OT", "partyId");
+            roleView.addAlias("OT", "roleTypeId");
+            List<EntityCondition> roleConditions = new LinkedList<EntityCondition>();
 
-        // add the role data to the view
-        if (roleTypeList != null || partyId != null) {
-            dve.addMemberEntity("OT", "OrderRole");
-            dve.addAlias("OT", "partyId");
-            dve.addAlias("OT", "roleTypeId");
-            dve.addViewLink("OH", "OT", Boolean.FALSE, UtilMisc.toList(new ModelKeyMap("orderId", "orderId")));
-        }
-
-        if (UtilValidate.isNotEmpty(partyId)) {
-            paramList.add("partyId=" + partyId);
-            fieldsToSelect.add("partyId");
-            conditions.add(makeExpr("partyId", partyId));
-        }
+            if (UtilValidate.isNotEmpty(partyId)) {
+                paramList.add("partyId=" + partyId);
+                roleConditions.add(makeExpr("partyId", partyId));
+            }
 
-        if (roleTypeList != null) {
-            fieldsToSelect.add("roleTypeId");
-            List<EntityExpr> orExprs = new LinkedList<EntityExpr>();
-            for (String roleTypeId : roleTypeList) {
-                paramList.add("roleTypeId=" + roleTypeId);
-                orExprs.add(makeExpr("roleTypeId", roleTypeId));
+            if (roleTypeList != null) {
+                List<EntityExpr> orExprs = new LinkedList<EntityExpr>();
+                for (String roleTypeId : roleTypeList) {
+                    paramList.add("roleTypeId=" + roleTypeId);
+                    orExprs.add(makeExpr("roleTypeId", roleTypeId));
+                }
+                roleConditions.add(EntityCondition.makeCondition(orExprs, EntityOperator.OR));
             }
-            conditions.add(EntityCondition.makeCondition(orExprs, EntityOperator.OR));
+            addOrderExistsCondition(delegator, conditions, lookupPlan, roleView, roleConditions);
         }
 
         // order item fields
@@ -350,84 +365,85 @@ public class OrderLookupServices {
         boolean hasGoodIdentification = UtilValidate.isNotEmpty(goodIdentificationTypeId) && UtilValidate.isNotEmpty(goodIdentificationIdValue);
 
         if (correspondingPoId != null || subscriptionId != null || productId != null || budgetId != null || quoteId != null || hasGoodIdentification) {
-            dve.addMemberEntity("OI", "OrderItem");
-            dve.addAlias("OI", "correspondingPoId");
-            dve.addAlias("OI", "subscriptionId");
-            dve.addAlias("OI", "productId");
-            dve.addAlias("OI", "budgetId");
-            dve.addAlias("OI", "quoteId");
-            dve.addViewLink("OH", "OI", Boolean.FALSE, UtilMisc.toList(new ModelKeyMap("orderId", "orderId")));
+            DynamicViewEntity itemView = makeOrderSubView("OI", "OrderItem");
+            itemView.addAlias("OI", "correspondingPoId");
+            itemView.addAlias("OI", "subscriptionId");
+            itemView.addAlias("OI", "productId");
+            itemView.addAlias("OI", "budgetId");
+            itemView.addAlias("OI", "quoteId");
+            List<EntityCondition> itemConditions = new LinkedList<EntityCondition>();
 
             if (hasGoodIdentification) {
-                dve.addMemberEntity("GOODID", "GoodIdentification");
-                dve.addAlias("GOODID", "goodIdentificationTypeId");
-                dve.addAlias("GOODID", "idValue");
-                dve.addViewLink("OI", "GOODID", Boolean.FALSE, UtilMisc.toList(new ModelKeyMap("productId", "productId")));
+                itemView.addMemberEntity("GOODID", "GoodIdentification");
+                itemView.addAlias("GOODID", "goodIdentificationTypeId");
+                itemView.addAlias("GOODID", "idValue");
+                itemView.addViewLink("OI", "GOODID", Boolean.FALSE, UtilMisc.toList(new ModelKeyMap("productId", "productId")));
                 paramList.add("goodIdentificationTypeId=" + goodIdentificationTypeId);
-                conditions.add(makeExpr("goodIdentificationTypeId", goodIdentificationTypeId));
+                itemConditions.add(makeExpr("goodIdentificationTypeId", goodIdentificationTypeId));
                 paramList.add("goodIdentificationIdValue=" + goodIdentificationIdValue);
-                conditions.add(makeExpr("idValue", goodIdentificationIdValue));
+                itemConditions.add(makeExpr("idValue", goodIdentificationIdValue));
             }
-        }
 
-        if (UtilValidate.isNotEmpty(correspondingPoId)) {
-            paramList.add("correspondingPoId=" + correspondingPoId);
-            conditions.add(makeExpr("correspondingPoId", correspondingPoId));
-        }
+            if (UtilValidate.isNotEmpty(correspondingPoId)) {
+                paramList.add("correspondingPoId=" + correspondingPoId);
+                itemConditions.add(makeExpr("correspondingPoId", correspondingPoId));
+            }
 
-        if (UtilValidate.isNotEmpty(subscriptionId)) {
-            paramList.add("subscriptionId=" + subscriptionId);
-            conditions.add(makeExpr("subscriptionId", subscriptionId));
-        }
+            if (UtilValidate.isNotEmpty(subscriptionId)) {
+                paramList.add("subscriptionId=" + subscriptionId);
+                itemConditions.add(makeExpr("subscriptionId", subscriptionId));
+            }
 
-        if (UtilValidate.isNotEmpty(productId)) {
-            paramList.add("productId=" + productId);
-            if (productId.startsWith("%") || productId.startsWith("*") || productId.endsWith("%") || productId.endsWith("*")) {
-                conditions.add(makeExpr("productId", productId));
-            } else {
-                GenericValue product = null;
-                try {
-                    product = EntityQuery.use(delegator).from("Product").where("productId", productId).queryOne();
-                } catch (GenericEntityException e) {
-                    Debug.logWarning(e.getMessage(), module);
-                }
-                if (product != null) {
-                    String isVirtual = product.getString("isVirtual");
-                    if (isVirtual != null && "Y".equals(isVirtual)) {
-                        List<EntityExpr> orExprs = new LinkedList<EntityExpr>();
-                        orExprs.add(EntityCondition.makeCondition("productId", EntityOperator.EQUALS, productId));
-
-                        Map<String, Object> varLookup = null;
-                        try {
-                            varLookup = dispatcher.runSync("getAllProductVariants", UtilMisc.toMap("productId", productId));
-                        } catch (GenericServiceException e) {
-                            Debug.logWarning(e.getMessage(), module);
-                        }
-                        List<GenericValue> variants = UtilGenerics.checkList(varLookup.get("assocProducts"));
-                        if (variants != null) {
-                            for (GenericValue v : variants) {
-                                orExprs.add(EntityCondition.makeCondition("productId", EntityOperator.EQUALS, v.getString("productIdTo")));
+            if (UtilValidate.isNotEmpty(productId)) {
+                paramList.add("productId=" + productId);
+                if (productId.startsWith("%") || productId.startsWith("*") || productId.endsWith("%") || productId.endsWith("*")) {
+                    itemConditions.add(makeExpr("productId", productId));
+                } else {
+                    GenericValue product = null;
+                    try {
+                        product = EntityQuery.use(delegator).from("Product").where("productId", productId).queryOne();
+                    } catch (GenericEntityException e) {
+                        Debug.logWarning(e.getMessage(), module);
+                    }
+                    if (product != null) {
+                        String isVirtual = product.getString("isVirtual");
+                        if (isVirtual != null && "Y".equals(isVirtual)) {
+                            List<EntityExpr> orExprs = new LinkedList<EntityExpr>();
+                            orExprs.add(EntityCondition.makeCondition("productId", EntityOperator.EQUALS, productId));
+
+                            Map<String, Object> varLookup = null;
+                            try {
+                                varLookup = dispatcher.runSync("getAllProductVariants", UtilMisc.toMap("productId", productId));
+                            } catch (GenericServiceException e) {
+                                Debug.logWarning(e.getMessage(), module);
+                            }
+                            List<GenericValue> variants = UtilGenerics.checkList(varLookup.get("assocProducts"));
+                            if (variants != null) {
+                                for (GenericValue v : variants) {
+                                    orExprs.add(EntityCondition.makeCondition("productId", EntityOperator.EQUALS, v.getString("productIdTo")));
+                                }
                             }
+                            itemConditions.add(EntityCondition.makeCondition(orExprs, EntityOperator.OR));
+                        } else {
+                            itemConditions.add(EntityCondition.makeCondition("productId", EntityOperator.EQUALS, productId));
                         }
-                        conditions.add(EntityCondition.makeCondition(orExprs, EntityOperator.OR));
                     } else {
-                        conditions.add(EntityCondition.makeCondition("productId", EntityOperator.EQUALS, productId));
+                        String failMsg = UtilProperties.getMessage("OrderErrorUiLabels", "OrderFindOrderProductInvalid", UtilMisc.toMap("productId", productId), locale);
+                        return ServiceUtil.returnFailure(failMsg);
                     }
-                } else {
-                    String failMsg = UtilProperties.getMessage("OrderErrorUiLabels", "OrderFindOrderProductInvalid", UtilMisc.toMap("productId", productId), locale);
-                    return ServiceUtil.returnFailure(failMsg);
                 }
             }
-        }
 
-        if (UtilValidate.isNotEmpty(budgetId)) {
-            paramList.add("budgetId=" + budgetId);
-            conditions.add(makeExpr("budgetId", budgetId));
-        }
+            if (UtilValidate.isNotEmpty(budgetId)) {
+                paramList.add("budgetId=" + budgetId);
+                itemConditions.add(makeExpr("budgetId", budgetId));
+            }
 
-        if (UtilValidate.isNotEmpty(quoteId)) {
-            paramList.add("quoteId=" + quoteId);
-            conditions.add(makeExpr("quoteId", quoteId));
+            if (UtilValidate.isNotEmpty(quoteId)) {
+                paramList.add("quoteId=" + quoteId);
+                itemConditions.add(makeExpr("quoteId", quoteId));
+            }
+            addOrderExistsCondition(delegator, conditions, lookupPlan, itemView, itemConditions);
         }
 
         // payment preference fields
@@ -437,48 +453,50 @@ public class OrderLookupServices {
         String accountNumber = (String) context.get("accountNumber");
         String paymentStatusId = (String) context.get("paymentStatusId");
 
-        if (UtilValidate.isNotEmpty(paymentStatusId)) {
-            paramList.add("paymentStatusId=" + paymentStatusId);
-            conditions.add(makeExpr("paymentStatusId", paymentStatusId));
-        }
-        if (finAccountId != null || cardNumber != null || accountNumber != null || paymentStatusId != null) {
-            dve.addMemberEntity("OP", "OrderPaymentPreference");
-            dve.addAlias("OP", "finAccountId");
-            dve.addAlias("OP", "paymentMethodId");
-            dve.addAlias("OP", "paymentStatusId", "statusId", null, false, false, null);
-            dve.addViewLink("OH", "OP", Boolean.FALSE, UtilMisc.toList(new ModelKeyMap("orderId", "orderId")));
-        }
-
         // search by billing account ID
         if (UtilValidate.isNotEmpty(billingAccountId)) {
             paramList.add("billingAccountId=" + billingAccountId);
             conditions.add(makeExpr("billingAccountId", billingAccountId));
         }
 
-        // search by fin account ID
-        if (UtilValidate.isNotEmpty(finAccountId)) {
-            paramList.add("finAccountId=" + finAccountId);
-            conditions.add(makeExpr("finAccountId", finAccountId));
-        }
+        if (finAccountId != null || cardNumber != null || accountNumber != null || paymentStatusId != null) {
+            DynamicViewEntity paymentView = makeOrderSubView("OP", "OrderPaymentPreference");
+            paymentView.addAlias("OP", "finAccountId");
+            paymentView.addAlias("OP", "paymentMethodId");
+            paymentView.addAlias("OP", "paymentStatusId", "statusId", null, false, false, null);
+            List<EntityCondition> paymentConditions = new LinkedList<EntityCondition>();
+
+            if (UtilValidate.isNotEmpty(paymentStatusId)) {
+                paramList.add("paymentStatusId=" + paymentStatusId);
+                paymentConditions.add(makeExpr("paymentStatusId", paymentStatusId));
+            }
 
-        // search by card number
-        if (UtilValidate.isNotEmpty(cardNumber)) {
-            dve.addMemberEntity("CC", "CreditCard");
-            dve.addAlias("CC", "cardNumber");
-            dve.addViewLink("OP", "CC", Boolean.FALSE, UtilMisc.toList(new ModelKeyMap("paymentMethodId", "paymentMethodId")));
+            // search by fin account ID
+            if (UtilValidate.isNotEmpty(finAccountId)) {
+                paramList.add("finAccountId=" + finAccountId);
+                paymentConditions.add(makeExpr("finAccountId", finAccountId));
+            }
 
-            paramList.add("cardNumber=" + cardNumber);
-            conditions.add(makeExpr("cardNumber", cardNumber));
-        }
+            // search by card number
+            if (UtilValidate.isNotEmpty(cardNumber)) {
+                paymentView.addMemberEntity("CC", "CreditCard");
+                paymentView.addAlias("CC", "cardNumber");
+                paymentView.addViewLink("OP", "CC", Boolean.FALSE, UtilMisc.toList(new ModelKeyMap("paymentMethodId", "paymentMethodId")));
 
-        // search by eft account number
-        if (UtilValidate.isNotEmpty(accountNumber)) {
-            dve.addMemberEntity("EF", "EftAccount");
-            dve.addAlias("EF", "accountNumber");
-            dve.addViewLink("OP", "EF", Boolean.FALSE, UtilMisc.toList(new ModelKeyMap("paymentMethodId", "paymentMethodId")));
+                paramList.add("cardNumber=" + cardNumber);
+                paymentConditions.add(makeExpr("cardNumber", cardNumber));
+            }
+
+            // search by eft account number
+            if (UtilValidate.isNotEmpty(accountNumber)) {
+                paymentView.addMemberEntity("EF", "EftAccount");
+                paymentView.addAlias("EF", "accountNumber");
+                paymentView.addViewLink("OP", "EF", Boolean.FALSE, UtilMisc.toList(new ModelKeyMap("paymentMethodId", "paymentMethodId")));
 
-            paramList.add("accountNumber=" + accountNumber);
-            conditions.add(makeExpr("accountNumber", accountNumber));
+                paramList.add("accountNumber=" + accountNumber);
+                paymentConditions.add(makeExpr("accountNumber", accountNumber));
+            }
+            addOrderExistsCondition(delegator, conditions, lookupPlan, paymentView, paymentConditions);
         }
 
         // shipment/inventory item
@@ -488,56 +506,58 @@ public class OrderLookupServices {
         String shipmentId = (String) context.get("shipmentId");
 
         if (shipmentId != null || inventoryItemId != null || softIdentifier != null || serialNumber != null) {
-            dve.addMemberEntity("II", "ItemIssuance");
-            dve.addAlias("II", "shipmentId");
-            dve.addAlias("II", "inventoryItemId");
-            dve.addViewLink("OH", "II", Boolean.FALSE, UtilMisc.toList(new ModelKeyMap("orderId", "orderId")));
+            DynamicViewEntity issuanceView = makeOrderSubView("II", "ItemIssuance");
+            issuanceView.addAlias("II", "shipmentId");
+            issuanceView.addAlias("II", "inventoryItemId");
+            List<EntityCondition> issuanceConditions = new LinkedList<EntityCondition>();
 
             if (softIdentifier != null || serialNumber != null) {
-                dve.addMemberEntity("IV", "InventoryItem");
-                dve.addAlias("IV", "softIdentifier");
-                dve.addAlias("IV", "serialNumber");
-                dve.addViewLink("II", "IV", Boolean.FALSE, UtilMisc.toList(new ModelKeyMap("inventoryItemId", "inventoryItemId")));
+                issuanceView.addMemberEntity("IV", "InventoryItem");
+                issuanceView.addAlias("IV", "softIdentifier");
+                issuanceView.addAlias("IV", "serialNumber");
+                issuanceView.addViewLink("II", "IV", Boolean.FALSE, UtilMisc.toList(new ModelKeyMap("inventoryItemId", "inventoryItemId")));
             }
-        }
 
-        if (UtilValidate.isNotEmpty(inventoryItemId)) {
-            paramList.add("inventoryItemId=" + inventoryItemId);
-            conditions.add(makeExpr("inventoryItemId", inventoryItemId));
-        }
+            if (UtilValidate.isNotEmpty(inventoryItemId)) {
+                paramList.add("inventoryItemId=" + inventoryItemId);
+                issuanceConditions.add(makeExpr("inventoryItemId", inventoryItemId));
+            }
 
-        if (UtilValidate.isNotEmpty(softIdentifier)) {
-            paramList.add("softIdentifier=" + softIdentifier);
-            conditions.add(makeExpr("softIdentifier", softIdentifier, true));
-        }
+            if (UtilValidate.isNotEmpty(softIdentifier)) {
+                paramList.add("softIdentifier=" + softIdentifier);
+                issuanceConditions.add(makeExpr("softIdentifier", softIdentifier, true));
+            }
 
-        if (UtilValidate.isNotEmpty(serialNumber)) {
-            paramList.add("serialNumber=" + serialNumber);
-            conditions.add(makeExpr("serialNumber", serialNumber, true));
-        }
+            if (UtilValidate.isNotEmpty(serialNumber)) {
+                paramList.add("serialNumber=" + serialNumber);
+                issuanceConditions.add(makeExpr("serialNumber", serialNumber, true));
+            }
 
-        if (UtilValidate.isNotEmpty(shipmentId)) {
-            paramList.add("shipmentId=" + shipmentId);
-            conditions.add(makeExpr("shipmentId", shipmentId));
+            if (UtilValidate.isNotEmpty(shipmentId)) {
+                paramList.add("shipmentId=" + shipmentId);
+                issuanceConditions.add(makeExpr("shipmentId", shipmentId));
+            }
+            addOrderExistsCondition(delegator, conditions, lookupPlan, issuanceView, issuanceConditions);
         }
 
         // back order checking
         String hasBackOrders = (String) context.get("hasBackOrders");
         if (UtilValidate.isNotEmpty(hasBackOrders)) {
-            dve.addMemberEntity("IR", "OrderItemShipGrpInvRes");
-            dve.addAlias("IR", "quantityNotAvailable");
-            dve.addViewLink("OH", "IR", Boolean.FALSE, UtilMisc.toList(new ModelKeyMap("orderId", "orderId")));
+            DynamicViewEntity reservationView = makeOrderSubView("IR", "OrderItemShipGrpInvRes");
+            reservationView.addAlias("IR", "quantityNotAvailable");
+            List<EntityCondition> reservationConditions = new LinkedList<EntityCondition>();
 
             paramList.add("hasBackOrders=" + hasBackOrders);
             if ("Y".equals(hasBackOrders)) {
-                conditions.add(EntityCondition.makeCondition("quantityNotAvailable", EntityOperator.NOT_EQUAL, null));
-                conditions.add(EntityCondition.makeCondition("quantityNotAvailable", EntityOperator.GREATER_THAN, BigDecimal.ZERO));
+                reservationConditions.add(EntityCondition.makeCondition("quantityNotAvailable", EntityOperator.NOT_EQUAL, null));
+                reservationConditions.add(EntityCondition.makeCondition("quantityNotAvailable", EntityOperator.GREATER_THAN, BigDecimal.ZERO));
             } else if ("N".equals(hasBackOrders)) {
                 List<EntityExpr> orExpr = new LinkedList<EntityExpr>();
                 orExpr.add(EntityCondition.makeCondition("quantityNotAvailable", EntityOperator.EQUALS, null));
                 orExpr.add(EntityCondition.makeCondition("quantityNotAvailable", EntityOperator.EQUALS, BigDecimal.ZERO));
-                conditions.add(EntityCondition.makeCondition(orExpr, EntityOperator.OR));
+                reservationConditions.add(EntityCondition.makeCondition(orExpr, EntityOperator.OR));
             }
+            addOrderExistsCondition(delegator, conditions, lookupPlan, reservationView, reservationConditions);
         }
 
         // Get all orders according to specific ship to country with "Only Include" or "Do not Include".
@@ -547,25 +567,21 @@ public class OrderLookupServices {
             paramList.add("countryGeoId=" + countryGeoId);
             paramList.add("includeCountry=" + includeCountry);
             // add condition to dynamic view
-            dve.addMemberEntity("OCM", "OrderContactMech");
-            dve.addMemberEntity("PA", "PostalAddress");
-            dve.addAlias("OCM", "contactMechId");
-            dve.addAlias("OCM", "contactMechPurposeTypeId");
-            dve.addAlias("PA", "countryGeoId");
-            dve.addViewLink("OH", "OCM", Boolean.FALSE, ModelKeyMap.makeKeyMapList("orderId"));
-            dve.addViewLink("OCM", "PA", Boolean.FALSE, ModelKeyMap.makeKeyMapList("contactMechId"));
-
-            EntityConditionList<EntityExpr> exprs = null;
+            DynamicViewEntity addressView = makeOrderSubView("OCM", "OrderContactMech");
+            addressView.addMemberEntity("PA", "PostalAddress");
+            addressView.addAlias("OCM", "contactMechId");
+            addressView.addAlias("OCM", "contactMechPurposeTypeId");
+            addressView.addAlias("PA", "countryGeoId");
+            addressView.addViewLink("OCM", "PA", Boolean.FALSE, ModelKeyMap.makeKeyMapList("contactMechId"));
+
+            List<EntityCondition> addressConditions = new LinkedList<EntityCondition>();
+            addressConditions.add(EntityCondition.makeCondition("contactMechPurposeTypeId", "SHIPPING_LOCATION"));
             if ("Y".equals(includeCountry)) {
-                exprs = EntityCondition.makeCondition(UtilMisc.toList(
-                            EntityCondition.makeCondition("contactMechPurposeTypeId", "SHIPPING_LOCATION"),
-                            EntityCondition.makeCondition("countryGeoId", countryGeoId)), EntityOperator.AND);
+                addressConditions.add(EntityCondition.makeCondition("countryGeoId", countryGeoId));
             } else {
-                exprs = EntityCondition.makeCondition(UtilMisc.toList(
-                            EntityCondition.makeCondition("contactMechPurposeTypeId", "SHIPPING_LOCATION"),
-                            EntityCondition.makeCondition("countryGeoId", EntityOperator.NOT_EQUAL, countryGeoId)), EntityOperator.AND);
+                addressConditions.add(EntityCondition.makeCondition("countryGeoId", EntityOperator.NOT_EQUAL, countryGeoId));
             }
-            conditions.add(exprs);
+            addOrderExistsCondition(delegator, conditions, lookupPlan, addressView, addressConditions);
         }
 
         // create the main condition
@@ -574,18 +590,77 @@ public class OrderLookupServices {
             cond = EntityCondition.makeCondition(conditions, EntityOperator.AND);
         }
 
-        if (Debug.verboseOn()) {
-            Debug.logInfo("Find order query: " + cond.toString(), module);
+        if (skipOrderCount) {
+            paramList.add("skipOrderCount=Y");
+        }
+
+        if (Debug.verboseOn() || UtilProperties.propertyValueEqualsIgnoreCase("order", "order.findOrders.logPlan", "Y")) {
+            Debug.logInfo("Find order plan: OrderHeader" + (lookupPlan.isEmpty() ? "" : " with " + StringUtil.join(lookupPlan, ", "))
+                    + "; query: " + cond, module);
         }
 
         List<GenericValue> orderList = new LinkedList<GenericValue>();
         int orderCount = 0;
+        boolean hasMoreOrders = false;
 
         // get the index for the partial list
         int lowIndex = 0;
         int highIndex = 0;
 
-        if (cond != null) {
+        if (cond != null && (keysetPaging || skipOrderCount)) {
+            // read one order more than the page size to know if there is a next page, without counting all the orders
+            lowIndex = (viewIndex - 1) * viewSize + 1;
+            EntityListIterator eli = null;
+            try {
+                if (keysetPaging) {
+                    // seek past the last order of the previous page, this uses the same key as the sort order
+                    orderList = EntityQuery.use(delegator)
+                            .select(fieldsToSelect)
+                            .from(dve)
+                            .where(EntityCondition.makeCondition(cond, EntityOperator.AND, makeOrderKeysetCondition(afterOrderDate, afterOrderId)))
+                            .orderBy(orderBy)
+                            .maxRows(viewSize + 1)
+                            .queryList();
+                } else {
+                    eli = EntityQuery.use(delegator)
+                            .select(fieldsToSelect)
+                            .from(dve)
+                            .where(cond)
+                            .orderBy(orderBy)
+                            .cursorScrollInsensitive()
+                            .maxRows(lowIndex + viewSize)
+                            .queryIterator();
+                    orderList = eli.getPartialList(lowIndex, viewSize + 1);
+                }
+                if (orderList.size() > viewSize) {
+                    hasMoreOrders = true;
+                    orderList = orderList.subList(0, viewSize);
+                }
+                highIndex = lowIndex + orderList.size() - 1;
+
+                if (skipOrderCount) {
+                    // not the real count, only enough for the paginator to offer the next page
+                    orderCount = highIndex + (hasMoreOrders ? 1 : 0);
+                } else {
+                    orderCount = (int) EntityQuery.use(delegator)
+                            .select(fieldsToSelect)
+                            .from(dve)
+                            .where(cond)
+                            .queryCount();
+                }
+            } catch (GenericEntityException e) {
+                Debug.logError(e, module);
+                return ServiceUtil.returnError(e.getMessage());
+            } finally {
+                if (eli != null) {
+                    try {
+                        eli.close();
+                    } catch (GenericEntityException e) {
+                        Debug.logError(e, module);
+                    }
+                }
+            }
+        } else if (cond != null) {
             PagedList<GenericValue> pagedOrderList = null;
             try {
                 // do the lookup
@@ -594,7 +669,6 @@ public class OrderLookupServices {
                         .from(dve)
                         .where(cond)
                         .orderBy(orderBy)
-                        .distinct() // set distinct on so we only get one row per order
                         .cursorScrollInsensitive()
                         .queryPagedList(viewIndex - 1, viewSize);
 
@@ -602,6 +676,7 @@ public class OrderLookupServices {
                 lowIndex = pagedOrderList.getStartIndex();
                 highIndex = pagedOrderList.getEndIndex();
                 orderList = pagedOrderList.getData();
+                hasMoreOrders = highIndex < orderCount;
             } catch (GenericEntityException e) {
                 Debug.logError(e, module);
                 return ServiceUtil.returnError(e.getMessage());
@@ -626,6 +701,13 @@ public class OrderLookupServices {
         result.put("paramList", (paramString != null? paramString: ""));
         result.put("orderList", orderList);
         result.put("orderListSize", Integer.valueOf(orderCount));
+        result.put("hasMoreOrders", Boolean.valueOf(hasMoreOrders));
+        if (UtilValidate.isNotEmpty(orderList)) {
+            // the key to pass as afterOrderDate and afterOrderId to get the next page
+            GenericValue lastOrder = orderList.get(orderList.size() - 1);
+            result.put("nextOrderDate", lastOrder.getTimestamp("orderDate"));
+            result.put("nextOrderId", lastOrder.getString("orderId"));
+        }
 
         return result;
     }
@@ -638,13 +720,23 @@ public class OrderLookupServices {
             doFilter = "N";
         }
 
+        // the filters are evaluated for all the orders of the page at once, with one query per filter
+        Delegator delegator = orderList.size() > 0 ? orderList.get(0).getDelegator() : null;
+        Set<String> orderIds = new LinkedHashSet<String>();
+        Set<String> purchaseOrderIds = new LinkedHashSet<String>();
+        for (GenericValue orderHeader : orderList) {
+            orderIds.add(orderHeader.getString("orderId"));
+            if ("PURCHASE_ORDER".equals(orderHeader.getString("orderTypeId"))) {
+                purchaseOrderIds.add(orderHeader.getString("orderId"));
+            }
+        }
+
         if ("Y".equals(doFilter) && orderList.size() > 0) {
             paramList.add("filterInventoryProblems=Y");
-            for (GenericValue orderHeader : orderList) {
-                OrderReadHelper orh = new OrderReadHelper(orderHeader);
-                BigDecimal backorderQty = orh.getOrderBackorderQuantity();
-                if (backorderQty.compareTo(BigDecimal.ZERO) == 1) {
-                    filterInventoryProblems.add(orh.getOrderId());
+            Set<String> backorderedOrderIds = getBackorderedOrderIds(delegator, orderIds);
+            for (String orderId : orderIds) {
+                if (backorderedOrderIds.contains(orderId)) {
+                    filterInventoryProblems.add(orderId);
                 }
             }
         }
@@ -680,22 +772,19 @@ public class OrderLookupServices {
             doPoFilter = true;
         }
 
-        if (doPoFilter && orderList.size() > 0) {
-            for (GenericValue orderHeader : orderList) {
-                OrderReadHelper orh = new OrderReadHelper(orderHeader);
-                String orderType = orh.getOrderTypeId();
-                String orderId = orh.getOrderId();
-
-                if ("PURCHASE_ORDER".equals(orderType)) {
-                    if ("Y".equals(filterPOReject) && orh.getRejectedOrderItems()) {
-                        filterPOsWithRejectedItems.add(orderId);
-                    }
-                    else if ("Y".equals(filterPOPast) && orh.getPastEtaOrderItems(orderId)) {
-                        filterPOsOpenPastTheirETA.add(orderId);
-                    }
-                    else if ("Y".equals(filterPartRec) && orh.getPartiallyReceivedItems()) {
-                        filterPartiallyReceivedPOs.add(orderId);
-                    }
+        if (doPoFilter && purchaseOrderIds.size() > 0) {
+            Set<String> rejectedOrderIds = "Y".equals(filterPOReject) ? getOrderIdsWithRejectedItems(delegator, purchaseOrderIds) : new HashSet<String>();
+            Set<String> pastEtaOrderIds = "Y".equals(filterPOPast) ? getOrderIdsPastEta(delegator, purchaseOrderIds) : new HashSet<String>();
+            Set<String> partiallyReceivedOrderIds = "Y".equals(filterPartRec) ? getPartiallyReceivedOrderIds(delegator, purchaseOrderIds) : new HashSet<String>();
+            for (String orderId : purchaseOrderIds) {
+                if (rejectedOrderIds.contains(orderId)) {
+                    filterPOsWithRejectedItems.add(orderId);
+                }
+                else if (pastEtaOrderIds.contains(orderId)) {
+                    filterPOsOpenPastTheirETA.add(orderId);
+                }
+                else if (partiallyReceivedOrderIds.contains(orderId)) {
+                    filterPartiallyReceivedPOs.add(orderId);
                 }
             }
         }
@@ -706,6 +795,144 @@ public class OrderLookupServices {
         result.put("filterPartiallyReceivedPOsList", filterPartiallyReceivedPOs);
     }
 
+    /** Gets the orders with a back ordered quantity on their valid items, see {@link OrderReadHelper#getOrderBackorderQuantity()} */
+    protected static Set<String> getBackorderedOrderIds(Delegator delegator, Set<String> orderIds) {
+        Set<String> backorderedOrderIds = new HashSet<String>();
+        DynamicViewEntity dve = new DynamicViewEntity();
+        dve.addMemberEntity("IR", "OrderItemShipGrpInvRes");
+        dve.addMemberEntity("OI", "OrderItem");
+        dve.addAlias("IR", "orderId", null, null, null, Boolean.TRUE, null);
+        dve.addAlias("IR", "quantityNotAvailable", null, null, null, null, "sum");
+        dve.addAlias("OI", "itemStatusId", "statusId", null, null, null, null);
+        dve.addViewLink("IR", "OI", Boolean.FALSE, UtilMisc.toList(new ModelKeyMap("orderId", "orderId"), new ModelKeyMap("orderItemSeqId", "orderItemSeqId")));
+        try {
+            List<GenericValue> backorders = EntityQuery.use(delegator)
+                    .select("orderId", "quantityNotAvailable")
+                    .from(dve)
+                    .where(EntityCondition.makeCondition("orderId", EntityOperator.IN, orderIds),
+                            EntityCondition.makeCondition(
+                                    EntityCondition.makeCondition("itemStatusId", EntityOperator.NOT_IN, UtilMisc.toList("ITEM_CANCELLED", "ITEM_REJECTED")),
+                                    EntityOperator.OR,
+                                    EntityCondition.makeCondition("itemStatusId", EntityOperator.EQUALS, null)))
+                    .queryList();
+            for (GenericValue backorder : backorders) {
+                BigDecimal quantityNotAvailable = backorder.getBigDecimal("quantityNotAvailable");
+                if (quantityNotAvailable != null && quantityNotAvailable.compareTo(BigDecimal.ZERO) > 0) {
+                    backorderedOrderIds.add(backorder.getString("orderId"));
+                }
+            }
+        } catch (GenericEntityException e) {
+            Debug.logWarning(e, module);
+        }
+        return backorderedOrderIds;
+    }
+
+    /** Gets the orders with a rejected quantity received, see {@link OrderReadHelper#getRejectedOrderItems()} */
+    protected static Set<String> getOrderIdsWithRejectedItems(Delegator delegator, Set<String> orderIds) {
+        Set<String> rejectedOrderIds = new HashSet<String>();
+        try {
+            List<GenericValue> receipts = EntityQuery.use(delegator)
+                    .select("orderId")
+                    .from("ShipmentReceipt")
+                    .where(EntityCondition.makeCondition("orderId", EntityOperator.IN, orderIds),
+                            EntityCondition.makeCondition("quantityRejected", EntityOperator.GREATER_THAN, BigDecimal.ZERO))
+                    .distinct()
+                    .queryList();
+            for (GenericValue receipt : receipts) {
+                rejectedOrderIds.add(receipt.getString("orderId"));
+            }
+        } catch (GenericEntityException e) {
+            Debug.logWarning(e, module);
+        }
+        return rejectedOrderIds;
+    }
+
+    /** Gets the orders estimated to be ready before now, see {@link OrderReadHelper#getPastEtaOrderItems(String)} */
+    protected static Set<String> getOrderIdsPastEta(Delegator delegator, Set<String> orderIds) {
+        Set<String> pastEtaOrderIds = new HashSet<String>();
+        try {
+            List<GenericValue> schedules = EntityQuery.use(delegator)
+                    .select("orderId")
+                    .from("OrderDeliverySchedule")
+                    .where(EntityCondition.makeCondition("orderId", EntityOperator.IN, orderIds),
+                            EntityCondition.makeCondition("orderItemSeqId", "_NA_"),
+                            EntityCondition.makeCondition("estimatedReadyDate", EntityOperator.LESS_THAN, UtilDateTime.nowTimestamp()))
+                    .queryList();
+            for (GenericValue schedule : schedules) {
+                pastEtaOrderIds.add(schedule.getString("orderId"));
+            }
+        } catch (GenericEntityException e) {
+            Debug.logWarning(e, module);
+        }
+        return pastEtaOrderIds;
+    }
+
+    /** Gets the orders with an item partially received, see {@link OrderReadHelper#getPartiallyReceivedItems()} */
+    protected static Set<String> getPartiallyReceivedOrderIds(Delegator delegator, Set<String> orderIds) {
+        Set<String> partiallyReceivedOrderIds = new HashSet<String>();
+        DynamicViewEntity dve = new DynamicViewEntity();
+        dve.addMemberEntity("SR", "ShipmentReceipt");
+        dve.addMemberEntity("OI", "OrderItem");
+        dve.addAlias("SR", "orderId");
+        dve.addAlias("SR", "quantityAccepted");
+        dve.addAlias("OI", "quantity");
+        dve.addViewLink("SR", "OI", Boolean.FALSE, UtilMisc.toList(new ModelKeyMap("orderId", "orderId"), new ModelKeyMap("orderItemSeqId", "orderItemSeqId")));
+        try {
+            List<GenericValue> receipts = EntityQuery.use(delegator)
+                    .select("orderId", "quantityAccepted", "quantity")
+                    .from(dve)
+                    .where(EntityCondition.makeCondition("orderId", EntityOperator.IN, orderIds),
+                            EntityCondition.makeCondition("quantityAccepted", EntityOperator.GREATER_THAN, BigDecimal.ZERO))
+                    .queryList();
+            for (GenericValue receipt : receipts) {
+                BigDecimal acceptedQuantity = receipt.getBigDecimal("quantityAccepted");
+                BigDecimal orderedQuantity = receipt.getBigDecimal("quantity");
+                // compared as whole quantities, like OrderReadHelper does
+                if (orderedQuantity != null && acceptedQuantity.intValue() != orderedQuantity.intValue() && acceptedQuantity.intValue() > 0) {
+                    partiallyReceivedOrderIds.add(receipt.getString("orderId"));
+                }
+            }
+        } catch (GenericEntityException e) {
+            Debug.logWarning(e, module);
+        }
+        return partiallyReceivedOrderIds;
+    }
+
+    /** Makes a view on the given entity with the orderId alias, to be used in {@link #addOrderExistsCondition} */
+    protected static DynamicViewEntity makeOrderSubView(String entityAlias, String entityName) {
+        DynamicViewEntity view = new DynamicViewEntity();
+        view.addMemberEntity(entityAlias, entityName);
+        view.addAlias(entityAlias, "orderId");
+        return view;
+    }
+
+    /**
+     * Adds the condition that the order has at least one row in the view matching all of the view conditions, as an
+     * orderId IN sub-select, and describes it in the lookup plan.
+     */
+    protected static void addOrderExistsCondition(Delegator delegator, List<EntityCondition> conditions, List<String> lookupPlan,
+            DynamicViewEntity view, List<EntityCondition> viewConditions) {
+        EntityCondition viewCond = viewConditions.isEmpty() ? null : EntityCondition.makeCondition(viewConditions, EntityOperator.AND);
+        ModelViewEntity modelView = view.makeModelViewEntity(delegator);
+        conditions.add(EntityCondition.makeCondition("orderId", EntityOperator.IN, new EntityConditionSubSelect(modelView, "orderId", viewCond, false)));
+
+        List<String> memberNames = new LinkedList<String>();
+        for (ModelViewEntity.ModelMemberEntity member : modelView.getAllModelMemberEntities()) {
+            memberNames.add(member.getEntityName() + " " + member.getEntityAlias());
+        }
+        lookupPlan.add("semi-join on " + StringUtil.join(memberNames, " + ") + (viewCond != null ? " where " + viewCond : ""));
+    }
+
+    /** Makes the condition for the orders following the given one in the -orderDate, -orderId sort order */
+    protected static EntityCondition makeOrderKeysetCondition(Timestamp orderDate, String orderId) {
+        return EntityCondition.makeCondition(UtilMisc.toList(
+                EntityCondition.makeCondition("orderDate", EntityOperator.LESS_THAN, orderDate),
+                EntityCondition.makeCondition(
+                        EntityCondition.makeCondition("orderDate", EntityOperator.EQUALS, orderDate),
+                        EntityOperator.AND,
+                        EntityCondition.makeCondition("orderId", EntityOperator.LESS_THAN, orderId))), EntityOperator.OR);
+    }
+
     protected static EntityExpr makeExpr(String fieldName, String value) {
         return makeExpr(fieldName, value, false);
     }
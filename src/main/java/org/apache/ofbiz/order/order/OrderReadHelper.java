@@ -23,9 +23,11 @@ import java.sql.Timestamp;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
@@ -84,6 +86,30 @@ public class OrderReadHelper {
     protected List<GenericValue> orderItemIssuances = null;
     protected List<GenericValue> orderReturnItems = null;
     protected BigDecimal totalPrice = null;
+    /** The indexed records of the order when the helper was made by {@link #loadSnapshot}, null for a lazily loading helper */
+    protected OrderSnapshot snapshot = null;
+
+    /** Entities loaded by {@link #loadSnapshot}, with the order of their records */
+    protected static final String[][] snapshotEntities = {
+        { "OrderItem", "orderItemSeqId" },
+        { "OrderAdjustment", null },
+        { "OrderPaymentPreference", "orderPaymentPreferenceId" },
+        { "OrderStatus", null },
+        { "OrderItemPriceInfo", null },
+        { "OrderItemShipGroup", "shipGroupSeqId" },
+        { "OrderItemShipGroupAssoc", "shipGroupSeqId" },
+        { "OrderItemAndShipGroupAssoc", null },
+        { "OrderItemShipGrpInvRes", null },
+        { "ItemIssuance", null },
+        { "ReturnItem", null },
+        { "OrderRole", null },
+        { "OrderContactMech", null },
+        { "OrderTerm", null },
+        { "ShipmentReceipt", null },
+        { "OrderDeliverySchedule", null }
+    };
+    /** Maximum number of order IDs in the IN conditions of {@link #loadAll} */
+    protected static final int loadAllChunkSize = 200;
 
     protected OrderReadHelper() {}
 
@@ -139,6 +165,174 @@ public class OrderReadHelper {
         }
     }
 
+    /**
+     * Makes a helper with all the records of the order read up front, one query per entity of {@link #snapshotEntities},
+     * and indexed by orderItemSeqId and shipGroupSeqId. The item, ship group, role and contact mech getters of the
+     * returned helper don't query the database; the lists it returns are unmodifiable.
+     * @throws IllegalArgumentException if the order does not exist
+     */
+    public static OrderReadHelper loadSnapshot(Delegator delegator, String orderId) throws GenericEntityException {
+        OrderReadHelper orh = new OrderReadHelper(delegator, orderId);
+        Map<String, List<GenericValue>> records = new HashMap<String, List<GenericValue>>();
+        for (String[] snapshotEntity : snapshotEntities) {
+            EntityQuery query = EntityQuery.use(delegator).from(snapshotEntity[0]).where("orderId", orderId);
+            if (snapshotEntity[1] != null) {
+                query.orderBy(snapshotEntity[1]);
+            }
+            records.put(snapshotEntity[0], query.queryList());
+        }
+        orh.setSnapshot(records);
+        return orh;
+    }
+
+    /**
+     * Makes snapshot helpers, as returned by {@link #loadSnapshot}, for many orders at once. The records are read
+     * with IN conditions on chunks of the order IDs, so the number of queries depends on the number of chunks and not
+     * on the number of orders; meant for list screens and batch services.
+     * @return the helpers by orderId, in the order of the given IDs; orders that don't exist are left out
+     */
+    public static Map<String, OrderReadHelper> loadAll(Delegator delegator, Collection<String> orderIds) throws GenericEntityException {
+        List<String> uniqueOrderIds = new ArrayList<String>(new LinkedHashSet<String>(orderIds));
+        uniqueOrderIds.remove(null);
+        Map<String, GenericValue> orderHeaders = new HashMap<String, GenericValue>();
+        Map<String, Map<String, List<GenericValue>>> recordsByOrder = new HashMap<String, Map<String, List<GenericValue>>>();
+        for (int i = 0; i < uniqueOrderIds.size(); i += loadAllChunkSize) {
+            List<String> chunk = uniqueOrderIds.subList(i, Math.min(i + loadAllChunkSize, uniqueOrderIds.size()));
+            EntityCondition chunkCondition = EntityCondition.makeCondition("orderId", EntityOperator.IN, chunk);
+            for (GenericValue orderHeader : EntityQuery.use(delegator).from("OrderHeader").where(chunkCondition).queryList()) {
+                orderHeaders.put(orderHeader.getString("orderId"), orderHeader);
+            }
+            for (String[] snapshotEntity : snapshotEntities) {
+                EntityQuery query = EntityQuery.use(delegator).from(snapshotEntity[0]).where(chunkCondition);
+                if (snapshotEntity[1] != null) {
+                    query.orderBy("orderId", snapshotEntity[1]);
+                }
+                for (GenericValue value : query.queryList()) {
+                    String orderId = value.getString("orderId");
+                    Map<String, List<GenericValue>> records = recordsByOrder.get(orderId);
+                    if (records == null) {
+                        records = new HashMap<String, List<GenericValue>>();
+                        recordsByOrder.put(orderId, records);
+                    }
+                    List<GenericValue> values = records.get(snapshotEntity[0]);
+                    if (values == null) {
+                        values = new ArrayList<GenericValue>();
+                        records.put(snapshotEntity[0], values);
+                    }
+                    values.add(value);
+                }
+            }
+        }
+
+        Map<String, OrderReadHelper> helpers = new LinkedHashMap<String, OrderReadHelper>();
+        for (String orderId : uniqueOrderIds) {
+            GenericValue orderHeader = orderHeaders.get(orderId);
+            if (orderHeader == null) {
+                continue;
+            }
+            OrderReadHelper orh = new OrderReadHelper(orderHeader);
+            Map<String, List<GenericValue>> records = recordsByOrder.get(orderId);
+            orh.setSnapshot(records != null ? records : new HashMap<String, List<GenericValue>>());
+            helpers.put(orderId, orh);
+        }
+        return helpers;
+    }
+
+    /** Sets the records of the order read by {@link #loadSnapshot}, keyed by entity name */
+    protected void setSnapshot(Map<String, List<GenericValue>> records) {
+        this.snapshot = new OrderSnapshot(records);
+        this.orderItems = OrderSnapshot.get(records, "OrderItem");
+        this.adjustments = OrderSnapshot.get(records, "OrderAdjustment");
+        this.paymentPrefs = OrderSnapshot.get(records, "OrderPaymentPreference");
+        this.orderStatuses = OrderSnapshot.get(records, "OrderStatus");
+        this.orderItemPriceInfos = OrderSnapshot.get(records, "OrderItemPriceInfo");
+        this.orderItemAndShipGrp = OrderSnapshot.get(records, "OrderItemAndShipGroupAssoc");
+        this.orderItemShipGrpInvResList = OrderSnapshot.get(records, "OrderItemShipGrpInvRes");
+        this.orderItemIssuances = OrderSnapshot.get(records, "ItemIssuance");
+        this.orderReturnItems = OrderSnapshot.get(records, "ReturnItem");
+    }
+
+    /** The records of one order indexed for the getters; built once and not changed afterwards */
+    protected static final class OrderSnapshot {
+        protected final Map<String, GenericValue> orderItemsBySeqId = new HashMap<String, GenericValue>();
+        protected final Map<String, List<GenericValue>> adjustmentsByItem;
+        protected final Map<String, List<GenericValue>> priceInfosByItem;
+        protected final Map<String, List<GenericValue>> itemStatusesByItem = new HashMap<String, List<GenericValue>>();
+        protected final Map<String, List<GenericValue>> shipGroupAssocsByItem;
+        protected final Map<String, List<GenericValue>> invResByItem;
+        protected final Map<String, List<GenericValue>> issuancesByItem;
+        protected final Map<String, GenericValue> shipGroupsBySeqId = new HashMap<String, GenericValue>();
+        protected final List<GenericValue> shipGroups;
+        protected final Map<String, List<GenericValue>> itemAndShipGroupAssocsByShipGroup;
+        protected final Map<String, List<GenericValue>> rolesByType;
+        protected final Map<String, List<GenericValue>> contactMechsByPurpose;
+        protected final List<GenericValue> orderTerms;
+        protected final Map<String, List<GenericValue>> receiptsByItem;
+        protected final Map<String, List<GenericValue>> deliverySchedulesByItem;
+
+        protected OrderSnapshot(Map<String, List<GenericValue>> records) {
+            for (GenericValue orderItem : get(records, "OrderItem")) {
+                orderItemsBySeqId.put(orderItem.getString("orderItemSeqId"), orderItem);
+            }
+            adjustmentsByItem = index(get(records, "OrderAdjustment"), "orderItemSeqId");
+            priceInfosByItem = index(get(records, "OrderItemPriceInfo"), "orderItemSeqId");
+            shipGroupAssocsByItem = index(get(records, "OrderItemShipGroupAssoc"), "orderItemSeqId");
+            invResByItem = index(get(records, "OrderItemShipGrpInvRes"), "orderItemSeqId");
+            issuancesByItem = index(get(records, "ItemIssuance"), "orderItemSeqId");
+            itemAndShipGroupAssocsByShipGroup = index(get(records, "OrderItemAndShipGroupAssoc"), "shipGroupSeqId");
+            rolesByType = index(get(records, "OrderRole"), "roleTypeId");
+            contactMechsByPurpose = index(get(records, "OrderContactMech"), "contactMechPurposeTypeId");
+            shipGroups = get(records, "OrderItemShipGroup");
+            for (GenericValue shipGroup : shipGroups) {
+                shipGroupsBySeqId.put(shipGroup.getString("shipGroupSeqId"), shipGroup);
+            }
+            orderTerms = get(records, "OrderTerm");
+            receiptsByItem = index(get(records, "ShipmentReceipt"), "orderItemSeqId");
+            deliverySchedulesByItem = index(get(records, "OrderDeliverySchedule"), "orderItemSeqId");
+            // the item statuses are filtered and sorted the same way as getOrderItemStatuses(orderItem, orderStatuses)
+            Map<String, List<GenericValue>> statusesByItem = index(get(records, "OrderStatus"), "orderItemSeqId");
+            for (Map.Entry<String, List<GenericValue>> entry : statusesByItem.entrySet()) {
+                GenericValue orderItem = orderItemsBySeqId.get(entry.getKey());
+                if (orderItem != null) {
+                    itemStatusesByItem.put(entry.getKey(), Collections.unmodifiableList(getOrderItemStatuses(orderItem, entry.getValue())));
+                }
+            }
+        }
+
+        protected static List<GenericValue> get(Map<String, List<GenericValue>> records, String entityName) {
+            List<GenericValue> values = records.get(entityName);
+            if (values == null) {
+                return Collections.emptyList();
+            }
+            return Collections.unmodifiableList(values);
+        }
+
+        protected static Map<String, List<GenericValue>> index(List<GenericValue> values, String fieldName) {
+            Map<String, List<GenericValue>> index = new HashMap<String, List<GenericValue>>();
+            for (GenericValue value : values) {
+                String key = value.getString(fieldName);
+                List<GenericValue> indexed = index.get(key);
+                if (indexed == null) {
+                    indexed = new ArrayList<GenericValue>();
+                    index.put(key, indexed);
+                }
+                indexed.add(value);
+            }
+            for (Map.Entry<String, List<GenericValue>> entry : index.entrySet()) {
+                entry.setValue(Collections.unmodifiableList(entry.getValue()));
+            }
+            return index;
+        }
+
+        protected static List<GenericValue> lookup(Map<String, List<GenericValue>> index, Object key) {
+            List<GenericValue> values = index.get(key);
+            if (values == null) {
+                return Collections.emptyList();
+            }
+            return values;
+        }
+    }
+
     // ==========================================
     // ========== Order Header Methods ==========
     // ==========================================
@@ -316,6 +510,9 @@ public class OrderReadHelper {
     }
 
     public List<GenericValue> getOrderTerms() {
+        if (snapshot != null) {
+            return snapshot.orderTerms;
+        }
         try {
             return orderHeader.getRelated("OrderTerm", null, null, false);
         } catch (GenericEntityException e) {
@@ -340,8 +537,7 @@ public class OrderReadHelper {
 
     public String getShippingMethod(String shipGroupSeqId) {
         try {
-            GenericValue shipGroup = orderHeader.getDelegator().findOne("OrderItemShipGroup",
-                    UtilMisc.toMap("orderId", orderHeader.getString("orderId"), "shipGroupSeqId", shipGroupSeqId), false);
+            GenericValue shipGroup = getOrderItemShipGroup(shipGroupSeqId);
 
             if (shipGroup != null) {
                 GenericValue carrierShipmentMethod = shipGroup.getRelatedOne("CarrierShipmentMethod", false);
@@ -364,8 +560,7 @@ public class OrderReadHelper {
 
     public String getShippingMethodCode(String shipGroupSeqId) {
         try {
-            GenericValue shipGroup = orderHeader.getDelegator().findOne("OrderItemShipGroup",
-                    UtilMisc.toMap("orderId", orderHeader.getString("orderId"), "shipGroupSeqId", shipGroupSeqId), false);
+            GenericValue shipGroup = getOrderItemShipGroup(shipGroupSeqId);
 
             if (shipGroup != null) {
                 GenericValue carrierShipmentMethod = shipGroup.getRelatedOne("CarrierShipmentMethod", false);
@@ -406,6 +601,9 @@ public class OrderReadHelper {
     }
 
     public GenericValue getOrderItemShipGroup(String shipGroupSeqId) {
+        if (snapshot != null) {
+            return snapshot.shipGroupsBySeqId.get(shipGroupSeqId);
+        }
         try {
             return orderHeader.getDelegator().findOne("OrderItemShipGroup",
                     UtilMisc.toMap("orderId", orderHeader.getString("orderId"), "shipGroupSeqId", shipGroupSeqId), false);
@@ -416,6 +614,9 @@ public class OrderReadHelper {
     }
 
     public List<GenericValue> getOrderItemShipGroups() {
+        if (snapshot != null) {
+            return snapshot.shipGroups;
+        }
         try {
             return orderHeader.getRelated("OrderItemShipGroup", null, UtilMisc.toList("shipGroupSeqId"), false);
         } catch (GenericEntityException e) {
@@ -447,8 +648,7 @@ public class OrderReadHelper {
 
     public GenericValue getShippingAddress(String shipGroupSeqId) {
         try {
-            GenericValue shipGroup = orderHeader.getDelegator().findOne("OrderItemShipGroup",
-                    UtilMisc.toMap("orderId", orderHeader.getString("orderId"), "shipGroupSeqId", shipGroupSeqId), false);
+            GenericValue shipGroup = getOrderItemShipGroup(shipGroupSeqId);
 
             if (shipGroup != null) {
                 return shipGroup.getRelatedOne("PostalAddress", false);
@@ -464,7 +664,7 @@ public class OrderReadHelper {
     @Deprecated
     public GenericValue getShippingAddress() {
         try {
-            GenericValue orderContactMech = EntityUtil.getFirst(orderHeader.getRelated("OrderContactMech", UtilMisc.toMap("contactMechPurposeTypeId", "SHIPPING_LOCATION"), null, false));
+            GenericValue orderContactMech = EntityUtil.getFirst(getOrderContactMechs("SHIPPING_LOCATION"));
 
             if (orderContactMech != null) {
                 GenericValue contactMech = orderContactMech.getRelatedOne("ContactMech", false);
@@ -505,7 +705,7 @@ public class OrderReadHelper {
     public GenericValue getBillingAddress() {
         GenericValue billingAddress = null;
         try {
-            GenericValue orderContactMech = EntityUtil.getFirst(orderHeader.getRelated("OrderContactMech", UtilMisc.toMap("contactMechPurposeTypeId", "BILLING_LOCATION"), null, false));
+            GenericValue orderContactMech = EntityUtil.getFirst(getOrderContactMechs("BILLING_LOCATION"));
 
             if (orderContactMech != null) {
                 GenericValue contactMech = orderContactMech.getRelatedOne("ContactMech", false);
@@ -554,6 +754,9 @@ public class OrderReadHelper {
     }
 
     public List<GenericValue> getOrderContactMechs(String purposeTypeId) {
+        if (snapshot != null) {
+            return OrderSnapshot.lookup(snapshot.contactMechsByPurpose, purposeTypeId);
+        }
         try {
             return orderHeader.getRelated("OrderContactMech", UtilMisc.toMap("contactMechPurposeTypeId", purposeTypeId), null, false);
         } catch (GenericEntityException e) {
@@ -564,7 +767,8 @@ public class OrderReadHelper {
 
     public Timestamp getEarliestShipByDate() {
         try {
-            List<GenericValue> groups = orderHeader.getRelated("OrderItemShipGroup", null, UtilMisc.toList("shipByDate"), false);
+            List<GenericValue> groups = snapshot != null ? EntityUtil.orderBy(snapshot.shipGroups, UtilMisc.toList("shipByDate"))
+                    : orderHeader.getRelated("OrderItemShipGroup", null, UtilMisc.toList("shipByDate"), false);
             if (groups.size() > 0) {
                 GenericValue group = groups.get(0);
                 return group.getTimestamp("shipByDate");
@@ -577,7 +781,8 @@ public class OrderReadHelper {
 
     public Timestamp getLatestShipAfterDate() {
         try {
-            List<GenericValue> groups = orderHeader.getRelated("OrderItemShipGroup", null, UtilMisc.toList("shipAfterDate DESC"), false);
+            List<GenericValue> groups = snapshot != null ? EntityUtil.orderBy(snapshot.shipGroups, UtilMisc.toList("shipAfterDate DESC"))
+                    : orderHeader.getRelated("OrderItemShipGroup", null, UtilMisc.toList("shipAfterDate DESC"), false);
             if (groups.size() > 0) {
                 GenericValue group = groups.get(0);
                 return group.getTimestamp("shipAfterDate");
@@ -726,7 +931,7 @@ public class OrderReadHelper {
         Delegator delegator = orderHeader.getDelegator();
         GenericValue partyObject = null;
         try {
-            GenericValue orderRole = EntityUtil.getFirst(orderHeader.getRelated("OrderRole", UtilMisc.toMap("roleTypeId", roleTypeId), null, false));
+            GenericValue orderRole = EntityUtil.getFirst(getOrderRoles(roleTypeId));
 
             if (orderRole != null) {
                 partyObject = EntityQuery.use(delegator).from("Person").where("partyId", orderRole.getString("partyId")).queryOne();
@@ -741,9 +946,17 @@ public class OrderReadHelper {
         return partyObject;
     }
 
+    /** Gets the OrderRole records of the order with the given role type */
+    public List<GenericValue> getOrderRoles(String roleTypeId) throws GenericEntityException {
+        if (snapshot != null) {
+            return OrderSnapshot.lookup(snapshot.rolesByType, roleTypeId);
+        }
+        return orderHeader.getRelated("OrderRole", UtilMisc.toMap("roleTypeId", roleTypeId), null, false);
+    }
+
     public String getDistributorId() {
         try {
-            GenericEntity distributorRole = EntityUtil.getFirst(orderHeader.getRelated("OrderRole", UtilMisc.toMap("roleTypeId", "DISTRIBUTOR"), null, false));
+            GenericEntity distributorRole = EntityUtil.getFirst(getOrderRoles("DISTRIBUTOR"));
 
             return distributorRole == null ? null : distributorRole.getString("partyId");
         } catch (GenericEntityException e) {
@@ -754,7 +967,7 @@ public class OrderReadHelper {
 
     public String getAffiliateId() {
         try {
-            GenericEntity distributorRole = EntityUtil.getFirst(orderHeader.getRelated("OrderRole", UtilMisc.toMap("roleTypeId", "AFFILIATE"), null, false));
+            GenericEntity distributorRole = EntityUtil.getFirst(getOrderRoles("AFFILIATE"));
 
             return distributorRole == null ? null : distributorRole.getString("partyId");
         } catch (GenericEntityException e) {
@@ -1211,17 +1424,8 @@ public class OrderReadHelper {
     }
 
     public String getOrderEmailString() {
-        Delegator delegator = orderHeader.getDelegator();
         // get the email addresses from the order contact mech(s)
-        List<GenericValue> orderContactMechs = null;
-        try {
-            orderContactMechs = EntityQuery.use(delegator).from("OrderContactMech")
-                    .where("orderId", orderHeader.get("orderId"),
-                            "contactMechPurposeTypeId", "ORDER_EMAIL")
-                    .queryList();
-        } catch (GenericEntityException e) {
-            Debug.logWarning(e, "Problems getting order contact mechs", module);
-        }
+        List<GenericValue> orderContactMechs = getOrderContactMechs("ORDER_EMAIL");
 
         StringBuilder emails = new StringBuilder();
         if (orderContactMechs != null) {
@@ -1359,6 +1563,9 @@ public class OrderReadHelper {
     }
 
     public List<GenericValue> getOrderItemAndShipGroupAssoc(String shipGroupSeqId) {
+        if (snapshot != null) {
+            return OrderSnapshot.lookup(snapshot.itemAndShipGroupAssocsByShipGroup, shipGroupSeqId);
+        }
         List<EntityExpr> exprs = UtilMisc.toList(EntityCondition.makeCondition("shipGroupSeqId", EntityOperator.EQUALS, shipGroupSeqId));
         return EntityUtil.filterByAnd(getOrderItemAndShipGroupAssoc(), exprs);
     }
@@ -1373,11 +1580,15 @@ public class OrderReadHelper {
     public boolean getPastEtaOrderItems(String orderId) {
         Delegator delegator = orderHeader.getDelegator();
         GenericValue orderDeliverySchedule = null;
-        try {
-            orderDeliverySchedule = EntityQuery.use(delegator).from("OrderDeliverySchedule").where("orderId", orderId, "orderItemSeqId", "_NA_").queryOne();
-        } catch (GenericEntityException e) {
-            if (Debug.infoOn()) Debug.logInfo(" OrderDeliverySchedule not found for order " + orderId, module);
-            return false;
+        if (snapshot != null && orderId != null && orderId.equals(getOrderId())) {
+            orderDeliverySchedule = EntityUtil.getFirst(OrderSnapshot.lookup(snapshot.deliverySchedulesByItem, "_NA_"));
+        } else {
+            try {
+                orderDeliverySchedule = EntityQuery.use(delegator).from("OrderDeliverySchedule").where("orderId", orderId, "orderItemSeqId", "_NA_").queryOne();
+            } catch (GenericEntityException e) {
+                if (Debug.infoOn()) Debug.logInfo(" OrderDeliverySchedule not found for order " + orderId, module);
+                return false;
+            }
         }
         if (orderDeliverySchedule == null) return false;
         Timestamp estimatedShipDate = orderDeliverySchedule.getTimestamp("estimatedReadyDate");
@@ -1387,12 +1598,7 @@ public class OrderReadHelper {
     public boolean getRejectedOrderItems() {
         List<GenericValue> items = getOrderItems();
         for (GenericValue item : items) {
-            List<GenericValue> receipts = null;
-            try {
-                receipts = item.getRelated("ShipmentReceipt", null, null, false);
-            } catch (GenericEntityException e) {
-                Debug.logWarning(e, module);
-            }
+            List<GenericValue> receipts = getShipmentReceipts(item);
             if (UtilValidate.isNotEmpty(receipts)) {
                 for (GenericValue rec : receipts) {
                     BigDecimal rejected = rec.getBigDecimal("quantityRejected");
@@ -1408,12 +1614,7 @@ public class OrderReadHelper {
     public boolean getPartiallyReceivedItems() {
         List<GenericValue> items = getOrderItems();
         for (GenericValue item : items) {
-            List<GenericValue> receipts = null;
-            try {
-                receipts = item.getRelated("ShipmentReceipt", null, null, false);
-            } catch (GenericEntityException e) {
-                Debug.logWarning(e, module);
-            }
+            List<GenericValue> receipts = getShipmentReceipts(item);
             if (UtilValidate.isNotEmpty(receipts)) {
                 for (GenericValue rec : receipts) {
                     BigDecimal acceptedQuantity = rec.getBigDecimal("quantityAccepted");
@@ -1427,6 +1628,19 @@ public class OrderReadHelper {
         return false;
     }
 
+    /** The receipts of the order item, from the snapshot when there is one */
+    protected List<GenericValue> getShipmentReceipts(GenericValue item) {
+        if (snapshot != null) {
+            return OrderSnapshot.lookup(snapshot.receiptsByItem, item.getString("orderItemSeqId"));
+        }
+        try {
+            return item.getRelated("ShipmentReceipt", null, null, false);
+        } catch (GenericEntityException e) {
+            Debug.logWarning(e, module);
+            return null;
+        }
+    }
+
     public List<GenericValue> getValidOrderItems(String shipGroupSeqId) {
         if (shipGroupSeqId == null) return getValidOrderItems();
         List<EntityExpr> exprs = UtilMisc.toList(
@@ -1437,6 +1651,9 @@ public class OrderReadHelper {
     }
 
     public GenericValue getOrderItem(String orderItemSeqId) {
+        if (snapshot != null) {
+            return snapshot.orderItemsBySeqId.get(orderItemSeqId);
+        }
         List<EntityExpr> exprs = UtilMisc.toList(EntityCondition.makeCondition("orderItemSeqId", EntityOperator.EQUALS, orderItemSeqId));
         return EntityUtil.getFirst(EntityUtil.filterByAnd(getOrderItems(), exprs));
     }
@@ -1515,6 +1732,9 @@ public class OrderReadHelper {
     }
 
     public List<GenericValue> getOrderItemAdjustments(GenericValue orderItem) {
+        if (snapshot != null) {
+            return OrderSnapshot.lookup(snapshot.adjustmentsByItem, orderItem.get("orderItemSeqId"));
+        }
         return getOrderItemAdjustmentList(orderItem, getAdjustments());
     }
 
@@ -1557,6 +1777,9 @@ public class OrderReadHelper {
 
     public List<GenericValue> getOrderItemPriceInfos(GenericValue orderItem) {
         if (orderItem == null) return null;
+        if (snapshot != null) {
+            return OrderSnapshot.lookup(snapshot.priceInfosByItem, orderItem.get("orderItemSeqId"));
+        }
         if (this.orderItemPriceInfos == null) {
             Delegator delegator = orderHeader.getDelegator();
 
@@ -1574,6 +1797,9 @@ public class OrderReadHelper {
 
     public List<GenericValue> getOrderItemShipGroupAssocs(GenericValue orderItem) {
         if (orderItem == null) return null;
+        if (snapshot != null) {
+            return OrderSnapshot.lookup(snapshot.shipGroupAssocsByItem, orderItem.get("orderItemSeqId"));
+        }
         try {
             return orderHeader.getDelegator().findByAnd("OrderItemShipGroupAssoc",
                     UtilMisc.toMap("orderId", orderItem.getString("orderId"), "orderItemSeqId", orderItem.getString("orderItemSeqId")), UtilMisc.toList("shipGroupSeqId"), false);
@@ -1585,6 +1811,9 @@ public class OrderReadHelper {
 
     public List<GenericValue> getOrderItemShipGrpInvResList(GenericValue orderItem) {
         if (orderItem == null) return null;
+        if (snapshot != null) {
+            return OrderSnapshot.lookup(snapshot.invResByItem, orderItem.get("orderItemSeqId"));
+        }
         if (this.orderItemShipGrpInvResList == null) {
             Delegator delegator = orderItem.getDelegator();
             try {
@@ -1597,12 +1826,30 @@ public class OrderReadHelper {
         return EntityUtil.filterByAnd(orderItemShipGrpInvResList, UtilMisc.toMap("orderItemSeqId", orderItem.getString("orderItemSeqId")));
     }
 
+    /** Gets the ItemIssuance records of the whole order, by shipmentId and shipmentItemSeqId */
+    public List<GenericValue> getOrderItemIssuances() {
+        if (this.orderItemIssuances == null) {
+            try {
+                orderItemIssuances = EntityQuery.use(orderHeader.getDelegator()).from("ItemIssuance")
+                        .where("orderId", orderHeader.get("orderId")).queryList();
+            } catch (GenericEntityException e) {
+                Debug.logWarning(e, "Trouble getting ItemIssuance(s)", module);
+                return new LinkedList<GenericValue>();
+            }
+        }
+        return EntityUtil.orderBy(orderItemIssuances, UtilMisc.toList("shipmentId", "shipmentItemSeqId"));
+    }
+
     public List<GenericValue> getOrderItemIssuances(GenericValue orderItem) {
         return this.getOrderItemIssuances(orderItem, null);
     }
 
     public List<GenericValue> getOrderItemIssuances(GenericValue orderItem, String shipmentId) {
         if (orderItem == null) return null;
+        if (snapshot != null) {
+            List<GenericValue> itemIssuances = OrderSnapshot.lookup(snapshot.issuancesByItem, orderItem.get("orderItemSeqId"));
+            return shipmentId == null ? itemIssuances : EntityUtil.filterByAnd(itemIssuances, UtilMisc.toMap("shipmentId", shipmentId));
+        }
         if (this.orderItemIssuances == null) {
             Delegator delegator = orderItem.getDelegator();
 
@@ -1969,18 +2216,8 @@ public class OrderReadHelper {
         BigDecimal quantityShipped = ZERO;
 
         if (orderItem == null) return null;
-        if (this.orderItemIssuances == null) {
-            Delegator delegator = orderItem.getDelegator();
-            try {
-                orderItemIssuances = EntityQuery.use(delegator).from("ItemIssuance").where("orderId", orderItem.get("orderId"), "shipGroupSeqId", shipGroupSeqId).queryList();                
-            } catch (GenericEntityException e) {
-                Debug.logWarning(e, "Trouble getting ItemIssuance(s)", module);
-            }
-        }
-
         // filter the issuance
-        Map<String, Object> filter = UtilMisc.toMap("orderItemSeqId", orderItem.get("orderItemSeqId"), "shipGroupSeqId", shipGroupSeqId);
-        List<GenericValue> issuances = EntityUtil.filterByAnd(orderItemIssuances, filter);
+        List<GenericValue> issuances = EntityUtil.filterByAnd(getOrderItemIssuances(orderItem), UtilMisc.toMap("shipGroupSeqId", shipGroupSeqId));
         if (UtilValidate.isNotEmpty(issuances)) {
             for (GenericValue issue : issuances) {
                 BigDecimal issueQty = issue.getBigDecimal("quantity");
@@ -2123,6 +2360,9 @@ public class OrderReadHelper {
     }
 
     public List<GenericValue> getOrderItemStatuses(GenericValue orderItem) {
+        if (snapshot != null) {
+            return OrderSnapshot.lookup(snapshot.itemStatusesByItem, orderItem.get("orderItemSeqId"));
+        }
         return getOrderItemStatuses(orderItem, getOrderStatuses());
     }
 
@@ -2633,7 +2873,34 @@ public class OrderReadHelper {
         return newOrderAdjustmentsList;
     }
 
+    /** Gets the quantities of the open purchase order items of the products, from the in-memory index if it is enabled */
+    public static Map<String, BigDecimal> getQuantityOnOrder(Delegator delegator, Collection<String> productIds) {
+        if (ProductQuantityOnOrderIndex.isEnabled()) {
+            try {
+                return ProductQuantityOnOrderIndex.getQuantityOnOrder(delegator, productIds);
+            } catch (GenericEntityException e) {
+                Debug.logError(e, "Could not read the quantities on order from the index, summing them", module);
+            }
+        }
+        Map<String, BigDecimal> quantities = new HashMap<String, BigDecimal>();
+        for (String productId : productIds) {
+            quantities.put(productId, sumQuantityOnOrder(delegator, productId));
+        }
+        return quantities;
+    }
+
     public static BigDecimal getQuantityOnOrder(Delegator delegator, String productId) {
+        if (ProductQuantityOnOrderIndex.isEnabled()) {
+            try {
+                return ProductQuantityOnOrderIndex.getQuantityOnOrder(delegator, productId);
+            } catch (GenericEntityException e) {
+                Debug.logError(e, "Could not read the quantity on order from the index, summing it", module);
+            }
+        }
+        return sumQuantityOnOrder(delegator, productId);
+    }
+
+    private static BigDecimal sumQuantityOnOrder(Delegator delegator, String productId) {
         BigDecimal quantity = BigDecimal.ZERO;
 
         // first find all open purchase orders
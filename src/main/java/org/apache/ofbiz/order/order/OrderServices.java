@@ -22,10 +22,13 @@ import java.math.BigDecimal;
 import java.sql.Timestamp;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
@@ -33,9 +36,15 @@ import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
 
 import javax.transaction.Transaction;
 
+import org.apache.ofbiz.base.concurrent.ExecutionPool;
 import org.apache.ofbiz.base.util.Debug;
 import org.apache.ofbiz.base.util.GeneralException;
 import org.apache.ofbiz.base.util.GeneralRuntimeException;
@@ -50,6 +59,7 @@ import org.apache.ofbiz.common.DataModelConstants;
 import org.apache.ofbiz.entity.Delegator;
 import org.apache.ofbiz.entity.GenericEntity;
 import org.apache.ofbiz.entity.GenericEntityException;
+import org.apache.ofbiz.entity.GenericPK;
 import org.apache.ofbiz.entity.GenericValue;
 import org.apache.ofbiz.entity.condition.EntityCondition;
 import org.apache.ofbiz.entity.condition.EntityExpr;
@@ -114,6 +124,16 @@ public class OrderServices {
     public static final int orderRounding = UtilNumber.getBigDecimalRoundingMode("order.rounding");
     public static final BigDecimal ZERO = BigDecimal.ZERO.setScale(taxDecimals, taxRounding);
 
+    /** Number of orders changed at the same time by the mass order services */
+    private static final int massChangeThreads = Math.max(1, (int) UtilProperties.getPropertyAsLong("order", "order.massChange.threads", 4));
+    /** Maximum number of orders waiting for a thread of the mass order services, the caller waits once it is reached */
+    private static final int massChangeMaxPending = Math.max(1, (int) UtilProperties.getPropertyAsLong("order", "order.massChange.maxPending", 16));
+    /** Maximum number of order IDs in the IN conditions of the mass order services */
+    private static final int massChangeChunkSize = 500;
+    private static final ScheduledExecutorService massChangeExecutor = ExecutionPool.getScheduledExecutor(new ThreadGroup(module), "OFBiz-mass-order-change",
+            massChangeThreads, 60, false);
+    /** Permits of the changes running or waiting for a thread of massChangeExecutor, shared by all the calls */
+    private static final Semaphore massChangePermits = new Semaphore(massChangeThreads + massChangeMaxPending);
 
     private static boolean hasPermission(String orderId, GenericValue userLogin, String action, Security security, Delegator delegator) {
         OrderReadHelper orh = new OrderReadHelper(delegator, orderId);
@@ -548,17 +568,9 @@ public class OrderServices {
             orderHeader.set("invoicePerShipment", invoicePerShipment);
         }
 
-        // first try to create the OrderHeader; if this does not fail, continue.
-        try {
-            delegator.create(orderHeader);
-        } catch (GenericEntityException e) {
-            Debug.logError(e, "Cannot create OrderHeader entity; problems with insert", module);
-            return ServiceUtil.returnError(UtilProperties.getMessage(resource_error,
-                    "OrderOrderCreationFailedPleaseNotifyCustomerService",locale));
-        }
-
-        // create the order status record
-        String orderStatusSeqId = delegator.getNextSeqId("OrderStatus");
+        // create the order status record; the ids of the order and item status records are reserved at once
+        SequenceIdRange orderStatusIds = SequenceIdRange.allocate(delegator, "OrderStatus", orderItems.size() + 1);
+        String orderStatusSeqId = orderStatusIds.getNextSeqId();
         GenericValue orderStatus = delegator.makeValue("OrderStatus", UtilMisc.toMap("orderStatusId", orderStatusSeqId));
         orderStatus.set("orderId", orderId);
         orderStatus.set("statusId", orderHeader.getString("statusId"));
@@ -581,7 +593,7 @@ public class OrderServices {
             toBeStored.add(orderItem);
 
             // create the item status record
-            String itemStatusId = delegator.getNextSeqId("OrderStatus");
+            String itemStatusId = orderStatusIds.getNextSeqId();
             GenericValue itemStatus = delegator.makeValue("OrderStatus", UtilMisc.toMap("orderStatusId", itemStatusId));
             itemStatus.put("statusId", orderItem.get("statusId"));
             itemStatus.put("orderId", orderId);
@@ -609,47 +621,17 @@ public class OrderServices {
             }
         }
 
-        // create the order internal notes
+        // create the order internal and public notes, stored with the other order records
         List<String> orderInternalNotes = UtilGenerics.checkList(context.get("orderInternalNotes"));
+        List<String> orderNotes = UtilGenerics.checkList(context.get("orderNotes"));
         if (UtilValidate.isNotEmpty(orderInternalNotes)) {
             for (String orderInternalNote : orderInternalNotes) {
-                try {
-                    Map<String, Object> noteOutputMap = dispatcher.runSync("createOrderNote", UtilMisc.<String, Object>toMap("orderId", orderId,
-                                                                                             "internalNote", "Y",
-                                                                                             "note", orderInternalNote,
-                                                                                             "userLogin", userLogin));
-                    if (ServiceUtil.isError(noteOutputMap)) {
-                        return ServiceUtil.returnError(UtilProperties.getMessage(resource, 
-                                "OrderOrderNoteCannotBeCreated", UtilMisc.toMap("errorString", ""), locale),
-                                null, null, noteOutputMap);
-                    }
-                } catch (GenericServiceException e) {
-                    Debug.logError(e, "Error creating internal notes while creating order: " + e.toString(), module);
-                    return ServiceUtil.returnError(UtilProperties.getMessage(resource, 
-                            "OrderOrderNoteCannotBeCreated", UtilMisc.toMap("errorString", e.toString()), locale));
-                }
+                addOrderNote(delegator, toBeStored, orderId, orderInternalNote, "Y", userLogin, nowTimestamp);
             }
         }
-
-        // create the order public notes
-        List<String> orderNotes = UtilGenerics.checkList(context.get("orderNotes"));
         if (UtilValidate.isNotEmpty(orderNotes)) {
             for (String orderNote : orderNotes) {
-                try {
-                    Map<String, Object> noteOutputMap = dispatcher.runSync("createOrderNote", UtilMisc.<String, Object>toMap("orderId", orderId,
-                                                                                             "internalNote", "N",
-                                                                                             "note", orderNote,
-                                                                                             "userLogin", userLogin));
-                    if (ServiceUtil.isError(noteOutputMap)) {
-                        return ServiceUtil.returnError(UtilProperties.getMessage(resource, 
-                            "OrderOrderNoteCannotBeCreated", UtilMisc.toMap("errorString", ""), locale),
-                            null, null, noteOutputMap);
-                    }
-                } catch (GenericServiceException e) {
-                    Debug.logError(e, "Error creating notes while creating order: " + e.toString(), module);
-                    return ServiceUtil.returnError(UtilProperties.getMessage(resource, 
-                            "OrderOrderNoteCannotBeCreated", UtilMisc.toMap("errorString", e.toString()), locale));
-                }
+                addOrderNote(delegator, toBeStored, orderId, orderNote, "N", userLogin, nowTimestamp);
             }
         }
 
@@ -658,6 +640,7 @@ public class OrderServices {
         // create also the techData calendars to keep track of availability of the fixed asset.
         if (UtilValidate.isNotEmpty(workEfforts)) {
             List<GenericValue> tempList = new LinkedList<GenericValue>();
+            SequenceIdRange workEffortIds = SequenceIdRange.allocate(delegator, "WorkEffort", workEfforts.size());
             for (GenericValue workEffort : workEfforts) {
                 // create the entity maps required.
                 GenericValue workOrderItemFulfillment = delegator.makeValue("WorkOrderItemFulfillment");
@@ -712,7 +695,7 @@ public class OrderServices {
                 // then create the workEffort and the workOrderItemFulfillment to connect to the order and orderItem
                 workOrderItemFulfillment.set("orderItemSeqId", workEffort.get("workEffortId").toString()); // orderItemSeqNo is stored here so save first
                 // workeffort
-                String workEffortId = delegator.getNextSeqId("WorkEffort"); // find next available workEffortId
+                String workEffortId = workEffortIds.getNextSeqId(); // find next available workEffortId
                 workEffort.set("workEffortId", workEffortId);
                 workEffort.set("workEffortTypeId", "ASSET_USAGE");
                 workEffort.set("currentStatusId", "_NA_"); // a lot of workefforts selection services expect a value here....
@@ -776,12 +759,23 @@ public class OrderServices {
             return ServiceUtil.returnError(errorMessages);
         }
 
+        // reserve the ids of the order, item and ship group adjustments at once
+        int orderAdjustmentCount = orderAdjustments != null ? orderAdjustments.size() : 0;
+        if (orderItemShipGroupInfo != null) {
+            for (GenericValue valueObj : orderItemShipGroupInfo) {
+                if ("OrderAdjustment".equals(valueObj.getEntityName())) {
+                    orderAdjustmentCount++;
+                }
+            }
+        }
+        SequenceIdRange orderAdjustmentIds = SequenceIdRange.allocate(delegator, "OrderAdjustment", orderAdjustmentCount);
+
         // set the orderId on all adjustments; this list will include order and
         // item adjustments...
         if (UtilValidate.isNotEmpty(orderAdjustments)) {
             for (GenericValue orderAdjustment : orderAdjustments) {
                 try {
-                    orderAdjustment.set("orderAdjustmentId", delegator.getNextSeqId("OrderAdjustment"));
+                    orderAdjustment.set("orderAdjustmentId", orderAdjustmentIds.getNextSeqId());
                 } catch (IllegalArgumentException e) {
                     return ServiceUtil.returnError(UtilProperties.getMessage(resource_error,
                             "OrderErrorCouldNotGetNextSequenceIdForOrderAdjustmentCannotCreateOrder",locale));
@@ -837,7 +831,7 @@ public class OrderServices {
                     if (UtilValidate.isEmpty(valueObj.get("orderItemSeqId"))) {
                         valueObj.set("orderItemSeqId", DataModelConstants.SEQ_ID_NA);
                     }
-                    valueObj.set("orderAdjustmentId", delegator.getNextSeqId("OrderAdjustment"));
+                    valueObj.set("orderAdjustmentId", orderAdjustmentIds.getNextSeqId());
                     valueObj.set("createdDate", UtilDateTime.nowTimestamp());
                     valueObj.set("createdByUserLogin", userLogin.getString("userLoginId"));
                 }
@@ -871,9 +865,10 @@ public class OrderServices {
 
         // set the item price info; NOTE: this must be after the orderItems are stored for referential integrity
         if (UtilValidate.isNotEmpty(orderItemPriceInfo)) {
+            SequenceIdRange orderItemPriceInfoIds = SequenceIdRange.allocate(delegator, "OrderItemPriceInfo", orderItemPriceInfo.size());
             for (GenericValue oipi : orderItemPriceInfo) {
                 try {
-                    oipi.set("orderItemPriceInfoId", delegator.getNextSeqId("OrderItemPriceInfo"));
+                    oipi.set("orderItemPriceInfoId", orderItemPriceInfoIds.getNextSeqId());
                 } catch (IllegalArgumentException e) {
                     return ServiceUtil.returnError(UtilProperties.getMessage(resource_error,
                             "OrderErrorCouldNotGetNextSequenceIdForOrderItemPriceInfoCannotCreateOrder",locale));
@@ -978,11 +973,12 @@ public class OrderServices {
         // set the order payment info
         List<GenericValue> orderPaymentInfos = UtilGenerics.checkList(context.get("orderPaymentInfo"));
         if (UtilValidate.isNotEmpty(orderPaymentInfos)) {
+            SequenceIdRange orderPaymentPreferenceIds = SequenceIdRange.allocate(delegator, "OrderPaymentPreference", orderPaymentInfos.size());
             for (GenericValue valueObj : orderPaymentInfos) {
                 valueObj.set("orderId", orderId);
                 if ("OrderPaymentPreference".equals(valueObj.getEntityName())) {
                     if (valueObj.get("orderPaymentPreferenceId") == null) {
-                        valueObj.set("orderPaymentPreferenceId", delegator.getNextSeqId("OrderPaymentPreference"));
+                        valueObj.set("orderPaymentPreferenceId", orderPaymentPreferenceIds.getNextSeqId());
                         valueObj.set("createdDate", UtilDateTime.nowTimestamp());
                         valueObj.set("createdByUserLogin", userLogin.getString("userLoginId"));
                     }
@@ -1025,9 +1021,18 @@ public class OrderServices {
            toBeStored.add(orderHeaderWorkEffort);
        }
 
+        // first try to create the OrderHeader; if this does not fail, continue.
+        try {
+            delegator.create(orderHeader);
+        } catch (GenericEntityException e) {
+            Debug.logError(e, "Cannot create OrderHeader entity; problems with insert", module);
+            return ServiceUtil.returnError(UtilProperties.getMessage(resource_error,
+                    "OrderOrderCreationFailedPleaseNotifyCustomerService",locale));
+        }
+
         try {
             // store line items, etc so that they will be there for the foreign key checks
-            delegator.storeAll(toBeStored);
+            storeNewOrderValues(delegator, orderId, toBeStored);
 
             List<String> resErrorMessages = new LinkedList<String>();
 
@@ -1111,6 +1116,35 @@ public class OrderServices {
         return successResult;
     }
     
+    /** Adds the NoteData and OrderHeaderNote of a note of a new order to the values to store, like the createOrderNote service does */
+    private static void addOrderNote(Delegator delegator, List<GenericValue> toBeStored, String orderId, String note, String internalNote, GenericValue userLogin, Timestamp noteDateTime) {
+        String noteId = delegator.getNextSeqId("NoteData");
+        toBeStored.add(delegator.makeValue("NoteData", UtilMisc.toMap("noteId", noteId, "noteInfo", note, "noteParty", userLogin.getString("partyId"),
+                "noteDateTime", noteDateTime)));
+        toBeStored.add(delegator.makeValue("OrderHeaderNote", UtilMisc.toMap("orderId", orderId, "noteId", noteId, "internalNote", internalNote)));
+    }
+
+    /**
+     * Stores the values of a new order. The records of the order itself can't exist yet, they are inserted without the
+     * lookup storeAll does for each value; the other values (party roles, work efforts, calendars, notes) are stored first.
+     * A record of the order given more than once is inserted once, with the values given last.
+     */
+    private static void storeNewOrderValues(Delegator delegator, String orderId, List<GenericValue> values) throws GenericEntityException {
+        List<GenericValue> otherValues = new LinkedList<GenericValue>();
+        Map<GenericPK, GenericValue> orderValues = new LinkedHashMap<GenericPK, GenericValue>();
+        for (GenericValue value : values) {
+            if (value.getModelEntity().isField("orderId") && orderId.equals(value.getString("orderId"))) {
+                orderValues.put(value.getPrimaryKey(), value);
+            } else {
+                otherValues.add(value);
+            }
+        }
+        delegator.storeAll(otherValues);
+        for (GenericValue value : orderValues.values()) {
+            delegator.create(value);
+        }
+    }
+
     public static Map<String, Object> countProductQuantityOrdered(DispatchContext ctx, Map<String, Object> context) {
         Delegator delegator = ctx.getDelegator();
         Locale locale = (Locale) context.get("locale");
@@ -1118,28 +1152,39 @@ public class OrderServices {
         GenericValue productCalculatedInfo = null;
         String productId = (String) context.get("productId");
         BigDecimal quantity = (BigDecimal) context.get("quantity");
-        try {
-            productCalculatedInfoList = EntityQuery.use(delegator).from("ProductCalculatedInfo").where("productId", productId).queryList();
-            if (UtilValidate.isEmpty(productCalculatedInfoList)) {
-                productCalculatedInfo = delegator.makeValue("ProductCalculatedInfo");
-                productCalculatedInfo.set("productId", productId);
-                productCalculatedInfo.set("totalQuantityOrdered", quantity);
-                productCalculatedInfo.create();
-            } else {
-                productCalculatedInfo = productCalculatedInfoList.get(0);
-                BigDecimal totalQuantityOrdered = productCalculatedInfo.getBigDecimal("totalQuantityOrdered");
-                if (totalQuantityOrdered == null) {
+        if (ProductQuantityOrderedCounter.isEnabled()) {
+            // counted in memory once the order commits and written behind, no lock on the ProductCalculatedInfo row
+            try {
+                ProductQuantityOrderedCounter.add(delegator, productId, quantity);
+            } catch (GenericTransactionException e) {
+                Debug.logError(e, "Error calling countProductQuantityOrdered service", module);
+                return ServiceUtil.returnError(UtilProperties.getMessage(resource_error,
+                        "OrderErrorCallingCountProductQuantityOrderedService",locale) + e.toString());
+            }
+        } else {
+            try {
+                productCalculatedInfoList = EntityQuery.use(delegator).from("ProductCalculatedInfo").where("productId", productId).queryList();
+                if (UtilValidate.isEmpty(productCalculatedInfoList)) {
+                    productCalculatedInfo = delegator.makeValue("ProductCalculatedInfo");
+                    productCalculatedInfo.set("productId", productId);
                     productCalculatedInfo.set("totalQuantityOrdered", quantity);
+                    productCalculatedInfo.create();
                 } else {
-                    productCalculatedInfo.set("totalQuantityOrdered", totalQuantityOrdered.add(quantity));
+                    productCalculatedInfo = productCalculatedInfoList.get(0);
+                    BigDecimal totalQuantityOrdered = productCalculatedInfo.getBigDecimal("totalQuantityOrdered");
+                    if (totalQuantityOrdered == null) {
+                        productCalculatedInfo.set("totalQuantityOrdered", quantity);
+                    } else {
+                        productCalculatedInfo.set("totalQuantityOrdered", totalQuantityOrdered.add(quantity));
+                    }
                 }
-            }
-            productCalculatedInfo.store();
-        } catch (GenericEntityException e) {
-            Debug.logError(e, "Error calling countProductQuantityOrdered service", module);
-            return ServiceUtil.returnError(UtilProperties.getMessage(resource_error,
-                    "OrderErrorCallingCountProductQuantityOrderedService",locale) + e.toString());
+                productCalculatedInfo.store();
+            } catch (GenericEntityException e) {
+                Debug.logError(e, "Error calling countProductQuantityOrdered service", module);
+                return ServiceUtil.returnError(UtilProperties.getMessage(resource_error,
+                        "OrderErrorCallingCountProductQuantityOrderedService",locale) + e.toString());
 
+            }
         }
         
         String virtualProductId = null;
@@ -1159,6 +1204,65 @@ public class OrderServices {
         return ServiceUtil.returnSuccess();
     }
 
+    /** Writes the quantities ordered counted in memory to ProductCalculatedInfo */
+    public static Map<String, Object> flushProductQuantityOrdered(DispatchContext ctx, Map<String, ? extends Object> context) {
+        Delegator delegator = ctx.getDelegator();
+        Locale locale = (Locale) context.get("locale");
+        try {
+            ProductQuantityOrderedCounter.flush(delegator);
+        } catch (GenericEntityException e) {
+            Debug.logError(e, "Error calling flushProductQuantityOrdered service", module);
+            return ServiceUtil.returnError(UtilProperties.getMessage(resource_error,
+                    "OrderErrorCallingFlushProductQuantityOrderedService",locale) + e.toString());
+        }
+        return ServiceUtil.returnSuccess();
+    }
+
+    /** Gets the exact total quantity ordered of a product, including the quantities not written to ProductCalculatedInfo yet */
+    public static Map<String, Object> getProductQuantityOrdered(DispatchContext ctx, Map<String, ? extends Object> context) {
+        Delegator delegator = ctx.getDelegator();
+        Locale locale = (Locale) context.get("locale");
+        String productId = (String) context.get("productId");
+        Map<String, Object> result = ServiceUtil.returnSuccess();
+        try {
+            result.put("totalQuantityOrdered", ProductQuantityOrderedCounter.getTotalQuantityOrdered(delegator, productId));
+        } catch (GenericEntityException e) {
+            Debug.logError(e, "Error calling getProductQuantityOrdered service", module);
+            return ServiceUtil.returnError(UtilProperties.getMessage(resource_error,
+                    "OrderErrorCallingGetProductQuantityOrderedService",locale) + e.toString());
+        }
+        return result;
+    }
+
+    /** Marks the quantity on order of the product of a changed order item to be summed again once the transaction commits */
+    public static Map<String, Object> updateProductQuantityOnOrder(DispatchContext ctx, Map<String, ? extends Object> context) {
+        Delegator delegator = ctx.getDelegator();
+        String productId = (String) context.get("productId");
+        try {
+            ProductQuantityOnOrderIndex.productChanged(delegator, productId);
+        } catch (GenericTransactionException e) {
+            Debug.logError(e, "Error calling updateProductQuantityOnOrder service", module);
+            return ServiceUtil.returnError(e.getMessage());
+        }
+        return ServiceUtil.returnSuccess();
+    }
+
+    /** Sums the quantities on order of all the products again, correcting the in-memory index */
+    public static Map<String, Object> reconcileProductQuantityOnOrder(DispatchContext ctx, Map<String, ? extends Object> context) {
+        Delegator delegator = ctx.getDelegator();
+        int corrected;
+        try {
+            corrected = ProductQuantityOnOrderIndex.reconcile(delegator);
+        } catch (GenericEntityException e) {
+            Debug.logError(e, "Error calling reconcileProductQuantityOnOrder service", module);
+            return ServiceUtil.returnError(e.getMessage());
+        }
+        if (corrected > 0) {
+            Debug.logWarning("Corrected the quantity on order of " + corrected + " products", module);
+        }
+        return ServiceUtil.returnSuccess();
+    }
+
     public static void reserveInventory(Delegator delegator, LocalDispatcher dispatcher, GenericValue userLogin, Locale locale, List<GenericValue> orderItemShipGroupInfo, List<String> dropShipGroupIds, Map<String, GenericValue> itemValuesBySeqId, String orderTypeId, String productStoreId, List<String> resErrorMessages) throws GeneralException {
         boolean isImmediatelyFulfilled = false;
         GenericValue productStore = null;
@@ -1182,216 +1286,208 @@ public class OrderServices {
         }
 
         // START inventory reservation
-        // decrement inventory available for each OrderItemShipGroupAssoc, within the same transaction
+        // first collect what has to be reserved for the whole order, exploding the marketing packages once per product,
+        // then reserve it in a global order (facility, product, item, ship group) so that concurrent orders for the same
+        // products lock the inventory items in the same order, all within the same transaction
+        Map<String, InventoryReservation> reservations = new HashMap<String, InventoryReservation>();
+        Map<String, List<GenericValue>> componentsByProductId = new HashMap<String, List<GenericValue>>();
+        List<GenericValue> marketingPackageItems = new LinkedList<GenericValue>();
+        List<String> marketingPackageFacilityIds = new LinkedList<String>();
+        // reserveStoreInventory reserves the items of a ship group without a facility in the inventory facility of a
+        // store with one inventory facility, and in all the store facilities otherwise; these sort after the others
+        String storeLockFacilityId = null;
+        if (productStore != null && !"N".equals(productStore.getString("oneInventoryFacility"))) {
+            storeLockFacilityId = productStore.getString("inventoryFacilityId");
+        }
         if (UtilValidate.isNotEmpty(orderItemShipGroupInfo)) {
             for (GenericValue orderItemShipGroupAssoc : orderItemShipGroupInfo) {
-                if ("OrderItemShipGroupAssoc".equals(orderItemShipGroupAssoc.getEntityName())) {
-                    if (dropShipGroupIds != null && dropShipGroupIds.contains(orderItemShipGroupAssoc.getString("shipGroupSeqId"))) {
-                        // the items in the drop ship groups are not reserved
+                if (!"OrderItemShipGroupAssoc".equals(orderItemShipGroupAssoc.getEntityName())) {
+                    continue;
+                }
+                if (dropShipGroupIds != null && dropShipGroupIds.contains(orderItemShipGroupAssoc.getString("shipGroupSeqId"))) {
+                    // the items in the drop ship groups are not reserved
+                    continue;
+                }
+                GenericValue orderItem = itemValuesBySeqId.get(orderItemShipGroupAssoc.get("orderItemSeqId"));
+                GenericValue orderItemShipGroup = orderItemShipGroupAssoc.getRelatedOne("OrderItemShipGroup", false);
+                String shipGroupFacilityId = orderItemShipGroup.getString("facilityId");
+                String itemStatus = orderItem.getString("statusId");
+                if ("ITEM_REJECTED".equals(itemStatus) || "ITEM_CANCELLED".equals(itemStatus) || "ITEM_COMPLETED".equals(itemStatus)) {
+                    Debug.logInfo("Order item [" + orderItem.getString("orderId") + " / " + orderItem.getString("orderItemSeqId") + "] is not in a proper status for reservation", module);
+                    continue;
+                }
+                // only reserve product items, ignore non-product items
+                if (UtilValidate.isEmpty(orderItem.getString("productId"))) {
+                    continue;
+                }
+                boolean isRental = "RENTAL_ORDER_ITEM".equals(orderItem.getString("orderItemTypeId"));
+                try {
+                    // get the product of the order item
+                    GenericValue product = orderItem.getRelatedOne("Product", false);
+                    if (product == null) {
+                        Debug.logError("Error when looking up product in reserveInventory service", module);
+                        resErrorMessages.add("Error when looking up product in reserveInventory service");
                         continue;
                     }
-                    GenericValue orderItem = itemValuesBySeqId.get(orderItemShipGroupAssoc.get("orderItemSeqId"));
-                    GenericValue orderItemShipGroup = orderItemShipGroupAssoc.getRelatedOne("OrderItemShipGroup", false);
-                    String shipGroupFacilityId = orderItemShipGroup.getString("facilityId");
-                    String itemStatus = orderItem.getString("statusId");
-                    if ("ITEM_REJECTED".equals(itemStatus) || "ITEM_CANCELLED".equals(itemStatus) || "ITEM_COMPLETED".equals(itemStatus)) {
-                        Debug.logInfo("Order item [" + orderItem.getString("orderId") + " / " + orderItem.getString("orderItemSeqId") + "] is not in a proper status for reservation", module);
+                    // only the rental of assets used out and in are reserved
+                    if (isRental && !"ASSET_USAGE_OUT_IN".equals(product.getString("productTypeId"))) {
                         continue;
                     }
-                    if (UtilValidate.isNotEmpty(orderItem.getString("productId")) &&   // only reserve product items, ignore non-product items
-                            !"RENTAL_ORDER_ITEM".equals(orderItem.getString("orderItemTypeId"))) {  // ignore for rental
-                        try {
-                            // get the product of the order item
-                            GenericValue product = orderItem.getRelatedOne("Product", false);
-                            if (product == null) {
-                                Debug.logError("Error when looking up product in reserveInventory service", module);
-                                resErrorMessages.add("Error when looking up product in reserveInventory service");
-                                continue;
-                            }
-                            if (reserveInventory) {
-                                // for MARKETING_PKG_PICK reserve the components
-                                if (EntityTypeUtil.hasParentType(delegator, "ProductType", "productTypeId", product.getString("productTypeId"), "parentTypeId", "MARKETING_PKG_PICK")) {
-                                    Map<String, Object> componentsRes = dispatcher.runSync("getAssociatedProducts", UtilMisc.toMap("productId", orderItem.getString("productId"), "type", "PRODUCT_COMPONENT"));
-                                    if (ServiceUtil.isError(componentsRes)) {
-                                        resErrorMessages.add((String)componentsRes.get(ModelService.ERROR_MESSAGE));
-                                        continue;
-                                    } else {
-                                        List<GenericValue> assocProducts = UtilGenerics.checkList(componentsRes.get("assocProducts"));
-                                        for (GenericValue productAssoc : assocProducts) {
-                                            BigDecimal quantityOrd = productAssoc.getBigDecimal("quantity");
-                                            BigDecimal quantityKit = orderItemShipGroupAssoc.getBigDecimal("quantity");
-                                            BigDecimal quantity = quantityOrd.multiply(quantityKit);
-                                            Map<String, Object> reserveInput = new HashMap<String, Object>();
-                                            reserveInput.put("productStoreId", productStoreId);
-                                            reserveInput.put("productId", productAssoc.getString("productIdTo"));
-                                            reserveInput.put("orderId", orderItem.getString("orderId"));
-                                            reserveInput.put("orderItemSeqId", orderItem.getString("orderItemSeqId"));
-                                            reserveInput.put("shipGroupSeqId", orderItemShipGroupAssoc.getString("shipGroupSeqId"));
-                                            reserveInput.put("quantity", quantity);
-                                            reserveInput.put("userLogin", userLogin);
-                                            reserveInput.put("facilityId", shipGroupFacilityId);
-                                            Map<String, Object> reserveResult = dispatcher.runSync("reserveStoreInventory", reserveInput);
-
-                                            if (ServiceUtil.isError(reserveResult)) {
-                                                String invErrMsg = "The product ";
-                                                if (product != null) {
-                                                    invErrMsg += getProductName(product, orderItem);
-                                                }
-                                                invErrMsg += " with ID " + orderItem.getString("productId") + " is no longer in stock. Please try reducing the quantity or removing the product from this order.";
-                                                resErrorMessages.add(invErrMsg);
-                                            }
-                                        }
-                                    }
-                                } else {
-                                    // reserve the product
-                                    Map<String, Object> reserveInput = new HashMap<String, Object>();
-                                    reserveInput.put("productStoreId", productStoreId);
-                                    reserveInput.put("productId", orderItem.getString("productId"));
-                                    reserveInput.put("orderId", orderItem.getString("orderId"));
-                                    reserveInput.put("orderItemSeqId", orderItem.getString("orderItemSeqId"));
-                                    reserveInput.put("shipGroupSeqId", orderItemShipGroupAssoc.getString("shipGroupSeqId"));
-                                    reserveInput.put("facilityId", shipGroupFacilityId);
-                                    // use the quantity from the orderItemShipGroupAssoc, NOT the orderItem, these are reserved by item-group assoc
-                                    reserveInput.put("quantity", orderItemShipGroupAssoc.getBigDecimal("quantity"));
-                                    reserveInput.put("userLogin", userLogin);
-                                    Map<String, Object> reserveResult = dispatcher.runSync("reserveStoreInventory", reserveInput);
-
-                                    if (ServiceUtil.isError(reserveResult)) {
-                                        String invErrMsg = "The product ";
-                                        if (product != null) {
-                                            invErrMsg += getProductName(product, orderItem);
-                                        }
-                                        invErrMsg += " with ID " + orderItem.getString("productId") + " is no longer in stock. Please try reducing the quantity or removing the product from this order.";
-                                        resErrorMessages.add(invErrMsg);
-                                    }
+                    if (reserveInventory) {
+                        String shipGroupSeqId = orderItemShipGroupAssoc.getString("shipGroupSeqId");
+                        // use the quantity from the orderItemShipGroupAssoc, NOT the orderItem, these are reserved by item-group assoc
+                        BigDecimal quantityKit = orderItemShipGroupAssoc.getBigDecimal("quantity");
+                        // for MARKETING_PKG_PICK reserve the components
+                        if (EntityTypeUtil.hasParentType(delegator, "ProductType", "productTypeId", product.getString("productTypeId"), "parentTypeId", "MARKETING_PKG_PICK")) {
+                            List<GenericValue> assocProducts = componentsByProductId.get(product.getString("productId"));
+                            if (assocProducts == null) {
+                                Map<String, Object> componentsRes = dispatcher.runSync("getAssociatedProducts", UtilMisc.toMap("productId", orderItem.getString("productId"), "type", "PRODUCT_COMPONENT"));
+                                if (ServiceUtil.isError(componentsRes)) {
+                                    resErrorMessages.add((String)componentsRes.get(ModelService.ERROR_MESSAGE));
+                                    continue;
                                 }
+                                assocProducts = UtilGenerics.checkList(componentsRes.get("assocProducts"));
+                                componentsByProductId.put(product.getString("productId"), assocProducts);
                             }
-                            // Reserving inventory or not we still need to create a marketing package
-                            // If the product is a marketing package auto, attempt to create enough packages to bring ATP back to 0, won't necessarily create enough to cover this order.
-                            if (EntityTypeUtil.hasParentType(delegator, "ProductType", "productTypeId", product.getString("productTypeId"), "parentTypeId", "MARKETING_PKG_AUTO")) {
-                                // do something tricky here: run as the "system" user
-                                // that can actually create and run a production run
-                                GenericValue permUserLogin = EntityQuery.use(delegator).from("UserLogin").where("userLoginId", "system").cache().queryOne();
-                                Map<String, Object> inputMap = new HashMap<String, Object>();
-                                if (UtilValidate.isNotEmpty(shipGroupFacilityId)) {
-                                    inputMap.put("facilityId", shipGroupFacilityId);
-                                } else {
-                                    inputMap.put("facilityId", productStore.getString("inventoryFacilityId"));
-                                }
-                                inputMap.put("orderId", orderItem.getString("orderId"));
-                                inputMap.put("orderItemSeqId", orderItem.getString("orderItemSeqId"));
-                                inputMap.put("userLogin", permUserLogin);
-                                Map<String, Object> prunResult = dispatcher.runSync("createProductionRunForMktgPkg", inputMap);
-                                if (ServiceUtil.isError(prunResult)) {
-                                    Debug.logError(ServiceUtil.getErrorMessage(prunResult) + " for input:" + inputMap, module);
-                                }
+                            for (GenericValue productAssoc : assocProducts) {
+                                BigDecimal quantity = productAssoc.getBigDecimal("quantity").multiply(quantityKit);
+                                addInventoryReservation(reservations, productAssoc.getString("productIdTo"), shipGroupFacilityId, storeLockFacilityId, orderItem, shipGroupSeqId, quantity, product);
                             }
-                        } catch (GenericServiceException e) {
-                            String errMsg = "Fatal error calling reserveStoreInventory service: " + e.toString();
-                            Debug.logError(e, errMsg, module);
-                            resErrorMessages.add(errMsg);
+                        } else {
+                            // reserve the product
+                            addInventoryReservation(reservations, orderItem.getString("productId"), shipGroupFacilityId, storeLockFacilityId, orderItem, shipGroupSeqId, quantityKit, product);
                         }
                     }
-                    
-                    // rent item
-                    if (UtilValidate.isNotEmpty(orderItem.getString("productId")) && "RENTAL_ORDER_ITEM".equals(orderItem.getString("orderItemTypeId"))) {
-                        try {
-                            // get the product of the order item
-                            GenericValue product = orderItem.getRelatedOne("Product", false);
-                            if (product == null) {
-                                Debug.logError("Error when looking up product in reserveInventory service", module);
-                                resErrorMessages.add("Error when looking up product in reserveInventory service");
-                                continue;
-                            }
-                            
-                            // check product type for rent
-                            String productType = (String) product.get("productTypeId");
-                            if ("ASSET_USAGE_OUT_IN".equals(productType)) {
-                                if (reserveInventory) {
-                                    // for MARKETING_PKG_PICK reserve the components
-                                    if (EntityTypeUtil.hasParentType(delegator, "ProductType", "productTypeId", product.getString("productTypeId"), "parentTypeId", "MARKETING_PKG_PICK")) {
-                                        Map<String, Object> componentsRes = dispatcher.runSync("getAssociatedProducts", UtilMisc.toMap("productId", orderItem.getString("productId"), "type", "PRODUCT_COMPONENT"));
-                                        if (ServiceUtil.isError(componentsRes)) {
-                                            resErrorMessages.add((String)componentsRes.get(ModelService.ERROR_MESSAGE));
-                                            continue;
-                                        } else {
-                                            List<GenericValue> assocProducts = UtilGenerics.checkList(componentsRes.get("assocProducts"));
-                                            for (GenericValue productAssoc : assocProducts) {
-                                                BigDecimal quantityOrd = productAssoc.getBigDecimal("quantity");
-                                                BigDecimal quantityKit = orderItemShipGroupAssoc.getBigDecimal("quantity");
-                                                BigDecimal quantity = quantityOrd.multiply(quantityKit);
-                                                Map<String, Object> reserveInput = new HashMap<String, Object>();
-                                                reserveInput.put("productStoreId", productStoreId);
-                                                reserveInput.put("productId", productAssoc.getString("productIdTo"));
-                                                reserveInput.put("orderId", orderItem.getString("orderId"));
-                                                reserveInput.put("orderItemSeqId", orderItem.getString("orderItemSeqId"));
-                                                reserveInput.put("shipGroupSeqId", orderItemShipGroupAssoc.getString("shipGroupSeqId"));
-                                                reserveInput.put("quantity", quantity);
-                                                reserveInput.put("userLogin", userLogin);
-                                                reserveInput.put("facilityId", shipGroupFacilityId);
-                                                Map<String, Object> reserveResult = dispatcher.runSync("reserveStoreInventory", reserveInput);
-    
-                                                if (ServiceUtil.isError(reserveResult)) {
-                                                    String invErrMsg = "The product ";
-                                                    if (product != null) {
-                                                        invErrMsg += getProductName(product, orderItem);
-                                                    }
-                                                    invErrMsg += " with ID " + orderItem.getString("productId") + " is no longer in stock. Please try reducing the quantity or removing the product from this order.";
-                                                    resErrorMessages.add(invErrMsg);
-                                                }
-                                            }
-                                        }
-                                    } else {
-                                        // reserve the product
-                                        Map<String, Object> reserveInput = new HashMap<String, Object>();
-                                        reserveInput.put("productStoreId", productStoreId);
-                                        reserveInput.put("productId", orderItem.getString("productId"));
-                                        reserveInput.put("orderId", orderItem.getString("orderId"));
-                                        reserveInput.put("orderItemSeqId", orderItem.getString("orderItemSeqId"));
-                                        reserveInput.put("shipGroupSeqId", orderItemShipGroupAssoc.getString("shipGroupSeqId"));
-                                        reserveInput.put("facilityId", shipGroupFacilityId);
-                                        // use the quantity from the orderItemShipGroupAssoc, NOT the orderItem, these are reserved by item-group assoc
-                                        reserveInput.put("quantity", orderItemShipGroupAssoc.getBigDecimal("quantity"));
-                                        reserveInput.put("userLogin", userLogin);
-                                        Map<String, Object> reserveResult = dispatcher.runSync("reserveStoreInventory", reserveInput);
-    
-                                        if (ServiceUtil.isError(reserveResult)) {
-                                            String invErrMsg = "The product ";
-                                            if (product != null) {
-                                                invErrMsg += getProductName(product, orderItem);
-                                            }
-                                            invErrMsg += " with ID " + orderItem.getString("productId") + " is no longer in stock. Please try reducing the quantity or removing the product from this order.";
-                                            resErrorMessages.add(invErrMsg);
-                                        }
-                                    }
-                                }
-                                
-                                if (EntityTypeUtil.hasParentType(delegator, "ProductType", "productTypeId", product.getString("productTypeId"), "parentTypeId", "MARKETING_PKG_AUTO")) {
-                                    GenericValue permUserLogin = EntityQuery.use(delegator).from("UserLogin").where("userLoginId", "system").cache().queryOne();
-                                    Map<String, Object> inputMap = new HashMap<String, Object>();
-                                    if (UtilValidate.isNotEmpty(shipGroupFacilityId)) {
-                                        inputMap.put("facilityId", shipGroupFacilityId);
-                                    } else {
-                                        inputMap.put("facilityId", productStore.getString("inventoryFacilityId"));
-                                    }
-                                    inputMap.put("orderId", orderItem.getString("orderId"));
-                                    inputMap.put("orderItemSeqId", orderItem.getString("orderItemSeqId"));
-                                    inputMap.put("userLogin", permUserLogin);
-                                    Map<String, Object> prunResult = dispatcher.runSync("createProductionRunForMktgPkg", inputMap);
-                                    if (ServiceUtil.isError(prunResult)) {
-                                        Debug.logError(ServiceUtil.getErrorMessage(prunResult) + " for input:" + inputMap, module);
-                                    }
-                                }
-                            }
-                        } catch (GenericServiceException e) {
-                            String errMsg = "Fatal error calling reserveStoreInventory service: " + e.toString();
-                            Debug.logError(e, errMsg, module);
-                            resErrorMessages.add(errMsg);
-                        }
+                    // Reserving inventory or not we still need to create a marketing package
+                    if (EntityTypeUtil.hasParentType(delegator, "ProductType", "productTypeId", product.getString("productTypeId"), "parentTypeId", "MARKETING_PKG_AUTO")) {
+                        marketingPackageItems.add(orderItem);
+                        marketingPackageFacilityIds.add(UtilValidate.isNotEmpty(shipGroupFacilityId) ? shipGroupFacilityId : productStore.getString("inventoryFacilityId"));
                     }
+                } catch (GenericServiceException e) {
+                    String errMsg = "Fatal error calling getAssociatedProducts service: " + e.toString();
+                    Debug.logError(e, errMsg, module);
+                    resErrorMessages.add(errMsg);
                 }
             }
         }
+
+        List<InventoryReservation> sortedReservations = new ArrayList<InventoryReservation>(reservations.values());
+        Collections.sort(sortedReservations);
+        for (InventoryReservation reservation : sortedReservations) {
+            Map<String, Object> reserveInput = new HashMap<String, Object>();
+            reserveInput.put("productStoreId", productStoreId);
+            reserveInput.put("productId", reservation.productId);
+            reserveInput.put("orderId", reservation.orderItem.getString("orderId"));
+            reserveInput.put("orderItemSeqId", reservation.orderItem.getString("orderItemSeqId"));
+            reserveInput.put("shipGroupSeqId", reservation.shipGroupSeqId);
+            reserveInput.put("facilityId", reservation.facilityId);
+            reserveInput.put("quantity", reservation.quantity);
+            reserveInput.put("userLogin", userLogin);
+            try {
+                Map<String, Object> reserveResult = dispatcher.runSync("reserveStoreInventory", reserveInput);
+                if (ServiceUtil.isError(reserveResult)) {
+                    String invErrMsg = "The product " + getProductName(reservation.product, reservation.orderItem);
+                    invErrMsg += " with ID " + reservation.orderItem.getString("productId") + " is no longer in stock. Please try reducing the quantity or removing the product from this order.";
+                    resErrorMessages.add(invErrMsg);
+                }
+            } catch (GenericServiceException e) {
+                String errMsg = "Fatal error calling reserveStoreInventory service: " + e.toString();
+                Debug.logError(e, errMsg, module);
+                resErrorMessages.add(errMsg);
+            }
+        }
+
+        // If the product is a marketing package auto, attempt to create enough packages to bring ATP back to 0, won't necessarily create enough to cover this order.
+        if (marketingPackageItems.size() > 0) {
+            // do something tricky here: run as the "system" user
+            // that can actually create and run a production run
+            GenericValue permUserLogin = EntityQuery.use(delegator).from("UserLogin").where("userLoginId", "system").cache().queryOne();
+            for (int i = 0; i < marketingPackageItems.size(); i++) {
+                GenericValue orderItem = marketingPackageItems.get(i);
+                Map<String, Object> inputMap = new HashMap<String, Object>();
+                inputMap.put("facilityId", marketingPackageFacilityIds.get(i));
+                inputMap.put("orderId", orderItem.getString("orderId"));
+                inputMap.put("orderItemSeqId", orderItem.getString("orderItemSeqId"));
+                inputMap.put("userLogin", permUserLogin);
+                try {
+                    Map<String, Object> prunResult = dispatcher.runSync("createProductionRunForMktgPkg", inputMap);
+                    if (ServiceUtil.isError(prunResult)) {
+                        Debug.logError(ServiceUtil.getErrorMessage(prunResult) + " for input:" + inputMap, module);
+                    }
+                } catch (GenericServiceException e) {
+                    String errMsg = "Fatal error calling createProductionRunForMktgPkg service: " + e.toString();
+                    Debug.logError(e, errMsg, module);
+                    resErrorMessages.add(errMsg);
+                }
+            }
+        }
+    }
+
+    /** Adds the quantity to reserve of a product for an order item and ship group; storeFacilityId is the facility locked when facilityId is empty, if known */
+    private static void addInventoryReservation(Map<String, InventoryReservation> reservations, String productId, String facilityId, String storeFacilityId,
+            GenericValue orderItem, String shipGroupSeqId, BigDecimal quantity, GenericValue product) {
+        String lockFacilityId = UtilValidate.isNotEmpty(facilityId) ? facilityId : storeFacilityId;
+        InventoryReservation reservation = new InventoryReservation(productId, facilityId, lockFacilityId, orderItem, shipGroupSeqId, quantity, product);
+        InventoryReservation existing = reservations.get(reservation.getKey());
+        if (existing != null) {
+            existing.quantity = existing.quantity.add(quantity);
+        } else {
+            reservations.put(reservation.getKey(), reservation);
+        }
+    }
+
+    /**
+     * A quantity of a product to reserve for an order item and ship group, ordered by the facility locked, product, item
+     * and ship group; the reservations locking all the store facilities come last.
+     */
+    private static final class InventoryReservation implements Comparable<InventoryReservation> {
+        private final String productId;
+        private final String facilityId;
+        /** The facility whose inventory is locked, null when the inventory of all the store facilities is */
+        private final String lockFacilityId;
+        private final GenericValue orderItem;
+        private final String shipGroupSeqId;
+        private BigDecimal quantity;
+        /** The product of the order item, used in the error messages */
+        private final GenericValue product;
+
+        private InventoryReservation(String productId, String facilityId, String lockFacilityId, GenericValue orderItem, String shipGroupSeqId,
+                BigDecimal quantity, GenericValue product) {
+            this.productId = productId;
+            this.facilityId = facilityId;
+            this.lockFacilityId = lockFacilityId;
+            this.orderItem = orderItem;
+            this.shipGroupSeqId = shipGroupSeqId;
+            this.quantity = quantity;
+            this.product = product;
+        }
+
+        private String getKey() {
+            return facilityId + "::" + productId + "::" + orderItem.getString("orderItemSeqId") + "::" + shipGroupSeqId;
+        }
+
+        @Override
+        public int compareTo(InventoryReservation other) {
+            int result = compareIds(lockFacilityId, other.lockFacilityId);
+            if (result == 0) {
+                result = compareIds(productId, other.productId);
+            }
+            if (result == 0) {
+                result = compareIds(orderItem.getString("orderItemSeqId"), other.orderItem.getString("orderItemSeqId"));
+            }
+            if (result == 0) {
+                result = compareIds(shipGroupSeqId, other.shipGroupSeqId);
+            }
+            return result;
+        }
+
+        /** Compares the ids with the null ones last */
+        private static int compareIds(String id1, String id2) {
+            if (id1 == null) {
+                return id2 == null ? 0 : 1;
+            }
+            return id2 == null ? -1 : id1.compareTo(id2);
+        }
     }
 
     public static String getProductName(GenericValue product, GenericValue orderItem) {
@@ -4682,174 +4778,282 @@ public class OrderServices {
         return massChangeOrderStatus(dctx, context, "ORDER_PROCESSING");
     }
 
-    public static Map<String, Object> massChangeOrderStatus(DispatchContext dctx, Map<String, ? extends Object> context, String statusId) {
-        LocalDispatcher dispatcher = dctx.getDispatcher();
+    public static Map<String, Object> massChangeOrderStatus(DispatchContext dctx, Map<String, ? extends Object> context, final String statusId) {
+        final LocalDispatcher dispatcher = dctx.getDispatcher();
         Delegator delegator = dctx.getDelegator();
-        GenericValue userLogin = (GenericValue) context.get("userLogin");
+        final GenericValue userLogin = (GenericValue) context.get("userLogin");
         List<String> orderIds = UtilGenerics.checkList(context.get("orderIdList"));
         Locale locale = (Locale) context.get("locale");
-        for (String orderId : orderIds) {
-            if (UtilValidate.isEmpty(orderId)) {
-                continue;
-            }
-            GenericValue orderHeader = null;
-            try {
-                orderHeader = EntityQuery.use(delegator).from("OrderHeader").where("orderId", orderId).queryOne();
-            } catch (GenericEntityException e) {
-                Debug.logError(e, module);
-                return ServiceUtil.returnError(e.getMessage());
-            }
-            if (orderHeader == null) {
-                return ServiceUtil.returnFailure(UtilProperties.getMessage(resource, 
-                        "OrderOrderNotFound", UtilMisc.toMap("orderId", orderId), locale));
-            }
 
-            Map<String, Object> ctx = new HashMap<String, Object>();
-            ctx.put("statusId", statusId);
-            ctx.put("orderId", orderId);
-            ctx.put("setItemStatus", "Y");
-            ctx.put("userLogin", userLogin);
-            Map<String, Object> resp = null;
-            try {
-                resp = dispatcher.runSync("changeOrderStatus", ctx);
-            } catch (GenericServiceException e) {
-                Debug.logError(e, module);
-                return ServiceUtil.returnError(e.getMessage());
-            }
-            if (ServiceUtil.isError(resp)) {
-                return ServiceUtil.returnError(UtilProperties.getMessage(resource_error,
-                        "OrderErrorCouldNotChangeOrderStatus", locale), null, null, resp);
-            }
+        Map<String, Map<String, Object>> orderResults;
+        try {
+            orderResults = runMassOrderChange(delegator, orderIds, new MassOrderChange() {
+                public Map<String, Object> run(String orderId) throws GenericServiceException {
+                    return dispatcher.runSync("changeOrderStatus",
+                            UtilMisc.<String, Object>toMap("statusId", statusId, "orderId", orderId, "setItemStatus", "Y", "userLogin", userLogin));
+                }
+            }, locale);
+        } catch (GenericEntityException e) {
+            Debug.logError(e, module);
+            return ServiceUtil.returnError(e.getMessage());
         }
-        return ServiceUtil.returnSuccess();
+        return makeMassOrderChangeResult(orderResults, resource_error, "OrderErrorCouldNotChangeOrderStatus", locale);
     }
 
-    public static Map<String, Object> massChangeItemStatus(DispatchContext dctx, Map<String, ? extends Object> context, String statusId) {
-        LocalDispatcher dispatcher = dctx.getDispatcher();
+    public static Map<String, Object> massChangeItemStatus(DispatchContext dctx, Map<String, ? extends Object> context, final String statusId) {
+        final LocalDispatcher dispatcher = dctx.getDispatcher();
         Delegator delegator = dctx.getDelegator();
-        GenericValue userLogin = (GenericValue) context.get("userLogin");
+        final GenericValue userLogin = (GenericValue) context.get("userLogin");
         List<String> orderIds = UtilGenerics.checkList(context.get("orderIdList"));
         Locale locale = (Locale) context.get("locale");
-        for (String orderId : orderIds) {
-            if (UtilValidate.isEmpty(orderId)) {
-                continue;
-            }
-            GenericValue orderHeader = null;
-            try {
-                orderHeader = EntityQuery.use(delegator).from("OrderHeader").where("orderId", orderId).queryOne();
-            } catch (GenericEntityException e) {
-                Debug.logError(e, module);
-                return ServiceUtil.returnError(e.getMessage());
-            }
-            if (orderHeader == null) {
-                return ServiceUtil.returnFailure(UtilProperties.getMessage(resource, 
-                        "OrderOrderNotFound", UtilMisc.toMap("orderId", orderId), locale));
-            }
 
-            Map<String, Object> ctx = new HashMap<String, Object>();
-            ctx.put("statusId", statusId);
-            ctx.put("orderId", orderId);
-            ctx.put("userLogin", userLogin);
-            Map<String, Object> resp = null;
-            try {
-                resp = dispatcher.runSync("changeOrderItemStatus", ctx);
-            } catch (GenericServiceException e) {
-                Debug.logError(e, module);
-                return ServiceUtil.returnError(e.getMessage());
-            }
-            if (ServiceUtil.isError(resp)) {
-                return ServiceUtil.returnError(UtilProperties.getMessage(resource_error,
-                        "OrderErrorCouldNotChangeItemStatus", locale), null, null, resp);
-            }
+        Map<String, Map<String, Object>> orderResults;
+        try {
+            orderResults = runMassOrderChange(delegator, orderIds, new MassOrderChange() {
+                public Map<String, Object> run(String orderId) throws GenericServiceException {
+                    return dispatcher.runSync("changeOrderItemStatus", UtilMisc.<String, Object>toMap("statusId", statusId, "orderId", orderId, "userLogin", userLogin));
+                }
+            }, locale);
+        } catch (GenericEntityException e) {
+            Debug.logError(e, module);
+            return ServiceUtil.returnError(e.getMessage());
         }
-        return ServiceUtil.returnSuccess();
+        return makeMassOrderChangeResult(orderResults, resource_error, "OrderErrorCouldNotChangeItemStatus", locale);
     }
 
     public static Map<String, Object> massQuickShipOrders(DispatchContext dctx, Map<String, ? extends Object> context) {
-        LocalDispatcher dispatcher = dctx.getDispatcher();
-        GenericValue userLogin = (GenericValue) context.get("userLogin");
+        final LocalDispatcher dispatcher = dctx.getDispatcher();
+        Delegator delegator = dctx.getDelegator();
+        final GenericValue userLogin = (GenericValue) context.get("userLogin");
         List<String> orderIds = UtilGenerics.checkList(context.get("orderIdList"));
         Locale locale = (Locale) context.get("locale");
-        for (Object orderId : orderIds) {
-            if (UtilValidate.isEmpty(orderId)) {
-                continue;
-            }
-            Map<String, Object> ctx = new HashMap<String, Object>();
-            ctx.put("userLogin", userLogin);
-            ctx.put("orderId", orderId);
 
-            Map<String, Object> resp = null;
-            try {
-                resp = dispatcher.runSync("quickShipEntireOrder", ctx);
-            } catch (GenericServiceException e) {
-                Debug.logError(e, module);
-                return ServiceUtil.returnError(e.getMessage());
-            }
-            if (ServiceUtil.isError(resp)) {
-                return ServiceUtil.returnError(UtilProperties.getMessage(resource,
-                        "OrderOrderQuickShipEntireOrderError", locale), null, null, resp);
-            }
+        Map<String, Map<String, Object>> orderResults;
+        try {
+            orderResults = runMassOrderChange(delegator, orderIds, new MassOrderChange() {
+                public Map<String, Object> run(String orderId) throws GenericServiceException {
+                    return dispatcher.runSync("quickShipEntireOrder", UtilMisc.<String, Object>toMap("orderId", orderId, "userLogin", userLogin));
+                }
+            }, locale);
+        } catch (GenericEntityException e) {
+            Debug.logError(e, module);
+            return ServiceUtil.returnError(e.getMessage());
         }
-        return ServiceUtil.returnSuccess();
+        return makeMassOrderChangeResult(orderResults, resource, "OrderOrderQuickShipEntireOrderError", locale);
     }
 
     public static Map<String, Object> massPickOrders(DispatchContext dctx, Map<String, ? extends Object> context) {
-        LocalDispatcher dispatcher = dctx.getDispatcher();
+        final LocalDispatcher dispatcher = dctx.getDispatcher();
         Delegator delegator = dctx.getDelegator();
-        GenericValue userLogin = (GenericValue) context.get("userLogin");
+        final GenericValue userLogin = (GenericValue) context.get("userLogin");
         Locale locale = (Locale) context.get("locale");
-        // grouped by facility
-        Map<String, List<String>> facilityOrdersMap = new HashMap<String, List<String>>();
-
-        // make the list per facility
         List<String> orderIds = UtilGenerics.checkList(context.get("orderIdList"));
-        for (String orderId : orderIds) {
-            if (UtilValidate.isEmpty(orderId)) {
-                continue;
-            }
-            List<GenericValue> invInfo = null;
-            try {
-                invInfo = EntityQuery.use(delegator).from("OrderItemAndShipGrpInvResAndItem").where("orderId", orderId, "statusId", "ITEM_APPROVED").queryList();
-            } catch (GenericEntityException e) {
-                Debug.logError(e, module);
-                return ServiceUtil.returnError(e.getMessage());
-            }
-            if (invInfo != null) {
+        List<String> uniqueOrderIds = new ArrayList<String>(new LinkedHashSet<String>(orderIds));
+        uniqueOrderIds.removeAll(UtilMisc.toList(null, ""));
+
+        // make the list per facility, grouped by facility
+        final Map<String, List<String>> facilityOrdersMap = new LinkedHashMap<String, List<String>>();
+        Map<String, Set<String>> orderFacilitiesMap = new HashMap<String, Set<String>>();
+        try {
+            for (int i = 0; i < uniqueOrderIds.size(); i += massChangeChunkSize) {
+                List<String> chunk = uniqueOrderIds.subList(i, Math.min(i + massChangeChunkSize, uniqueOrderIds.size()));
+                List<GenericValue> invInfo = EntityQuery.use(delegator).select("orderId", "facilityId").from("OrderItemAndShipGrpInvResAndItem")
+                        .where(EntityCondition.makeCondition("orderId", EntityOperator.IN, chunk), EntityCondition.makeCondition("statusId", "ITEM_APPROVED"))
+                        .distinct().queryList();
                 for (GenericValue inv : invInfo) {
+                    String orderId = inv.getString("orderId");
                     String facilityId = inv.getString("facilityId");
                     List<String> orderIdsByFacility = facilityOrdersMap.get(facilityId);
                     if (orderIdsByFacility == null) {
                         orderIdsByFacility = new ArrayList<String>();
+                        facilityOrdersMap.put(facilityId, orderIdsByFacility);
                     }
                     orderIdsByFacility.add(orderId);
-                    facilityOrdersMap.put(facilityId, orderIdsByFacility);
+                    Set<String> facilityIds = orderFacilitiesMap.get(orderId);
+                    if (facilityIds == null) {
+                        facilityIds = new TreeSet<String>();
+                        orderFacilitiesMap.put(orderId, facilityIds);
+                    }
+                    facilityIds.add(facilityId);
                 }
             }
+        } catch (GenericEntityException e) {
+            Debug.logError(e, module);
+            return ServiceUtil.returnError(e.getMessage());
         }
 
         // now create the pick lists for each facility
-        for (String facilityId : facilityOrdersMap.keySet()) {
-            List<String> orderIdList = facilityOrdersMap.get(facilityId);
+        Map<String, Map<String, Object>> facilityResults = runMassChange(facilityOrdersMap.keySet(), new MassOrderChange() {
+            public Map<String, Object> run(String facilityId) throws GenericServiceException {
+                return dispatcher.runSync("createPicklistFromOrders",
+                        UtilMisc.<String, Object>toMap("orderIdList", facilityOrdersMap.get(facilityId), "facilityId", facilityId, "userLogin", userLogin));
+            }
+        });
+
+        // an order fails if the pick list of one of its facilities could not be created; the orders without approved
+        // items reserved are skipped, as they have nothing to pick
+        Map<String, Map<String, Object>> orderResults = new LinkedHashMap<String, Map<String, Object>>();
+        for (String orderId : uniqueOrderIds) {
+            Set<String> facilityIds = orderFacilitiesMap.get(orderId);
+            if (facilityIds == null) {
+                continue;
+            }
+            Map<String, Object> orderResult = makeMassChangeResult(true, null);
+            for (String facilityId : facilityIds) {
+                Map<String, Object> facilityResult = facilityResults.get(facilityId);
+                if (!massChangeSucceeded(facilityResult)) {
+                    orderResult = facilityResult;
+                    break;
+                }
+            }
+            orderResults.put(orderId, orderResult);
+        }
+        return makeMassOrderChangeResult(orderResults, resource, "OrderOrderPickingListCreationError", locale);
+    }
 
-            Map<String, Object> ctx = new HashMap<String, Object>();
-            ctx.put("userLogin", userLogin);
-            ctx.put("orderIdList", orderIdList);
-            ctx.put("facilityId", facilityId);
+    /** A change made by the mass order services to one order, in a transaction of its own */
+    private interface MassOrderChange {
+        /** Runs the change and returns the response of the service doing it */
+        Map<String, Object> run(String orderId) throws GenericServiceException;
+    }
 
-            Map<String, Object> resp = null;
+    /**
+     * Runs the change for each existing order of the list; the orders not found fail without running it.
+     * @return the result of each order, see {@link #runMassChange}
+     */
+    private static Map<String, Map<String, Object>> runMassOrderChange(Delegator delegator, List<String> orderIds, MassOrderChange change, Locale locale) throws GenericEntityException {
+        List<String> uniqueOrderIds = new ArrayList<String>(new LinkedHashSet<String>(orderIds));
+        uniqueOrderIds.removeAll(UtilMisc.toList(null, ""));
+        Set<String> foundOrderIds = new HashSet<String>();
+        for (int i = 0; i < uniqueOrderIds.size(); i += massChangeChunkSize) {
+            List<String> chunk = uniqueOrderIds.subList(i, Math.min(i + massChangeChunkSize, uniqueOrderIds.size()));
+            List<GenericValue> orderHeaders = EntityQuery.use(delegator).select("orderId").from("OrderHeader")
+                    .where(EntityCondition.makeCondition("orderId", EntityOperator.IN, chunk)).queryList();
+            for (GenericValue orderHeader : orderHeaders) {
+                foundOrderIds.add(orderHeader.getString("orderId"));
+            }
+        }
+
+        List<String> changeOrderIds = new ArrayList<String>(uniqueOrderIds);
+        changeOrderIds.retainAll(foundOrderIds);
+        Map<String, Map<String, Object>> changeResults = runMassChange(changeOrderIds, change);
+        Map<String, Map<String, Object>> orderResults = new LinkedHashMap<String, Map<String, Object>>();
+        for (String orderId : uniqueOrderIds) {
+            Map<String, Object> orderResult = changeResults.get(orderId);
+            if (orderResult == null) {
+                orderResult = makeMassChangeResult(false, UtilProperties.getMessage(resource, "OrderOrderNotFound", UtilMisc.toMap("orderId", orderId), locale));
+            }
+            orderResults.put(orderId, orderResult);
+        }
+        return orderResults;
+    }
+
+    /**
+     * Runs the change for each key on the threads of the mass order services. At most order.massChange.maxPending keys
+     * of all the running calls wait for a thread, submitting the next one waits until a change is done. A change that
+     * fails does not stop the others.
+     * @return a Map with the status (success or failure) and message of each key, in the order of the keys
+     */
+    private static Map<String, Map<String, Object>> runMassChange(Collection<String> keys, final MassOrderChange change) {
+        Map<String, Future<Map<String, Object>>> futures = new LinkedHashMap<String, Future<Map<String, Object>>>();
+        Map<String, Map<String, Object>> results = new LinkedHashMap<String, Map<String, Object>>();
+        boolean interrupted = false;
+        for (final String key : keys) {
+            if (!interrupted) {
+                try {
+                    massChangePermits.acquire();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                results.put(key, makeMassChangeResult(false, "Interrupted before the change was started"));
+                continue;
+            }
             try {
-                resp = dispatcher.runSync("createPicklistFromOrders", ctx);
-            } catch (GenericServiceException e) {
-                Debug.logError(e, module);
-                return ServiceUtil.returnError(e.getMessage());
+                futures.put(key, massChangeExecutor.submit(new Callable<Map<String, Object>>() {
+                    public Map<String, Object> call() throws Exception {
+                        try {
+                            Map<String, Object> response = change.run(key);
+                            if (ServiceUtil.isError(response) || ServiceUtil.isFailure(response)) {
+                                return makeMassChangeResult(false, ServiceUtil.getErrorMessage(response));
+                            }
+                            return makeMassChangeResult(true, (String) response.get(ModelService.SUCCESS_MESSAGE));
+                        } finally {
+                            massChangePermits.release();
+                        }
+                    }
+                }));
+            } catch (RejectedExecutionException e) {
+                massChangePermits.release();
+                results.put(key, makeMassChangeResult(false, e.toString()));
             }
-            if (ServiceUtil.isError(resp)) {
-                return ServiceUtil.returnError(UtilProperties.getMessage(resource, 
-                        "OrderOrderPickingListCreationError", locale), null, null, resp);
+        }
+
+        for (String key : keys) {
+            Future<Map<String, Object>> future = futures.get(key);
+            if (future == null) {
+                continue;
             }
+            try {
+                results.put(key, future.get());
+            } catch (InterruptedException e) {
+                // the change is left to run, it releases its permit when done
+                interrupted = true;
+                results.put(key, makeMassChangeResult(false, "Interrupted while waiting for the change"));
+            } catch (ExecutionException e) {
+                Debug.logError(e.getCause(), "Error running a mass order change for [" + key + "]", module);
+                results.put(key, makeMassChangeResult(false, e.getCause().toString()));
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
         }
 
-        return ServiceUtil.returnSuccess();
+        // keep the order of the keys
+        Map<String, Map<String, Object>> orderedResults = new LinkedHashMap<String, Map<String, Object>>();
+        for (String key : keys) {
+            orderedResults.put(key, results.get(key));
+        }
+        return orderedResults;
+    }
+
+    private static Map<String, Object> makeMassChangeResult(boolean success, String message) {
+        Map<String, Object> result = new HashMap<String, Object>();
+        result.put("status", success ? "success" : "failure");
+        if (UtilValidate.isNotEmpty(message)) {
+            result.put("message", message);
+        }
+        return result;
+    }
+
+    private static boolean massChangeSucceeded(Map<String, Object> result) {
+        return result != null && "success".equals(result.get("status"));
+    }
+
+    /**
+     * Makes the response of a mass order service from the results of its orders: an error if no order could be
+     * changed, otherwise a success listing the orders that failed.
+     */
+    private static Map<String, Object> makeMassOrderChangeResult(Map<String, Map<String, Object>> orderResults, String errorResource, String errorLabel, Locale locale) {
+        List<String> errorMessages = new LinkedList<String>();
+        for (Map.Entry<String, Map<String, Object>> entry : orderResults.entrySet()) {
+            if (!massChangeSucceeded(entry.getValue())) {
+                errorMessages.add(entry.getKey() + ": " + entry.getValue().get("message"));
+            }
+        }
+        Map<String, Object> result;
+        if (!errorMessages.isEmpty() && errorMessages.size() == orderResults.size()) {
+            result = ServiceUtil.returnError(UtilProperties.getMessage(errorResource, errorLabel, locale), errorMessages);
+        } else if (!errorMessages.isEmpty()) {
+            result = ServiceUtil.returnSuccess(UtilProperties.getMessage(resource_error, "OrderErrorMassOrderChangeFailedOrders",
+                    UtilMisc.toMap("failedCount", errorMessages.size(), "orderCount", orderResults.size()), locale));
+            result.put(ModelService.ERROR_MESSAGE_LIST, errorMessages);
+        } else {
+            result = ServiceUtil.returnSuccess();
+        }
+        result.put("orderResults", orderResults);
+        return result;
     }
 
     public static Map<String, Object> massPrintOrders(DispatchContext dctx, Map<String, ? extends Object> context) {
@@ -6153,16 +6357,31 @@ public class OrderServices {
         return ServiceUtil.returnSuccess();
     }
 
+    /** Maximum number of product IDs in the IN condition used to look up existing ALSO_BOUGHT records */
+    private static final int alsoBoughtQueryChunkSize = 500;
+    /** OrderJobCheckpoint of createAlsoBoughtProductAssocs */
+    private static final String alsoBoughtCheckpointId = "createAlsoBoughtProductAssocs";
+
     public static Map<String, Object> createAlsoBoughtProductAssocs(DispatchContext dctx, Map<String, ? extends Object> context) {
         final Delegator delegator = dctx.getDelegator();
-        LocalDispatcher dispatcher = dctx.getDispatcher();
         // All orders with an entryDate > orderEntryFromDateTime will be processed
         Timestamp orderEntryFromDateTime = (Timestamp) context.get("orderEntryFromDateTime");
         // If true all orders ever created will be processed and any pre-existing ALSO_BOUGHT ProductAssocs will be expired
         boolean processAllOrders = context.get("processAllOrders") == null ? false : (Boolean) context.get("processAllOrders");
+        // a run from an explicit date processes orders the checkpoint may already be past, it leaves the checkpoint alone
+        final boolean updateCheckpoint = orderEntryFromDateTime == null || processAllOrders;
+        // the last order processed by a previous run, orders are processed by entryDate and orderId
+        GenericValue checkpoint = null;
         if (orderEntryFromDateTime == null && !processAllOrders) {
-            // No from date supplied, check to see when this service last ran and use the startDateTime
-            // FIXME: This code is unreliable - the JobSandbox value might have been purged. Use another mechanism to persist orderEntryFromDateTime.
+            try {
+                checkpoint = EntityQuery.use(delegator).from("OrderJobCheckpoint").where("checkpointId", alsoBoughtCheckpointId).queryOne();
+            } catch (GenericEntityException e) {
+                Debug.logError(e, module);
+                return ServiceUtil.returnError(e.getMessage());
+            }
+        }
+        if (orderEntryFromDateTime == null && !processAllOrders && checkpoint == null) {
+            // No from date supplied and no checkpoint yet (first run after upgrading), check to see when this service last ran and use the startDateTime
             EntityCondition cond = EntityCondition.makeCondition(UtilMisc.toMap("statusId", "SERVICE_FINISHED", "serviceName", "createAlsoBoughtProductAssocs"));
             EntityFindOptions efo = new EntityFindOptions();
             efo.setMaxRows(1);
@@ -6180,59 +6399,208 @@ public class OrderServices {
             }
         }
         if (processAllOrders) {
-            // Expire any pre-existing ALSO_BOUGHT ProductAssocs in preparation for reprocessing
-            EntityCondition cond = EntityCondition.makeCondition(UtilMisc.toList(
+            // Expire any pre-existing ALSO_BOUGHT ProductAssocs in preparation for reprocessing, together with the checkpoint
+            final EntityCondition cond = EntityCondition.makeCondition(UtilMisc.toList(
                     EntityCondition.makeCondition("productAssocTypeId", "ALSO_BOUGHT"),
                     EntityCondition.makeConditionDate("fromDate", "thruDate")
            ));
             try {
-                delegator.storeByCondition("ProductAssoc", UtilMisc.toMap("thruDate", UtilDateTime.nowTimestamp()), cond);
+                TransactionUtil.doNewTransaction(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        delegator.removeByAnd("OrderJobCheckpoint", UtilMisc.toMap("checkpointId", alsoBoughtCheckpointId));
+                        delegator.storeByCondition("ProductAssoc", UtilMisc.toMap("thruDate", UtilDateTime.nowTimestamp()), cond);
+                        return null;
+                    }
+                }, "expireAlsoBoughtProductAssocs", 0, true);
             } catch (GenericEntityException e) {
                 Debug.logError(e, module);
             }
         }
-        List<EntityExpr> orderCondList = UtilMisc.toList(EntityCondition.makeCondition("orderTypeId", "SALES_ORDER"));
-        if (!processAllOrders && orderEntryFromDateTime != null) {
+        // the orders without an entryDate have no place in the (entryDate, orderId) order the checkpoint relies on
+        List<EntityCondition> orderCondList = UtilMisc.<EntityCondition>toList(EntityCondition.makeCondition("orderTypeId", "SALES_ORDER"),
+                EntityCondition.makeCondition("entryDate", EntityOperator.NOT_EQUAL, null));
+        if (checkpoint != null) {
+            Timestamp lastEntryDate = checkpoint.getTimestamp("lastEntryDate");
+            orderCondList.add(EntityCondition.makeCondition(EntityOperator.OR,
+                    EntityCondition.makeCondition("entryDate", EntityOperator.GREATER_THAN, lastEntryDate),
+                    EntityCondition.makeCondition(EntityCondition.makeCondition("entryDate", lastEntryDate),
+                            EntityCondition.makeCondition("orderId", EntityOperator.GREATER_THAN, checkpoint.getString("lastOrderId")))));
+        } else if (!processAllOrders && orderEntryFromDateTime != null) {
             orderCondList.add(EntityCondition.makeCondition("entryDate", EntityOperator.GREATER_THAN, orderEntryFromDateTime));
         }
         final EntityCondition cond = EntityCondition.makeCondition(orderCondList);
-        List<String> orderIds;
+        final long checkpointOrders = UtilProperties.getPropertyAsLong("order", "order.alsoBought.checkpoint.orders", 1000);
+        final long maxPairs = UtilProperties.getPropertyAsLong("order", "order.alsoBought.flush.pairs", 50000);
+        int transactionTimeout = (int) UtilProperties.getPropertyAsLong("order", "order.alsoBought.transactionTimeout", 7200);
+        long orderCount;
         try {
-            orderIds = TransactionUtil.doNewTransaction(new Callable<List<String>>() {
+            // stream the items of all orders in one pass, counting the product pairs in memory and writing them out in batches
+            orderCount = TransactionUtil.doNewTransaction(new Callable<Long>() {
                 @Override
-                public List<String> call() throws Exception {
-                    List<String> orderIds = new LinkedList<String>();
+                public Long call() throws Exception {
+                    long orderCount = 0;
+                    Map<String, String> parentProductIds = new HashMap<String, String>();
+                    Map<String, Map<String, Long>> pairCounts = new HashMap<String, Map<String, Long>>();
+                    long pairCount = 0;
+                    long uncommittedOrderCount = 0;
+                    String currentOrderId = null;
+                    Timestamp currentEntryDate = null;
+                    Set<String> productIdSet = new TreeSet<String>();
                     EntityListIterator eli = null;
                     try {
-                        eli = EntityQuery.use(delegator).select("orderId").from("OrderHeader").where(cond).orderBy("entryDate ASC").queryIterator();
-                        GenericValue orderHeader;
-                        while ((orderHeader = eli.next()) != null) {
-                            orderIds.add(orderHeader.getString("orderId"));
+                        eli = EntityQuery.use(delegator).select("orderId", "entryDate", "productId").from("OrderHeaderAndItems").where(cond).orderBy("entryDate", "orderId").queryIterator();
+                        GenericValue orderHeaderAndItem;
+                        while ((orderHeaderAndItem = eli.next()) != null) {
+                            String orderId = orderHeaderAndItem.getString("orderId");
+                            if (!orderId.equals(currentOrderId)) {
+                                if (currentOrderId != null) {
+                                    pairCount += countAlsoBoughtPairs(productIdSet, pairCounts);
+                                    orderCount++;
+                                    uncommittedOrderCount++;
+                                    if (pairCount >= maxPairs || uncommittedOrderCount >= checkpointOrders) {
+                                        // the counts and the checkpoint are committed together, so a restart continues after this order
+                                        storeAlsoBoughtPairCounts(delegator, pairCounts, updateCheckpoint, currentOrderId, currentEntryDate, uncommittedOrderCount);
+                                        pairCount = 0;
+                                        uncommittedOrderCount = 0;
+                                    }
+                                }
+                                currentOrderId = orderId;
+                                currentEntryDate = orderHeaderAndItem.getTimestamp("entryDate");
+                                productIdSet.clear();
+                            }
+                            String productId = orderHeaderAndItem.getString("productId");
+                            if (productId != null) {
+                                String parentProductId = parentProductIds.get(productId);
+                                if (parentProductId == null) {
+                                    GenericValue parentProduct = ProductWorker.getParentProduct(productId, delegator);
+                                    parentProductId = parentProduct != null ? parentProduct.getString("productId") : productId;
+                                    parentProductIds.put(productId, parentProductId);
+                                }
+                                productIdSet.add(parentProductId);
+                            }
                         }
                     } finally {
                         if (eli != null) {
                             eli.close();
                         }
                     }
-                    return orderIds;
+                    if (currentOrderId != null) {
+                        countAlsoBoughtPairs(productIdSet, pairCounts);
+                        orderCount++;
+                        uncommittedOrderCount++;
+                        storeAlsoBoughtPairCounts(delegator, pairCounts, updateCheckpoint, currentOrderId, currentEntryDate, uncommittedOrderCount);
+                    }
+                    return orderCount;
                 }
-            }, "getSalesOrderIds", 0, true);
+            }, "createAlsoBoughtProductAssocs", transactionTimeout, true);
         } catch (GenericEntityException e) {
             Debug.logError(e, module);
             return ServiceUtil.returnError(e.getMessage());
         }
+        Debug.logInfo("Created or updated ALSO_BOUGHT product associations for " + orderCount + " orders", module);
+        return ServiceUtil.returnSuccess();
+    }
 
-        for (String orderId: orderIds) {
-            Map<String, Object> svcIn = new HashMap<String, Object>();
-            svcIn.put("userLogin", context.get("userLogin"));
-            svcIn.put("orderId", orderId);
-            try {
-                dispatcher.runSync("createAlsoBoughtProductAssocsForOrder", svcIn);
-            } catch (GenericServiceException e) {
-                Debug.logError(e, module);
+    /**
+     * Adds one to the count of every pair of the given (sorted) product IDs; as in createAlsoBoughtProductAssocsForOrder
+     * the pairs are always kept with productId < productIdTo. Returns the number of new pairs.
+     */
+    private static long countAlsoBoughtPairs(Set<String> productIdSet, Map<String, Map<String, Long>> pairCounts) {
+        long newPairs = 0;
+        Set<String> productIdToSet = new TreeSet<String>(productIdSet);
+        for (String productId : productIdSet) {
+            productIdToSet.remove(productId);
+            if (productIdToSet.isEmpty()) {
+                break;
+            }
+            Map<String, Long> productIdToCounts = pairCounts.get(productId);
+            if (productIdToCounts == null) {
+                productIdToCounts = new HashMap<String, Long>();
+                pairCounts.put(productId, productIdToCounts);
+            }
+            for (String productIdTo : productIdToSet) {
+                Long count = productIdToCounts.get(productIdTo);
+                if (count == null) {
+                    newPairs++;
+                    productIdToCounts.put(productIdTo, Long.valueOf(1));
+                } else {
+                    productIdToCounts.put(productIdTo, Long.valueOf(count.longValue() + 1));
+                }
             }
         }
-        return ServiceUtil.returnSuccess();
+        return newPairs;
+    }
+
+    /**
+     * Adds the counted pairs to the quantity of the active ALSO_BOUGHT ProductAssoc records, creating the missing ones,
+     * and moves the checkpoint to the given last counted order if updateCheckpoint is set, in a transaction of its own; the
+     * counts are cleared afterwards.
+     */
+    private static void storeAlsoBoughtPairCounts(final Delegator delegator, final Map<String, Map<String, Long>> pairCounts, final boolean updateCheckpoint,
+            final String lastOrderId, final Timestamp lastEntryDate, final long orderCount) throws GenericEntityException {
+        TransactionUtil.doNewTransaction(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                Timestamp nowTimestamp = UtilDateTime.nowTimestamp();
+                List<GenericValue> toStore = new LinkedList<GenericValue>();
+                List<String> productIds = new ArrayList<String>(pairCounts.keySet());
+                for (int i = 0; i < productIds.size(); i += alsoBoughtQueryChunkSize) {
+                    List<String> productIdChunk = productIds.subList(i, Math.min(i + alsoBoughtQueryChunkSize, productIds.size()));
+                    // one query for the existing records of all pairs starting with these products, newest first as in createAlsoBoughtProductAssocsForOrder
+                    List<GenericValue> existingProductAssocs = EntityQuery.use(delegator).from("ProductAssoc")
+                            .where(EntityCondition.makeCondition("productId", EntityOperator.IN, productIdChunk),
+                                    EntityCondition.makeCondition("productAssocTypeId", "ALSO_BOUGHT"),
+                                    EntityCondition.makeCondition("fromDate", EntityOperator.LESS_THAN_EQUAL_TO, nowTimestamp),
+                                    EntityCondition.makeCondition("thruDate", null))
+                            .orderBy("fromDate DESC").queryList();
+                    Map<String, Map<String, GenericValue>> existingByPair = new HashMap<String, Map<String, GenericValue>>();
+                    for (GenericValue existingProductAssoc : existingProductAssocs) {
+                        Map<String, GenericValue> existingByProductIdTo = existingByPair.get(existingProductAssoc.getString("productId"));
+                        if (existingByProductIdTo == null) {
+                            existingByProductIdTo = new HashMap<String, GenericValue>();
+                            existingByPair.put(existingProductAssoc.getString("productId"), existingByProductIdTo);
+                        }
+                        if (!existingByProductIdTo.containsKey(existingProductAssoc.getString("productIdTo"))) {
+                            existingByProductIdTo.put(existingProductAssoc.getString("productIdTo"), existingProductAssoc);
+                        }
+                    }
+
+                    for (String productId : productIdChunk) {
+                        Map<String, GenericValue> existingByProductIdTo = existingByPair.get(productId);
+                        for (Map.Entry<String, Long> pairCount : pairCounts.get(productId).entrySet()) {
+                            BigDecimal count = BigDecimal.valueOf(pairCount.getValue().longValue());
+                            GenericValue existingProductAssoc = existingByProductIdTo != null ? existingByProductIdTo.get(pairCount.getKey()) : null;
+                            if (existingProductAssoc != null) {
+                                BigDecimal newQuantity = existingProductAssoc.getBigDecimal("quantity");
+                                if (newQuantity == null || newQuantity.compareTo(BigDecimal.ZERO) < 0) {
+                                    newQuantity = BigDecimal.ZERO;
+                                }
+                                existingProductAssoc.set("quantity", newQuantity.add(count));
+                                toStore.add(existingProductAssoc);
+                            } else {
+                                toStore.add(delegator.makeValue("ProductAssoc", UtilMisc.toMap("productId", productId, "productIdTo", pairCount.getKey(),
+                                        "productAssocTypeId", "ALSO_BOUGHT", "fromDate", nowTimestamp, "quantity", count)));
+                            }
+                        }
+                    }
+                }
+                if (updateCheckpoint) {
+                    GenericValue checkpoint = EntityQuery.use(delegator).from("OrderJobCheckpoint").where("checkpointId", alsoBoughtCheckpointId).queryOne();
+                    if (checkpoint == null) {
+                        checkpoint = delegator.makeValue("OrderJobCheckpoint", UtilMisc.toMap("checkpointId", alsoBoughtCheckpointId, "ordersProcessed", Long.valueOf(0)));
+                    }
+                    checkpoint.set("lastOrderId", lastOrderId);
+                    checkpoint.set("lastEntryDate", lastEntryDate);
+                    Long ordersProcessed = checkpoint.getLong("ordersProcessed");
+                    checkpoint.set("ordersProcessed", Long.valueOf((ordersProcessed != null ? ordersProcessed.longValue() : 0) + orderCount));
+                    toStore.add(checkpoint);
+                }
+                delegator.storeAll(toStore);
+                return null;
+            }
+        }, "storeAlsoBoughtPairCounts", 0, true);
+        pairCounts.clear();
     }
 
     public static Map<String, Object> createAlsoBoughtProductAssocsForOrder(DispatchContext dctx, Map<String, ? extends Object> context) {
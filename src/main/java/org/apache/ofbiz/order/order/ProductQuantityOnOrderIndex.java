@@ -0,0 +1,262 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *******************************************************************************/
+package org.apache.ofbiz.order.order;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+
+import org.apache.ofbiz.base.util.Debug;
+import org.apache.ofbiz.base.util.UtilMisc;
+import org.apache.ofbiz.base.util.UtilProperties;
+import org.apache.ofbiz.base.util.cache.UtilCache;
+import org.apache.ofbiz.entity.Delegator;
+import org.apache.ofbiz.entity.GenericEntityException;
+import org.apache.ofbiz.entity.GenericValue;
+import org.apache.ofbiz.entity.condition.EntityCondition;
+import org.apache.ofbiz.entity.condition.EntityOperator;
+import org.apache.ofbiz.entity.model.DynamicViewEntity;
+import org.apache.ofbiz.entity.model.ModelKeyMap;
+import org.apache.ofbiz.entity.transaction.GenericTransactionException;
+import org.apache.ofbiz.entity.transaction.TransactionUtil;
+import org.apache.ofbiz.entity.util.EntityListIterator;
+import org.apache.ofbiz.entity.util.EntityQuery;
+
+/**
+ * In-memory index of the quantities on order per product, the quantities of the open purchase order items as summed
+ * by {@link OrderReadHelper#getQuantityOnOrder(Delegator, String)}.
+ * <p>
+ * The index of a delegator is read with one grouped query the first time it is used. The OrderItem entity ECA marks
+ * the product of a changed item as stale once its transaction commits, and the next read of that product sums it
+ * again. {@link #reconcile} rebuilds the whole index, it is run by the reconcileProductQuantityOnOrder job.
+ * <p>
+ * The stale marks only reach the index of this server; the indexes are kept in a UtilCache expiring after
+ * order.quantityOnOrder.index.expireTime, so the items changed on another server are summed again in the end.
+ */
+public final class ProductQuantityOnOrderIndex {
+
+    public static final String module = ProductQuantityOnOrderIndex.class.getName();
+
+    /** Maximum number of product IDs in the IN condition used to sum the stale products */
+    private static final int queryChunkSize = 500;
+
+    /** Quantities on order by delegator name and productId, the products without open purchase order items are left out */
+    private static final UtilCache<String, ConcurrentMap<String, BigDecimal>> indexes = UtilCache.createUtilCache("order.ProductQuantityOnOrder", 0, 0,
+            UtilProperties.getPropertyAsLong("order", "order.quantityOnOrder.index.expireTime", 3600000L), false);
+    /** Products changed since they were summed, by delegator name */
+    private static final ConcurrentMap<String, Set<String>> staleProducts = new ConcurrentHashMap<String, Set<String>>();
+
+    private ProductQuantityOnOrderIndex() {}
+
+    /** Returns true if the quantities on order are answered from the index, false to sum them on each call */
+    public static boolean isEnabled() {
+        return UtilProperties.propertyValueEqualsIgnoreCase("order", "order.quantityOnOrder.index.enable", "Y");
+    }
+
+    /** Gets the quantity on order of the product */
+    public static BigDecimal getQuantityOnOrder(Delegator delegator, String productId) throws GenericEntityException {
+        return getQuantityOnOrder(delegator, UtilMisc.toList(productId)).get(productId);
+    }
+
+    /** Gets the quantities on order of the products, the products not on order get zero */
+    public static Map<String, BigDecimal> getQuantityOnOrder(Delegator delegator, Collection<String> productIds) throws GenericEntityException {
+        ConcurrentMap<String, BigDecimal> index = getIndex(delegator);
+        Set<String> stale = staleProducts.get(delegator.getDelegatorName());
+        if (stale != null && !stale.isEmpty()) {
+            List<String> staleProductIds = new ArrayList<String>();
+            for (String productId : productIds) {
+                // taken out before summing, a commit meanwhile marks the product again
+                if (stale.remove(productId)) {
+                    staleProductIds.add(productId);
+                }
+            }
+            if (!staleProductIds.isEmpty()) {
+                try {
+                    refresh(delegator, index, staleProductIds);
+                } catch (GenericEntityException e) {
+                    stale.addAll(staleProductIds);
+                    throw e;
+                }
+            }
+        }
+        Map<String, BigDecimal> quantities = new HashMap<String, BigDecimal>();
+        for (String productId : productIds) {
+            BigDecimal quantity = index.get(productId);
+            quantities.put(productId, quantity != null ? quantity : BigDecimal.ZERO);
+        }
+        return quantities;
+    }
+
+    /** Marks the product as stale once the current transaction, if any, commits */
+    public static void productChanged(Delegator delegator, final String productId) throws GenericTransactionException {
+        final String delegatorName = delegator.getDelegatorName();
+        if (!TransactionUtil.isTransactionInPlace()) {
+            markStale(delegatorName, productId);
+            return;
+        }
+        TransactionUtil.registerSynchronization(new Synchronization() {
+            @Override
+            public void beforeCompletion() {
+            }
+
+            @Override
+            public void afterCompletion(int status) {
+                if (status == Status.STATUS_COMMITTED) {
+                    markStale(delegatorName, productId);
+                }
+            }
+        });
+    }
+
+    /**
+     * Sums the quantities on order of all the products again and replaces the index of the delegator.
+     * @return the number of products whose quantity was wrong in the index
+     */
+    public static int reconcile(Delegator delegator) throws GenericEntityException {
+        String delegatorName = delegator.getDelegatorName();
+        ConcurrentMap<String, BigDecimal> oldIndex = indexes.get(delegatorName);
+        // the products changed while summing stay stale
+        Set<String> stale = getStaleProducts(delegatorName);
+        stale.clear();
+        ConcurrentMap<String, BigDecimal> newIndex = loadIndex(delegator);
+        indexes.put(delegatorName, newIndex);
+
+        int corrected = 0;
+        if (oldIndex != null) {
+            for (Map.Entry<String, BigDecimal> entry : newIndex.entrySet()) {
+                BigDecimal oldQuantity = oldIndex.get(entry.getKey());
+                if (oldQuantity == null || oldQuantity.compareTo(entry.getValue()) != 0) {
+                    corrected++;
+                }
+            }
+            for (String productId : oldIndex.keySet()) {
+                if (!newIndex.containsKey(productId)) {
+                    corrected++;
+                }
+            }
+        }
+        return corrected;
+    }
+
+    private static ConcurrentMap<String, BigDecimal> getIndex(Delegator delegator) throws GenericEntityException {
+        String delegatorName = delegator.getDelegatorName();
+        ConcurrentMap<String, BigDecimal> index = indexes.get(delegatorName);
+        if (index == null) {
+            synchronized (ProductQuantityOnOrderIndex.class) {
+                index = indexes.get(delegatorName);
+                if (index == null) {
+                    getStaleProducts(delegatorName).clear();
+                    index = loadIndex(delegator);
+                    indexes.put(delegatorName, index);
+                }
+            }
+        }
+        return index;
+    }
+
+    private static ConcurrentMap<String, BigDecimal> loadIndex(Delegator delegator) throws GenericEntityException {
+        ConcurrentMap<String, BigDecimal> index = new ConcurrentHashMap<String, BigDecimal>();
+        EntityListIterator quantities = null;
+        try {
+            quantities = EntityQuery.use(delegator).select("productId", "quantity").from(makeQuantityOnOrderView())
+                    .where(makeOpenItemCondition()).queryIterator();
+            GenericValue quantity;
+            while ((quantity = quantities.next()) != null) {
+                putQuantity(index, quantity);
+            }
+        } finally {
+            if (quantities != null) {
+                quantities.close();
+            }
+        }
+        if (Debug.infoOn()) {
+            Debug.logInfo("Loaded the quantities on order of " + index.size() + " products", module);
+        }
+        return index;
+    }
+
+    private static void refresh(Delegator delegator, ConcurrentMap<String, BigDecimal> index, List<String> productIds) throws GenericEntityException {
+        for (int i = 0; i < productIds.size(); i += queryChunkSize) {
+            List<String> chunk = productIds.subList(i, Math.min(i + queryChunkSize, productIds.size()));
+            List<GenericValue> quantities = EntityQuery.use(delegator).select("productId", "quantity").from(makeQuantityOnOrderView())
+                    .where(makeOpenItemCondition(), EntityCondition.makeCondition("productId", EntityOperator.IN, chunk)).queryList();
+            Map<String, BigDecimal> chunkIndex = new HashMap<String, BigDecimal>();
+            for (GenericValue quantity : quantities) {
+                putQuantity(chunkIndex, quantity);
+            }
+            // each quantity is replaced in one step, a reader sees either the old or the new one
+            for (String productId : chunk) {
+                BigDecimal quantity = chunkIndex.get(productId);
+                if (quantity != null) {
+                    index.put(productId, quantity);
+                } else {
+                    index.remove(productId);
+                }
+            }
+        }
+    }
+
+    private static void putQuantity(Map<String, BigDecimal> index, GenericValue quantity) {
+        BigDecimal sum = quantity.getBigDecimal("quantity");
+        if (quantity.get("productId") != null && sum != null && sum.signum() != 0) {
+            index.put(quantity.getString("productId"), sum);
+        }
+    }
+
+    /** The purchase order item quantities summed by product */
+    private static DynamicViewEntity makeQuantityOnOrderView() {
+        DynamicViewEntity dve = new DynamicViewEntity();
+        dve.addMemberEntity("OH", "OrderHeader");
+        dve.addMemberEntity("OI", "OrderItem");
+        dve.addAlias("OH", "orderTypeId");
+        dve.addAlias("OI", "productId", null, null, null, Boolean.TRUE, null);
+        dve.addAlias("OI", "quantity", null, null, null, null, "sum");
+        dve.addAlias("OI", "itemStatusId", "statusId", null, null, null, null);
+        dve.addViewLink("OH", "OI", Boolean.FALSE, UtilMisc.toList(new ModelKeyMap("orderId", "orderId")));
+        return dve;
+    }
+
+    private static EntityCondition makeOpenItemCondition() {
+        return EntityCondition.makeCondition(EntityCondition.makeCondition("orderTypeId", EntityOperator.EQUALS, "PURCHASE_ORDER"),
+                EntityCondition.makeCondition("itemStatusId", EntityOperator.NOT_IN, UtilMisc.toList("ITEM_CANCELLED", "ITEM_REJECTED", "ITEM_COMPLETED")));
+    }
+
+    private static Set<String> getStaleProducts(String delegatorName) {
+        Set<String> stale = staleProducts.get(delegatorName);
+        if (stale == null) {
+            staleProducts.putIfAbsent(delegatorName, Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>()));
+            stale = staleProducts.get(delegatorName);
+        }
+        return stale;
+    }
+
+    private static void markStale(String delegatorName, String productId) {
+        getStaleProducts(delegatorName).add(productId);
+    }
+}
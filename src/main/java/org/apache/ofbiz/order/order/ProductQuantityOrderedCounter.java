@@ -0,0 +1,311 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *******************************************************************************/
+package org.apache.ofbiz.order.order;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+
+import org.apache.ofbiz.base.concurrent.ExecutionPool;
+import org.apache.ofbiz.base.util.Debug;
+import org.apache.ofbiz.base.util.UtilProperties;
+import org.apache.ofbiz.entity.Delegator;
+import org.apache.ofbiz.entity.DelegatorFactory;
+import org.apache.ofbiz.entity.GenericEntityException;
+import org.apache.ofbiz.entity.GenericValue;
+import org.apache.ofbiz.entity.condition.EntityCondition;
+import org.apache.ofbiz.entity.condition.EntityOperator;
+import org.apache.ofbiz.entity.transaction.GenericTransactionException;
+import org.apache.ofbiz.entity.transaction.TransactionUtil;
+import org.apache.ofbiz.entity.util.EntityQuery;
+
+/**
+ * Write-behind counter of the quantities ordered per product (ProductCalculatedInfo.totalQuantityOrdered).
+ * <p>
+ * Orders add their quantities to in-memory deltas once their transaction commits, so concurrent orders for the same
+ * product don't wait on the lock of its ProductCalculatedInfo row. The deltas are written in batches on a short
+ * interval once {@link #start()} is called by the {@link WriteBehindContainer}, when the container stops or on demand
+ * with {@link #flush()}. The deltas being written stay in memory until their transaction completes, so
+ * {@link #getTotalQuantityOrdered} gives the exact total including the deltas not written yet.
+ */
+public final class ProductQuantityOrderedCounter {
+
+    public static final String module = ProductQuantityOrderedCounter.class.getName();
+
+    private static final long flushInterval = UtilProperties.getPropertyAsLong("order", "order.quantityOrdered.flush.interval", 5000);
+    /** Maximum number of product IDs in the IN condition used to read the ProductCalculatedInfo records */
+    private static final int queryChunkSize = 500;
+    /** Times a total is read again while deltas are being committed before it is given as read */
+    private static final int maxReadAttempts = 100;
+
+    /** Quantities not written yet, by delegator name and productId */
+    private static final ConcurrentMap<String, ConcurrentMap<String, BigDecimal>> pendingQuantities = new ConcurrentHashMap<String, ConcurrentMap<String, BigDecimal>>();
+    /** Quantities taken out by the running flush until its transaction completes, by delegator name and productId */
+    private static final ConcurrentMap<String, Map<String, BigDecimal>> inFlightQuantities = new ConcurrentHashMap<String, Map<String, BigDecimal>>();
+    /**
+     * Odd while deltas move between the maps and the database: from their take out of the pending deltas until they
+     * are committed or put back. A total read while it is odd or changed is read again.
+     */
+    private static final AtomicLong moveSequence = new AtomicLong();
+    /** Held by the running flush, one flush at a time */
+    private static final Object flushLock = new Object();
+    private static ScheduledExecutorService flushExecutor = null;
+
+    private ProductQuantityOrderedCounter() {}
+
+    /** Returns true if the quantities ordered are counted in memory and written behind, false to update ProductCalculatedInfo directly */
+    public static boolean isEnabled() {
+        return UtilProperties.propertyValueEqualsIgnoreCase("order", "order.quantityOrdered.writeBehind.enable", "Y");
+    }
+
+    /** Starts writing the pending quantities on the flush interval */
+    public static synchronized void start() {
+        if (flushExecutor != null) {
+            return;
+        }
+        flushExecutor = ExecutionPool.getScheduledExecutor(new ThreadGroup(module), "OFBiz-quantity-ordered", 1, 60, false);
+        flushExecutor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                flush();
+            }
+        }, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /** Stops the writes on the flush interval and writes the pending quantities a last time */
+    public static synchronized void stop() {
+        if (flushExecutor != null) {
+            flushExecutor.shutdown();
+            try {
+                flushExecutor.awaitTermination(flushInterval, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            flushExecutor = null;
+        }
+        flush();
+    }
+
+    /** Adds the quantity to the product once the current transaction, if any, commits */
+    public static void add(Delegator delegator, final String productId, final BigDecimal quantity) throws GenericTransactionException {
+        if (quantity == null || quantity.signum() == 0) {
+            return;
+        }
+        final String delegatorName = delegator.getDelegatorName();
+        if (!TransactionUtil.isTransactionInPlace()) {
+            addPending(delegatorName, productId, quantity);
+            return;
+        }
+        TransactionUtil.registerSynchronization(new Synchronization() {
+            @Override
+            public void beforeCompletion() {
+            }
+
+            @Override
+            public void afterCompletion(int status) {
+                if (status == Status.STATUS_COMMITTED) {
+                    addPending(delegatorName, productId, quantity);
+                }
+            }
+        });
+    }
+
+    /** Gets the total quantity ordered of the product, including the quantities not written yet */
+    public static BigDecimal getTotalQuantityOrdered(Delegator delegator, String productId) throws GenericEntityException {
+        String delegatorName = delegator.getDelegatorName();
+        BigDecimal totalQuantityOrdered = null;
+        for (int attempt = 0; attempt < maxReadAttempts; attempt++) {
+            long sequence = moveSequence.get();
+            if ((sequence & 1) != 0) {
+                Thread.yield();
+                continue;
+            }
+            BigDecimal pendingQuantity = getQuantity(pendingQuantities.get(delegatorName), productId);
+            BigDecimal inFlightQuantity = getQuantity(inFlightQuantities.get(delegatorName), productId);
+            GenericValue productCalculatedInfo = EntityQuery.use(delegator).from("ProductCalculatedInfo").where("productId", productId).queryOne();
+            totalQuantityOrdered = productCalculatedInfo != null ? productCalculatedInfo.getBigDecimal("totalQuantityOrdered") : null;
+            if (pendingQuantity != null) {
+                totalQuantityOrdered = totalQuantityOrdered != null ? totalQuantityOrdered.add(pendingQuantity) : pendingQuantity;
+            }
+            if (inFlightQuantity != null) {
+                totalQuantityOrdered = totalQuantityOrdered != null ? totalQuantityOrdered.add(inFlightQuantity) : inFlightQuantity;
+            }
+            if (moveSequence.get() == sequence) {
+                return totalQuantityOrdered;
+            }
+        }
+        Debug.logWarning("The total quantity ordered of product " + productId + " was read while quantities were being written", module);
+        return totalQuantityOrdered;
+    }
+
+    /** Writes the pending quantities of all delegators */
+    public static void flush() {
+        for (String delegatorName : pendingQuantities.keySet()) {
+            Delegator delegator = DelegatorFactory.getDelegator(delegatorName);
+            if (delegator == null) {
+                continue;
+            }
+            try {
+                flush(delegator);
+            } catch (GenericEntityException e) {
+                Debug.logError(e, "Could not write the quantities ordered for delegator " + delegatorName + ", will retry", module);
+            }
+        }
+    }
+
+    /** Writes the pending quantities of the delegator to ProductCalculatedInfo in one transaction; they are kept in memory if it fails */
+    public static void flush(final Delegator delegator) throws GenericEntityException {
+        final String delegatorName = delegator.getDelegatorName();
+        synchronized (flushLock) {
+            ConcurrentMap<String, BigDecimal> pending = pendingQuantities.get(delegatorName);
+            if (pending == null || pending.isEmpty()) {
+                return;
+            }
+            // move the deltas to the in-flight ones, the ones added meanwhile go to the next flush
+            final Map<String, BigDecimal> quantities = new ConcurrentHashMap<String, BigDecimal>();
+            moveSequence.incrementAndGet();
+            try {
+                inFlightQuantities.put(delegatorName, quantities);
+                for (String productId : pending.keySet()) {
+                    BigDecimal quantity = pending.remove(productId);
+                    if (quantity != null) {
+                        quantities.put(productId, quantity);
+                    }
+                }
+            } finally {
+                moveSequence.incrementAndGet();
+            }
+            if (quantities.isEmpty()) {
+                inFlightQuantities.remove(delegatorName, quantities);
+                return;
+            }
+
+            // the in-flight deltas are dropped once committed, or put back in the pending ones
+            final Synchronization release = new Synchronization() {
+                private boolean completing = false;
+
+                @Override
+                public void beforeCompletion() {
+                    completing = true;
+                    moveSequence.incrementAndGet();
+                }
+
+                @Override
+                public void afterCompletion(int status) {
+                    // a rollback may complete without beforeCompletion
+                    if (!completing) {
+                        moveSequence.incrementAndGet();
+                    }
+                    releaseInFlight(delegatorName, quantities, status == Status.STATUS_COMMITTED);
+                    moveSequence.incrementAndGet();
+                }
+            };
+            try {
+                TransactionUtil.doNewTransaction(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        TransactionUtil.registerSynchronization(release);
+                        List<String> productIds = new ArrayList<String>(quantities.keySet());
+                        List<GenericValue> toStore = new ArrayList<GenericValue>(productIds.size());
+                        Map<String, GenericValue> existing = new HashMap<String, GenericValue>();
+                        for (int i = 0; i < productIds.size(); i += queryChunkSize) {
+                            List<String> chunk = productIds.subList(i, Math.min(i + queryChunkSize, productIds.size()));
+                            // ordered by productId so concurrent writers lock the rows in the same order
+                            List<GenericValue> infos = EntityQuery.use(delegator).from("ProductCalculatedInfo")
+                                    .where(EntityCondition.makeCondition("productId", EntityOperator.IN, chunk))
+                                    .orderBy("productId").forUpdate(true).queryList();
+                            for (GenericValue info : infos) {
+                                existing.put(info.getString("productId"), info);
+                            }
+                        }
+                        for (Map.Entry<String, BigDecimal> entry : quantities.entrySet()) {
+                            GenericValue info = existing.get(entry.getKey());
+                            if (info == null) {
+                                info = delegator.makeValue("ProductCalculatedInfo");
+                                info.set("productId", entry.getKey());
+                                info.set("totalQuantityOrdered", entry.getValue());
+                            } else {
+                                BigDecimal totalQuantityOrdered = info.getBigDecimal("totalQuantityOrdered");
+                                info.set("totalQuantityOrdered", totalQuantityOrdered != null ? totalQuantityOrdered.add(entry.getValue()) : entry.getValue());
+                            }
+                            toStore.add(info);
+                        }
+                        delegator.storeAll(toStore);
+                        return null;
+                    }
+                }, "flushProductQuantityOrdered", 0, true);
+            } catch (GenericEntityException e) {
+                // put the deltas back for the next flush, unless the synchronization already did
+                moveSequence.incrementAndGet();
+                try {
+                    releaseInFlight(delegatorName, quantities, false);
+                } finally {
+                    moveSequence.incrementAndGet();
+                }
+                throw e;
+            }
+            if (Debug.verboseOn()) {
+                Debug.logVerbose("Wrote the quantities ordered of " + quantities.size() + " products", module);
+            }
+        }
+    }
+
+    /** Drops the in-flight deltas, putting them back in the pending ones first if they were not committed; once only */
+    private static void releaseInFlight(String delegatorName, Map<String, BigDecimal> quantities, boolean committed) {
+        if (inFlightQuantities.get(delegatorName) != quantities) {
+            return;
+        }
+        if (!committed) {
+            for (Map.Entry<String, BigDecimal> entry : quantities.entrySet()) {
+                addPending(delegatorName, entry.getKey(), entry.getValue());
+            }
+        }
+        inFlightQuantities.remove(delegatorName, quantities);
+    }
+
+    private static BigDecimal getQuantity(Map<String, BigDecimal> quantities, String productId) {
+        return quantities != null ? quantities.get(productId) : null;
+    }
+
+    private static void addPending(String delegatorName, String productId, BigDecimal quantity) {
+        ConcurrentMap<String, BigDecimal> pending = pendingQuantities.get(delegatorName);
+        if (pending == null) {
+            pendingQuantities.putIfAbsent(delegatorName, new ConcurrentHashMap<String, BigDecimal>());
+            pending = pendingQuantities.get(delegatorName);
+        }
+        // lock-free update, only threads adding to the same product retry
+        while (true) {
+            BigDecimal current = pending.putIfAbsent(productId, quantity);
+            if (current == null || pending.replace(productId, current, current.add(quantity))) {
+                return;
+            }
+        }
+    }
+}
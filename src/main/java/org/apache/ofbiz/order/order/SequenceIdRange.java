@@ -0,0 +1,95 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *******************************************************************************/
+package org.apache.ofbiz.order.order;
+
+import java.util.concurrent.Callable;
+
+import org.apache.ofbiz.base.util.Debug;
+import org.apache.ofbiz.entity.Delegator;
+import org.apache.ofbiz.entity.GenericEntityException;
+import org.apache.ofbiz.entity.GenericValue;
+import org.apache.ofbiz.entity.transaction.TransactionUtil;
+import org.apache.ofbiz.entity.util.EntityQuery;
+
+/**
+ * A block of ids of one sequence reserved at once, for the services creating many records of the same entity.
+ * <p>
+ * The block is taken from the SequenceValueItem of the sequence the same way the delegator fills its sequence banks,
+ * so the ids never overlap with the ones given by {@link Delegator#getNextSeqId(String)}. Once the block is used up,
+ * or if it could not be reserved, the ids come from the delegator.
+ */
+public final class SequenceIdRange {
+
+    public static final String module = SequenceIdRange.class.getName();
+
+    /** Below this number of ids the sequence bank of the delegator is cheaper than a reservation of its own */
+    private static final int minimumRangeSize = 20;
+
+    private final Delegator delegator;
+    private final String seqName;
+    private final String prefix;
+    private long nextSeqId;
+    private final long endSeqId;
+
+    private SequenceIdRange(Delegator delegator, String seqName, long startSeqId, long endSeqId) {
+        this.delegator = delegator;
+        this.seqName = seqName;
+        String sequencedIdPrefix = delegator.getDelegatorInfo().getSequencedIdPrefix();
+        this.prefix = sequencedIdPrefix != null ? sequencedIdPrefix : "";
+        this.nextSeqId = startSeqId;
+        this.endSeqId = endSeqId;
+    }
+
+    /** Reserves the given number of ids of the sequence in a transaction of its own */
+    public static SequenceIdRange allocate(final Delegator delegator, final String seqName, final int count) {
+        if (count < minimumRangeSize) {
+            return new SequenceIdRange(delegator, seqName, 0, 0);
+        }
+        try {
+            Long startSeqId = TransactionUtil.doNewTransaction(new Callable<Long>() {
+                @Override
+                public Long call() throws Exception {
+                    GenericValue sequenceValueItem = EntityQuery.use(delegator).from("SequenceValueItem").where("seqName", seqName).forUpdate(true).queryOne();
+                    if (sequenceValueItem == null) {
+                        // not used yet, let the delegator create it
+                        return null;
+                    }
+                    Long seqId = sequenceValueItem.getLong("seqId");
+                    sequenceValueItem.set("seqId", Long.valueOf(seqId.longValue() + count));
+                    sequenceValueItem.store();
+                    return seqId;
+                }
+            }, "allocateSequenceIdRange", 0, true);
+            if (startSeqId != null) {
+                return new SequenceIdRange(delegator, seqName, startSeqId.longValue(), startSeqId.longValue() + count);
+            }
+        } catch (GenericEntityException e) {
+            Debug.logWarning(e, "Could not reserve " + count + " ids of sequence " + seqName + ", using the sequence bank", module);
+        }
+        return new SequenceIdRange(delegator, seqName, 0, 0);
+    }
+
+    /** Gets the next id of the range, or of the delegator once the range is used up */
+    public String getNextSeqId() {
+        if (nextSeqId < endSeqId) {
+            return prefix + (nextSeqId++);
+        }
+        return delegator.getNextSeqId(seqName);
+    }
+}
@@ -0,0 +1,59 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *******************************************************************************/
+package org.apache.ofbiz.order.order;
+
+import java.util.List;
+
+import org.apache.ofbiz.base.container.Container;
+import org.apache.ofbiz.base.container.ContainerException;
+import org.apache.ofbiz.base.start.StartupCommand;
+import org.apache.ofbiz.order.shoppinglist.AutoSaveListWriter;
+
+/**
+ * Starts the background writes of the order component with the containers and writes what is still pending when
+ * the containers stop, while the entity engine is still available.
+ */
+public class WriteBehindContainer implements Container {
+
+    public static final String module = WriteBehindContainer.class.getName();
+
+    private String name;
+
+    @Override
+    public void init(List<StartupCommand> ofbizCommands, String name, String configFile) throws ContainerException {
+        this.name = name;
+    }
+
+    @Override
+    public boolean start() throws ContainerException {
+        ProductQuantityOrderedCounter.start();
+        return true;
+    }
+
+    @Override
+    public void stop() throws ContainerException {
+        ProductQuantityOrderedCounter.stop();
+        AutoSaveListWriter.flushAll();
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+}
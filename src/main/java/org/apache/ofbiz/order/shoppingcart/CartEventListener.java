@@ -23,12 +23,14 @@ import javax.servlet.http.HttpSessionEvent;
 import javax.servlet.http.HttpSessionListener;
 
 import org.apache.ofbiz.base.util.Debug;
+import org.apache.ofbiz.base.util.GeneralException;
 import org.apache.ofbiz.base.util.UtilValidate;
 import org.apache.ofbiz.entity.Delegator;
 import org.apache.ofbiz.entity.DelegatorFactory;
 import org.apache.ofbiz.entity.GenericEntityException;
 import org.apache.ofbiz.entity.GenericValue;
 import org.apache.ofbiz.entity.transaction.TransactionUtil;
+import org.apache.ofbiz.order.shoppinglist.AutoSaveListWriter;
 import org.apache.ofbiz.webapp.stats.VisitHandler;
 
 /**
@@ -52,6 +54,13 @@ public class CartEventListener implements HttpSessionListener {
             return;
         }
 
+        // write the last changes of the cart to its auto-save list
+        try {
+            AutoSaveListWriter.flush(cart);
+        } catch (GeneralException e) {
+            Debug.logError(e, "Could not write the auto-save list of the cart", module);
+        }
+
         String delegatorName = (String) session.getAttribute("delegatorName");
         Delegator delegator = null;
         if (UtilValidate.isNotEmpty(delegatorName)) {
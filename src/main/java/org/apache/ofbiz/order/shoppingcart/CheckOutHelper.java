@@ -18,15 +18,20 @@
  */
 package org.apache.ofbiz.order.shoppingcart;
 
+import java.io.UnsupportedEncodingException;
 import java.math.BigDecimal;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
 import java.sql.Timestamp;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
 
 import org.apache.ofbiz.base.util.Debug;
 import org.apache.ofbiz.base.util.GeneralException;
@@ -39,6 +44,7 @@ import org.apache.ofbiz.base.util.UtilMisc;
 import org.apache.ofbiz.base.util.UtilNumber;
 import org.apache.ofbiz.base.util.UtilProperties;
 import org.apache.ofbiz.base.util.UtilValidate;
+import org.apache.ofbiz.base.util.cache.UtilCache;
 import org.apache.ofbiz.entity.Delegator;
 import org.apache.ofbiz.entity.GenericEntityException;
 import org.apache.ofbiz.entity.GenericValue;
@@ -76,6 +82,16 @@ public class CheckOutHelper {
     public static final int scale = UtilNumber.getBigDecimalScale("order.decimals");
     public static final int rounding = UtilNumber.getBigDecimalRoundingMode("order.rounding");
 
+    /** The address fields the tax of a ship group may depend on */
+    private static final String[] taxAddressFields = {"address1", "address2", "city", "postalCode", "postalCodeExt", "countyGeoId",
+            "stateProvinceGeoId", "countryGeoId", "municipalityGeoId"};
+    /** Tax adjustments by fingerprint of the tax inputs, shared by the carts with the same basket to the same destination */
+    private static final UtilCache<String, List<List<? extends Object>>> taxReturnCache = UtilCache.createUtilCache("order.TaxCalculation",
+            (int) UtilProperties.getPropertyAsLong("order", "order.tax.cache.maxSize", 10000), 0,
+            UtilProperties.getPropertyAsLong("order", "order.tax.cache.expireTime", 600000L), false);
+    /** Milliseconds the tax adjustments of a ship group are kept, so the changes of the tax rates are seen by the open carts */
+    private static final long taxMemoExpireTime = UtilProperties.getPropertyAsLong("order", "order.tax.memo.expireTime", 600000L);
+
     protected LocalDispatcher dispatcher = null;
     protected Delegator delegator = null;
     protected ShoppingCart cart = null;
@@ -789,7 +805,7 @@ public class CheckOutHelper {
                 csi.clearAllTaxInfo();
                 continue;
             }
-            List<List<? extends Object>> taxReturn = this.getTaxAdjustments(dispatcher, "calcTax", serviceContext);
+            List<List<? extends Object>> taxReturn = this.getTaxReturn(csi, serviceContext);
 
             if (Debug.verboseOn()) Debug.logVerbose("ReturnList: " + taxReturn, module);
             List<GenericValue> orderAdj = UtilGenerics.checkList(taxReturn.get(0));
@@ -811,6 +827,7 @@ public class CheckOutHelper {
             // need to manually clear the order adjustments
             csi.shipTaxAdj.clear();
             csi.shipTaxAdj.addAll(orderAdj);
+            csi.markChanged();
         }
     }
 
@@ -896,6 +913,166 @@ public class CheckOutHelper {
         return serviceContext;
     }
 
+    /**
+     * Gets the tax adjustments of the ship group: those of its last calculation when its tax inputs did not change
+     * since, else those of the shared cache for the same basket to the same destination when it is enabled, else
+     * those of the calcTax service.
+     */
+    private List<List<? extends Object>> getTaxReturn(ShoppingCart.CartShipInfo csi, Map<String, Object> serviceContext) throws GeneralException {
+        boolean memoEnabled = UtilProperties.propertyValueEqualsIgnoreCase("order", "order.tax.memo.enable", "Y");
+        boolean cacheEnabled = UtilProperties.propertyValueEqualsIgnoreCase("order", "order.tax.cache.enable", "Y");
+        if (!memoEnabled && !cacheEnabled) {
+            return this.getTaxAdjustments(dispatcher, "calcTax", serviceContext);
+        }
+        // the tax exemptions and ids in effect for the customer, an exemption entered at checkout changes the fingerprint
+        String billToPartyId = (String) serviceContext.get("billToPartyId");
+        String partyTaxInfo = getPartyTaxInfo(billToPartyId);
+
+        String fingerprint = null;
+        if (memoEnabled) {
+            fingerprint = makeTaxFingerprint(serviceContext, billToPartyId, partyTaxInfo);
+            List<List<? extends Object>> taxReturn = fingerprint != null ? csi.getTaxReturn(fingerprint, taxMemoExpireTime) : null;
+            if (taxReturn != null) {
+                return copyTaxReturn(taxReturn);
+            }
+        }
+
+        List<List<? extends Object>> taxReturn = null;
+        String cacheKey = null;
+        if (cacheEnabled) {
+            // the customer is only part of the key when it or one of its GROUP_ROLLUP parents has tax exemptions or ids
+            String taxFingerprint = makeTaxFingerprint(serviceContext, partyTaxInfo.isEmpty() ? null : billToPartyId, partyTaxInfo);
+            cacheKey = taxFingerprint != null ? delegator.getDelegatorName() + "::" + taxFingerprint : null;
+            List<List<? extends Object>> cachedReturn = cacheKey != null ? taxReturnCache.get(cacheKey) : null;
+            if (cachedReturn != null) {
+                taxReturn = copyTaxReturn(cachedReturn);
+            }
+        }
+        if (taxReturn == null) {
+            taxReturn = this.getTaxAdjustments(dispatcher, "calcTax", serviceContext);
+            if (cacheKey != null) {
+                taxReturnCache.put(cacheKey, copyTaxReturn(taxReturn));
+            }
+        }
+        if (fingerprint != null) {
+            csi.setTaxReturn(fingerprint, copyTaxReturn(taxReturn));
+        }
+        return taxReturn;
+    }
+
+    /**
+     * Makes the fingerprint of the tax inputs of a ship group: a digest of its items with their amounts, prices and
+     * quantities, the shipping and promotion amounts, the store, the parties, the tax infos of the customer and the
+     * fields of the address.
+     * @return the fingerprint or null if it could not be made
+     */
+    private static String makeTaxFingerprint(Map<String, Object> serviceContext, String billToPartyId, String partyTaxInfo) {
+        StringBuilder inputs = new StringBuilder();
+        inputs.append(serviceContext.get("productStoreId")).append('|');
+        inputs.append(serviceContext.get("payToPartyId")).append('|');
+        inputs.append(billToPartyId).append('|');
+        inputs.append(partyTaxInfo).append('|');
+        List<GenericValue> products = UtilGenerics.checkList(serviceContext.get("itemProductList"));
+        List<BigDecimal> amounts = UtilGenerics.checkList(serviceContext.get("itemAmountList"));
+        List<BigDecimal> prices = UtilGenerics.checkList(serviceContext.get("itemPriceList"));
+        List<BigDecimal> quantities = UtilGenerics.checkList(serviceContext.get("itemQuantityList"));
+        List<BigDecimal> shipAmounts = UtilGenerics.checkList(serviceContext.get("itemShippingList"));
+        // in the order of the items, the item adjustments are returned by position
+        for (int i = 0; i < products.size(); i++) {
+            GenericValue product = products.get(i);
+            inputs.append('[').append(product != null ? product.getString("productId") : null);
+            inputs.append(',').append(toFingerprint(amounts.get(i)));
+            inputs.append(',').append(toFingerprint(prices.get(i)));
+            inputs.append(',').append(toFingerprint(quantities.get(i)));
+            inputs.append(',').append(toFingerprint(shipAmounts.get(i))).append(']');
+        }
+        inputs.append('|').append(toFingerprint((BigDecimal) serviceContext.get("orderShippingAmount")));
+        inputs.append('|').append(toFingerprint((BigDecimal) serviceContext.get("orderPromotionsAmount")));
+        GenericValue shippingAddress = (GenericValue) serviceContext.get("shippingAddress");
+        if (shippingAddress != null) {
+            for (String fieldName : taxAddressFields) {
+                inputs.append('|').append(shippingAddress.getModelEntity().isField(fieldName) ? shippingAddress.get(fieldName) : null);
+            }
+        }
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return StringUtil.toHexString(digest.digest(inputs.toString().getBytes("UTF-8")));
+        } catch (GeneralSecurityException e) {
+            Debug.logWarning(e, module);
+        } catch (UnsupportedEncodingException e) {
+            Debug.logWarning(e, module);
+        }
+        return null;
+    }
+
+    /**
+     * Gets the PartyTaxAuthInfo records in effect for the party and its GROUP_ROLLUP parents, which calcTax looks up for
+     * the tax exemptions, as a string of their fields; empty if there are none.
+     */
+    private String getPartyTaxInfo(String partyId) throws GenericEntityException {
+        StringBuilder partyTaxInfo = new StringBuilder();
+        if (partyId == null) {
+            return partyTaxInfo.toString();
+        }
+        Timestamp nowTimestamp = UtilDateTime.nowTimestamp();
+        Set<String> visitedPartyIds = new HashSet<String>();
+        List<String> partyIds = new LinkedList<String>();
+        partyIds.add(partyId);
+        while (!partyIds.isEmpty()) {
+            String checkPartyId = partyIds.remove(0);
+            if (!visitedPartyIds.add(checkPartyId)) {
+                continue;
+            }
+            List<GenericValue> taxAuthInfos = EntityQuery.use(delegator).from("PartyTaxAuthInfo").where("partyId", checkPartyId)
+                    .orderBy("taxAuthGeoId", "taxAuthPartyId", "fromDate").cache(true).filterByDate(nowTimestamp).queryList();
+            for (GenericValue taxAuthInfo : taxAuthInfos) {
+                partyTaxInfo.append('[').append(checkPartyId);
+                partyTaxInfo.append(',').append(taxAuthInfo.getString("taxAuthGeoId"));
+                partyTaxInfo.append(',').append(taxAuthInfo.getString("taxAuthPartyId"));
+                partyTaxInfo.append(',').append(taxAuthInfo.getTimestamp("fromDate"));
+                partyTaxInfo.append(',').append(taxAuthInfo.getTimestamp("thruDate"));
+                partyTaxInfo.append(',').append(taxAuthInfo.getString("partyTaxId"));
+                partyTaxInfo.append(',').append(taxAuthInfo.getString("isExempt")).append(']');
+            }
+            List<GenericValue> partyRelationships = EntityQuery.use(delegator).from("PartyRelationship")
+                    .where("partyIdTo", checkPartyId, "partyRelationshipTypeId", "GROUP_ROLLUP").cache(true).filterByDate(nowTimestamp).queryList();
+            for (GenericValue partyRelationship : partyRelationships) {
+                partyIds.add(partyRelationship.getString("partyIdFrom"));
+            }
+        }
+        return partyTaxInfo.toString();
+    }
+
+    private static String toFingerprint(BigDecimal value) {
+        return value != null ? value.stripTrailingZeros().toPlainString() : null;
+    }
+
+    /** Copies the adjustments, the kept ones are never handed out as the cart keeps and changes them */
+    private static List<List<? extends Object>> copyTaxReturn(List<List<? extends Object>> taxReturn) {
+        List<GenericValue> orderAdj = UtilGenerics.checkList(taxReturn.get(0));
+        List<List<GenericValue>> itemAdj = UtilGenerics.checkList(taxReturn.get(1));
+        List<GenericValue> orderAdjCopy = copyAdjustments(orderAdj);
+        List<List<GenericValue>> itemAdjCopy = null;
+        if (itemAdj != null) {
+            itemAdjCopy = new ArrayList<List<GenericValue>>(itemAdj.size());
+            for (List<GenericValue> adjs : itemAdj) {
+                itemAdjCopy.add(copyAdjustments(adjs));
+            }
+        }
+        return UtilMisc.<List<? extends Object>>toList(orderAdjCopy, itemAdjCopy);
+    }
+
+    private static List<GenericValue> copyAdjustments(List<GenericValue> adjustments) {
+        if (adjustments == null) {
+            return null;
+        }
+        List<GenericValue> copies = new ArrayList<GenericValue>(adjustments.size());
+        for (GenericValue adjustment : adjustments) {
+            copies.add((GenericValue) adjustment.clone());
+        }
+        return copies;
+    }
+
     // Calc the tax adjustments.
     private List<List<? extends Object>> getTaxAdjustments(LocalDispatcher dispatcher, String taxService, Map<String, Object> serviceContext) throws GeneralException {
         Map<String, Object> serviceResult = null;
@@ -22,12 +22,14 @@ import java.io.Serializable;
 import java.math.BigDecimal;
 import java.math.MathContext;
 import java.sql.Timestamp;
+import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.LinkedList;
@@ -61,6 +63,7 @@ import org.apache.ofbiz.order.finaccount.FinAccountHelper;
 import org.apache.ofbiz.order.order.OrderReadHelper;
 import org.apache.ofbiz.order.shoppingcart.product.ProductPromoWorker;
 import org.apache.ofbiz.order.shoppingcart.shipping.ShippingEstimateWrapper;
+import org.apache.ofbiz.order.shoppinglist.AutoSaveListWriter;
 import org.apache.ofbiz.order.shoppinglist.ShoppingListEvents;
 import org.apache.ofbiz.party.contact.ContactHelper;
 import org.apache.ofbiz.party.contact.ContactMechWorker;
@@ -94,6 +97,7 @@ public class ShoppingCart implements Iterable<ShoppingCartItem>, Serializable {
     public static final int taxRounding = UtilNumber.getBigDecimalRoundingMode("salestax.rounding");
     public static final BigDecimal ZERO = BigDecimal.ZERO;
     public static final MathContext generalRounding = new MathContext(10);
+    private static final boolean cacheTotals = !"N".equalsIgnoreCase(UtilProperties.getPropertyValue("order", "order.cart.totals.cache.enable", "Y"));
 
 
     private String orderType = "SALES_ORDER"; // default orderType
@@ -125,7 +129,7 @@ public class ShoppingCart implements Iterable<ShoppingCartItem>, Serializable {
     private String autoSaveListId = null;
 
     /** Holds value of order adjustments. */
-    private List<GenericValue> adjustments = new LinkedList<GenericValue>();
+    private List<GenericValue> adjustments = new ArrayList<GenericValue>();
     // OrderTerms
     private boolean orderTermSet = false;
     private List<GenericValue> orderTerms = new LinkedList<GenericValue>();
@@ -156,7 +160,14 @@ public class ShoppingCart implements Iterable<ShoppingCartItem>, Serializable {
     private List<GenericValue> freeShippingProductPromoActions = new ArrayList<GenericValue>();
     /** Note that even though this is promotion info, it should NOT be cleared when the promos are cleared, it is a preference that will be used in the next promo calculation */
     private Map<GenericPK, String> desiredAlternateGiftByAction = new HashMap<GenericPK, String>();
+    /** Product IDs of the cart lines changed since the store promotions were last evaluated; null if the next evaluation has to be a full one */
+    private Set<String> promoChangedProductIds = null;
     private Timestamp cartCreatedTs = UtilDateTime.nowTimestamp();
+    /** Incremented on every change of the lines, adjustments or ship groups; the lines and ship groups of the cart report their own changes */
+    private long version = 0;
+    /** Totals computed for the version in cachedTotalsVersion */
+    private transient Map<String, BigDecimal> cachedTotals = null;
+    private transient long cachedTotalsVersion = -1;
 
     private transient Delegator delegator = null;
     private String delegatorName = null;
@@ -246,7 +257,9 @@ public class ShoppingCart implements Iterable<ShoppingCartItem>, Serializable {
 
         // clone the items
         for (ShoppingCartItem item : cart.items()) {
-            cartLines.add(new ShoppingCartItem(item));
+            ShoppingCartItem newItem = new ShoppingCartItem(item);
+            newItem.setOwnerCart(this);
+            cartLines.add(newItem);
         }
 
         this.facilityId = cart.facilityId;
@@ -628,7 +641,9 @@ public class ShoppingCart implements Iterable<ShoppingCartItem>, Serializable {
                     }
                 }
             }
+            item.setOwnerCart(this);
             cartLines.add(index, item);
+            this.version++;
             return index;
         } else {
             return this.getItemIndex(item);
@@ -752,6 +767,7 @@ public class ShoppingCart implements Iterable<ShoppingCartItem>, Serializable {
             if (cartItem.getQuantity().compareTo(BigDecimal.ZERO) == 0) {
                 this.clearItemShipInfo(cartItem);
                 cartLines.remove(i);
+                this.version++;
             } else {
                 i++;
             }
@@ -929,6 +945,7 @@ public class ShoppingCart implements Iterable<ShoppingCartItem>, Serializable {
         if (index < 0) return;
         if (cartLines.size() <= index) return;
         ShoppingCartItem item = cartLines.remove(index);
+        this.version++;
 
         // set quantity to 0 to trigger necessary events, but skip price calc and inventory checks
         item.setQuantity(BigDecimal.ZERO, dispatcher, this, true, true, false, true);
@@ -958,7 +975,22 @@ public class ShoppingCart implements Iterable<ShoppingCartItem>, Serializable {
     /** Returns an iterator of cart items. */
     @Override
     public Iterator<ShoppingCartItem> iterator() {
-        return cartLines.iterator();
+        final Iterator<ShoppingCartItem> cartLineIter = cartLines.iterator();
+        // removing a line through the iterator has to invalidate the totals too
+        return new Iterator<ShoppingCartItem>() {
+            private ShoppingCartItem lastItem = null;
+            public boolean hasNext() {
+                return cartLineIter.hasNext();
+            }
+            public ShoppingCartItem next() {
+                lastItem = cartLineIter.next();
+                return lastItem;
+            }
+            public void remove() {
+                cartLineIter.remove();
+                version++;
+            }
+        };
     }
 
     public ShoppingCart.ShoppingCartItemGroup getItemGroupByNumber(String groupNumber) {
@@ -1379,6 +1411,7 @@ public class ShoppingCart implements Iterable<ShoppingCartItem>, Serializable {
         this.adjustments.clear();
 
         this.expireSingleUsePayments();
+        this.version++;
         this.cartLines.clear();
         this.itemGroupByNumberMap.clear();
         this.clearPayments();
@@ -1419,6 +1452,9 @@ public class ShoppingCart implements Iterable<ShoppingCartItem>, Serializable {
                 }
             }
 
+            // drop the pending write of the lines, the list is cleared
+            AutoSaveListWriter.discard(this);
+
             // clear the list
             if (autoSaveListId != null) {
                 try {
@@ -1976,7 +2012,7 @@ public class ShoppingCart implements Iterable<ShoppingCartItem>, Serializable {
 
     /** Returns the order level shipping amount */
     public BigDecimal getOrderShipping() {
-        return OrderReadHelper.calcOrderAdjustments(this.getAdjustments(), this.getSubTotal(), false, false, true);
+        return OrderReadHelper.calcOrderAdjustments(this.adjustments, this.getSubTotal(), false, false, true);
     }
 
     // ----------------------------------------
@@ -1986,7 +2022,9 @@ public class ShoppingCart implements Iterable<ShoppingCartItem>, Serializable {
     public int addShipInfo() {
         CartShipInfo csi = new CartShipInfo();
         csi.orderTypeId = getOrderType();
+        csi.setCart(this);
         shipInfo.add(csi);
+        this.version++;
         return (shipInfo.size() - 1);
     }
 
@@ -2022,7 +2060,9 @@ public class ShoppingCart implements Iterable<ShoppingCartItem>, Serializable {
         if (shipInfo.size() == idx) {
             CartShipInfo csi = new CartShipInfo();
             csi.orderTypeId = getOrderType();
+            csi.setCart(this);
             shipInfo.add(csi);
+            this.version++;
         }
 
         return shipInfo.get(idx);
@@ -2048,6 +2088,7 @@ public class ShoppingCart implements Iterable<ShoppingCartItem>, Serializable {
             CartShipInfo csi = this.getShipInfo(i);
             csi.shipItemInfo.remove(item);
         }
+        this.version++;
 
         // DEJ20100107: commenting this out because we do NOT want to clear out ship group info since there is information there that will be lost; good enough to clear the item/group association which can be restored later (though questionable, the whole processes using this should be rewritten to not destroy information!
         // this.cleanUpShipGroups();
@@ -2056,6 +2097,7 @@ public class ShoppingCart implements Iterable<ShoppingCartItem>, Serializable {
     public void setItemShipGroupEstimate(BigDecimal amount, int idx) {
         CartShipInfo csi = this.getShipInfo(idx);
         csi.shipEstimate = amount;
+        this.version++;
     }
 
     /**
@@ -2150,7 +2192,9 @@ public class ShoppingCart implements Iterable<ShoppingCartItem>, Serializable {
         if (toIndex == -1) {
             toGroup = new CartShipInfo();
             toGroup.orderTypeId = getOrderType();
+            toGroup.setCart(this);
             this.shipInfo.add(toGroup);
+            this.version++;
             toIndex = this.shipInfo.size() - 1;
         } else {
             toGroup = this.getShipInfo(toIndex);
@@ -2181,6 +2225,7 @@ public class ShoppingCart implements Iterable<ShoppingCartItem>, Serializable {
     protected boolean checkShipItemInfo(CartShipInfo csi, CartShipInfo.CartShipItemInfo csii) {
         if (csii.quantity.compareTo(BigDecimal.ZERO) == 0 || csii.item.getQuantity().compareTo(BigDecimal.ZERO) == 0) {
             csi.shipItemInfo.remove(csii.item);
+            this.version++;
             return false;
         }
         return true;
@@ -2193,10 +2238,12 @@ public class ShoppingCart implements Iterable<ShoppingCartItem>, Serializable {
                 ShoppingCartItem item = si.next();
                 if (item.getQuantity().compareTo(BigDecimal.ZERO) == 0) {
                     si.remove();
+                    this.version++;
                 }
             }
             if (csi.shipItemInfo.size() == 0) {
                 this.shipInfo.remove(csi);
+                this.version++;
             }
         }
     }
@@ -2648,23 +2695,31 @@ public class ShoppingCart implements Iterable<ShoppingCartItem>, Serializable {
 
     /** Returns the tax amount from the cart object. */
     public BigDecimal getTotalSalesTax() {
-        BigDecimal totalTax = ZERO;
+        BigDecimal totalTax = this.getCachedTotal("totalSalesTax");
+        if (totalTax != null) {
+            return totalTax;
+        }
+        totalTax = ZERO;
         for (int i = 0; i < shipInfo.size(); i++) {
             CartShipInfo csi = this.getShipInfo(i);
             totalTax = totalTax.add(csi.getTotalTax(this)).setScale(taxCalcScale, taxRounding);
         }
-        return totalTax.setScale(taxFinalScale, taxRounding);
+        return this.cacheTotal("totalSalesTax", totalTax.setScale(taxFinalScale, taxRounding));
     }
 
     /** Returns the shipping amount from the cart object. */
     public BigDecimal getTotalShipping() {
-        BigDecimal tempShipping = BigDecimal.ZERO;
+        BigDecimal tempShipping = this.getCachedTotal("totalShipping");
+        if (tempShipping != null) {
+            return tempShipping;
+        }
+        tempShipping = BigDecimal.ZERO;
 
         for (CartShipInfo csi : this.shipInfo) {
             tempShipping = tempShipping.add(csi.shipEstimate);
         }
 
-        return tempShipping;
+        return this.cacheTotal("totalShipping", tempShipping);
     }
 
     /** Returns the item-total in the cart (not including discount/tax/shipping). */
@@ -2678,28 +2733,45 @@ public class ShoppingCart implements Iterable<ShoppingCartItem>, Serializable {
 
     /** Returns the sub-total in the cart (item-total - discount). */
     public BigDecimal getSubTotal() {
-        BigDecimal itemsTotal = BigDecimal.ZERO;
+        BigDecimal itemsTotal = this.getCachedTotal("subTotal");
+        if (itemsTotal != null) {
+            return itemsTotal;
+        }
+        itemsTotal = BigDecimal.ZERO;
         for (ShoppingCartItem cartItem : this.cartLines) {
             itemsTotal = itemsTotal.add(cartItem.getItemSubTotal());
         }
-        return itemsTotal;
+        return this.cacheTotal("subTotal", itemsTotal);
     }
 
     /** Returns the total from the cart, including tax/shipping. */
     public BigDecimal getGrandTotal() {
+        BigDecimal grandTotal = this.getCachedTotal("grandTotal");
+        if (grandTotal != null) {
+            return grandTotal;
+        }
         // sales tax and shipping are not stored as adjustments but rather as part of the ship group
-        return this.getSubTotal().add(this.getTotalShipping()).add(this.getTotalSalesTax()).add(this.getOrderOtherAdjustmentTotal()).add(this.getOrderGlobalAdjustments());
+        grandTotal = this.getSubTotal().add(this.getTotalShipping()).add(this.getTotalSalesTax()).add(this.getOrderOtherAdjustmentTotal()).add(this.getOrderGlobalAdjustments());
+        return this.cacheTotal("grandTotal", grandTotal);
     }
 
     public BigDecimal getDisplaySubTotal() {
-        BigDecimal itemsTotal = BigDecimal.ZERO;
+        BigDecimal itemsTotal = this.getCachedTotal("displaySubTotal");
+        if (itemsTotal != null) {
+            return itemsTotal;
+        }
+        itemsTotal = BigDecimal.ZERO;
         for (ShoppingCartItem cartItem : this.cartLines) {
             itemsTotal = itemsTotal.add(cartItem.getDisplayItemSubTotal());
         }
-        return itemsTotal;
+        return this.cacheTotal("displaySubTotal", itemsTotal);
     }
     public BigDecimal getOrderGlobalAdjustments() {
-        List<GenericValue> cartAdjustments = this.getAdjustments();
+        BigDecimal cachedTotal = this.getCachedTotal("orderGlobalAdjustments");
+        if (cachedTotal != null) {
+            return cachedTotal;
+        }
+        List<GenericValue> cartAdjustments = this.adjustments;
         List<GenericValue> tempAdjustmentsList = new LinkedList<GenericValue>();
         if (cartAdjustments != null) {
             Iterator<GenericValue> cartAdjustmentIter = cartAdjustments.iterator();
@@ -2710,7 +2782,7 @@ public class ShoppingCart implements Iterable<ShoppingCartItem>, Serializable {
                 }
             }
         }
-        return OrderReadHelper.calcOrderAdjustments(tempAdjustmentsList, this.getSubTotal(), false, true, true);
+        return this.cacheTotal("orderGlobalAdjustments", OrderReadHelper.calcOrderAdjustments(tempAdjustmentsList, this.getSubTotal(), false, true, true));
     }
     public BigDecimal getDisplayTaxIncluded() {
         BigDecimal taxIncluded  = getDisplaySubTotal().subtract(getSubTotal());
@@ -2727,11 +2799,54 @@ public class ShoppingCart implements Iterable<ShoppingCartItem>, Serializable {
 
     /** Returns the total from the cart, including tax/shipping. */
     public BigDecimal getDisplayGrandTotal() {
-        return this.getDisplaySubTotal().add(this.getTotalShipping()).add(this.getTotalSalesTax()).add(this.getOrderOtherAdjustmentTotal()).add(this.getOrderGlobalAdjustments());
+        BigDecimal grandTotal = this.getCachedTotal("displayGrandTotal");
+        if (grandTotal != null) {
+            return grandTotal;
+        }
+        grandTotal = this.getDisplaySubTotal().add(this.getTotalShipping()).add(this.getTotalSalesTax()).add(this.getOrderOtherAdjustmentTotal()).add(this.getOrderGlobalAdjustments());
+        return this.cacheTotal("displayGrandTotal", grandTotal);
     }
 
     public BigDecimal getOrderOtherAdjustmentTotal() {
-        return OrderReadHelper.calcOrderAdjustments(this.getAdjustments(), this.getSubTotal(), true, false, false);
+        BigDecimal cachedTotal = this.getCachedTotal("orderOtherAdjustmentTotal");
+        if (cachedTotal != null) {
+            return cachedTotal;
+        }
+        return this.cacheTotal("orderOtherAdjustmentTotal", OrderReadHelper.calcOrderAdjustments(this.adjustments, this.getSubTotal(), true, false, false));
+    }
+
+    /**
+     * Returns the number of changes made to the lines, adjustments and ship groups of this cart; the totals are
+     * cached until this changes. Code changing the public fields of a CartShipInfo or an adjustment directly has to
+     * call CartShipInfo.markChanged() or ShoppingCartItem.markChanged().
+     */
+    public long getVersion() {
+        return this.version;
+    }
+
+    /** Called by the lines and ship groups of this cart when they change */
+    void lineChanged() {
+        this.version++;
+    }
+
+    /** Returns the named total if it was computed for the current version of the cart, otherwise null */
+    private BigDecimal getCachedTotal(String totalName) {
+        if (!cacheTotals || this.cachedTotals == null || this.cachedTotalsVersion != this.getVersion()) {
+            return null;
+        }
+        return this.cachedTotals.get(totalName);
+    }
+
+    private BigDecimal cacheTotal(String totalName, BigDecimal total) {
+        if (cacheTotals) {
+            long currentVersion = this.getVersion();
+            if (this.cachedTotals == null || this.cachedTotalsVersion != currentVersion) {
+                this.cachedTotals = new HashMap<String, BigDecimal>();
+                this.cachedTotalsVersion = currentVersion;
+            }
+            this.cachedTotals.put(totalName, total);
+        }
+        return total;
     }
 
     /** Returns the sub-total in the cart (item-total - discount). */
@@ -2823,9 +2938,33 @@ public class ShoppingCart implements Iterable<ShoppingCartItem>, Serializable {
         return this.contactMechIdsMap;
     }
 
-    /** Get a List of adjustments on the order (ie cart) */
+    /** Get a List of adjustments on the order (ie cart); the changes made through the list count as changes of the cart */
     public List<GenericValue> getAdjustments() {
-        return adjustments;
+        return new AbstractList<GenericValue>() {
+            @Override
+            public GenericValue get(int index) {
+                return adjustments.get(index);
+            }
+            @Override
+            public int size() {
+                return adjustments.size();
+            }
+            @Override
+            public GenericValue set(int index, GenericValue adjustment) {
+                version++;
+                return adjustments.set(index, adjustment);
+            }
+            @Override
+            public void add(int index, GenericValue adjustment) {
+                version++;
+                adjustments.add(index, adjustment);
+            }
+            @Override
+            public GenericValue remove(int index) {
+                version++;
+                return adjustments.remove(index);
+            }
+        };
     }
 
     public int getAdjustmentPromoIndex(String productPromoId) {
@@ -2842,11 +2981,13 @@ public class ShoppingCart implements Iterable<ShoppingCartItem>, Serializable {
     /** Add an adjustment to the order; don't worry about setting the orderId, orderItemSeqId or orderAdjustmentId; they will be set when the order is created */
     public int addAdjustment(GenericValue adjustment) {
         adjustments.add(adjustment);
+        this.version++;
         return adjustments.indexOf(adjustment);
     }
 
     public void removeAdjustment(int index) {
         adjustments.remove(index);
+        this.version++;
     }
 
     public GenericValue getAdjustment(int index) {
@@ -3301,6 +3442,174 @@ public class ShoppingCart implements Iterable<ShoppingCartItem>, Serializable {
         this.clearCartItemUseInPromoInfo();
     }
 
+    /**
+     * Makes a copy of this cart that a promotion can be run against without changing this cart, for example on
+     * another thread. The lines, item groups, adjustments, promotion state, parties and ship groups are copied; the
+     * tax adjustments of the ship groups are shared as promotions do not change them.
+     */
+    public ShoppingCart makePromoSnapshot() {
+        ShoppingCart snapshot = new ShoppingCart(this);
+        snapshot.orderType = this.orderType;
+        snapshot.channel = this.channel;
+        snapshot.nextItemSeq = this.nextItemSeq;
+        snapshot.nextGroupNumber = this.nextGroupNumber;
+        snapshot.orderPartyId = this.orderPartyId;
+        snapshot.placingCustomerPartyId = this.placingCustomerPartyId;
+        snapshot.billToCustomerPartyId = this.billToCustomerPartyId;
+        snapshot.shipToCustomerPartyId = this.shipToCustomerPartyId;
+        snapshot.endUserCustomerPartyId = this.endUserCustomerPartyId;
+        snapshot.billFromVendorPartyId = this.billFromVendorPartyId;
+        snapshot.shipFromVendorPartyId = this.shipFromVendorPartyId;
+        snapshot.supplierAgentPartyId = this.supplierAgentPartyId;
+        snapshot.userLogin = this.userLogin;
+        snapshot.autoUserLogin = this.autoUserLogin;
+        snapshot.orderDate = this.orderDate;
+
+        // the promotions change adjustments in place, give the copy its own
+        for (int i = 0; i < snapshot.adjustments.size(); i++) {
+            snapshot.adjustments.set(i, (GenericValue) snapshot.adjustments.get(i).clone());
+        }
+        for (ShoppingCartItem snapshotLine : snapshot.cartLines) {
+            List<GenericValue> lineAdjustments = snapshotLine.getAdjustments();
+            for (int i = 0; i < lineAdjustments.size(); i++) {
+                lineAdjustments.set(i, (GenericValue) lineAdjustments.get(i).clone());
+            }
+            // the copied lines still point at the item groups of this cart
+            if (snapshotLine.getItemGroup() != null) {
+                snapshotLine.setItemGroup(snapshot.getItemGroupByNumber(snapshotLine.getItemGroup().getGroupNumber()));
+            }
+        }
+
+        // the copied lines are in the same order, point the copied ship groups at them
+        Map<ShoppingCartItem, ShoppingCartItem> copiedLines = new IdentityHashMap<ShoppingCartItem, ShoppingCartItem>();
+        for (int i = 0; i < this.cartLines.size(); i++) {
+            copiedLines.put(this.cartLines.get(i), snapshot.cartLines.get(i));
+        }
+        for (CartShipInfo csi : this.shipInfo) {
+            CartShipInfo newCsi = new CartShipInfo();
+            newCsi.shipTaxAdj.addAll(csi.shipTaxAdj);
+            newCsi.orderTypeId = csi.orderTypeId;
+            newCsi.internalContactMechId = csi.internalContactMechId;
+            newCsi.telecomContactMechId = csi.telecomContactMechId;
+            newCsi.shipmentMethodTypeId = csi.shipmentMethodTypeId;
+            newCsi.supplierPartyId = csi.supplierPartyId;
+            newCsi.carrierRoleTypeId = csi.carrierRoleTypeId;
+            newCsi.carrierPartyId = csi.carrierPartyId;
+            newCsi.facilityId = csi.facilityId;
+            newCsi.giftMessage = csi.giftMessage;
+            newCsi.shippingInstructions = csi.shippingInstructions;
+            newCsi.maySplit = csi.maySplit;
+            newCsi.isGift = csi.isGift;
+            newCsi.shipEstimate = csi.shipEstimate;
+            newCsi.shipBeforeDate = csi.shipBeforeDate;
+            newCsi.shipAfterDate = csi.shipAfterDate;
+            newCsi.shipGroupSeqId = csi.shipGroupSeqId;
+            newCsi.associatedShipGroupSeqId = csi.associatedShipGroupSeqId;
+            newCsi.vendorPartyId = csi.vendorPartyId;
+            newCsi.productStoreShipMethId = csi.productStoreShipMethId;
+            newCsi.attributes.putAll(csi.attributes);
+            for (CartShipInfo.CartShipItemInfo csii : csi.shipItemInfo.values()) {
+                CartShipInfo.CartShipItemInfo newCsii = new CartShipInfo.CartShipItemInfo();
+                newCsii.item = copiedLines.get(csii.item);
+                newCsii.quantity = csii.quantity;
+                newCsii.itemTaxAdj.addAll(csii.itemTaxAdj);
+                if (newCsii.item != null) {
+                    newCsi.shipItemInfo.put(newCsii.item, newCsii);
+                }
+            }
+            newCsi.setCart(snapshot);
+            snapshot.shipInfo.add(newCsi);
+        }
+        return snapshot;
+    }
+
+    /** Clears the adjustments, GWP lines, free shipping actions, uses and cart item use info of the given promotions only */
+    public void clearPromotionInformation(Set<String> productPromoIds) {
+        this.clearPromotionAdjustments(productPromoIds);
+
+        Iterator<GenericValue> fsppas = this.freeShippingProductPromoActions.iterator();
+        while (fsppas.hasNext()) {
+            if (productPromoIds.contains(fsppas.next().getString("productPromoId"))) {
+                fsppas.remove();
+            }
+        }
+
+        Iterator<ProductPromoUseInfo> promoUseIter = this.productPromoUseInfoList.iterator();
+        while (promoUseIter.hasNext()) {
+            if (productPromoIds.contains(promoUseIter.next().getProductPromoId())) {
+                promoUseIter.remove();
+            }
+        }
+        this.clearCartItemUseInPromoInfo(productPromoIds);
+    }
+
+    public void clearCartItemUseInPromoInfo(Set<String> productPromoIds) {
+        for (ShoppingCartItem cartLine : this) {
+            cartLine.clearPromoRuleUseInfo(productPromoIds);
+        }
+    }
+
+    public void clearPromotionAdjustments(Set<String> productPromoIds) {
+        // remove cart adjustments from the given promotions
+        this.version++;
+        Iterator<GenericValue> cartAdjustmentIter = this.adjustments.iterator();
+        while (cartAdjustmentIter.hasNext()) {
+            GenericValue checkOrderAdjustment = cartAdjustmentIter.next();
+            if (productPromoIds.contains(checkOrderAdjustment.getString("productPromoId")) &&
+                    UtilValidate.isNotEmpty(checkOrderAdjustment.getString("productPromoRuleId")) &&
+                    UtilValidate.isNotEmpty(checkOrderAdjustment.getString("productPromoActionSeqId"))) {
+                cartAdjustmentIter.remove();
+            }
+        }
+
+        // remove GWP cart lines and cart line adjustments from the given promotions
+        Iterator<ShoppingCartItem> cartItemIter = this.iterator();
+        while (cartItemIter.hasNext()) {
+            ShoppingCartItem checkItem = cartItemIter.next();
+            boolean isPromoItemToRemove = false;
+            Iterator<GenericValue> checkOrderAdjustments = UtilMisc.toIterator(checkItem.getAdjustments());
+            while (checkOrderAdjustments != null && checkOrderAdjustments.hasNext()) {
+                GenericValue checkOrderAdjustment = checkOrderAdjustments.next();
+                if (productPromoIds.contains(checkOrderAdjustment.getString("productPromoId")) &&
+                        UtilValidate.isNotEmpty(checkOrderAdjustment.getString("productPromoRuleId")) &&
+                        UtilValidate.isNotEmpty(checkOrderAdjustment.getString("productPromoActionSeqId"))) {
+                    if (checkItem.getIsPromo()) {
+                        isPromoItemToRemove = true;
+                        break;
+                    }
+                    checkOrderAdjustments.remove();
+                }
+            }
+            if (isPromoItemToRemove) {
+                this.clearItemShipInfo(checkItem);
+                cartItemIter.remove();
+            }
+        }
+    }
+
+    /** Records a change to a cart line so the next incremental promotion evaluation re-runs the promotions using its product */
+    public void addPromoChangedItem(ShoppingCartItem cartItem) {
+        if (this.promoChangedProductIds == null || cartItem == null) {
+            return;
+        }
+        if (cartItem.getProductId() != null) {
+            this.promoChangedProductIds.add(cartItem.getProductId());
+        }
+        if (cartItem.getParentProductId() != null) {
+            this.promoChangedProductIds.add(cartItem.getParentProductId());
+        }
+    }
+
+    /** Returns the product IDs of the lines changed since the last evaluation of the store promotions, or null if that is unknown */
+    public Set<String> getPromoChangedProductIds() {
+        return this.promoChangedProductIds;
+    }
+
+    /** Pass an empty Set after a full evaluation of the store promotions to start tracking changes, or null to force the next evaluation to be a full one */
+    public void setPromoChangedProductIds(Set<String> promoChangedProductIds) {
+        this.promoChangedProductIds = promoChangedProductIds;
+    }
+
     public void clearAllPromotionAdjustments() {
         // remove cart adjustments from promo actions
         List<GenericValue> cartAdjustments = this.getAdjustments();
@@ -3343,6 +3652,7 @@ public class ShoppingCart implements Iterable<ShoppingCartItem>, Serializable {
         clearAllPromotionInformation();
         // remove all cart adjustments
         this.adjustments.clear();
+        this.version++;
         // remove all cart item adjustments
         for (ShoppingCartItem checkItem : this) {
             checkItem.getAdjustments().clear();
@@ -4457,6 +4767,30 @@ public class ShoppingCart implements Iterable<ShoppingCartItem>, Serializable {
         public String vendorPartyId = null;
         public String productStoreShipMethId = null;
         public Map<String, Object> attributes = new HashMap<String, Object>();
+        private long version = 0;
+        /** The cart holding this ship group, told about every change of the group */
+        private ShoppingCart cart = null;
+        /** Fingerprint of the tax inputs of the last tax calculation, see CheckOutHelper.calcAndAddTax */
+        private transient String taxFingerprint = null;
+        private transient List<List<? extends Object>> taxReturn = null;
+        private transient long taxReturnTime = 0;
+
+        /** Returns the number of changes made to the items, estimate and tax adjustments of this ship group */
+        public long getVersion() { return version; }
+
+        /** Marks the ship group as changed, to be called after changing its public fields directly */
+        public void markChanged() { this.changed(); }
+
+        private void changed() {
+            this.version++;
+            if (this.cart != null) {
+                this.cart.lineChanged();
+            }
+        }
+
+        void setCart(ShoppingCart cart) {
+            this.cart = cart;
+        }
 
         public void setAttribute(String name, Object value) {
             this.attributes.put(name, value);
@@ -4509,7 +4843,23 @@ public class ShoppingCart implements Iterable<ShoppingCartItem>, Serializable {
             }
         }
 
+        /** Gets the result of the last tax calculation if it was made with the same inputs less than maxAge milliseconds ago, null otherwise */
+        List<List<? extends Object>> getTaxReturn(String fingerprint, long maxAge) {
+            if (!fingerprint.equals(this.taxFingerprint) || System.currentTimeMillis() - this.taxReturnTime >= maxAge) {
+                return null;
+            }
+            return this.taxReturn;
+        }
+
+        /** Keeps the result of the tax calculation made with the inputs of the fingerprint */
+        void setTaxReturn(String fingerprint, List<List<? extends Object>> taxReturn) {
+            this.taxFingerprint = fingerprint;
+            this.taxReturn = taxReturn;
+            this.taxReturnTime = System.currentTimeMillis();
+        }
+
         public void clearAllTaxInfo() {
+            this.changed();
             this.shipTaxAdj.clear();
             for (CartShipItemInfo itemInfo : shipItemInfo.values()) {
                 itemInfo.itemTaxAdj.clear();
@@ -4639,6 +4989,7 @@ public class ShoppingCart implements Iterable<ShoppingCartItem>, Serializable {
             if (quantity.compareTo(BigDecimal.ZERO) >= 0) {
                 itemInfo.quantity = quantity;
             }
+            this.changed();
             if (taxAdj != null) {
                 itemInfo.itemTaxAdj.clear();
                 itemInfo.itemTaxAdj.addAll(taxAdj);
@@ -22,6 +22,7 @@ import java.math.BigDecimal;
 import java.math.MathContext;
 import java.math.RoundingMode;
 import java.sql.Timestamp;
+import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
@@ -55,6 +56,7 @@ import org.apache.ofbiz.entity.util.EntityUtilProperties;
 import org.apache.ofbiz.order.order.OrderReadHelper;
 import org.apache.ofbiz.order.shoppingcart.ShoppingCart.ShoppingCartItemGroup;
 import org.apache.ofbiz.order.shoppingcart.product.ProductPromoWorker;
+import org.apache.ofbiz.order.shoppinglist.AutoSaveListWriter;
 import org.apache.ofbiz.order.shoppinglist.ShoppingListEvents;
 import org.apache.ofbiz.product.catalog.CatalogWorker;
 import org.apache.ofbiz.product.category.CategoryWorker;
@@ -123,6 +125,10 @@ public class ShoppingCartItem implements java.io.Serializable {
     /** flag to know if the price have been modified */
     private boolean isModifiedPrice = false;
     private BigDecimal selectedAmount = BigDecimal.ZERO;
+    /** Incremented on every change that can affect the line totals, see ShoppingCart.getVersion() */
+    private long version = 0;
+    /** The cart holding this line, told about every change of the line */
+    private ShoppingCart ownerCart = null;
     private String requirementId = null;
     private String quoteId = null;
     private String quoteItemSeqId = null;
@@ -143,7 +149,7 @@ public class ShoppingCartItem implements java.io.Serializable {
 
     private Map<String, String> contactMechIdsMap = new HashMap<String, String>();
     private List<GenericValue> orderItemPriceInfos = null;
-    private List<GenericValue> itemAdjustments = new LinkedList<GenericValue>();
+    private List<GenericValue> itemAdjustments = new ArrayList<GenericValue>();
     private boolean isPromo = false;
     private BigDecimal promoQuantityUsed = BigDecimal.ZERO;
     private Map<GenericPK, BigDecimal> quantityUsedPerPromoCandidate = new HashMap<GenericPK, BigDecimal>();
@@ -791,6 +797,7 @@ public class ShoppingCartItem implements java.io.Serializable {
     /** Sets the user selected amount */
     public void setSelectedAmount(BigDecimal selectedAmount) {
         this.selectedAmount = selectedAmount;
+        this.changed();
     }
 
     /** Returns the user selected amount */
@@ -801,11 +808,13 @@ public class ShoppingCartItem implements java.io.Serializable {
     /** Sets the base price for the item; use with caution */
     public void setBasePrice(BigDecimal basePrice) {
         this.basePrice = basePrice;
+        this.changed();
     }
 
     /** Sets the display price for the item; use with caution */
     public void setDisplayPrice(BigDecimal displayPrice) {
         this.displayPrice = displayPrice;
+        this.changed();
     }
 
     /** Sets the base price for the item; use with caution */
@@ -825,10 +834,12 @@ public class ShoppingCartItem implements java.io.Serializable {
     /** Sets the extra % for second person */
     public void setReserv2ndPPPerc(BigDecimal reserv2ndPPPerc) {
         this.reserv2ndPPPerc = reserv2ndPPPerc;
+        this.changed();
     }
     /** Sets the extra % for third and following person */
     public void setReservNthPPPerc(BigDecimal reservNthPPPerc) {
         this.reservNthPPPerc = reservNthPPPerc;
+        this.changed();
     }
     /** Sets the reservation start date */
     public void setReservStart(Timestamp reservStart)    {
@@ -837,10 +848,12 @@ public class ShoppingCartItem implements java.io.Serializable {
     /** Sets the reservation length */
     public void setReservLength(BigDecimal reservLength)    {
         this.reservLength = reservLength;
+        this.changed();
     }
     /** Sets number of persons using the reservation */
     public void setReservPersons(BigDecimal reservPersons)    {
         this.reservPersons = reservPersons;
+        this.changed();
     }
     /** Sets accommodationId using the reservation */
     public void setAccommodationId(String accommodationMapId,String accommodationSpotId)    {
@@ -1021,23 +1034,30 @@ public class ShoppingCartItem implements java.io.Serializable {
 
         // set quantity before promos so order total, etc will be updated
         this.quantity = quantity;
+        this.changed();
 
         if (updateProductPrice) {
             this.updatePrice(dispatcher, cart);
         }
 
-        // apply/unapply promotions
+        // apply/unapply promotions, only re-running the ones that use this line when incremental evaluation is enabled
+        cart.addPromoChangedItem(this);
         if (triggerExternalOps) {
-            ProductPromoWorker.doPromotions(cart, dispatcher);
+            ProductPromoWorker.doPromotionsForChangedLines(cart, dispatcher);
         }
 
         if (!"PURCHASE_ORDER".equals(cart.getOrderType())) {
             // store the auto-save cart
             if (triggerExternalOps && ProductStoreWorker.autoSaveCart(delegator, productStoreId)) {
-                try {
-                    ShoppingListEvents.fillAutoSaveList(cart, dispatcher);
-                } catch (GeneralException e) {
-                    Debug.logWarning(e, UtilProperties.getMessage(resource_error,"OrderUnableToStoreAutoSaveCart", locale));
+                if (AutoSaveListWriter.isEnabled()) {
+                    // written in the background, once the changes of the request are done
+                    AutoSaveListWriter.markDirty(cart, dispatcher);
+                } else {
+                    try {
+                        ShoppingListEvents.fillAutoSaveList(cart, dispatcher);
+                    } catch (GeneralException e) {
+                        Debug.logWarning(e, UtilProperties.getMessage(resource_error,"OrderUnableToStoreAutoSaveCart", locale));
+                    }
                 }
             }
         }
@@ -1396,6 +1416,31 @@ public class ShoppingCartItem implements java.io.Serializable {
         this.promoQuantityUsed = this.getIsPromo() ? this.quantity : BigDecimal.ZERO;
     }
 
+    /** Clears the promo use info of the given promotions only, giving the quantity they used back to the other promotions */
+    public synchronized void clearPromoRuleUseInfo(Set<String> productPromoIds) {
+        this.promoQuantityUsed = this.promoQuantityUsed.subtract(removePromoRuleUse(this.quantityUsedPerPromoActual, productPromoIds));
+        this.promoQuantityUsed = this.promoQuantityUsed.subtract(removePromoRuleUse(this.quantityUsedPerPromoCandidate, productPromoIds));
+        removePromoRuleUse(this.quantityUsedPerPromoFailed, productPromoIds);
+        if (this.getIsPromo()) {
+            this.promoQuantityUsed = this.quantity;
+        }
+    }
+
+    private static BigDecimal removePromoRuleUse(Map<GenericPK, BigDecimal> quantityUsedPerPromo, Set<String> productPromoIds) {
+        BigDecimal quantityRemoved = BigDecimal.ZERO;
+        Iterator<Map.Entry<GenericPK, BigDecimal>> entryIter = quantityUsedPerPromo.entrySet().iterator();
+        while (entryIter.hasNext()) {
+            Map.Entry<GenericPK, BigDecimal> entry = entryIter.next();
+            if (productPromoIds.contains(entry.getKey().getString("productPromoId"))) {
+                if (entry.getValue() != null) {
+                    quantityRemoved = quantityRemoved.add(entry.getValue());
+                }
+                entryIter.remove();
+            }
+        }
+        return quantityRemoved;
+    }
+
     /** Sets the item comment. */
     public void setItemComment(String itemComment) {
         this.setAttribute("itemComment", itemComment);
@@ -1472,6 +1517,7 @@ public class ShoppingCartItem implements java.io.Serializable {
     /** Sets the item type. */
     public void setItemType(String itemType) {
         this.itemType = itemType;
+        this.changed();
     }
 
     /** Returns the item type. */
@@ -1974,12 +2020,12 @@ public class ShoppingCartItem implements java.io.Serializable {
 
     /** Returns the "other" adjustments. */
     public BigDecimal getOtherAdjustments() {
-        return OrderReadHelper.calcItemAdjustments(quantity, getBasePrice(), this.getAdjustments(), true, false, false, false, false);
+        return OrderReadHelper.calcItemAdjustments(quantity, getBasePrice(), this.itemAdjustments, true, false, false, false, false);
     }
 
     /** Returns the "other" adjustments. */
     public BigDecimal getOtherAdjustmentsRecurring() {
-        return OrderReadHelper.calcItemAdjustmentsRecurringBd(quantity, getRecurringBasePrice() == null ? BigDecimal.ZERO : getRecurringBasePrice(), this.getAdjustments(), true, false, false, false, false);
+        return OrderReadHelper.calcItemAdjustmentsRecurringBd(quantity, getRecurringBasePrice() == null ? BigDecimal.ZERO : getRecurringBasePrice(), this.itemAdjustments, true, false, false, false, false);
     }
 
     /** calculates for a reservation the percentage/100 extra for more than 1 person. */
@@ -2194,19 +2240,68 @@ public class ShoppingCartItem implements java.io.Serializable {
     /** Add an adjustment to the order item; don't worry about setting the orderId, orderItemSeqId or orderAdjustmentId; they will be set when the order is created */
     public int addAdjustment(GenericValue adjustment) {
         itemAdjustments.add(adjustment);
+        this.changed();
         return itemAdjustments.indexOf(adjustment);
     }
 
     public void removeAdjustment(GenericValue adjustment) {
         itemAdjustments.remove(adjustment);
+        this.changed();
     }
 
     public void removeAdjustment(int index) {
         itemAdjustments.remove(index);
+        this.changed();
     }
 
+    /** Returns the adjustments of the line; the changes made through the list count as changes of the line */
     public List<GenericValue> getAdjustments() {
-        return itemAdjustments;
+        return new AbstractList<GenericValue>() {
+            @Override
+            public GenericValue get(int index) {
+                return itemAdjustments.get(index);
+            }
+            @Override
+            public int size() {
+                return itemAdjustments.size();
+            }
+            @Override
+            public GenericValue set(int index, GenericValue adjustment) {
+                changed();
+                return itemAdjustments.set(index, adjustment);
+            }
+            @Override
+            public void add(int index, GenericValue adjustment) {
+                changed();
+                itemAdjustments.add(index, adjustment);
+            }
+            @Override
+            public GenericValue remove(int index) {
+                changed();
+                return itemAdjustments.remove(index);
+            }
+        };
+    }
+
+    /** Returns the number of changes made to this line that can affect its totals */
+    public long getVersion() {
+        return this.version;
+    }
+
+    /** Marks the line as changed, to be called after changing one of its adjustments in place */
+    public void markChanged() {
+        this.changed();
+    }
+
+    private void changed() {
+        this.version++;
+        if (this.ownerCart != null) {
+            this.ownerCart.lineChanged();
+        }
+    }
+
+    void setOwnerCart(ShoppingCart ownerCart) {
+        this.ownerCart = ownerCart;
     }
 
     public void removeFeatureAdjustment(String productFeatureId) {
@@ -2218,6 +2313,7 @@ public class ShoppingCartItem implements java.io.Serializable {
 
             if (productFeatureId.equals(itemAdjustment.getString("productFeatureId"))) {
                 itemAdjustmentsIter.remove();
+                this.changed();
             }
         }
     }
@@ -41,6 +41,7 @@ import org.apache.ofbiz.entity.GenericValue;
 import org.apache.ofbiz.entity.condition.EntityCondition;
 import org.apache.ofbiz.entity.condition.EntityExpr;
 import org.apache.ofbiz.entity.condition.EntityOperator;
+import org.apache.ofbiz.entity.transaction.GenericTransactionException;
 import org.apache.ofbiz.entity.util.EntityQuery;
 import org.apache.ofbiz.entity.util.EntityTypeUtil;
 import org.apache.ofbiz.entity.util.EntityUtil;
@@ -48,6 +49,8 @@ import org.apache.ofbiz.entity.util.EntityUtilProperties;
 import org.apache.ofbiz.order.order.OrderReadHelper;
 import org.apache.ofbiz.order.shoppingcart.ShoppingCart.CartShipInfo;
 import org.apache.ofbiz.order.shoppingcart.ShoppingCart.CartShipInfo.CartShipItemInfo;
+import org.apache.ofbiz.order.shoppingcart.product.ProductPromoRuleGraph;
+import org.apache.ofbiz.order.shoppingcart.shipping.ShippingEstimateWrapper;
 import org.apache.ofbiz.product.config.ProductConfigWorker;
 import org.apache.ofbiz.product.config.ProductConfigWrapper;
 import org.apache.ofbiz.service.DispatchContext;
@@ -323,6 +326,7 @@ public class ShoppingCartServices {
             cartShipInfo.setVendorPartyId(orderItemShipGroup.getString("vendorPartyId"));
             cartShipInfo.setShipGroupSeqId(orderItemShipGroup.getString("shipGroupSeqId"));
             cartShipInfo.shipTaxAdj.addAll(orh.getOrderHeaderAdjustmentsTax(orderItemShipGroup.getString("shipGroupSeqId")));
+            cartShipInfo.markChanged();
         }
 
         List<GenericValue> orderItems = orh.getOrderItems();
@@ -603,6 +607,7 @@ public class ShoppingCartServices {
                                 for (GenericValue shipGroupItemAdjustment : shipGroupItemAdjustments) {
                                     if (isTaxAdjustment(shipGroupItemAdjustment)) itemTaxAdj.add(shipGroupItemAdjustment);
                                 }
+                                csi.markChanged();
                             }
                         }
                     }
@@ -889,6 +894,7 @@ public class ShoppingCartServices {
                     if (isTaxAdjustment( adj )) shipInfo.shipTaxAdj.add(adj);
                     else cartAdjs.add(adj);
                 }
+                shipInfo.markChanged();
             }
 
             // The cart item adjustments, derived from quote item adjustments, are added to the cart
@@ -907,6 +913,7 @@ public class ShoppingCartServices {
 
                                 if (csii.itemTaxAdj == null) shipInfo.setItemInfo(item, UtilMisc.toList(adj));
                                 else csii.itemTaxAdj.add(adj);
+                                shipInfo.markChanged();
                             }
                             else item.addAdjustment(adj);
                         }
@@ -1188,4 +1195,26 @@ public class ShoppingCartServices {
         }
         return result;
     }
+
+    public static Map<String, Object> clearProductPromoRuleGraphCache(DispatchContext dctx, Map<String, Object> context) {
+        String productPromoId = (String) context.get("productPromoId");
+        try {
+            ProductPromoRuleGraph.clearRuleGraphCache(dctx.getDelegator(), productPromoId);
+        } catch (GenericTransactionException e) {
+            Debug.logError(e, module);
+            return ServiceUtil.returnError(e.getMessage());
+        }
+        return ServiceUtil.returnSuccess();
+    }
+
+    public static Map<String, Object> clearShippingAllowanceCache(DispatchContext dctx, Map<String, Object> context) {
+        String productId = (String) context.get("productId");
+        try {
+            ShippingEstimateWrapper.clearShippingAllowanceCache(dctx.getDelegator(), productId);
+        } catch (GenericTransactionException e) {
+            Debug.logError(e, module);
+            return ServiceUtil.returnError(e.getMessage());
+        }
+        return ServiceUtil.returnSuccess();
+    }
 }
@@ -0,0 +1,393 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *******************************************************************************/
+package org.apache.ofbiz.order.shoppingcart.product;
+
+import java.math.BigDecimal;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+
+import org.apache.ofbiz.base.util.Debug;
+import org.apache.ofbiz.base.util.UtilDateTime;
+import org.apache.ofbiz.base.util.UtilMisc;
+import org.apache.ofbiz.base.util.UtilProperties;
+import org.apache.ofbiz.base.util.UtilValidate;
+import org.apache.ofbiz.base.util.cache.UtilCache;
+import org.apache.ofbiz.entity.Delegator;
+import org.apache.ofbiz.entity.GenericEntityException;
+import org.apache.ofbiz.entity.GenericValue;
+import org.apache.ofbiz.entity.transaction.GenericTransactionException;
+import org.apache.ofbiz.entity.transaction.TransactionUtil;
+import org.apache.ofbiz.entity.util.EntityQuery;
+import org.apache.ofbiz.entity.util.EntityUtil;
+
+/**
+ * ProductPromoRuleGraph - immutable, pre-compiled view of the rules, conditions and actions of a single ProductPromo.
+ *
+ * The conditions and actions are read once, numeric condition values are parsed up front and the product sets
+ * for each condition and action are resolved into hash sets, so that evaluating the promotion against a cart
+ * does not need to go back to the entity engine. Graphs are cached per promotion and are rebuilt when the
+ * promotion data changes (see the ProductPromo* entity ECAs) or when the cache entry expires, which picks up
+ * date-filtered category membership changes.
+ */
+public final class ProductPromoRuleGraph {
+
+    public static final String module = ProductPromoRuleGraph.class.getName();
+
+    private static final long expireTime = UtilProperties.getPropertyAsLong("order", "order.promo.ruleGraph.expireTime", 600000L);
+    private static final UtilCache<String, ProductPromoRuleGraph> ruleGraphCache = UtilCache.createUtilCache("order.ProductPromoRuleGraph", 0, 0, expireTime, true);
+
+    private final String productPromoId;
+    private final List<Rule> rules;
+    private final Map<String, Rule> rulesById;
+    private final boolean hasOrderTotalCondition;
+    private final Set<String> condProductIds;
+    private final Set<String> actionProductIds;
+    private final Set<String> lineProductIds;
+    private final boolean lineScoped;
+
+    /** Returns the compiled rule graph for the given promotion, building and caching it if needed */
+    public static ProductPromoRuleGraph getRuleGraph(Delegator delegator, String productPromoId, Timestamp nowTimestamp) throws GenericEntityException {
+        String cacheKey = delegator.getDelegatorName() + "::" + productPromoId;
+        ProductPromoRuleGraph ruleGraph = ruleGraphCache.get(cacheKey);
+        if (ruleGraph == null) {
+            GenericValue productPromo = EntityQuery.use(delegator).from("ProductPromo").where("productPromoId", productPromoId).cache().queryOne();
+            if (productPromo == null) {
+                throw new GenericEntityException("Could not find ProductPromo with ID [" + productPromoId + "]");
+            }
+            ruleGraph = new ProductPromoRuleGraph(productPromo, delegator, nowTimestamp == null ? UtilDateTime.nowTimestamp() : nowTimestamp);
+            ruleGraph = ruleGraphCache.putIfAbsentAndGet(cacheKey, ruleGraph);
+        }
+        return ruleGraph;
+    }
+
+    public static ProductPromoRuleGraph getRuleGraph(GenericValue productPromo, Timestamp nowTimestamp) throws GenericEntityException {
+        return getRuleGraph(productPromo.getDelegator(), productPromo.getString("productPromoId"), nowTimestamp);
+    }
+
+    /**
+     * Removes the compiled graph of the given promotion, or all graphs if productPromoId is empty, once the current
+     * transaction, if any, commits; a graph built from the promotion data before the commit would be kept otherwise.
+     */
+    public static void clearRuleGraphCache(Delegator delegator, final String productPromoId) throws GenericTransactionException {
+        final String key = delegator.getDelegatorName() + "::" + productPromoId;
+        if (!TransactionUtil.isTransactionInPlace()) {
+            removeRuleGraphs(key, productPromoId);
+            return;
+        }
+        TransactionUtil.registerSynchronization(new Synchronization() {
+            @Override
+            public void beforeCompletion() {
+            }
+
+            @Override
+            public void afterCompletion(int status) {
+                if (status == Status.STATUS_COMMITTED) {
+                    removeRuleGraphs(key, productPromoId);
+                }
+            }
+        });
+    }
+
+    private static void removeRuleGraphs(String key, String productPromoId) {
+        if (UtilValidate.isEmpty(productPromoId)) {
+            ruleGraphCache.clear();
+        } else {
+            ruleGraphCache.remove(key);
+        }
+    }
+
+    private ProductPromoRuleGraph(GenericValue productPromo, Delegator delegator, Timestamp nowTimestamp) throws GenericEntityException {
+        this.productPromoId = productPromo.getString("productPromoId");
+
+        List<GenericValue> productPromoRules = productPromo.getRelated("ProductPromoRule", null, null, true);
+        List<GenericValue> productPromoCondsAll = EntityQuery.use(delegator).from("ProductPromoCond").where("productPromoId", productPromoId).orderBy("productPromoCondSeqId").cache(true).queryList();
+        List<GenericValue> productPromoActionsAll = EntityQuery.use(delegator).from("ProductPromoAction").where("productPromoId", productPromoId).orderBy("productPromoActionSeqId").cache(true).queryList();
+        List<GenericValue> productPromoCategoriesAll = EntityQuery.use(delegator).from("ProductPromoCategory").where("productPromoId", productPromoId).cache(true).queryList();
+        List<GenericValue> productPromoProductsAll = EntityQuery.use(delegator).from("ProductPromoProduct").where("productPromoId", productPromoId).cache(true).queryList();
+
+        boolean hasOtCond = false;
+        boolean allLineScoped = true;
+        Set<String> allLineProductIds = new HashSet<String>();
+        Set<String> allCondProductIds = new HashSet<String>();
+        Set<String> allActionProductIds = new HashSet<String>();
+        List<Rule> ruleList = new ArrayList<Rule>(productPromoRules.size());
+        Map<String, Rule> ruleMap = new HashMap<String, Rule>();
+        for (GenericValue productPromoRule : productPromoRules) {
+            String productPromoRuleId = productPromoRule.getString("productPromoRuleId");
+
+            List<Cond> conds = new ArrayList<Cond>();
+            List<Cond> itemConds = new ArrayList<Cond>();
+            for (GenericValue productPromoCond : EntityUtil.filterByAnd(productPromoCondsAll, UtilMisc.toMap("productPromoRuleId", productPromoRuleId))) {
+                Set<String> productIds = makeProductIdSet(productPromoCategoriesAll, productPromoProductsAll, productPromoRuleId,
+                        "productPromoCondSeqId", productPromoCond.getString("productPromoCondSeqId"), delegator, nowTimestamp);
+                Cond cond = new Cond(productPromoCond, productIds);
+                conds.add(cond);
+                if (cond.isItemCondition()) {
+                    itemConds.add(cond);
+                }
+                if ("PPIP_ORDER_TOTAL".equals(cond.getInputParamEnumId())) {
+                    hasOtCond = true;
+                }
+                if (!cond.isLineScoped()) {
+                    allLineScoped = false;
+                }
+                allCondProductIds.addAll(productIds);
+            }
+
+            List<Action> actions = new ArrayList<Action>();
+            for (GenericValue productPromoAction : EntityUtil.filterByAnd(productPromoActionsAll, UtilMisc.toMap("productPromoRuleId", productPromoRuleId))) {
+                Set<String> productIds = makeProductIdSet(productPromoCategoriesAll, productPromoProductsAll, productPromoRuleId,
+                        "productPromoActionSeqId", productPromoAction.getString("productPromoActionSeqId"), delegator, nowTimestamp);
+                Action action = new Action(productPromoAction, productIds);
+                actions.add(action);
+                if (!action.isLineScoped()) {
+                    allLineScoped = false;
+                }
+                if (UtilValidate.isNotEmpty(productPromoAction.getString("productId"))) {
+                    allLineProductIds.add(productPromoAction.getString("productId"));
+                }
+                allActionProductIds.addAll(productIds);
+            }
+
+            Rule rule = new Rule(productPromoRule, conds, itemConds, actions);
+            ruleList.add(rule);
+            ruleMap.put(productPromoRuleId, rule);
+        }
+
+        this.rules = Collections.unmodifiableList(ruleList);
+        this.rulesById = Collections.unmodifiableMap(ruleMap);
+        this.hasOrderTotalCondition = hasOtCond;
+        this.condProductIds = Collections.unmodifiableSet(allCondProductIds);
+        this.actionProductIds = Collections.unmodifiableSet(allActionProductIds);
+        allLineProductIds.addAll(allCondProductIds);
+        allLineProductIds.addAll(allActionProductIds);
+        this.lineProductIds = Collections.unmodifiableSet(allLineProductIds);
+        this.lineScoped = allLineScoped;
+
+        if (Debug.verboseOn()) Debug.logVerbose("Compiled rule graph for promotion [" + productPromoId + "] with " + rules.size() + " rules", module);
+    }
+
+    private static Set<String> makeProductIdSet(List<GenericValue> productPromoCategoriesAll, List<GenericValue> productPromoProductsAll, String productPromoRuleId,
+            String seqIdField, String seqId, Delegator delegator, Timestamp nowTimestamp) throws GenericEntityException {
+        List<GenericValue> productPromoCategories = EntityUtil.filterByAnd(productPromoCategoriesAll, UtilMisc.toMap("productPromoRuleId", "_NA_", seqIdField, "_NA_"));
+        productPromoCategories.addAll(EntityUtil.filterByAnd(productPromoCategoriesAll, UtilMisc.toMap("productPromoRuleId", productPromoRuleId, seqIdField, seqId)));
+        List<GenericValue> productPromoProducts = EntityUtil.filterByAnd(productPromoProductsAll, UtilMisc.toMap("productPromoRuleId", "_NA_", seqIdField, "_NA_"));
+        productPromoProducts.addAll(EntityUtil.filterByAnd(productPromoProductsAll, UtilMisc.toMap("productPromoRuleId", productPromoRuleId, seqIdField, seqId)));
+
+        Set<String> productIds = new HashSet<String>();
+        ProductPromoWorker.makeProductPromoIdSet(productIds, productPromoCategories, productPromoProducts, delegator, nowTimestamp, false);
+        return Collections.unmodifiableSet(productIds);
+    }
+
+    public String getProductPromoId() {
+        return productPromoId;
+    }
+
+    public List<Rule> getRules() {
+        return rules;
+    }
+
+    public Rule getRule(String productPromoRuleId) {
+        return rulesById.get(productPromoRuleId);
+    }
+
+    public boolean hasOrderTotalCondition() {
+        return hasOrderTotalCondition;
+    }
+
+    /** Union of the product IDs referenced by any condition of this promotion */
+    public Set<String> getCondProductIds() {
+        return condProductIds;
+    }
+
+    /** Union of the product IDs referenced by any action of this promotion */
+    public Set<String> getActionProductIds() {
+        return actionProductIds;
+    }
+
+    /** All product IDs whose cart lines this promotion may read or change, including gift products */
+    public Set<String> getLineProductIds() {
+        return lineProductIds;
+    }
+
+    /**
+     * Returns true if the outcome of this promotion only depends on the cart lines for the products in
+     * getLineProductIds(), ie it has no order total, party, shipping or service based conditions or actions.
+     * Such promotions can be re-evaluated on their own when unrelated cart lines change.
+     */
+    public boolean isLineScoped() {
+        return lineScoped;
+    }
+
+    public Cond getCond(String productPromoRuleId, String productPromoCondSeqId) {
+        Rule rule = rulesById.get(productPromoRuleId);
+        if (rule == null) {
+            return null;
+        }
+        for (Cond cond : rule.getConds()) {
+            if (cond.getValue().getString("productPromoCondSeqId").equals(productPromoCondSeqId)) {
+                return cond;
+            }
+        }
+        return null;
+    }
+
+    public Action getAction(String productPromoRuleId, String productPromoActionSeqId) {
+        Rule rule = rulesById.get(productPromoRuleId);
+        if (rule == null) {
+            return null;
+        }
+        for (Action action : rule.getActions()) {
+            if (action.getValue().getString("productPromoActionSeqId").equals(productPromoActionSeqId)) {
+                return action;
+            }
+        }
+        return null;
+    }
+
+    public static final class Rule {
+        private final GenericValue productPromoRule;
+        private final List<Cond> conds;
+        private final List<Cond> itemConds;
+        private final List<Action> actions;
+
+        private Rule(GenericValue productPromoRule, List<Cond> conds, List<Cond> itemConds, List<Action> actions) {
+            this.productPromoRule = productPromoRule;
+            this.conds = Collections.unmodifiableList(conds);
+            this.itemConds = Collections.unmodifiableList(itemConds);
+            this.actions = Collections.unmodifiableList(actions);
+        }
+
+        public GenericValue getValue() {
+            return productPromoRule;
+        }
+
+        public List<Cond> getConds() {
+            return conds;
+        }
+
+        /** The conditions of this rule that are checked per cart item (list price markup conditions) */
+        public List<Cond> getItemConds() {
+            return itemConds;
+        }
+
+        public List<Action> getActions() {
+            return actions;
+        }
+    }
+
+    public static final class Cond {
+        private final GenericValue productPromoCond;
+        private final String inputParamEnumId;
+        private final String operatorEnumId;
+        private final BigDecimal condValueAmount;
+        private final Set<String> productIds;
+
+        private Cond(GenericValue productPromoCond, Set<String> productIds) {
+            this.productPromoCond = productPromoCond;
+            this.inputParamEnumId = productPromoCond.getString("inputParamEnumId");
+            this.operatorEnumId = productPromoCond.getString("operatorEnumId");
+            this.productIds = productIds;
+            BigDecimal amount = null;
+            String condValue = productPromoCond.getString("condValue");
+            if (UtilValidate.isNotEmpty(condValue)) {
+                try {
+                    amount = new BigDecimal(condValue);
+                } catch (NumberFormatException e) {
+                    // not all conditions are numeric (party, geo, service name...), only report when the number is actually used
+                }
+            }
+            this.condValueAmount = amount;
+        }
+
+        public GenericValue getValue() {
+            return productPromoCond;
+        }
+
+        public String getInputParamEnumId() {
+            return inputParamEnumId;
+        }
+
+        public String getOperatorEnumId() {
+            return operatorEnumId;
+        }
+
+        /** The condValue parsed as a number; throws a NumberFormatException if the condValue is not numeric, like parsing it on each check did */
+        public BigDecimal getCondValueAmount() {
+            if (condValueAmount == null) {
+                throw new NumberFormatException("Condition value [" + productPromoCond.getString("condValue") + "] of ProductPromoCond " + productPromoCond.getPrimaryKey() + " is not a number");
+            }
+            return condValueAmount;
+        }
+
+        public Set<String> getProductIds() {
+            return productIds;
+        }
+
+        public boolean isItemCondition() {
+            return "PPIP_LPMUP_AMT".equals(inputParamEnumId) || "PPIP_LPMUP_PER".equals(inputParamEnumId);
+        }
+
+        public boolean isLineScoped() {
+            return isItemCondition() || "PPIP_PRODUCT_AMOUNT".equals(inputParamEnumId) || "PPIP_PRODUCT_TOTAL".equals(inputParamEnumId)
+                    || "PPIP_PRODUCT_QUANT".equals(inputParamEnumId);
+        }
+    }
+
+    public static final class Action {
+        private final GenericValue productPromoAction;
+        private final Set<String> productIds;
+
+        private Action(GenericValue productPromoAction, Set<String> productIds) {
+            this.productPromoAction = productPromoAction;
+            this.productIds = productIds;
+        }
+
+        public GenericValue getValue() {
+            return productPromoAction;
+        }
+
+        public Set<String> getProductIds() {
+            return productIds;
+        }
+
+        public boolean isLineScoped() {
+            String productPromoActionEnumId = productPromoAction.getString("productPromoActionEnumId");
+            if ("PROMO_GWP".equals(productPromoActionEnumId) || "PROMO_FREE_SHIPPING".equals(productPromoActionEnumId)
+                    || "PROMO_PROD_DISC".equals(productPromoActionEnumId) || "PROMO_PROD_AMDISC".equals(productPromoActionEnumId)
+                    || "PROMO_PROD_PRICE".equals(productPromoActionEnumId)) {
+                return true;
+            }
+            // these apply to all lines when no products are attached
+            if ("PROMO_PROD_SPPRC".equals(productPromoActionEnumId) || "PROMO_ORDER_PERCENT".equals(productPromoActionEnumId)) {
+                return !productIds.isEmpty();
+            }
+            return false;
+        }
+    }
+}
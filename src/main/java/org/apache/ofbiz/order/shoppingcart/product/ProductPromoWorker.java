@@ -25,16 +25,24 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import javax.servlet.ServletRequest;
 import javax.servlet.http.HttpServletRequest;
 
+import org.apache.ofbiz.base.concurrent.ExecutionPool;
 import org.apache.ofbiz.base.util.Debug;
 import org.apache.ofbiz.base.util.GeneralException;
 import org.apache.ofbiz.base.util.UtilDateTime;
@@ -47,6 +55,8 @@ import org.apache.ofbiz.entity.GenericEntityException;
 import org.apache.ofbiz.entity.GenericValue;
 import org.apache.ofbiz.entity.condition.EntityCondition;
 import org.apache.ofbiz.entity.condition.EntityOperator;
+import org.apache.ofbiz.entity.transaction.GenericTransactionException;
+import org.apache.ofbiz.entity.transaction.TransactionUtil;
 import org.apache.ofbiz.entity.util.EntityQuery;
 import org.apache.ofbiz.entity.util.EntityUtil;
 import org.apache.ofbiz.order.shoppingcart.CartItemModifyException;
@@ -79,6 +89,19 @@ public final class ProductPromoWorker {
 
     private static final MathContext generalRounding = new MathContext(10);
 
+    private static final int scoringThreads = (int) UtilProperties.getPropertyAsLong("order", "order.promo.scoring.threads", 4);
+    private static final int scoringQueueSize = (int) UtilProperties.getPropertyAsLong("order", "order.promo.scoring.queueSize", 64);
+    private static final ThreadPoolExecutor scoringExecutor = createScoringExecutor();
+
+    private static ThreadPoolExecutor createScoringExecutor() {
+        int threads = Math.max(1, scoringThreads);
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(Math.max(1, scoringQueueSize)), ExecutionPool.createThreadFactory(new ThreadGroup(module), "OFBiz-promo-scoring"),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
     private ProductPromoWorker() {}
 
     public static List<GenericValue> getStoreProductPromos(Delegator delegator, LocalDispatcher dispatcher, ServletRequest request) {
@@ -307,100 +330,247 @@ public final class ProductPromoWorker {
 
         // start out by clearing all existing promotions, then we can just add all that apply
         cart.clearAllPromotionInformation();
+        // only a run of the store (or agreement) promotions can be followed by incremental runs
+        boolean storePromotions = productPromoList == null;
+        cart.setPromoChangedProductIds(null);
 
         // there will be a ton of db access, so just do a big catch entity exception block
         try {
             if (productPromoList == null) {
-                if (cart.getOrderType().equals("SALES_ORDER")) {
-                    productPromoList = ProductPromoWorker.getProductStorePromotions(cart, nowTimestamp, dispatcher);
-                } else {
-                    productPromoList = ProductPromoWorker.getAgreementPromotions(cart, nowTimestamp, dispatcher);
-                }
+                productPromoList = getActiveProductPromotions(cart, nowTimestamp, dispatcher);
             }
-            // do a calculate only run through the promotions, then order by descending totalDiscountAmount for each promotion
-            // NOTE: on this run, with isolatedTestRun passed as false it should not apply any adjustments
-            //  or track which cart items are used for which promotions, but it will track ProductPromoUseInfo and
-            //  useLimits; we are basically just trying to run each promo "independently" to see how much each is worth
-            runProductPromos(productPromoList, cart, delegator, dispatcher, nowTimestamp, true);
-
-            // NOTE: we can easily recognize the promos for the order total: they are the ones with usage set to 0
-            Iterator<ProductPromoUseInfo> promoUses = cart.getProductPromoUseInfoIter();
-            List<ProductPromoUseInfo> sortedPromoUses = new ArrayList<ProductPromoUseInfo>();
-            while (promoUses.hasNext()) {
-                ProductPromoUseInfo promoUse = promoUses.next();
-                sortedPromoUses.add(promoUse);
+            evaluateProductPromos(productPromoList, null, cart, delegator, dispatcher, nowTimestamp);
+            if (storePromotions) {
+                cart.setPromoChangedProductIds(new HashSet<String>());
             }
-            Collections.sort(sortedPromoUses);
-            List<GenericValue> sortedExplodedProductPromoList = new ArrayList<GenericValue>(sortedPromoUses.size());
-            Map<String, Long> usesPerPromo = new HashMap<String, Long>();
-            int indexOfFirstOrderTotalPromo = -1;
-            for (ProductPromoUseInfo promoUse: sortedPromoUses) {
-                GenericValue productPromo = EntityQuery.use(delegator).from("ProductPromo").where("productPromoId", promoUse.getProductPromoId()).cache().queryOne();
-                GenericValue newProductPromo = (GenericValue)productPromo.clone();
-                if (!usesPerPromo.containsKey(promoUse.getProductPromoId())) {
-                    usesPerPromo.put(promoUse.getProductPromoId(), 0l);
-                }
-                long uses = usesPerPromo.get(promoUse.getProductPromoId());
-                uses = uses + 1;
-                long useLimitPerOrder = (newProductPromo.get("useLimitPerOrder") != null? newProductPromo.getLong("useLimitPerOrder"): -1);
-                if (useLimitPerOrder == -1 || uses < useLimitPerOrder) {
-                    newProductPromo.set("useLimitPerOrder", uses);
+        } catch (NumberFormatException e) {
+            Debug.logError(e, "Number not formatted correctly in promotion rules, not completed...", module);
+        } catch (GenericEntityException e) {
+            Debug.logError(e, "Error looking up promotion data while doing promotions", module);
+        } catch (Exception e) {
+            Debug.logError(e, "Error running promotions, will ignore: " + e.toString(), module);
+        }
+    }
+
+    /**
+     * Re-evaluates the promotions after cart lines have been changed. If incremental evaluation is enabled
+     * (order.promo.incremental.enable) only the promotions using the products of the changed lines are cleared and
+     * re-run, and the adjustments of all other promotions are kept. This is only done when the result is the same as
+     * a full run: all affected promotions must be line scoped (see ProductPromoRuleGraph.isLineScoped()) and must
+     * not share products with the promotions that are kept; otherwise this falls back to doPromotions.
+     */
+    public static void doPromotionsForChangedLines(ShoppingCart cart, LocalDispatcher dispatcher) {
+        Set<String> changedProductIds = cart.getPromoChangedProductIds();
+        if (!cart.getDoPromotions() || changedProductIds == null || !UtilProperties.propertyValueEqualsIgnoreCase("order", "order.promo.incremental.enable", "Y")) {
+            doPromotions(cart, dispatcher);
+            return;
+        }
+        Delegator delegator = cart.getDelegator();
+        Timestamp nowTimestamp = UtilDateTime.nowTimestamp();
+
+        try {
+            List<GenericValue> productPromoList = getActiveProductPromotions(cart, nowTimestamp, dispatcher);
+            List<GenericValue> affectedProductPromoList = new LinkedList<GenericValue>();
+            Set<String> affectedProductPromoIds = new HashSet<String>();
+            Set<String> affectedProductIds = new HashSet<String>();
+            Set<String> keptProductIds = new HashSet<String>();
+            for (GenericValue productPromo : productPromoList) {
+                ProductPromoRuleGraph ruleGraph = ProductPromoRuleGraph.getRuleGraph(delegator, productPromo.getString("productPromoId"), nowTimestamp);
+                if (!ruleGraph.isLineScoped()) {
+                    if (Debug.verboseOn()) Debug.logVerbose("Promotion [" + ruleGraph.getProductPromoId() + "] depends on more than its cart lines, doing a full promotion run", module);
+                    doPromotions(cart, dispatcher);
+                    return;
                 }
-                usesPerPromo.put(promoUse.getProductPromoId(), uses);
-                sortedExplodedProductPromoList.add(newProductPromo);
-                if (indexOfFirstOrderTotalPromo == -1 && BigDecimal.ZERO.equals(promoUse.getUsageWeight())) {
-                    indexOfFirstOrderTotalPromo = sortedExplodedProductPromoList.size() - 1;
+                if (!Collections.disjoint(ruleGraph.getLineProductIds(), changedProductIds)) {
+                    affectedProductPromoList.add(productPromo);
+                    affectedProductPromoIds.add(ruleGraph.getProductPromoId());
+                    affectedProductIds.addAll(ruleGraph.getLineProductIds());
+                } else {
+                    keptProductIds.addAll(ruleGraph.getLineProductIds());
                 }
             }
-            if (indexOfFirstOrderTotalPromo == -1) {
+            if (!Collections.disjoint(affectedProductIds, keptProductIds)) {
+                doPromotions(cart, dispatcher);
+                return;
+            }
+
+            if (affectedProductPromoList.size() > 0) {
+                if (Debug.verboseOn()) Debug.logVerbose("Re-evaluating promotions " + affectedProductPromoIds + " for changed products " + changedProductIds, module);
+                cart.clearPromotionInformation(affectedProductPromoIds);
+                evaluateProductPromos(affectedProductPromoList, affectedProductPromoIds, cart, delegator, dispatcher, nowTimestamp);
+            }
+            cart.setPromoChangedProductIds(new HashSet<String>());
+        } catch (Exception e) {
+            Debug.logError(e, "Error running incremental promotions, doing a full promotion run: " + e.toString(), module);
+            doPromotions(cart, dispatcher);
+        }
+    }
+
+    private static List<GenericValue> getActiveProductPromotions(ShoppingCart cart, Timestamp nowTimestamp, LocalDispatcher dispatcher) {
+        if (cart.getOrderType().equals("SALES_ORDER")) {
+            return ProductPromoWorker.getProductStorePromotions(cart, nowTimestamp, dispatcher);
+        } else {
+            return ProductPromoWorker.getAgreementPromotions(cart, nowTimestamp, dispatcher);
+        }
+    }
+
+    /**
+     * Runs the given promotions against the cart: a what-if pass to weigh them, then the real run in order of weight.
+     * If productPromoIds is null the whole promotion state of the cart is cleared between the passes, otherwise
+     * only the state of those promotions is.
+     */
+    private static void evaluateProductPromos(List<GenericValue> productPromoList, Set<String> productPromoIds, ShoppingCart cart, Delegator delegator,
+            LocalDispatcher dispatcher, Timestamp nowTimestamp) throws GeneralException {
+        // do a calculate only run through the promotions, then order by descending totalDiscountAmount for each promotion
+        // NOTE: on this run, with isolatedTestRun passed as false it should not apply any adjustments
+        //  or track which cart items are used for which promotions, but it will track ProductPromoUseInfo and
+        //  useLimits; we are basically just trying to run each promo "independently" to see how much each is worth
+        scoreProductPromos(productPromoList, productPromoIds != null, cart, delegator, dispatcher, nowTimestamp);
+
+        // NOTE: we can easily recognize the promos for the order total: they are the ones with usage set to 0
+        Iterator<ProductPromoUseInfo> promoUses = cart.getProductPromoUseInfoIter();
+        List<ProductPromoUseInfo> sortedPromoUses = new ArrayList<ProductPromoUseInfo>();
+        while (promoUses.hasNext()) {
+            ProductPromoUseInfo promoUse = promoUses.next();
+            if (productPromoIds == null || productPromoIds.contains(promoUse.getProductPromoId())) {
+                sortedPromoUses.add(promoUse);
+            }
+        }
+        Collections.sort(sortedPromoUses);
+        List<GenericValue> sortedExplodedProductPromoList = new ArrayList<GenericValue>(sortedPromoUses.size());
+        Map<String, Long> usesPerPromo = new HashMap<String, Long>();
+        int indexOfFirstOrderTotalPromo = -1;
+        for (ProductPromoUseInfo promoUse: sortedPromoUses) {
+            GenericValue productPromo = EntityQuery.use(delegator).from("ProductPromo").where("productPromoId", promoUse.getProductPromoId()).cache().queryOne();
+            GenericValue newProductPromo = (GenericValue)productPromo.clone();
+            if (!usesPerPromo.containsKey(promoUse.getProductPromoId())) {
+                usesPerPromo.put(promoUse.getProductPromoId(), 0l);
+            }
+            long uses = usesPerPromo.get(promoUse.getProductPromoId());
+            uses = uses + 1;
+            long useLimitPerOrder = (newProductPromo.get("useLimitPerOrder") != null? newProductPromo.getLong("useLimitPerOrder"): -1);
+            if (useLimitPerOrder == -1 || uses < useLimitPerOrder) {
+                newProductPromo.set("useLimitPerOrder", uses);
+            }
+            usesPerPromo.put(promoUse.getProductPromoId(), uses);
+            sortedExplodedProductPromoList.add(newProductPromo);
+            if (indexOfFirstOrderTotalPromo == -1 && BigDecimal.ZERO.equals(promoUse.getUsageWeight())) {
                 indexOfFirstOrderTotalPromo = sortedExplodedProductPromoList.size() - 1;
             }
+        }
+        if (indexOfFirstOrderTotalPromo == -1) {
+            indexOfFirstOrderTotalPromo = sortedExplodedProductPromoList.size() - 1;
+        }
 
-            for (GenericValue productPromo : productPromoList) {
-                if (hasOrderTotalCondition(productPromo, delegator)) {
-                    if (!usesPerPromo.containsKey(productPromo.getString("productPromoId"))) {
-                        sortedExplodedProductPromoList.add(productPromo);
-                    }
-                } else {
-                    if (!usesPerPromo.containsKey(productPromo.getString("productPromoId"))) {
-                        if (indexOfFirstOrderTotalPromo != -1) {
-                            sortedExplodedProductPromoList.add(indexOfFirstOrderTotalPromo, productPromo);
-                        } else {
-                            sortedExplodedProductPromoList.add(0, productPromo);
-                        }
+        for (GenericValue productPromo : productPromoList) {
+            if (hasOrderTotalCondition(productPromo, delegator, nowTimestamp)) {
+                if (!usesPerPromo.containsKey(productPromo.getString("productPromoId"))) {
+                    sortedExplodedProductPromoList.add(productPromo);
+                }
+            } else {
+                if (!usesPerPromo.containsKey(productPromo.getString("productPromoId"))) {
+                    if (indexOfFirstOrderTotalPromo != -1) {
+                        sortedExplodedProductPromoList.add(indexOfFirstOrderTotalPromo, productPromo);
+                    } else {
+                        sortedExplodedProductPromoList.add(0, productPromo);
                     }
                 }
             }
+        }
 
-            // okay, all ready, do the real run, clearing the temporary result first...
+        // okay, all ready, do the real run, clearing the temporary result first...
+        if (productPromoIds == null) {
             cart.clearAllPromotionInformation();
-            runProductPromos(sortedExplodedProductPromoList, cart, delegator, dispatcher, nowTimestamp, false);
-        } catch (NumberFormatException e) {
-            Debug.logError(e, "Number not formatted correctly in promotion rules, not completed...", module);
-        } catch (GenericEntityException e) {
-            Debug.logError(e, "Error looking up promotion data while doing promotions", module);
-        } catch (Exception e) {
-            Debug.logError(e, "Error running promotions, will ignore: " + e.toString(), module);
+        } else {
+            cart.clearPromotionInformation(productPromoIds);
         }
+        runProductPromos(sortedExplodedProductPromoList, cart, delegator, dispatcher, nowTimestamp, false, productPromoIds != null);
     }
 
-    private static boolean hasOrderTotalCondition(GenericValue productPromo, Delegator delegator) throws GenericEntityException {
-        boolean hasOtCond = false;
-        List<GenericValue> productPromoConds = EntityQuery.use(delegator).from("ProductPromoCond")
-                .where("productPromoId", productPromo.get("productPromoId"))
-                .orderBy("productPromoCondSeqId")
-                .cache(true).queryList();
-        for (GenericValue productPromoCond : productPromoConds) {
-            String inputParamEnumId = productPromoCond.getString("inputParamEnumId");
-            if ("PPIP_ORDER_TOTAL".equals(inputParamEnumId)) {
-                hasOtCond = true;
-                break;
+    /**
+     * The what-if pass of evaluateProductPromos: runs each promotion on its own and leaves a ProductPromoUseInfo
+     * on the cart for each use. With more than one promotion and order.promo.scoring.threads above 1 each promotion
+     * is run against its own snapshot of the cart on the scoring executor and the uses are added in the order of the
+     * list. Unlike the run one after the other, a promotion then does not see the free shipping actions left on the
+     * cart by the promotions before it, so a promotion with a condition depending on them can be weighed differently.
+     */
+    private static void scoreProductPromos(List<GenericValue> productPromoList, final boolean keepOtherPromos, ShoppingCart cart, final Delegator delegator,
+            final LocalDispatcher dispatcher, final Timestamp nowTimestamp) throws GeneralException {
+        boolean runParallel = scoringThreads > 1 && productPromoList.size() > 1;
+        if (runParallel) {
+            try {
+                // the scoring threads can't see uncommitted data of this thread, so stay here in that case
+                runParallel = !TransactionUtil.isTransactionInPlace();
+            } catch (GenericTransactionException e) {
+                Debug.logWarning(e, "Could not check for a transaction, scoring promotions on the current thread", module);
+                runParallel = false;
+            }
+        }
+        if (!runParallel) {
+            runProductPromos(productPromoList, cart, delegator, dispatcher, nowTimestamp, true, keepOtherPromos);
+            return;
+        }
+
+        List<ShoppingCartItem> cartLines = cart.items();
+        List<Future<List<ProductPromoUseInfo>>> futures = new ArrayList<Future<List<ProductPromoUseInfo>>>(productPromoList.size());
+        // the lines of each snapshot by the line they were copied from, the copies are made in the order of the cart
+        List<Map<ShoppingCartItem, ShoppingCartItem>> cartLinesBySnapshotLine = new ArrayList<Map<ShoppingCartItem, ShoppingCartItem>>(productPromoList.size());
+        for (final GenericValue productPromo : productPromoList) {
+            // take the snapshots here so the cart is only read by this thread
+            final ShoppingCart snapshot = cart.makePromoSnapshot();
+            List<ShoppingCartItem> snapshotLines = snapshot.items();
+            Map<ShoppingCartItem, ShoppingCartItem> cartLineBySnapshotLine = new IdentityHashMap<ShoppingCartItem, ShoppingCartItem>();
+            for (int i = 0; i < snapshotLines.size(); i++) {
+                cartLineBySnapshotLine.put(snapshotLines.get(i), cartLines.get(i));
+            }
+            cartLinesBySnapshotLine.add(cartLineBySnapshotLine);
+            futures.add(scoringExecutor.submit(new Callable<List<ProductPromoUseInfo>>() {
+                public List<ProductPromoUseInfo> call() throws Exception {
+                    String productPromoId = productPromo.getString("productPromoId");
+                    runProductPromos(UtilMisc.toList(productPromo), snapshot, delegator, dispatcher, nowTimestamp, true, keepOtherPromos);
+                    List<ProductPromoUseInfo> promoUses = new LinkedList<ProductPromoUseInfo>();
+                    Iterator<ProductPromoUseInfo> promoUseIter = snapshot.getProductPromoUseInfoIter();
+                    while (promoUseIter.hasNext()) {
+                        ProductPromoUseInfo promoUse = promoUseIter.next();
+                        if (productPromoId.equals(promoUse.getProductPromoId())) {
+                            promoUses.add(promoUse);
+                        }
+                    }
+                    return promoUses;
+                }
+            }));
+        }
+
+        for (int i = 0; i < futures.size(); i++) {
+            List<ProductPromoUseInfo> promoUses;
+            try {
+                promoUses = futures.get(i).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new GeneralException("Interrupted while scoring promotions", e);
+            } catch (ExecutionException e) {
+                throw new GeneralException("Error scoring promotions", e.getCause());
+            }
+            Map<ShoppingCartItem, ShoppingCartItem> cartLineBySnapshotLine = cartLinesBySnapshotLine.get(i);
+            for (ProductPromoUseInfo promoUse : promoUses) {
+                // the usage refers to the snapshot lines, swap in the lines of the cart they were copied from
+                Map<ShoppingCartItem, BigDecimal> usageInfoMap = new HashMap<ShoppingCartItem, BigDecimal>();
+                for (Map.Entry<ShoppingCartItem, BigDecimal> usageEntry : promoUse.getUsageInfoMap().entrySet()) {
+                    ShoppingCartItem cartLine = cartLineBySnapshotLine.get(usageEntry.getKey());
+                    usageInfoMap.put(cartLine != null ? cartLine : usageEntry.getKey(), usageEntry.getValue());
+                }
+                cart.addProductPromoUse(promoUse.getProductPromoId(), promoUse.getProductPromoCodeId(), promoUse.getTotalDiscountAmount(),
+                        promoUse.getQuantityLeftInActions(), usageInfoMap);
             }
         }
-        return hasOtCond;
     }
 
-    private static void runProductPromos(List<GenericValue> productPromoList, ShoppingCart cart, Delegator delegator, LocalDispatcher dispatcher, Timestamp nowTimestamp, boolean isolatedTestRun) throws GeneralException {
+    private static boolean hasOrderTotalCondition(GenericValue productPromo, Delegator delegator, Timestamp nowTimestamp) throws GenericEntityException {
+        return ProductPromoRuleGraph.getRuleGraph(delegator, productPromo.getString("productPromoId"), nowTimestamp).hasOrderTotalCondition();
+    }
+
+    private static void runProductPromos(List<GenericValue> productPromoList, ShoppingCart cart, Delegator delegator, LocalDispatcher dispatcher, Timestamp nowTimestamp, boolean isolatedTestRun,
+            boolean keepOtherPromos) throws GeneralException {
         String partyId = cart.getPartyId();
 
         // this is our safety net; we should never need to loop through the rules more than a certain number of times, this is that number and may have to be changed for insanely large promo sets...
@@ -427,7 +597,8 @@ public final class ProductPromoWorker {
                 for (GenericValue productPromo : productPromoList) {
                     String productPromoId = productPromo.getString("productPromoId");
 
-                    List<GenericValue> productPromoRules = productPromo.getRelated("ProductPromoRule", null, null, true);
+                    ProductPromoRuleGraph ruleGraph = ProductPromoRuleGraph.getRuleGraph(delegator, productPromoId, nowTimestamp);
+                    List<ProductPromoRuleGraph.Rule> productPromoRules = ruleGraph.getRules();
                     if (UtilValidate.isNotEmpty(productPromoRules)) {
                         // always have a useLimit to avoid unlimited looping, default to 1 if no other is specified
                         Long candidateUseLimit = getProductPromoUseLimit(productPromo, partyId, delegator);
@@ -482,8 +653,14 @@ public final class ProductPromoWorker {
 
                     // if this is an isolatedTestRun clear out adjustments and cart item promo use info
                     if (isolatedTestRun) {
-                        cart.clearAllPromotionAdjustments();
-                        cart.clearCartItemUseInPromoInfo();
+                        if (keepOtherPromos) {
+                            Set<String> productPromoIdSet = UtilMisc.toSet(productPromoId);
+                            cart.clearPromotionAdjustments(productPromoIdSet);
+                            cart.clearCartItemUseInPromoInfo(productPromoIdSet);
+                        } else {
+                            cart.clearAllPromotionAdjustments();
+                            cart.clearCartItemUseInPromoInfo();
+                        }
                     }
                 }
 
@@ -781,7 +958,7 @@ public final class ProductPromoWorker {
     }
 
     private static boolean runProductPromoRules(ShoppingCart cart, Long useLimit, boolean requireCode, String productPromoCodeId, Long codeUseLimit, long maxUseLimit,
-        GenericValue productPromo, List<GenericValue> productPromoRules, LocalDispatcher dispatcher, Delegator delegator, Timestamp nowTimestamp) throws GenericEntityException, UseLimitException {
+        GenericValue productPromo, List<ProductPromoRuleGraph.Rule> productPromoRules, LocalDispatcher dispatcher, Delegator delegator, Timestamp nowTimestamp) throws GenericEntityException, UseLimitException {
         boolean cartChanged = false;
         Map<ShoppingCartItem,BigDecimal> usageInfoMap = prepareProductUsageInfoMap(cart);
         String productPromoId = productPromo.getString("productPromoId");
@@ -792,23 +969,15 @@ public final class ProductPromoWorker {
             BigDecimal totalDiscountAmount = BigDecimal.ZERO;
             BigDecimal quantityLeftInActions = BigDecimal.ZERO;
 
-            Iterator<GenericValue> promoRulesIter = productPromoRules.iterator();
-            while (promoRulesIter != null && promoRulesIter.hasNext()) {
-                GenericValue productPromoRule = promoRulesIter.next();
-
+            for (ProductPromoRuleGraph.Rule productPromoRule : productPromoRules) {
                 // if apply then performActions when no conditions are false, so default to true
                 boolean performActions = true;
 
-                // loop through conditions for rule, if any false, set allConditionsTrue to false
-                List<GenericValue> productPromoConds = EntityQuery.use(delegator).from("ProductPromoCond").where("productPromoId", productPromo.get("productPromoId")).orderBy("productPromoCondSeqId").cache(true).queryList();
-                productPromoConds = EntityUtil.filterByAnd(productPromoConds, UtilMisc.toMap("productPromoRuleId", productPromoRule.get("productPromoRuleId")));
-                // using the other method to consolidate cache entries because the same cache is used elsewhere: List productPromoConds = productPromoRule.getRelated("ProductPromoCond", null, UtilMisc.toList("productPromoCondSeqId"), true);
-                if (Debug.verboseOn()) Debug.logVerbose("Checking " + productPromoConds.size() + " conditions for rule " + productPromoRule, module);
-
-                Iterator<GenericValue> productPromoCondIter = UtilMisc.toIterator(productPromoConds);
-                while (productPromoCondIter != null && productPromoCondIter.hasNext()) {
-                    GenericValue productPromoCond = productPromoCondIter.next();
+                // loop through the pre-compiled conditions for rule, if any false, set allConditionsTrue to false
+                List<ProductPromoRuleGraph.Cond> productPromoConds = productPromoRule.getConds();
+                if (Debug.verboseOn()) Debug.logVerbose("Checking " + productPromoConds.size() + " conditions for rule " + productPromoRule.getValue(), module);
 
+                for (ProductPromoRuleGraph.Cond productPromoCond : productPromoConds) {
                     boolean conditionSatisfied = checkCondition(productPromoCond, cart, delegator, dispatcher, nowTimestamp);
 
                     // any false condition will cause it to NOT perform the action
@@ -821,10 +990,8 @@ public final class ProductPromoWorker {
                 if (performActions) {
                     // perform all actions, either apply or unapply
 
-                    List<GenericValue> productPromoActions = productPromoRule.getRelated("ProductPromoAction", null, UtilMisc.toList("productPromoActionSeqId"), true);
-                    Iterator<GenericValue> productPromoActionIter = UtilMisc.toIterator(productPromoActions);
-                    while (productPromoActionIter != null && productPromoActionIter.hasNext()) {
-                        GenericValue productPromoAction = productPromoActionIter.next();
+                    for (ProductPromoRuleGraph.Action compiledAction : productPromoRule.getActions()) {
+                        GenericValue productPromoAction = compiledAction.getValue();
                         try {
                             ActionResultInfo actionResultInfo = performAction(productPromoAction, cart, delegator, dispatcher, nowTimestamp);
                             totalDiscountAmount = totalDiscountAmount.add(actionResultInfo.totalDiscountAmount);
@@ -890,7 +1057,8 @@ public final class ProductPromoWorker {
         return deltaUsageInfoMap;
     }
 
-    private static boolean checkCondition(GenericValue productPromoCond, ShoppingCart cart, Delegator delegator, LocalDispatcher dispatcher, Timestamp nowTimestamp) throws GenericEntityException {
+    private static boolean checkCondition(ProductPromoRuleGraph.Cond compiledCond, ShoppingCart cart, Delegator delegator, LocalDispatcher dispatcher, Timestamp nowTimestamp) throws GenericEntityException {
+        GenericValue productPromoCond = compiledCond.getValue();
         String condValue = productPromoCond.getString("condValue");
         String otherValue = productPromoCond.getString("otherValue");
         String inputParamEnumId = productPromoCond.getString("inputParamEnumId");
@@ -939,10 +1107,10 @@ public final class ProductPromoWorker {
             // this type of condition requires items involved to not be involved in any other quantity consuming cond/action, and does not pro-rate the price, just uses the base price
             BigDecimal amountNeeded = BigDecimal.ZERO;
             if (UtilValidate.isNotEmpty(condValue)) {
-                amountNeeded = new BigDecimal(condValue);
+                amountNeeded = compiledCond.getCondValueAmount();
             }
 
-            Set<String> productIds = ProductPromoWorker.getPromoRuleCondProductIds(productPromoCond, delegator, nowTimestamp);
+            Set<String> productIds = compiledCond.getProductIds();
 
             List<ShoppingCartItem> lineOrderedByBasePriceList = cart.getLineListOrderedByBasePrice(false);
             Iterator<ShoppingCartItem> lineOrderedByBasePriceIter = lineOrderedByBasePriceList.iterator();
@@ -980,10 +1148,10 @@ public final class ProductPromoWorker {
         } else if ("PPIP_PRODUCT_TOTAL".equals(inputParamEnumId)) {
             // this type of condition allows items involved to be involved in other quantity consuming cond/action, and does pro-rate the price
             if (UtilValidate.isNotEmpty(condValue)) {
-                BigDecimal amountNeeded = new BigDecimal(condValue);
+                BigDecimal amountNeeded = compiledCond.getCondValueAmount();
                 BigDecimal amountAvailable = BigDecimal.ZERO;
 
-                Set<String> productIds = ProductPromoWorker.getPromoRuleCondProductIds(productPromoCond, delegator, nowTimestamp);
+                Set<String> productIds = compiledCond.getProductIds();
 
                 List<ShoppingCartItem> lineOrderedByBasePriceList = cart.getLineListOrderedByBasePrice(false);
                 for (ShoppingCartItem cartItem : lineOrderedByBasePriceList) {
@@ -1009,10 +1177,10 @@ public final class ProductPromoWorker {
             }
             BigDecimal quantityNeeded = BigDecimal.ONE;
             if (UtilValidate.isNotEmpty(condValue)) {
-                quantityNeeded = new BigDecimal(condValue);
+                quantityNeeded = compiledCond.getCondValueAmount();
             }
 
-            Set<String> productIds = ProductPromoWorker.getPromoRuleCondProductIds(productPromoCond, delegator, nowTimestamp);
+            Set<String> productIds = compiledCond.getProductIds();
 
             List<ShoppingCartItem> lineOrderedByBasePriceList = cart.getLineListOrderedByBasePrice(false);
             Iterator<ShoppingCartItem> lineOrderedByBasePriceIter = lineOrderedByBasePriceList.iterator();
@@ -1048,7 +1216,7 @@ public final class ProductPromoWorker {
                     // condition always fails if we don't know how many days since account created
                     return false;
                 }
-                compareBase = acctDays.compareTo(new BigDecimal(condValue));
+                compareBase = acctDays.compareTo(compiledCond.getCondValueAmount());
             }
         } else if ("PPIP_PARTY_ID".equals(inputParamEnumId)) {
             if (partyId != null && UtilValidate.isNotEmpty(condValue)) {
@@ -1125,7 +1293,7 @@ public final class ProductPromoWorker {
             if (UtilValidate.isNotEmpty(condValue)) {
                 BigDecimal orderSubTotal = cart.getSubTotalForPromotions();
                 if (Debug.verboseOn()) Debug.logVerbose("Doing order total compare: orderSubTotal=" + orderSubTotal, module);
-                compareBase = Integer.valueOf(orderSubTotal.compareTo(new BigDecimal(condValue)));
+                compareBase = Integer.valueOf(orderSubTotal.compareTo(compiledCond.getCondValueAmount()));
             }
         } else if ("PPIP_ORST_HIST".equals(inputParamEnumId)) {
             // description="Order sub-total X in last Y Months"
@@ -1244,7 +1412,7 @@ public final class ProductPromoWorker {
             if (UtilValidate.isNotEmpty(condValue)) {
                 BigDecimal orderTotalShipping = cart.getTotalShipping();
                 if (Debug.verboseOn()) { Debug.logVerbose("Doing order total Shipping compare: ordertotalShipping=" + orderTotalShipping, module); }
-                compareBase = orderTotalShipping.compareTo(new BigDecimal(condValue));
+                compareBase = orderTotalShipping.compareTo(compiledCond.getCondValueAmount());
             }
         } else if ("PPIP_LPMUP_AMT".equals(inputParamEnumId)) {
             // does nothing on order level, only checked on item level, so ignore by always considering passed
@@ -1283,18 +1451,22 @@ public final class ProductPromoWorker {
     }
 
     private static boolean checkConditionsForItem(GenericValue productPromoActionOrCond, ShoppingCart cart, ShoppingCartItem cartItem, Delegator delegator, LocalDispatcher dispatcher, Timestamp nowTimestamp) throws GenericEntityException {
-        GenericValue productPromoRule = productPromoActionOrCond.getRelatedOne("ProductPromoRule", true);
+        ProductPromoRuleGraph ruleGraph = ProductPromoRuleGraph.getRuleGraph(delegator, productPromoActionOrCond.getString("productPromoId"), nowTimestamp);
+        ProductPromoRuleGraph.Rule productPromoRule = ruleGraph.getRule(productPromoActionOrCond.getString("productPromoRuleId"));
+        if (productPromoRule == null) {
+            return true;
+        }
 
-        List<GenericValue> productPromoConds = EntityQuery.use(delegator).from("ProductPromoCond").where("productPromoId", productPromoRule.get("productPromoId")).orderBy("productPromoCondSeqId").cache(true).queryList();
-        productPromoConds = EntityUtil.filterByAnd(productPromoConds, UtilMisc.toMap("productPromoRuleId", productPromoRule.get("productPromoRuleId")));
-        for (GenericValue productPromoCond: productPromoConds) {
+        // only the list price markup conditions are checked per item, all others always pass so there is no need to look at them
+        for (ProductPromoRuleGraph.Cond productPromoCond : productPromoRule.getItemConds()) {
             boolean passed = checkConditionForItem(productPromoCond, cart, cartItem, delegator, dispatcher, nowTimestamp);
             if (!passed) return false;
         }
         return true;
     }
 
-    private static boolean checkConditionForItem(GenericValue productPromoCond, ShoppingCart cart, ShoppingCartItem cartItem, Delegator delegator, LocalDispatcher dispatcher, Timestamp nowTimestamp) throws GenericEntityException {
+    private static boolean checkConditionForItem(ProductPromoRuleGraph.Cond compiledCond, ShoppingCart cart, ShoppingCartItem cartItem, Delegator delegator, LocalDispatcher dispatcher, Timestamp nowTimestamp) throws GenericEntityException {
+        GenericValue productPromoCond = compiledCond.getValue();
         String condValue = productPromoCond.getString("condValue");
         String inputParamEnumId = productPromoCond.getString("inputParamEnumId");
         String operatorEnumId = productPromoCond.getString("operatorEnumId");
@@ -1321,11 +1493,11 @@ public final class ProductPromoWorker {
 
         if ("PPIP_LPMUP_AMT".equals(inputParamEnumId)) {
             // NOTE: only check this after we know it's this type of cond, otherwise condValue may not be a number
-            BigDecimal condValueBigDecimal = new BigDecimal(condValue);
+            BigDecimal condValueBigDecimal = compiledCond.getCondValueAmount();
             compareBase = Integer.valueOf(amountOff.compareTo(condValueBigDecimal));
         } else if ("PPIP_LPMUP_PER".equals(inputParamEnumId)) {
             // NOTE: only check this after we know it's this type of cond, otherwise condValue may not be a number
-            BigDecimal condValueBigDecimal = new BigDecimal(condValue);
+            BigDecimal condValueBigDecimal = compiledCond.getCondValueAmount();
             compareBase = Integer.valueOf(percentOff.compareTo(condValueBigDecimal));
         } else {
             // condition doesn't apply to individual item, always passes
@@ -1891,6 +2063,8 @@ public final class ProductPromoWorker {
                         productPromoAction.get("productPromoActionSeqId").equals(adjustment.getString("productPromoActionSeqId"))) {
                     BigDecimal newAmount = amount.add(adjustment.getBigDecimal(amountField));
                     adjustment.set(amountField, newAmount);
+                    // the adjustment is changed in place, tell the line so the cached cart totals are dropped
+                    cartItem.markChanged();
                     addNewAdjustment = false;
                 }
             }
@@ -1961,7 +2135,13 @@ public final class ProductPromoWorker {
     }
 
     public static Set<String> getPromoRuleCondProductIds(GenericValue productPromoCond, Delegator delegator, Timestamp nowTimestamp) throws GenericEntityException {
-        // get a cached list for the whole promo and filter it as needed, this for better efficiency in caching
+        ProductPromoRuleGraph.Cond compiledCond = ProductPromoRuleGraph.getRuleGraph(delegator, productPromoCond.getString("productPromoId"), nowTimestamp)
+                .getCond(productPromoCond.getString("productPromoRuleId"), productPromoCond.getString("productPromoCondSeqId"));
+        if (compiledCond != null) {
+            return compiledCond.getProductIds();
+        }
+
+        // not part of the compiled promotion (ie not persisted), get a cached list for the whole promo and filter it as needed, this for better efficiency in caching
         List<GenericValue> productPromoCategoriesAll = EntityQuery.use(delegator).from("ProductPromoCategory").where("productPromoId", productPromoCond.get("productPromoId")).cache(true).queryList();
         List<GenericValue> productPromoCategories = EntityUtil.filterByAnd(productPromoCategoriesAll, UtilMisc.toMap("productPromoRuleId", "_NA_", "productPromoCondSeqId", "_NA_"));
         productPromoCategories.addAll(EntityUtil.filterByAnd(productPromoCategoriesAll, UtilMisc.toMap("productPromoRuleId", productPromoCond.get("productPromoRuleId"), "productPromoCondSeqId", productPromoCond.get("productPromoCondSeqId"))));
@@ -1975,7 +2155,13 @@ public final class ProductPromoWorker {
     }
 
     public static Set<String> getPromoRuleActionProductIds(GenericValue productPromoAction, Delegator delegator, Timestamp nowTimestamp) throws GenericEntityException {
-        // get a cached list for the whole promo and filter it as needed, this for better efficiency in caching
+        ProductPromoRuleGraph.Action compiledAction = ProductPromoRuleGraph.getRuleGraph(delegator, productPromoAction.getString("productPromoId"), nowTimestamp)
+                .getAction(productPromoAction.getString("productPromoRuleId"), productPromoAction.getString("productPromoActionSeqId"));
+        if (compiledAction != null) {
+            return compiledAction.getProductIds();
+        }
+
+        // not part of the compiled promotion (ie not persisted), get a cached list for the whole promo and filter it as needed, this for better efficiency in caching
         List<GenericValue> productPromoCategoriesAll = EntityQuery.use(delegator).from("ProductPromoCategory").where("productPromoId", productPromoAction.get("productPromoId")).cache(true).queryList();
         List<GenericValue> productPromoCategories = EntityUtil.filterByAnd(productPromoCategoriesAll, UtilMisc.toMap("productPromoRuleId", "_NA_", "productPromoActionSeqId", "_NA_"));
         productPromoCategories.addAll(EntityUtil.filterByAnd(productPromoCategoriesAll, UtilMisc.toMap("productPromoRuleId", productPromoAction.get("productPromoRuleId"), "productPromoActionSeqId", productPromoAction.get("productPromoActionSeqId"))));
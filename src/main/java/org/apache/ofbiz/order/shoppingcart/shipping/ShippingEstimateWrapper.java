@@ -19,16 +19,42 @@
 package org.apache.ofbiz.order.shoppingcart.shipping;
 
 import java.math.BigDecimal;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+
+import org.apache.ofbiz.base.concurrent.ExecutionPool;
 import org.apache.ofbiz.base.util.Debug;
+import org.apache.ofbiz.base.util.UtilDateTime;
+import org.apache.ofbiz.base.util.UtilProperties;
 import org.apache.ofbiz.base.util.UtilValidate;
+import org.apache.ofbiz.base.util.cache.UtilCache;
 import org.apache.ofbiz.entity.Delegator;
 import org.apache.ofbiz.entity.GenericEntityException;
 import org.apache.ofbiz.entity.GenericValue;
+import org.apache.ofbiz.entity.condition.EntityCondition;
+import org.apache.ofbiz.entity.condition.EntityOperator;
+import org.apache.ofbiz.entity.transaction.GenericTransactionException;
+import org.apache.ofbiz.entity.transaction.TransactionUtil;
 import org.apache.ofbiz.entity.util.EntityQuery;
+import org.apache.ofbiz.entity.util.EntityUtil;
 import org.apache.ofbiz.order.shoppingcart.ShoppingCart;
 import org.apache.ofbiz.order.shoppingcart.ShoppingCartItem;
 import org.apache.ofbiz.product.store.ProductStoreWorker;
@@ -39,6 +65,29 @@ public class ShippingEstimateWrapper {
 
     public static final String module = ShippingEstimateWrapper.class.getName();
 
+    private static final int estimateThreads = (int) UtilProperties.getPropertyAsLong("order", "order.shipping.estimate.threads", 8);
+    private static final long estimateTimeout = UtilProperties.getPropertyAsLong("order", "order.shipping.estimate.timeout", 10000);
+    private static final int estimateQueueSize = (int) UtilProperties.getPropertyAsLong("order", "order.shipping.estimate.queueSize", 64);
+    /** Maximum number of product IDs in the IN condition used to read the shipping allowances */
+    private static final int allowanceQueryChunkSize = 500;
+    /** SHIPPING_ALLOWANCE prices by delegator name and productId, latest fromDate first */
+    private static final UtilCache<String, List<GenericValue>> allowanceCache = UtilCache.createUtilCache("order.ShippingAllowance", 0, 0,
+            UtilProperties.getPropertyAsLong("order", "order.shipping.allowance.cache.expireTime", 3600000L), true);
+    /**
+     * Calculates the estimates for all requests; once its threads are busy and its queue is full, an estimate is
+     * calculated on the request thread instead of waiting behind the estimates of other requests.
+     */
+    private static final ThreadPoolExecutor estimateExecutor = createEstimateExecutor();
+
+    private static ThreadPoolExecutor createEstimateExecutor() {
+        int threads = Math.max(1, estimateThreads);
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(Math.max(1, estimateQueueSize)), ExecutionPool.createThreadFactory(new ThreadGroup(module), "OFBiz-shipping-estimate"),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
     protected Delegator delegator = null;
     protected LocalDispatcher dispatcher = null;
 
@@ -77,11 +126,19 @@ public class ShippingEstimateWrapper {
 
         BigDecimal totalAllowance = BigDecimal.ZERO;
         if (UtilValidate.isNotEmpty(cart.getShipGroupItems(shipGroup))) {
+            Set<ShoppingCartItem> shipGroupItems = cart.getShipGroupItems(shipGroup).keySet();
+            Set<String> productIds = new HashSet<String>();
+            for (ShoppingCartItem item : shipGroupItems) {
+                if (item.getProductId() != null) {
+                    productIds.add(item.getProductId());
+                }
+            }
             try {
-                for (ShoppingCartItem item : cart.getShipGroupItems(shipGroup).keySet()) {
-                    GenericValue allowanceProductPrice = EntityQuery.use(delegator).from("ProductPrice").where("productPriceTypeId", "SHIPPING_ALLOWANCE", "productId", item.getProductId()).filterByDate().queryFirst();
-                    if (allowanceProductPrice != null && UtilValidate.isNotEmpty(allowanceProductPrice.get("price"))) {
-                        totalAllowance = totalAllowance.add(allowanceProductPrice.getBigDecimal("price")).multiply(item.getQuantity());
+                Map<String, BigDecimal> allowances = getShippingAllowances(delegator, productIds, UtilDateTime.nowTimestamp());
+                for (ShoppingCartItem item : shipGroupItems) {
+                    BigDecimal allowance = allowances.get(item.getProductId());
+                    if (allowance != null) {
+                        totalAllowance = totalAllowance.add(allowance.multiply(item.getQuantity()));
                     }
                 }
             } catch (GenericEntityException gee) {
@@ -101,25 +158,150 @@ public class ShippingEstimateWrapper {
         }
     }
 
-    protected void loadEstimates(BigDecimal totalAllowance) {
+    protected void loadEstimates(final BigDecimal totalAllowance) {
         this.shippingEstimates = new HashMap<GenericValue, BigDecimal>();
-        if (shippingMethods != null) {
+        if (shippingMethods == null) {
+            return;
+        }
+        boolean runParallel = estimateThreads > 1 && shippingMethods.size() > 1;
+        if (runParallel) {
+            try {
+                // the estimates are read in transactions of their own, not in the one of the caller
+                runParallel = !TransactionUtil.isTransactionInPlace();
+            } catch (GenericTransactionException e) {
+                Debug.logWarning(e, "Could not check for a transaction, calculating the shipping estimates on the current thread", module);
+                runParallel = false;
+            }
+        }
+        if (!runParallel) {
             for (GenericValue shipMethod : shippingMethods) {
-                String shippingMethodTypeId = shipMethod.getString("shipmentMethodTypeId");
-                String carrierRoleTypeId = shipMethod.getString("roleTypeId");
-                String carrierPartyId = shipMethod.getString("partyId");
-                String productStoreShipMethId = shipMethod.getString("productStoreShipMethId");
-                String shippingCmId = shippingAddress != null ? shippingAddress.getString("contactMechId") : null;
-
-                Map<String, Object> estimateMap = ShippingEvents.getShipGroupEstimate(dispatcher, delegator, "SALES_ORDER",
-                        shippingMethodTypeId, carrierPartyId, carrierRoleTypeId, shippingCmId, productStoreId,
-                        supplierPartyId, shippableItemInfo, shippableWeight, shippableQuantity, shippableTotal, partyId, productStoreShipMethId, totalAllowance);
-
-                if (!ServiceUtil.isError(estimateMap)) {
-                    BigDecimal shippingTotal = (BigDecimal) estimateMap.get("shippingTotal");
-                    shippingEstimates.put(shipMethod, shippingTotal);
+                putEstimate(shipMethod, loadEstimate(shipMethod, totalAllowance));
+            }
+            return;
+        }
+
+        // each carrier is asked at the same time, the page waits on the slowest one up to the timeout
+        Map<GenericValue, Future<Map<String, Object>>> futures = new LinkedHashMap<GenericValue, Future<Map<String, Object>>>();
+        for (final GenericValue shipMethod : shippingMethods) {
+            futures.put(shipMethod, estimateExecutor.submit(new Callable<Map<String, Object>>() {
+                public Map<String, Object> call() throws Exception {
+                    return loadEstimate(shipMethod, totalAllowance);
+                }
+            }));
+        }
+        long deadline = System.currentTimeMillis() + estimateTimeout;
+        for (Map.Entry<GenericValue, Future<Map<String, Object>>> entry : futures.entrySet()) {
+            GenericValue shipMethod = entry.getKey();
+            Future<Map<String, Object>> future = entry.getValue();
+            try {
+                putEstimate(shipMethod, future.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS));
+            } catch (TimeoutException e) {
+                // left without an estimate, like a method whose estimate fails; the estimate is not interrupted in the
+                // middle of its carrier call and transaction, it finishes on its own and fills the estimate cache
+                Debug.logWarning("No shipping estimate for " + shipMethod.getString("productStoreShipMethId") + " within " + estimateTimeout + " ms", module);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                Debug.logWarning(e, "Interrupted while waiting for the shipping estimate of " + shipMethod.getString("productStoreShipMethId"), module);
+            } catch (ExecutionException e) {
+                Debug.logError(e.getCause(), "Error calculating the shipping estimate of " + shipMethod.getString("productStoreShipMethId"), module);
+            }
+        }
+    }
+
+    protected Map<String, Object> loadEstimate(GenericValue shipMethod, BigDecimal totalAllowance) {
+        String shippingMethodTypeId = shipMethod.getString("shipmentMethodTypeId");
+        String carrierRoleTypeId = shipMethod.getString("roleTypeId");
+        String carrierPartyId = shipMethod.getString("partyId");
+        String productStoreShipMethId = shipMethod.getString("productStoreShipMethId");
+        String shippingCmId = shippingAddress != null ? shippingAddress.getString("contactMechId") : null;
+
+        return ShippingEvents.getShipGroupEstimate(dispatcher, delegator, "SALES_ORDER",
+                shippingMethodTypeId, carrierPartyId, carrierRoleTypeId, shippingCmId, productStoreId,
+                supplierPartyId, shippableItemInfo, shippableWeight, shippableQuantity, shippableTotal, partyId, productStoreShipMethId, totalAllowance);
+    }
+
+    private void putEstimate(GenericValue shipMethod, Map<String, Object> estimateMap) {
+        if (!ServiceUtil.isError(estimateMap)) {
+            BigDecimal shippingTotal = (BigDecimal) estimateMap.get("shippingTotal");
+            shippingEstimates.put(shipMethod, shippingTotal);
+        }
+    }
+
+    /**
+     * Gets the SHIPPING_ALLOWANCE prices of the products valid at the moment, the products without one are left out.
+     * The prices of each product are cached with all their dates, the products not cached yet are read with one query.
+     */
+    public static Map<String, BigDecimal> getShippingAllowances(Delegator delegator, Collection<String> productIds, Timestamp moment) throws GenericEntityException {
+        String keyPrefix = delegator.getDelegatorName() + "::";
+        Map<String, List<GenericValue>> allowancePrices = new HashMap<String, List<GenericValue>>();
+        List<String> missingProductIds = new ArrayList<String>();
+        for (String productId : productIds) {
+            List<GenericValue> productPrices = allowanceCache.get(keyPrefix + productId);
+            if (productPrices != null) {
+                allowancePrices.put(productId, productPrices);
+            } else {
+                missingProductIds.add(productId);
+            }
+        }
+        for (int i = 0; i < missingProductIds.size(); i += allowanceQueryChunkSize) {
+            List<String> chunk = missingProductIds.subList(i, Math.min(i + allowanceQueryChunkSize, missingProductIds.size()));
+            Map<String, List<GenericValue>> chunkPrices = new HashMap<String, List<GenericValue>>();
+            for (String productId : chunk) {
+                chunkPrices.put(productId, new ArrayList<GenericValue>());
+            }
+            List<GenericValue> productPrices = EntityQuery.use(delegator).from("ProductPrice")
+                    .where(EntityCondition.makeCondition("productPriceTypeId", EntityOperator.EQUALS, "SHIPPING_ALLOWANCE"),
+                            EntityCondition.makeCondition("productId", EntityOperator.IN, chunk))
+                    .orderBy("-fromDate").queryList();
+            for (GenericValue productPrice : productPrices) {
+                chunkPrices.get(productPrice.getString("productId")).add(productPrice);
+            }
+            for (Map.Entry<String, List<GenericValue>> entry : chunkPrices.entrySet()) {
+                List<GenericValue> prices = Collections.unmodifiableList(entry.getValue());
+                allowanceCache.put(keyPrefix + entry.getKey(), prices);
+                allowancePrices.put(entry.getKey(), prices);
+            }
+        }
+
+        Map<String, BigDecimal> allowances = new HashMap<String, BigDecimal>();
+        for (Map.Entry<String, List<GenericValue>> entry : allowancePrices.entrySet()) {
+            GenericValue allowancePrice = EntityUtil.getFirst(EntityUtil.filterByDate(entry.getValue(), moment));
+            if (allowancePrice != null && UtilValidate.isNotEmpty(allowancePrice.get("price"))) {
+                allowances.put(entry.getKey(), allowancePrice.getBigDecimal("price"));
+            }
+        }
+        return allowances;
+    }
+
+    /**
+     * Removes the cached SHIPPING_ALLOWANCE prices of the product, or of all products if productId is empty, once the
+     * current transaction, if any, commits; removed before, a reader could cache the prices not committed yet again.
+     */
+    public static void clearShippingAllowanceCache(Delegator delegator, final String productId) throws GenericTransactionException {
+        final String key = delegator.getDelegatorName() + "::" + productId;
+        if (!TransactionUtil.isTransactionInPlace()) {
+            removeShippingAllowances(key, productId);
+            return;
+        }
+        TransactionUtil.registerSynchronization(new Synchronization() {
+            @Override
+            public void beforeCompletion() {
+            }
+
+            @Override
+            public void afterCompletion(int status) {
+                if (status == Status.STATUS_COMMITTED) {
+                    removeShippingAllowances(key, productId);
                 }
             }
+        });
+    }
+
+    private static void removeShippingAllowances(String key, String productId) {
+        if (UtilValidate.isEmpty(productId)) {
+            allowanceCache.clear();
+        } else {
+            allowanceCache.remove(key);
         }
     }
 
@@ -18,19 +18,29 @@
  *******************************************************************************/
 package org.apache.ofbiz.order.shoppingcart.shipping;
 
+import java.io.UnsupportedEncodingException;
 import java.math.BigDecimal;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import org.apache.ofbiz.base.util.Debug;
 import org.apache.ofbiz.base.util.GeneralException;
+import org.apache.ofbiz.base.util.StringUtil;
 import org.apache.ofbiz.base.util.UtilMisc;
+import org.apache.ofbiz.base.util.UtilProperties;
 import org.apache.ofbiz.base.util.UtilValidate;
+import org.apache.ofbiz.base.util.cache.UtilCache;
 import org.apache.ofbiz.entity.Delegator;
 import org.apache.ofbiz.entity.GenericEntityException;
 import org.apache.ofbiz.entity.GenericValue;
@@ -56,6 +66,11 @@ public class ShippingEvents {
 
     public static final String module = ShippingEvents.class.getName();
 
+    /** Shipping totals by estimate key, see makeEstimateKey; the hits and misses are shown with the other caches */
+    private static final UtilCache<String, BigDecimal> estimateCache = UtilCache.createUtilCache("order.ShippingEstimate",
+            (int) UtilProperties.getPropertyAsLong("order", "order.shipping.estimate.cache.maxSize", 10000), 0,
+            UtilProperties.getPropertyAsLong("order", "order.shipping.estimate.cache.expireTime", 600000L), false);
+
     public static String getShipEstimate(HttpServletRequest request, HttpServletResponse response) {
         ShoppingCart cart = (ShoppingCart) request.getSession().getAttribute("shoppingCart");
         LocalDispatcher dispatcher = (LocalDispatcher) request.getAttribute("dispatcher");
@@ -206,6 +221,19 @@ public class ShippingEvents {
             return ServiceUtil.returnError(errorMessageList);
         }
 
+        // the same shipment to the same address gets the same estimate, whatever the session asking for it
+        String estimateKey = null;
+        if (isEstimateCacheEnabled()) {
+            estimateKey = makeEstimateKey(delegator, orderTypeId, shipmentMethodTypeId, carrierPartyId, carrierRoleTypeId, shippingContactMechId,
+                    productStoreId, supplierPartyId, itemInfo, shippableWeight, shippableQuantity, shippableTotal, partyId, productStoreShipMethId, totalAllowance);
+            BigDecimal cachedTotal = estimateKey != null ? estimateCache.get(estimateKey) : null;
+            if (cachedTotal != null) {
+                Map<String, Object> responseResult = ServiceUtil.returnSuccess();
+                responseResult.put("shippingTotal", cachedTotal);
+                return responseResult;
+            }
+        }
+
         // the initial amount before manual estimates
         BigDecimal shippingTotal = BigDecimal.ZERO;
 
@@ -227,12 +255,15 @@ public class ShippingEvents {
 
         // call the external shipping service
         try {
-            BigDecimal externalAmt = null;
+            Map<String, Object> externalResp = null;
             if (UtilValidate.isNotEmpty(shippingContactMechId)) {
-                externalAmt = getExternalShipEstimate(dispatcher, storeShipMethod, serviceFields);
+                externalResp = runExternalShipEstimate(dispatcher, storeShipMethod, serviceFields);
             }
-            if (externalAmt != null) {
-                shippingTotal = shippingTotal.add(externalAmt);
+            if (externalResp != null && ServiceUtil.isFailure(externalResp)) {
+                // the estimate is made without the carrier amount, the next call has to ask the carrier again
+                estimateKey = null;
+            } else if (externalResp != null && externalResp.get("shippingEstimateAmount") != null) {
+                shippingTotal = shippingTotal.add((BigDecimal) externalResp.get("shippingEstimateAmount"));
             }
         } catch (GeneralException e) {
             return ServiceUtil.returnError(standardMessage);
@@ -266,12 +297,133 @@ public class ShippingEvents {
              shippingTotal = minimumPrice;
         }
 
+        if (estimateKey != null) {
+            estimateCache.put(estimateKey, shippingTotal);
+        }
+
         // return the totals
         Map<String, Object> responseResult = ServiceUtil.returnSuccess();
         responseResult.put("shippingTotal", shippingTotal);
         return responseResult;
     }
 
+    /** Returns true if the estimates of getShipGroupEstimate are cached by shipment */
+    public static boolean isEstimateCacheEnabled() {
+        return UtilProperties.propertyValueEqualsIgnoreCase("order", "order.shipping.estimate.cache.enable", "Y");
+    }
+
+    /**
+     * Makes the key of an estimate: a digest of its inputs in a canonical form, the destination being its postal
+     * area rather than the contact mech. The party is only part of the key when the store has party specific
+     * shipment cost estimates.
+     * @return the key or null if the estimate is not to be cached
+     */
+    private static String makeEstimateKey(Delegator delegator, String orderTypeId, String shipmentMethodTypeId, String carrierPartyId,
+            String carrierRoleTypeId, String shippingContactMechId, String productStoreId, String supplierPartyId, List<Map<String, Object>> itemInfo,
+            BigDecimal shippableWeight, BigDecimal shippableQuantity, BigDecimal shippableTotal, String partyId, String productStoreShipMethId,
+            BigDecimal totalAllowance) {
+        Map<String, Object> inputs = new HashMap<String, Object>();
+        inputs.put("orderTypeId", orderTypeId);
+        inputs.put("shipmentMethodTypeId", shipmentMethodTypeId);
+        inputs.put("carrierPartyId", carrierPartyId);
+        inputs.put("carrierRoleTypeId", carrierRoleTypeId);
+        inputs.put("productStoreId", productStoreId);
+        inputs.put("supplierPartyId", supplierPartyId);
+        inputs.put("productStoreShipMethId", productStoreShipMethId);
+        inputs.put("shippableItemInfo", itemInfo);
+        inputs.put("shippableWeight", shippableWeight);
+        inputs.put("shippableQuantity", shippableQuantity);
+        inputs.put("shippableTotal", shippableTotal);
+        inputs.put("totalAllowance", totalAllowance);
+        try {
+            if (UtilValidate.isNotEmpty(shippingContactMechId)) {
+                GenericValue postalAddress = EntityQuery.use(delegator).from("PostalAddress").where("contactMechId", shippingContactMechId).cache().queryOne();
+                if (postalAddress == null) {
+                    return null;
+                }
+                // the street too, a carrier may price the address itself (residential or not, zone of the street)
+                inputs.put("shippingAddress", UtilMisc.toMap("countryGeoId", postalAddress.get("countryGeoId"),
+                        "stateProvinceGeoId", postalAddress.get("stateProvinceGeoId"), "city", postalAddress.get("city"),
+                        "postalCode", postalAddress.get("postalCode"), "postalCodeExt", postalAddress.get("postalCodeExt"),
+                        "address1", postalAddress.get("address1"), "address2", postalAddress.get("address2")));
+            }
+            if (partyId != null) {
+                GenericValue partyEstimate = EntityQuery.use(delegator).from("ShipmentCostEstimate")
+                        .where(EntityCondition.makeCondition("productStoreId", EntityOperator.EQUALS, productStoreId),
+                                EntityCondition.makeCondition("partyId", EntityOperator.NOT_EQUAL, null))
+                        .cache().queryFirst();
+                if (partyEstimate != null) {
+                    inputs.put("partyId", partyId);
+                }
+            }
+        } catch (GenericEntityException e) {
+            Debug.logWarning(e, "Could not make the shipping estimate cache key, not caching the estimate", module);
+            return null;
+        }
+        StringBuilder canonical = new StringBuilder();
+        appendCanonical(canonical, inputs);
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return StringUtil.toHexString(digest.digest(canonical.toString().getBytes("UTF-8")));
+        } catch (GeneralSecurityException e) {
+            Debug.logWarning(e, module);
+        } catch (UnsupportedEncodingException e) {
+            Debug.logWarning(e, module);
+        }
+        return null;
+    }
+
+    /**
+     * Appends the value with its maps sorted by key, its collections sorted and its numbers without trailing zeros.
+     * The separators in keys and values are escaped and null is written as \N, so different inputs never give the
+     * same canonical form.
+     */
+    private static void appendCanonical(StringBuilder canonical, Object value) {
+        if (value instanceof Map<?, ?>) {
+            Map<String, Object> sorted = new TreeMap<String, Object>();
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                sorted.put(String.valueOf(entry.getKey()), entry.getValue());
+            }
+            canonical.append('{');
+            for (Map.Entry<String, Object> entry : sorted.entrySet()) {
+                appendEscaped(canonical, entry.getKey());
+                canonical.append('=');
+                appendCanonical(canonical, entry.getValue());
+                canonical.append(';');
+            }
+            canonical.append('}');
+        } else if (value instanceof Collection<?>) {
+            List<String> elements = new ArrayList<String>();
+            for (Object element : (Collection<?>) value) {
+                StringBuilder elementCanonical = new StringBuilder();
+                appendCanonical(elementCanonical, element);
+                elements.add(elementCanonical.toString());
+            }
+            Collections.sort(elements);
+            canonical.append('[');
+            for (String element : elements) {
+                canonical.append(element).append(';');
+            }
+            canonical.append(']');
+        } else if (value instanceof BigDecimal) {
+            canonical.append(((BigDecimal) value).stripTrailingZeros().toPlainString());
+        } else if (value != null) {
+            appendEscaped(canonical, value.toString());
+        } else {
+            canonical.append("\\N");
+        }
+    }
+
+    private static void appendEscaped(StringBuilder canonical, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' || c == ';' || c == '=' || c == '{' || c == '}' || c == '[' || c == ']') {
+                canonical.append('\\');
+            }
+            canonical.append(c);
+        }
+    }
+
     public static BigDecimal getGenericShipEstimate(LocalDispatcher dispatcher, GenericValue storeShipMeth, Map <String, ? extends Object>context) throws GeneralException {
         // invoke the generic estimate service next -- append to estimate amount
         Map<String, Object> genericEstimate = null;
@@ -308,6 +460,18 @@ public class ShippingEvents {
     }
 
     public static BigDecimal getExternalShipEstimate(LocalDispatcher dispatcher, GenericValue storeShipMeth, Map<String, Object> context) throws GeneralException {
+        Map<String, Object> serviceResp = runExternalShipEstimate(dispatcher, storeShipMeth, context);
+        if (serviceResp == null || ServiceUtil.isFailure(serviceResp)) {
+            return null;
+        }
+        return (BigDecimal) serviceResp.get("shippingEstimateAmount");
+    }
+
+    /**
+     * Runs the external estimate service of the store ship method, a failure of the service being logged.
+     * @return the response of the service or null if the method has no external service or its rate check is turned off
+     */
+    private static Map<String, Object> runExternalShipEstimate(LocalDispatcher dispatcher, GenericValue storeShipMeth, Map<String, Object> context) throws GeneralException {
         String shipmentCustomMethodId = storeShipMeth.getString("shipmentCustomMethodId");
         Delegator delegator = dispatcher.getDelegator();
         String serviceName = "";
@@ -318,7 +482,7 @@ public class ShippingEvents {
             serviceName = storeShipMeth.getString("serviceName");
         }
         // invoke the external shipping estimate service
-        BigDecimal externalShipAmt = null;
+        Map<String, Object> serviceResp = null;
         if (serviceName != null) {
             String doEstimates = EntityUtilProperties.getPropertyValue("shipment", "shipment.doratecheck", "true", delegator);
             //If all estimates are not turned off, check for the individual one
@@ -341,7 +505,6 @@ public class ShippingEvents {
                 context.put("shipmentGatewayConfigId", shipmentGatewayConfigId);
                 
                 // invoke the service
-                Map<String, Object> serviceResp = null;
                 try {
                     Debug.logInfo("Service : " + serviceName + " / shipmentGatewayConfigId : " + shipmentGatewayConfigId + " / configProps : " + configProps + " -- " + context, module);
                     // because we don't want to blow up too big or rollback the transaction when this happens, always have it run in its own transaction...
@@ -358,12 +521,10 @@ public class ShippingEvents {
                     String errMsg = "Failure getting external shipment cost estimate: " + ServiceUtil.getErrorMessage(serviceResp);
                     Debug.logError(errMsg, module);
                     // should not throw an Exception here, otherwise getShipGroupEstimate would return an error, causing all sorts of services like add or update order item to abort
-                } else {
-                    externalShipAmt = (BigDecimal) serviceResp.get("shippingEstimateAmount");
                 }
             }
         }
-        return externalShipAmt;
+        return serviceResp;
     }
 
     /**
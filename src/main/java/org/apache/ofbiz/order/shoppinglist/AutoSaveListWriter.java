@@ -0,0 +1,315 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *******************************************************************************/
+package org.apache.ofbiz.order.shoppinglist;
+
+import java.math.BigDecimal;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.ofbiz.base.concurrent.ExecutionPool;
+import org.apache.ofbiz.base.util.Debug;
+import org.apache.ofbiz.base.util.GeneralException;
+import org.apache.ofbiz.base.util.UtilDateTime;
+import org.apache.ofbiz.base.util.UtilMisc;
+import org.apache.ofbiz.base.util.UtilProperties;
+import org.apache.ofbiz.entity.Delegator;
+import org.apache.ofbiz.entity.GenericValue;
+import org.apache.ofbiz.entity.transaction.TransactionUtil;
+import org.apache.ofbiz.entity.util.EntityQuery;
+import org.apache.ofbiz.order.shoppingcart.ShoppingCart;
+import org.apache.ofbiz.order.shoppingcart.ShoppingCartItem;
+import org.apache.ofbiz.service.LocalDispatcher;
+
+/**
+ * Write-behind of the auto-save shopping lists.
+ * <p>
+ * A change of the cart only takes a copy of its lines and marks the cart as dirty; a background thread writes the
+ * latest copy a short delay later, so a burst of changes is written once. The copy is written as a diff against the
+ * ShoppingListItem records: only the products added, changed or removed since are written. The pending copy of a
+ * cart is written right away by {@link #flush(ShoppingCart)} when its session ends (the CartEventListener), on logout
+ * and before the list is restored, and dropped by {@link #discard(ShoppingCart)} when the cart is cleared.
+ * <p>
+ * The writes of a cart are serialized by a lock of the cart, the writes of different carts run side by side. The
+ * background threads never change the cart: the id of an auto-save list they create is set on the cart by the next
+ * call from a request thread.
+ */
+public final class AutoSaveListWriter {
+
+    public static final String module = AutoSaveListWriter.class.getName();
+    public static final String resource_error = "OrderErrorUiLabels";
+
+    private static final long writeDelay = UtilProperties.getPropertyAsLong("order", "order.autoSaveList.writeBehind.delay", 2000);
+    private static final int writeThreads = (int) UtilProperties.getPropertyAsLong("order", "order.autoSaveList.writeBehind.threads", 4);
+
+    /** The latest copy of the lines of each dirty cart */
+    private static final ConcurrentMap<ShoppingCart, CartLines> pendingCarts = new ConcurrentHashMap<ShoppingCart, CartLines>();
+    /** Lock of each cart, held while taking its copy out and writing it, so the writes of a list never overlap */
+    private static final Map<ShoppingCart, Object> cartLocks = Collections.synchronizedMap(new WeakHashMap<ShoppingCart, Object>());
+    /** Ids of the auto-save lists created by the background threads, not set on their cart yet */
+    private static final Map<ShoppingCart, String> createdListIds = Collections.synchronizedMap(new WeakHashMap<ShoppingCart, String>());
+    private static final ScheduledExecutorService writeExecutor = ExecutionPool.getScheduledExecutor(new ThreadGroup(module), "OFBiz-auto-save-list",
+            Math.max(1, writeThreads), 60, false);
+
+    private AutoSaveListWriter() {}
+
+    /** Returns true if the auto-save lists are written behind, false to write them on each change of the cart */
+    public static boolean isEnabled() {
+        return UtilProperties.propertyValueEqualsIgnoreCase("order", "order.autoSaveList.writeBehind.enable", "Y");
+    }
+
+    /** Takes a copy of the cart lines and schedules its write, unless a write of the cart is already scheduled */
+    public static void markDirty(final ShoppingCart cart, LocalDispatcher dispatcher) {
+        setCreatedListId(cart);
+        if (pendingCarts.put(cart, new CartLines(cart, dispatcher)) == null) {
+            writeExecutor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        writePending(cart);
+                    } catch (GeneralException e) {
+                        Debug.logWarning(e, UtilProperties.getMessage(resource_error, "OrderUnableToStoreAutoSaveCart", cart.getLocale()), module);
+                    }
+                }
+            }, writeDelay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /** Writes the cart to its auto-save list now, dropping the pending copy */
+    public static void write(ShoppingCart cart, LocalDispatcher dispatcher) throws GeneralException {
+        setCreatedListId(cart);
+        CartLines lines = new CartLines(cart, dispatcher);
+        synchronized (getCartLock(cart)) {
+            pendingCarts.remove(cart);
+            writeLines(cart, lines);
+        }
+        setCreatedListId(cart);
+    }
+
+    /** Writes the pending copy of the cart, if any; called on the request thread of the cart */
+    public static void flush(ShoppingCart cart) throws GeneralException {
+        setCreatedListId(cart);
+        writePending(cart);
+        setCreatedListId(cart);
+    }
+
+    /** Drops the pending copy of the cart, once this returns no write of the cart is running */
+    public static void discard(ShoppingCart cart) {
+        synchronized (getCartLock(cart)) {
+            pendingCarts.remove(cart);
+            createdListIds.remove(cart);
+        }
+    }
+
+    /** Writes the pending copies of all carts, when the application stops */
+    public static void flushAll() {
+        for (ShoppingCart cart : pendingCarts.keySet()) {
+            try {
+                writePending(cart);
+            } catch (GeneralException e) {
+                Debug.logWarning(e, UtilProperties.getMessage(resource_error, "OrderUnableToStoreAutoSaveCart", cart.getLocale()), module);
+            }
+        }
+    }
+
+    private static void writePending(ShoppingCart cart) throws GeneralException {
+        if (!pendingCarts.containsKey(cart)) {
+            return;
+        }
+        synchronized (getCartLock(cart)) {
+            CartLines lines = pendingCarts.remove(cart);
+            if (lines != null) {
+                writeLines(cart, lines);
+            }
+        }
+    }
+
+    private static Object getCartLock(ShoppingCart cart) {
+        synchronized (cartLocks) {
+            Object cartLock = cartLocks.get(cart);
+            if (cartLock == null) {
+                cartLock = new Object();
+                cartLocks.put(cart, cartLock);
+            }
+            return cartLock;
+        }
+    }
+
+    /** Sets the id of the auto-save list created in the background on the cart; called on the request thread of the cart */
+    private static void setCreatedListId(ShoppingCart cart) {
+        String autoSaveListId = createdListIds.remove(cart);
+        if (autoSaveListId != null && cart.getAutoSaveListId() == null) {
+            cart.setAutoSaveListId(autoSaveListId);
+        }
+    }
+
+    /** Writes the lines, with the cart lock held */
+    private static void writeLines(ShoppingCart cart, final CartLines lines) throws GeneralException {
+        final Delegator delegator = cart.getDelegator();
+        String autoSaveListId = lines.autoSaveListId;
+        if (autoSaveListId == null) {
+            // created by an earlier write of the cart since the copy was taken
+            autoSaveListId = createdListIds.get(cart);
+        }
+        if (autoSaveListId == null) {
+            autoSaveListId = ShoppingListEvents.getAutoSaveListId(delegator, lines.dispatcher, null, lines.userLogin, lines.productStoreId);
+            if (autoSaveListId != null) {
+                createdListIds.put(cart, autoSaveListId);
+            }
+        }
+        if (autoSaveListId == null) {
+            return;
+        }
+        final String shoppingListId = autoSaveListId;
+        int changedItems = TransactionUtil.doNewTransaction(new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                GenericValue shoppingList = EntityQuery.use(delegator).from("ShoppingList").where("shoppingListId", shoppingListId).queryOne();
+                if (shoppingList == null) {
+                    return 0;
+                }
+                // one list item per product, as createShoppingListItem adds the quantity of a product already in the list
+                Map<String, GenericValue> listItems = new HashMap<String, GenericValue>();
+                List<GenericValue> toRemove = new ArrayList<GenericValue>();
+                for (GenericValue listItem : EntityQuery.use(delegator).from("ShoppingListItem").where("shoppingListId", shoppingListId).orderBy("shoppingListItemSeqId").queryList()) {
+                    String productId = listItem.getString("productId");
+                    if (lines.byProduct.containsKey(productId) && !listItems.containsKey(productId)) {
+                        listItems.put(productId, listItem);
+                    } else {
+                        toRemove.add(listItem);
+                    }
+                }
+
+                int changed = 0;
+                List<GenericValue> toStore = new ArrayList<GenericValue>();
+                for (CartLine line : lines.byProduct.values()) {
+                    GenericValue listItem = listItems.get(line.productId);
+                    if (listItem == null) {
+                        listItem = delegator.makeValue("ShoppingListItem");
+                        listItem.set("shoppingListId", shoppingListId);
+                        line.setFields(listItem);
+                        // created one by one, the next sub sequence id is read from the table
+                        delegator.setNextSubSeqId(listItem, "shoppingListItemSeqId", 5, 1);
+                        listItem.create();
+                        changed++;
+                    } else if (!line.isSame(listItem)) {
+                        line.setFields(listItem);
+                        toStore.add(listItem);
+                        changed++;
+                    }
+                }
+                delegator.storeAll(toStore);
+                for (GenericValue listItem : toRemove) {
+                    delegator.removeByAnd("ShoppingListItemSurvey", UtilMisc.toMap("shoppingListId", shoppingListId, "shoppingListItemSeqId", listItem.get("shoppingListItemSeqId")));
+                    listItem.remove();
+                    changed++;
+                }
+
+                String partyId = lines.userLogin != null ? lines.userLogin.getString("partyId") : null;
+                if (changed > 0 && (partyId == null || !partyId.equals(shoppingList.getString("partyId")))) {
+                    shoppingList.set("lastAdminModified", UtilDateTime.nowTimestamp());
+                    shoppingList.store();
+                }
+                return changed;
+            }
+        }, "writeAutoSaveList", 0, true);
+        if (Debug.verboseOn()) {
+            Debug.logVerbose("Wrote " + changedItems + " changed items of auto-save list " + shoppingListId, module);
+        }
+    }
+
+    /** Copy of the cart lines to save, taken on the thread changing the cart */
+    private static final class CartLines {
+        private final LocalDispatcher dispatcher;
+        private final GenericValue userLogin;
+        private final String productStoreId;
+        private final String autoSaveListId;
+        private final Map<String, CartLine> byProduct = new LinkedHashMap<String, CartLine>();
+
+        private CartLines(ShoppingCart cart, LocalDispatcher dispatcher) {
+            this.dispatcher = dispatcher;
+            GenericValue userLogin = cart.getUserLogin();
+            this.userLogin = userLogin != null ? userLogin : cart.getAutoUserLogin();
+            this.productStoreId = cart.getProductStoreId();
+            this.autoSaveListId = cart.getAutoSaveListId();
+            for (ShoppingCartItem item : cart) {
+                // promotional items are not saved, and a list item needs a product
+                if (item.getIsPromo() || item.getProductId() == null) {
+                    continue;
+                }
+                CartLine line = byProduct.get(item.getProductId());
+                if (line == null) {
+                    byProduct.put(item.getProductId(), new CartLine(item));
+                } else {
+                    line.quantity = line.quantity.add(item.getQuantity());
+                }
+            }
+        }
+    }
+
+    /** The saved fields of the first cart line of a product, with the quantity of all its lines */
+    private static final class CartLine {
+        private final String productId;
+        private BigDecimal quantity;
+        private final Timestamp reservStart;
+        private final BigDecimal reservLength;
+        private final BigDecimal reservPersons;
+        private final String configId;
+
+        private CartLine(ShoppingCartItem item) {
+            this.productId = item.getProductId();
+            this.quantity = item.getQuantity();
+            this.reservStart = item.getReservStart();
+            this.reservLength = item.getReservLength();
+            this.reservPersons = item.getReservPersons();
+            this.configId = item.getConfigWrapper() != null ? item.getConfigWrapper().getConfigId() : null;
+        }
+
+        private void setFields(GenericValue listItem) {
+            listItem.set("productId", productId);
+            listItem.set("quantity", quantity);
+            listItem.set("reservStart", reservStart);
+            listItem.set("reservLength", reservLength);
+            listItem.set("reservPersons", reservPersons);
+            listItem.set("configId", configId);
+        }
+
+        private boolean isSame(GenericValue listItem) {
+            return isSame(quantity, listItem.getBigDecimal("quantity"))
+                    && isSame(reservLength, listItem.getBigDecimal("reservLength"))
+                    && isSame(reservPersons, listItem.getBigDecimal("reservPersons"))
+                    && (reservStart == null ? listItem.get("reservStart") == null : reservStart.equals(listItem.getTimestamp("reservStart")))
+                    && (configId == null ? listItem.get("configId") == null : configId.equals(listItem.getString("configId")));
+        }
+
+        private static boolean isSame(BigDecimal value, BigDecimal listValue) {
+            return value == null ? listValue == null : listValue != null && value.compareTo(listValue) == 0;
+        }
+    }
+}
@@ -388,36 +388,12 @@ public class ShoppingListEvents {
     }
 
     /**
-     * Fills the specialized shopping list with the current shopping cart if one exists (if not leaves it alone)
+     * Fills the specialized shopping list with the current shopping cart if one exists (if not leaves it alone),
+     * writing only the products added, changed or removed since the list was last written
      */
     public static void fillAutoSaveList(ShoppingCart cart, LocalDispatcher dispatcher) throws GeneralException {
         if (cart != null && dispatcher != null) {
-            GenericValue userLogin = ShoppingListEvents.getCartUserLogin(cart);
-            Delegator delegator = cart.getDelegator();
-            String autoSaveListId = cart.getAutoSaveListId();
-            if (autoSaveListId == null) {
-                autoSaveListId = getAutoSaveListId(delegator, dispatcher, null, userLogin, cart.getProductStoreId());
-                cart.setAutoSaveListId(autoSaveListId);
-            }
-            GenericValue shoppingList = EntityQuery.use(delegator).from("ShoppingList").where("shoppingListId", autoSaveListId).queryOne();
-            Integer currentListSize = 0;
-            if (UtilValidate.isNotEmpty(shoppingList)) {
-                List<GenericValue> shoppingListItems = shoppingList.getRelated("ShoppingListItem", null, null, false);
-                if (UtilValidate.isNotEmpty(shoppingListItems)) {
-                    currentListSize = shoppingListItems.size();
-                }
-            }
-
-            try {
-                String[] itemsArray = makeCartItemsArray(cart);
-                if (itemsArray != null && itemsArray.length != 0) {
-                    addBulkFromCart(delegator, dispatcher, cart, userLogin, autoSaveListId, null, itemsArray, false, false);
-                }else if(itemsArray.length == 0 && currentListSize != 0){
-                    clearListInfo(delegator, autoSaveListId);
-                }
-            } catch (IllegalArgumentException e) {
-                throw new GeneralException(e.getMessage(), e);
-            }
+            AutoSaveListWriter.write(cart, dispatcher);
         }
     }
 
@@ -453,6 +429,13 @@ public class ShoppingListEvents {
         HttpSession session = request.getSession();
         ShoppingCart cart = ShoppingCartEvents.getCartObject(request);
 
+        // the list must hold the latest changes of the cart before it is compared with it
+        try {
+            AutoSaveListWriter.flush(cart);
+        } catch (GeneralException e) {
+            Debug.logError(e, module);
+        }
+
         // safety check for missing required parameter.
         if (cart.getWebSiteId() == null) {
             cart.setWebSiteId(WebSiteWorker.getWebSiteId(request));
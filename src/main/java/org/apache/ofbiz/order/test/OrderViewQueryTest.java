@@ -0,0 +1,149 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *******************************************************************************/
+package org.apache.ofbiz.order.test;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.ofbiz.entity.Delegator;
+import org.apache.ofbiz.entity.GenericEntity;
+import org.apache.ofbiz.entity.GenericEntityException;
+import org.apache.ofbiz.entity.GenericValue;
+import org.apache.ofbiz.entity.eca.EntityEcaHandler;
+import org.apache.ofbiz.order.order.OrderReadHelper;
+import org.apache.ofbiz.service.testtools.OFBizTestCase;
+
+/**
+ * Counts the queries of the order view (OrderView.groovy): the records it reads per order item and per ship group
+ * have to come from the snapshot of {@link OrderReadHelper#loadSnapshot}, which reads each entity once.
+ * <p>
+ * The queries are counted through the entity ECA handler of the delegator, which is called before each query that
+ * is not answered from the entity cache.
+ */
+public class OrderViewQueryTest extends OFBizTestCase {
+
+    protected static final String orderId = "TEST_DEMO10090";
+    /** Entities the view used to read per order item, per ship group or apart from the snapshot */
+    protected static final String[] viewEntities = { "OrderItem", "OrderItemShipGroup", "OrderItemShipGroupAssoc", "OrderItemShipGrpInvRes",
+            "ItemIssuance", "OrderPaymentPreference", "OrderRole", "OrderAdjustment", "OrderTerm" };
+
+    protected EntityEcaHandler<Object> ecaHandler = null;
+    protected QueryCounter<Object> queryCounter = null;
+
+    public OrderViewQueryTest(String name) {
+        super(name);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        ecaHandler = delegator.getEntityEcaHandler();
+        queryCounter = new QueryCounter<Object>(ecaHandler);
+        delegator.setEntityEcaHandler(queryCounter);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        delegator.setEntityEcaHandler(ecaHandler);
+    }
+
+    public void testLoadSnapshot() throws Exception {
+        queryCounter.reset();
+        OrderReadHelper orh = OrderReadHelper.loadSnapshot(delegator, orderId);
+        assertFalse("The test order has no items", orh.getOrderItems().isEmpty());
+        for (String entityName : viewEntities) {
+            assertEquals("Queries of " + entityName + " to load the snapshot", 1, queryCounter.getCount(entityName));
+        }
+    }
+
+    public void testOrderViewReadsFromSnapshot() throws Exception {
+        OrderReadHelper orh = OrderReadHelper.loadSnapshot(delegator, orderId);
+        queryCounter.reset();
+
+        // the reads of OrderView.groovy
+        orh.getAdjustments();
+        orh.getOrderHeaderAdjustments();
+        orh.getOrderTerms();
+        orh.getOrderRoles("SALES_REP");
+        orh.getOrderItemIssuances();
+        orh.getPaymentPreferences();
+        List<GenericValue> shipGroups = orh.getOrderItemShipGroups();
+        for (GenericValue orderItem : orh.getOrderItems()) {
+            orh.getOrderItemShipGroupAssocs(orderItem);
+            orh.getOrderItemShipGrpInvResList(orderItem);
+            orh.getOrderItemIssuances(orderItem);
+            orh.getOrderItemAdjustments(orderItem);
+        }
+        for (GenericValue shipGroup : shipGroups) {
+            orh.getOrderItemAndShipGroupAssoc(shipGroup.getString("shipGroupSeqId"));
+        }
+
+        for (String entityName : viewEntities) {
+            assertEquals("Queries of " + entityName + " after the snapshot was loaded", 0, queryCounter.getCount(entityName));
+        }
+    }
+
+    /**
+     * Counts the queries run per entity by the thread that last reset it, so the jobs running meanwhile are left out,
+     * and passes the calls on to the ECA handler it replaces.
+     */
+    protected static class QueryCounter<T> implements EntityEcaHandler<T> {
+        protected final EntityEcaHandler<T> ecaHandler;
+        protected final Map<String, Integer> counts = new HashMap<String, Integer>();
+        protected volatile Thread countedThread = Thread.currentThread();
+
+        protected QueryCounter(EntityEcaHandler<T> ecaHandler) {
+            this.ecaHandler = ecaHandler;
+        }
+
+        public synchronized void reset() {
+            counts.clear();
+            countedThread = Thread.currentThread();
+        }
+
+        public synchronized int getCount(String entityName) {
+            Integer count = counts.get(entityName);
+            return count != null ? count.intValue() : 0;
+        }
+
+        @Override
+        public void setDelegator(Delegator delegator) {
+            if (ecaHandler != null) {
+                ecaHandler.setDelegator(delegator);
+            }
+        }
+
+        @Override
+        public Map<String, List<T>> getEntityEventMap(String entityName) {
+            return ecaHandler != null ? ecaHandler.getEntityEventMap(entityName) : null;
+        }
+
+        @Override
+        public void evalRules(String currentOperation, Map<String, List<T>> eventMap, String event, GenericEntity value, boolean isError) throws GenericEntityException {
+            if (Thread.currentThread() == countedThread && EntityEcaHandler.OP_FIND.equals(currentOperation) && EntityEcaHandler.EV_RUN.equals(event)) {
+                synchronized (this) {
+                    counts.put(value.getEntityName(), Integer.valueOf(getCount(value.getEntityName()) + 1));
+                }
+            }
+            if (ecaHandler != null) {
+                ecaHandler.evalRules(currentOperation, eventMap, event, value, isError);
+            }
+        }
+    }
+}
@@ -0,0 +1,266 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *******************************************************************************/
+package org.apache.ofbiz.order.test;
+
+import java.math.BigDecimal;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+import org.apache.ofbiz.base.util.Debug;
+import org.apache.ofbiz.base.util.UtilMisc;
+import org.apache.ofbiz.entity.GenericValue;
+import org.apache.ofbiz.entity.util.EntityQuery;
+import org.apache.ofbiz.entity.util.EntityUtil;
+import org.apache.ofbiz.order.order.OrderReadHelper;
+import org.apache.ofbiz.order.shoppingcart.CheckOutHelper;
+import org.apache.ofbiz.order.shoppingcart.ShoppingCart;
+import org.apache.ofbiz.order.shoppingcart.ShoppingCartItem;
+import org.apache.ofbiz.order.shoppingcart.product.ProductPromoWorker;
+import org.apache.ofbiz.order.shoppinglist.AutoSaveListWriter;
+import org.apache.ofbiz.order.shoppinglist.ShoppingListEvents;
+import org.apache.ofbiz.service.testtools.OFBizTestCase;
+
+/**
+ * Timings of the cart, promotion and tax hot paths for a range of cart sizes, promotion counts and ship group
+ * counts. Each operation is run a few times to warm up and then timed; the average is logged per combination so
+ * runs can be compared between versions.
+ * <p>
+ * The checks are meant to catch an operation becoming quadratic or worse, not small slowdowns: every average has to
+ * stay below maxAverageMillis, and the average for the largest cart may grow at most maxGrowthFactor times faster
+ * than the number of lines compared to the smallest cart, plus growthSlackMillis for the timer noise.
+ */
+public class ShoppingCartPerformanceTest extends OFBizTestCase {
+
+    public static final String module = ShoppingCartPerformanceTest.class.getName();
+
+    protected static final String productStoreId = "9000";
+    protected static final String partyId = "DemoCustomer";
+    protected static final String shippingContactMechId = "9015";
+
+    protected static final int[] cartSizes = { 1, 10, 50 };
+    protected static final int[] promoCounts = { 0, 5, 20 };
+    protected static final int[] shipGroupCounts = { 1, 3 };
+    protected static final int warmupIterations = 3;
+    protected static final int measureIterations = 10;
+    protected static final double maxAverageMillis = 2000;
+    protected static final double maxGrowthFactor = 4;
+    protected static final double growthSlackMillis = 50;
+
+    protected List<String> productIds = null;
+    protected List<GenericValue> productPromos = null;
+    /** The carts made by the test, their auto-save lists are removed on tear down */
+    protected List<ShoppingCart> carts = null;
+
+    public ShoppingCartPerformanceTest(String name) {
+        super(name);
+    }
+
+    /** An operation to time, gets a freshly built cart for each run */
+    protected interface CartOperation {
+        void run(ShoppingCart cart) throws Exception;
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        carts = new LinkedList<ShoppingCart>();
+        List<GenericValue> pricedProducts = EntityQuery.use(delegator).select("productId").from("ProductPrice").where("productPriceTypeId", "DEFAULT_PRICE").distinct().queryList();
+        Set<String> pricedProductIds = new HashSet<String>(EntityUtil.getFieldListFromEntityList(pricedProducts, "productId", true));
+        productIds = new LinkedList<String>();
+        List<GenericValue> products = EntityQuery.use(delegator).select("productId").from("Product").where("productTypeId", "FINISHED_GOOD", "isVirtual", "N").orderBy("productId").queryList();
+        for (GenericValue product : products) {
+            if (pricedProductIds.contains(product.getString("productId"))) {
+                productIds.add(product.getString("productId"));
+            }
+        }
+
+        productPromos = new LinkedList<GenericValue>();
+        List<GenericValue> storePromoAppls = EntityQuery.use(delegator).from("ProductStorePromoAppl").where("productStoreId", productStoreId).filterByDate().orderBy("sequenceNum", "productPromoId").queryList();
+        for (GenericValue storePromoAppl : storePromoAppls) {
+            productPromos.add(storePromoAppl.getRelatedOne("ProductPromo", true));
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (ShoppingCart cart : carts) {
+            // writes what is pending and sets the id of a list created in the background on the cart
+            AutoSaveListWriter.flush(cart);
+            if (cart.getAutoSaveListId() != null) {
+                ShoppingListEvents.clearListInfo(delegator, cart.getAutoSaveListId());
+                delegator.removeByAnd("ShoppingList", UtilMisc.toMap("shoppingListId", cart.getAutoSaveListId()));
+            }
+        }
+        carts.clear();
+    }
+
+    public void testAddOrIncreaseItem() throws Exception {
+        double[] averages = new double[cartSizes.length];
+        for (int i = 0; i < cartSizes.length; i++) {
+            final int cartSize = cartSizes[i];
+            final String productId = productIds.get(cartSize % productIds.size());
+            averages[i] = measure("ShoppingCart.addOrIncreaseItem", cartSize, 0, 1, new CartOperation() {
+                public void run(ShoppingCart cart) throws Exception {
+                    BigDecimal quantity = cart.getTotalQuantity();
+                    cart.addOrIncreaseItem(productId, null, BigDecimal.ONE, null, null, null, null, null, null, null, null, null, null, null, null, dispatcher);
+                    assertEquals(0, quantity.add(BigDecimal.ONE).compareTo(cart.getTotalQuantity()));
+                }
+            });
+        }
+        assertGrowth("ShoppingCart.addOrIncreaseItem", averages);
+    }
+
+    public void testMakeItem() throws Exception {
+        double[] averages = new double[cartSizes.length];
+        for (int i = 0; i < cartSizes.length; i++) {
+            final int cartSize = cartSizes[i];
+            final String productId = productIds.get(cartSize % productIds.size());
+            averages[i] = measure("ShoppingCartItem.makeItem", cartSize, 0, 1, new CartOperation() {
+                public void run(ShoppingCart cart) throws Exception {
+                    ShoppingCartItem item = ShoppingCartItem.makeItem(Integer.valueOf(0), productId, null, BigDecimal.ONE, null, null, null, null, null, null, null, null, null, null,
+                            null, null, dispatcher, cart, Boolean.FALSE, Boolean.TRUE, null, Boolean.FALSE, Boolean.FALSE);
+                    assertEquals(productId, item.getProductId());
+                }
+            });
+        }
+        assertGrowth("ShoppingCartItem.makeItem", averages);
+    }
+
+    public void testGetGrandTotal() throws Exception {
+        for (int shipGroupCount : shipGroupCounts) {
+            double[] averages = new double[cartSizes.length];
+            for (int i = 0; i < cartSizes.length; i++) {
+                averages[i] = measure("ShoppingCart.getGrandTotal", cartSizes[i], 0, shipGroupCount, new CartOperation() {
+                    public void run(ShoppingCart cart) throws Exception {
+                        // no promotions are run on the cart, so nothing is taken off the lines
+                        assertTrue(cart.getGrandTotal().compareTo(cart.getSubTotal()) >= 0);
+                    }
+                });
+            }
+            assertGrowth("ShoppingCart.getGrandTotal", averages);
+        }
+    }
+
+    public void testDoPromotions() throws Exception {
+        for (int promoCount : promoCounts) {
+            final List<GenericValue> promos = productPromos.subList(0, Math.min(promoCount, productPromos.size()));
+            double[] averages = new double[cartSizes.length];
+            for (int i = 0; i < cartSizes.length; i++) {
+                averages[i] = measure("ProductPromoWorker.doPromotions", cartSizes[i], promos.size(), 1, new CartOperation() {
+                    public void run(ShoppingCart cart) throws Exception {
+                        cart.setDoPromotions(true);
+                        ProductPromoWorker.doPromotions(cart, promos, dispatcher);
+                    }
+                });
+            }
+            assertGrowth("ProductPromoWorker.doPromotions", averages);
+        }
+    }
+
+    public void testCalcAndAddTax() throws Exception {
+        for (int shipGroupCount : shipGroupCounts) {
+            double[] averages = new double[cartSizes.length];
+            for (int i = 0; i < cartSizes.length; i++) {
+                averages[i] = measure("CheckOutHelper.calcAndAddTax", cartSizes[i], 0, shipGroupCount, new CartOperation() {
+                    public void run(ShoppingCart cart) throws Exception {
+                        new CheckOutHelper(dispatcher, delegator, cart).calcAndAddTax(true);
+                        assertTrue(cart.getTotalSalesTax().compareTo(BigDecimal.ZERO) >= 0);
+                    }
+                });
+            }
+            assertGrowth("CheckOutHelper.calcAndAddTax", averages);
+        }
+    }
+
+    public void testGetOrderGrandTotal() throws Exception {
+        for (int shipGroupCount : shipGroupCounts) {
+            double[] averages = new double[cartSizes.length];
+            for (int i = 0; i < cartSizes.length; i++) {
+                averages[i] = measure("OrderReadHelper.getOrderGrandTotal", cartSizes[i], 0, shipGroupCount, new CartOperation() {
+                    public void run(ShoppingCart cart) throws Exception {
+                        BigDecimal orderGrandTotal = OrderReadHelper.getOrderGrandTotal(cart.makeOrderItems(), cart.makeAllAdjustments());
+                        assertTrue(orderGrandTotal.compareTo(BigDecimal.ZERO) > 0);
+                    }
+                });
+            }
+            assertGrowth("OrderReadHelper.getOrderGrandTotal", averages);
+        }
+    }
+
+    /** Checks that the average for the largest cart grows at most maxGrowthFactor times faster than the number of lines */
+    protected void assertGrowth(String operationName, double[] averages) {
+        int last = cartSizes.length - 1;
+        double maxAverage = averages[0] * cartSizes[last] / cartSizes[0] * maxGrowthFactor + growthSlackMillis;
+        assertTrue(String.format("%s: %.3f ms for %d lines against %.3f ms for %d lines, more than the %.3f ms allowed", operationName,
+                averages[last], cartSizes[last], averages[0], cartSizes[0], maxAverage), averages[last] <= maxAverage);
+    }
+
+    /**
+     * Runs the operation against a new cart for each iteration, logs the average time of the measured iterations and
+     * checks it is below maxAverageMillis
+     * @return the average time in milliseconds
+     */
+    protected double measure(String operationName, int cartSize, int promoCount, int shipGroupCount, CartOperation operation) throws Exception {
+        long totalNanos = 0;
+        for (int i = 0; i < warmupIterations + measureIterations; i++) {
+            ShoppingCart cart = makeCart(cartSize, shipGroupCount);
+            long startNanos = System.nanoTime();
+            operation.run(cart);
+            long elapsedNanos = System.nanoTime() - startNanos;
+            if (i >= warmupIterations) {
+                totalNanos += elapsedNanos;
+            }
+        }
+        double averageMillis = totalNanos / (measureIterations * 1000000.0);
+        Debug.logInfo(String.format("%s: lines=%d, promos=%d, shipGroups=%d, avg=%.3f ms", operationName, cartSize, promoCount, shipGroupCount,
+                averageMillis), module);
+        assertTrue(String.format("%s: lines=%d, promos=%d, shipGroups=%d, avg=%.3f ms is above %.0f ms", operationName, cartSize, promoCount, shipGroupCount,
+                averageMillis, maxAverageMillis), averageMillis < maxAverageMillis);
+        return averageMillis;
+    }
+
+    /** Makes a sales cart for the demo customer with the given number of lines spread over the given number of ship groups */
+    protected ShoppingCart makeCart(int cartSize, int shipGroupCount) throws Exception {
+        assertFalse("No priced products found to fill the cart with", productIds.isEmpty());
+        ShoppingCart cart = new ShoppingCart(delegator, productStoreId, Locale.getDefault(), "USD");
+        carts.add(cart);
+        cart.setOrderPartyId(partyId);
+        cart.setDoPromotions(false);
+        for (int i = 0; i < cartSize; i++) {
+            // cycle through the products, increasing the quantity once all are in the cart
+            cart.addOrIncreaseItem(productIds.get(i % productIds.size()), null, BigDecimal.ONE, null, null, null, null, null, null, null, null, null, null, null, null, dispatcher);
+        }
+        for (int i = 1; i < shipGroupCount; i++) {
+            cart.addShipInfo();
+        }
+        List<ShoppingCartItem> cartLines = cart.items();
+        for (int i = 0; i < cartLines.size(); i++) {
+            ShoppingCartItem cartLine = cartLines.get(i);
+            cart.positionItemToGroup(cartLine, cartLine.getQuantity(), 0, i % shipGroupCount, false);
+        }
+        cart.setAllShippingContactMechId(shippingContactMechId);
+        for (int i = 0; i < cart.getShipGroupSize(); i++) {
+            cart.setCarrierPartyId(i, "UPS");
+            cart.setShipmentMethodTypeId(i, "NEXT_DAY");
+        }
+        return cart;
+    }
+}
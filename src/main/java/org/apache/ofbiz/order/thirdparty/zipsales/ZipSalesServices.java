@@ -21,18 +21,26 @@ package org.apache.ofbiz.order.thirdparty.zipsales;
 import java.math.BigDecimal;
 import java.net.URL;
 import java.sql.Timestamp;
+import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
 
 import org.apache.ofbiz.base.util.Debug;
 import org.apache.ofbiz.base.util.GeneralException;
 import org.apache.ofbiz.base.util.StringUtil;
+import org.apache.ofbiz.base.util.UtilDateTime;
 import org.apache.ofbiz.base.util.UtilGenerics;
 import org.apache.ofbiz.base.util.UtilMisc;
+import org.apache.ofbiz.base.util.UtilObject;
 import org.apache.ofbiz.base.util.UtilProperties;
 import org.apache.ofbiz.base.util.UtilURL;
 import org.apache.ofbiz.base.util.UtilValidate;
@@ -42,9 +50,12 @@ import org.apache.ofbiz.datafile.Record;
 import org.apache.ofbiz.datafile.RecordIterator;
 import org.apache.ofbiz.entity.Delegator;
 import org.apache.ofbiz.entity.GenericEntityException;
+import org.apache.ofbiz.entity.GenericPK;
 import org.apache.ofbiz.entity.GenericValue;
+import org.apache.ofbiz.entity.condition.EntityCondition;
+import org.apache.ofbiz.entity.condition.EntityOperator;
+import org.apache.ofbiz.entity.transaction.TransactionUtil;
 import org.apache.ofbiz.entity.util.EntityQuery;
-import org.apache.ofbiz.entity.util.EntityUtil;
 import org.apache.ofbiz.entity.util.EntityUtilProperties;
 import org.apache.ofbiz.security.Security;
 import org.apache.ofbiz.service.DispatchContext;
@@ -61,12 +72,12 @@ public class ZipSalesServices {
     public static final String ruleTable = "FreightRuleTable";
     public static final String resource_error = "OrderErrorUiLabels";
 
-    // date formatting
-    private static SimpleDateFormat dateFormat = new SimpleDateFormat("yyyyMMdd");
+    // date format of the tables, SimpleDateFormat is not thread safe so each import makes its own
+    private static final String datePattern = "yyyyMMdd";
 
     // import table service
     public static Map<String, Object> importFlatTable(DispatchContext dctx, Map<String, ? extends Object> context) {
-        Delegator delegator = dctx.getDelegator();
+        final Delegator delegator = dctx.getDelegator();
         Security security = dctx.getSecurity();
         GenericValue userLogin = (GenericValue) context.get("userLogin");
         String taxFileLocation = (String) context.get("taxFileLocation");
@@ -79,7 +90,10 @@ public class ZipSalesServices {
         }
 
         // get a now stamp (we'll use 2000-01-01)
-        Timestamp now = parseDate("20000101", null);
+        final DateFormat dateFormat = new SimpleDateFormat(datePattern);
+        final Timestamp now = parseDate(dateFormat, "20000101", null);
+        final int batchSize = (int) UtilProperties.getPropertyAsLong("zipsales", "zipsales.import.batchSize", 1000);
+        int transactionTimeout = (int) UtilProperties.getPropertyAsLong("zipsales", "zipsales.import.transactionTimeout", 3600);
 
         // load the data file
         DataFile tdf = null;
@@ -103,52 +117,6 @@ public class ZipSalesServices {
             Debug.logError(e, module);
             return ServiceUtil.returnError(UtilProperties.getMessage(resource_error,"OrderProblemGettingTheRecordIterator",locale));
         }
-        if (tri != null) {
-            while (tri.hasNext()) {
-                Record entry = null;
-                try {
-                    entry = tri.next();
-                } catch (DataFileException e) {
-                    Debug.logError(e, module);
-                }
-                GenericValue newValue = delegator.makeValue("ZipSalesTaxLookup");
-                // PK fields
-                newValue.set("zipCode", entry.getString("zipCode").trim());
-                newValue.set("stateCode", entry.get("stateCode") != null ? entry.getString("stateCode").trim() : "_NA_");
-                newValue.set("city", entry.get("city") != null ? entry.getString("city").trim() : "_NA_");
-                newValue.set("county", entry.get("county") != null ? entry.getString("county").trim() : "_NA_");
-                newValue.set("fromDate", parseDate(entry.getString("effectiveDate"), now));
-
-                // non-PK fields
-                newValue.set("countyFips", entry.get("countyFips"));
-                newValue.set("countyDefault", entry.get("countyDefault"));
-                newValue.set("generalDefault", entry.get("generalDefault"));
-                newValue.set("insideCity", entry.get("insideCity"));
-                newValue.set("geoCode", entry.get("geoCode"));
-                newValue.set("stateSalesTax", entry.get("stateSalesTax"));
-                newValue.set("citySalesTax", entry.get("citySalesTax"));
-                newValue.set("cityLocalSalesTax", entry.get("cityLocalSalesTax"));
-                newValue.set("countySalesTax", entry.get("countySalesTax"));
-                newValue.set("countyLocalSalesTax", entry.get("countyLocalSalesTax"));
-                newValue.set("comboSalesTax", entry.get("comboSalesTax"));
-                newValue.set("stateUseTax", entry.get("stateUseTax"));
-                newValue.set("cityUseTax", entry.get("cityUseTax"));
-                newValue.set("cityLocalUseTax", entry.get("cityLocalUseTax"));
-                newValue.set("countyUseTax", entry.get("countyUseTax"));
-                newValue.set("countyLocalUseTax", entry.get("countyLocalUseTax"));
-                newValue.set("comboUseTax", entry.get("comboUseTax"));
-
-                try {
-                    delegator.createOrStore(newValue);
-                } catch (GenericEntityException e) {
-                    Debug.logError(e, module);
-                    return ServiceUtil.returnError(UtilProperties.getMessage(resource_error,"OrderErrorWritingRecordsToTheDatabase",locale));
-                }
-
-                // console log
-                Debug.logInfo(newValue.get("zipCode") + "/" + newValue.get("stateCode") + "/" + newValue.get("city") + "/" + newValue.get("county") + "/" + newValue.get("fromDate"), module);
-            }
-        }
 
         // load the data file
         DataFile rdf = null;
@@ -172,41 +140,137 @@ public class ZipSalesServices {
             Debug.logError(e, module);
             return ServiceUtil.returnError(UtilProperties.getMessage(resource_error,"OrderProblemGettingTheRecordIterator",locale));
         }
-        if (rri != null) {
-            while (rri.hasNext()) {
-                Record entry = null;
-                try {
-                    entry = rri.next();
-                } catch (DataFileException e) {
-                    Debug.logError(e, module);
+
+        // the records are written in batches, all in one transaction of their own: there is no commit between the
+        // batches, a failed import is rolled back as a whole, so no half-loaded table is ever committed for the
+        // ZipSalesTaxIndex to load, here or on another server
+        final RecordIterator taxRecordIterator = tri;
+        final RecordIterator ruleRecordIterator = rri;
+        ZipSalesTaxIndex.setImporting(true);
+        try {
+            TransactionUtil.doNewTransaction(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    int taxRecords = importTaxRecords(delegator, taxRecordIterator, dateFormat, now, batchSize);
+                    int ruleRecords = importRuleRecords(delegator, ruleRecordIterator, dateFormat, now, batchSize);
+                    Debug.logInfo("Imported " + taxRecords + " ZipSalesTaxLookup and " + ruleRecords + " ZipSalesRuleLookup records", module);
+                    return null;
                 }
-                if (UtilValidate.isNotEmpty(entry.getString("stateCode"))) {
-                    GenericValue newValue = delegator.makeValue("ZipSalesRuleLookup");
-                    // PK fields
-                    newValue.set("stateCode", entry.get("stateCode") != null ? entry.getString("stateCode").trim() : "_NA_");
-                    newValue.set("city", entry.get("city") != null ? entry.getString("city").trim() : "_NA_");
-                    newValue.set("county", entry.get("county") != null ? entry.getString("county").trim() : "_NA_");
-                    newValue.set("fromDate", parseDate(entry.getString("effectiveDate"), now));
-
-                    // non-PK fields
-                    newValue.set("idCode", entry.get("idCode") != null ? entry.getString("idCode").trim() : null);
-                    newValue.set("taxable", entry.get("taxable") != null ? entry.getString("taxable").trim() : null);
-                    newValue.set("shipCond", entry.get("shipCond") != null ? entry.getString("shipCond").trim() : null);
-
-                    try {
-                        // using storeAll as an easy way to create/update
-                        delegator.storeAll(UtilMisc.toList(newValue));
-                    } catch (GenericEntityException e) {
-                        Debug.logError(e, module);
-                        return ServiceUtil.returnError(UtilProperties.getMessage(resource_error,"OrderErrorWritingRecordsToTheDatabase",locale));
-                    }
+            }, "importFlatTable", transactionTimeout, true);
+        } catch (GenericEntityException e) {
+            Debug.logError(e, module);
+            return ServiceUtil.returnError(UtilProperties.getMessage(resource_error,"OrderErrorWritingRecordsToTheDatabase",locale));
+        } finally {
+            ZipSalesTaxIndex.setImporting(false);
+        }
 
-                    // console log
-                    Debug.logInfo(newValue.get("stateCode") + "/" + newValue.get("city") + "/" + newValue.get("county") + "/" + newValue.get("fromDate"), module);
+        // swap in the new tables for the tax calculations
+        try {
+            ZipSalesTaxIndex.reload(delegator);
+        } catch (GenericEntityException e) {
+            Debug.logError(e, "Could not reload the zip sales tax tables, the previous ones are still used", module);
+        }
+
+        return ServiceUtil.returnSuccess();
+    }
+
+    /** Creates or updates the ZipSalesTaxLookup records of the tax file in batches, in the current transaction */
+    private static int importTaxRecords(Delegator delegator, RecordIterator tri, DateFormat dateFormat, Timestamp now, int batchSize) throws GenericEntityException {
+        List<GenericValue> batch = new ArrayList<GenericValue>(batchSize);
+        int taxRecords = 0;
+        while (tri != null && tri.hasNext()) {
+            Record entry = null;
+            try {
+                entry = tri.next();
+            } catch (DataFileException e) {
+                Debug.logError(e, module);
+                continue;
+            }
+            GenericValue newValue = delegator.makeValue("ZipSalesTaxLookup");
+            // PK fields
+            newValue.set("zipCode", entry.getString("zipCode").trim());
+            newValue.set("stateCode", entry.get("stateCode") != null ? entry.getString("stateCode").trim() : "_NA_");
+            newValue.set("city", entry.get("city") != null ? entry.getString("city").trim() : "_NA_");
+            newValue.set("county", entry.get("county") != null ? entry.getString("county").trim() : "_NA_");
+            newValue.set("fromDate", parseDate(dateFormat, entry.getString("effectiveDate"), now));
+
+            // non-PK fields
+            newValue.set("countyFips", entry.get("countyFips"));
+            newValue.set("countyDefault", entry.get("countyDefault"));
+            newValue.set("generalDefault", entry.get("generalDefault"));
+            newValue.set("insideCity", entry.get("insideCity"));
+            newValue.set("geoCode", entry.get("geoCode"));
+            newValue.set("stateSalesTax", entry.get("stateSalesTax"));
+            newValue.set("citySalesTax", entry.get("citySalesTax"));
+            newValue.set("cityLocalSalesTax", entry.get("cityLocalSalesTax"));
+            newValue.set("countySalesTax", entry.get("countySalesTax"));
+            newValue.set("countyLocalSalesTax", entry.get("countyLocalSalesTax"));
+            newValue.set("comboSalesTax", entry.get("comboSalesTax"));
+            newValue.set("stateUseTax", entry.get("stateUseTax"));
+            newValue.set("cityUseTax", entry.get("cityUseTax"));
+            newValue.set("cityLocalUseTax", entry.get("cityLocalUseTax"));
+            newValue.set("countyUseTax", entry.get("countyUseTax"));
+            newValue.set("countyLocalUseTax", entry.get("countyLocalUseTax"));
+            newValue.set("comboUseTax", entry.get("comboUseTax"));
+
+            batch.add(newValue);
+            if (batch.size() >= batchSize) {
+                taxRecords += storeBatch(delegator, "ZipSalesTaxLookup", "zipCode", batch);
+                Debug.logInfo("Imported " + taxRecords + " ZipSalesTaxLookup records", module);
+            }
+        }
+        return taxRecords + storeBatch(delegator, "ZipSalesTaxLookup", "zipCode", batch);
+    }
+
+    /** Creates or updates the ZipSalesRuleLookup records of the rule file in batches, in the current transaction */
+    private static int importRuleRecords(Delegator delegator, RecordIterator rri, DateFormat dateFormat, Timestamp now, int batchSize) throws GenericEntityException {
+        List<GenericValue> batch = new ArrayList<GenericValue>(batchSize);
+        int ruleRecords = 0;
+        while (rri != null && rri.hasNext()) {
+            Record entry = null;
+            try {
+                entry = rri.next();
+            } catch (DataFileException e) {
+                Debug.logError(e, module);
+                continue;
+            }
+            if (UtilValidate.isNotEmpty(entry.getString("stateCode"))) {
+                GenericValue newValue = delegator.makeValue("ZipSalesRuleLookup");
+                // PK fields
+                newValue.set("stateCode", entry.get("stateCode") != null ? entry.getString("stateCode").trim() : "_NA_");
+                newValue.set("city", entry.get("city") != null ? entry.getString("city").trim() : "_NA_");
+                newValue.set("county", entry.get("county") != null ? entry.getString("county").trim() : "_NA_");
+                newValue.set("fromDate", parseDate(dateFormat, entry.getString("effectiveDate"), now));
+
+                // non-PK fields
+                newValue.set("idCode", entry.get("idCode") != null ? entry.getString("idCode").trim() : null);
+                newValue.set("taxable", entry.get("taxable") != null ? entry.getString("taxable").trim() : null);
+                newValue.set("shipCond", entry.get("shipCond") != null ? entry.getString("shipCond").trim() : null);
+
+                batch.add(newValue);
+                if (batch.size() >= batchSize) {
+                    ruleRecords += storeBatch(delegator, "ZipSalesRuleLookup", "stateCode", batch);
                 }
             }
         }
+        return ruleRecords + storeBatch(delegator, "ZipSalesRuleLookup", "stateCode", batch);
+    }
 
+    // entity ECA condition: the changes of the records made by the import do not drop the in-memory copy of the tables
+    public static Map<String, Object> isZipSalesTaxIndexClearable(DispatchContext dctx, Map<String, ? extends Object> context) {
+        Map<String, Object> result = ServiceUtil.returnSuccess();
+        result.put("conditionReply", !ZipSalesTaxIndex.isImporting());
+        return result;
+    }
+
+    // drops the in-memory copy of the tables once a change of their records commits
+    public static Map<String, Object> clearZipSalesTaxIndex(DispatchContext dctx, Map<String, ? extends Object> context) {
+        try {
+            ZipSalesTaxIndex.clear(dctx.getDelegator());
+        } catch (GenericEntityException e) {
+            Debug.logError(e, module);
+            return ServiceUtil.returnError(e.getMessage());
+        }
         return ServiceUtil.returnSuccess();
     }
 
@@ -271,59 +335,11 @@ public class ZipSalesServices {
             return adjustments;
         }
 
-        // lookup the records
-        List<GenericValue> zipLookup = EntityQuery.use(delegator).from("ZipSalesTaxLookup").where("zipCode", zipCode).orderBy("-fromDate").queryList();
-        if (UtilValidate.isEmpty(zipLookup)) {
-            throw new GeneralException("The zip code entered is not valid.");
-        }
-
-        // the filtered list
-        List<GenericValue> taxLookup = null;
-
-        // only do filtering if there are more then one zip code found
-        if (zipLookup != null && zipLookup.size() > 1) {
-            // first filter by city
-            List<GenericValue> cityLookup = EntityUtil.filterByAnd(zipLookup, UtilMisc.toMap("city", city.toUpperCase()));
-            if (UtilValidate.isNotEmpty(cityLookup)) {
-                if (cityLookup.size() > 1) {
-                    // filter by county
-                    List<GenericValue> countyLookup = EntityUtil.filterByAnd(taxLookup, UtilMisc.toMap("countyDefault", "Y"));
-                    if (UtilValidate.isNotEmpty(countyLookup)) {
-                        // use the county default
-                        taxLookup = countyLookup;
-                    } else {
-                        // no county default; just use the first city
-                        taxLookup = cityLookup;
-                    }
-                } else {
-                    // just one city found; use that one
-                    taxLookup = cityLookup;
-                }
-            } else {
-                // no city found; lookup default city
-                List<GenericValue> defaultLookup = EntityUtil.filterByAnd(zipLookup, UtilMisc.toMap("generalDefault", "Y"));
-                if (UtilValidate.isNotEmpty(defaultLookup)) {
-                    // use the default city lookup
-                    taxLookup = defaultLookup;
-                } else {
-                    // no default found; just use the first from the zip lookup
-                    taxLookup = zipLookup;
-                }
-            }
-        } else {
-            // zero or 1 zip code found; use it
-            taxLookup = zipLookup;
-        }
-
-        // get the first one
-        GenericValue taxEntry = null;
-        if (UtilValidate.isNotEmpty(taxLookup)) {
-            taxEntry = taxLookup.iterator().next();
-        }
-
+        // lookup the records in the in-memory copy of the tables
+        ZipSalesTaxIndex taxIndex = ZipSalesTaxIndex.getIndex(delegator);
+        ZipSalesTaxIndex.TaxEntry taxEntry = taxIndex.getTaxEntry(zipCode, city);
         if (taxEntry == null) {
-            Debug.logWarning("No tax entry found for : " + zipCode + " / " + city + " - " + itemAmount, module);
-            return adjustments;
+            throw new GeneralException("The zip code entered is not valid.");
         }
 
         String fieldName = "comboSalesTax";
@@ -331,45 +347,30 @@ public class ZipSalesServices {
             fieldName = "comboUseTax";
         }
 
-        BigDecimal comboTaxRate = taxEntry.getBigDecimal(fieldName);
+        BigDecimal comboTaxRate = taxEntry.getComboTaxRate(isUseTax);
         if (comboTaxRate == null) {
             Debug.logWarning("No Combo Tax Rate In Field " + fieldName + " @ " + zipCode + " / " + city + " - " + itemAmount, module);
             return adjustments;
         }
 
         // get state code
-        String stateCode = taxEntry.getString("stateCode");
+        String stateCode = taxEntry.getStateCode();
 
         // check if shipping is exempt
         boolean taxShipping = true;
 
-        // look up the rules
-        List<GenericValue> ruleLookup = null;
-        try {
-            ruleLookup = EntityQuery.use(delegator).from("ZipSalesRuleLookup").where("stateCode", stateCode).orderBy("-fromDate").queryList();
-        } catch (GenericEntityException e) {
-            Debug.logError(e, module);
-        }
-
-        // filter out city
-        if (ruleLookup != null && ruleLookup.size() > 1) {
-            ruleLookup = EntityUtil.filterByAnd(ruleLookup, UtilMisc.toMap("city", city.toUpperCase()));
-        }
-
-        // no county captured; so filter by date
-        if (ruleLookup != null && ruleLookup.size() > 1) {
-            ruleLookup = EntityUtil.filterByDate(ruleLookup);
-        }
+        // look up the rules, filtered by city and then by date; no county captured
+        List<ZipSalesTaxIndex.Rule> ruleLookup = taxIndex.getRules(stateCode, city, UtilDateTime.nowTimestamp());
 
         if (ruleLookup != null) {
-            for (GenericValue rule : ruleLookup) {
+            for (ZipSalesTaxIndex.Rule rule : ruleLookup) {
                 if (!taxShipping) {
                     // if we found an rule which passes no need to contine (all rules are ||)
                     break;
                 }
-                String idCode = rule.getString("idCode");
-                String taxable = rule.getString("taxable");
-                String condition = rule.getString("shipCond");
+                String idCode = rule.getIdCode();
+                String taxable = rule.getTaxable();
+                String condition = rule.getShipCond();
                 if ("T".equals(taxable))  {
                     // this record is taxable
                     continue;
@@ -481,8 +482,59 @@ public class ZipSalesServices {
         return adjustments;
     }
 
+    /**
+     * Creates or updates the values of the batch in the current transaction and empties it, returns the number of values.
+     * The records already there are read with one query on the given field, then the new values are created and the
+     * existing ones stored with their changed fields only, as storeAll does after reading each record on its own.
+     */
+    private static int storeBatch(Delegator delegator, String entityName, String lookupField, List<GenericValue> batch) throws GenericEntityException {
+        int size = batch.size();
+        if (size == 0) {
+            return 0;
+        }
+        Set<Object> lookupValues = new HashSet<Object>();
+        for (GenericValue value : batch) {
+            lookupValues.add(value.get(lookupField));
+        }
+        Map<GenericPK, GenericValue> existingByPk = new HashMap<GenericPK, GenericValue>();
+        List<GenericValue> existingValues = EntityQuery.use(delegator).from(entityName)
+                .where(EntityCondition.makeCondition(lookupField, EntityOperator.IN, lookupValues)).queryList();
+        for (GenericValue existing : existingValues) {
+            existingByPk.put(existing.getPrimaryKey(), existing);
+        }
+
+        List<GenericValue> toCreate = new LinkedList<GenericValue>();
+        List<GenericValue> toStore = new LinkedList<GenericValue>();
+        for (GenericValue value : batch) {
+            GenericValue existing = existingByPk.get(value.getPrimaryKey());
+            if (existing == null) {
+                toCreate.add(value);
+                continue;
+            }
+            GenericValue changed = delegator.makeValue(entityName, value.getPrimaryKey());
+            boolean hasChanges = false;
+            for (String fieldName : value.getModelEntity().getNoPkFieldNames()) {
+                if (value.containsKey(fieldName) && !UtilObject.equalsHelper(existing.get(fieldName), value.get(fieldName))) {
+                    changed.set(fieldName, value.get(fieldName));
+                    hasChanges = true;
+                }
+            }
+            if (hasChanges) {
+                toStore.add(changed);
+            }
+        }
+        for (GenericValue value : toCreate) {
+            delegator.create(value);
+        }
+        for (GenericValue value : toStore) {
+            delegator.store(value);
+        }
+        batch.clear();
+        return size;
+    }
+
     // formatting methods
-    private static Timestamp parseDate(String dateString, Timestamp useWhenNull) {
+    private static Timestamp parseDate(DateFormat dateFormat, String dateString, Timestamp useWhenNull) {
         Timestamp ts = null;
         if (dateString != null) {
             try {
@@ -0,0 +1,340 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *******************************************************************************/
+package org.apache.ofbiz.order.thirdparty.zipsales;
+
+import java.math.BigDecimal;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+
+import org.apache.ofbiz.base.util.Debug;
+import org.apache.ofbiz.base.util.UtilProperties;
+import org.apache.ofbiz.base.util.cache.UtilCache;
+import org.apache.ofbiz.entity.Delegator;
+import org.apache.ofbiz.entity.GenericEntityException;
+import org.apache.ofbiz.entity.GenericValue;
+import org.apache.ofbiz.entity.transaction.GenericTransactionException;
+import org.apache.ofbiz.entity.transaction.TransactionUtil;
+import org.apache.ofbiz.entity.util.EntityListIterator;
+import org.apache.ofbiz.entity.util.EntityQuery;
+
+/**
+ * Read-only copy of the ZipSalesTaxLookup and ZipSalesRuleLookup tables used by the flat tax calculation.
+ * <p>
+ * The zip codes are kept in a sorted array searched by binary search, each with its tax entries already resolved
+ * per city and a default entry; the rules are kept per state. An index is built from the database the first time
+ * a delegator calculates tax and replaced as a whole by {@link #reload} once the tables are imported again, so
+ * a calculation always sees one complete version of the tables.
+ * <p>
+ * The records changed one by one, outside the import, drop the index once their transaction commits (the
+ * clearZipSalesTaxIndex entity ECA) and the next calculation builds it again. The indexes are kept in a UtilCache
+ * expiring after zipsales.index.expireTime, so the changes made on another server are also seen in the end.
+ */
+public final class ZipSalesTaxIndex {
+
+    public static final String module = ZipSalesTaxIndex.class.getName();
+
+    /** Indexes by delegator name */
+    private static final UtilCache<String, ZipSalesTaxIndex> indexes = UtilCache.createUtilCache("order.ZipSalesTaxIndex", 0, 0,
+            UtilProperties.getPropertyAsLong("zipsales", "zipsales.index.expireTime", 3600000L), false);
+    /** Set on the thread of the import, which reloads the index itself once its transaction commits */
+    private static final ThreadLocal<Boolean> importing = new ThreadLocal<Boolean>();
+
+    /** Sorted zip codes, the entries of zipCodes[i] are in zipEntries[i] */
+    private final String[] zipCodes;
+    private final ZipEntries[] zipEntries;
+    /** Rules by state code, latest fromDate first */
+    private final Map<String, Rule[]> rulesByState;
+
+    private ZipSalesTaxIndex(String[] zipCodes, ZipEntries[] zipEntries, Map<String, Rule[]> rulesByState) {
+        this.zipCodes = zipCodes;
+        this.zipEntries = zipEntries;
+        this.rulesByState = rulesByState;
+    }
+
+    /** Gets the index of the delegator, building it from the database when it is not cached */
+    public static ZipSalesTaxIndex getIndex(Delegator delegator) throws GenericEntityException {
+        ZipSalesTaxIndex index = indexes.get(delegator.getDelegatorName());
+        if (index == null) {
+            synchronized (ZipSalesTaxIndex.class) {
+                index = indexes.get(delegator.getDelegatorName());
+                if (index == null) {
+                    index = load(delegator);
+                    indexes.put(delegator.getDelegatorName(), index);
+                }
+            }
+        }
+        return index;
+    }
+
+    /** Builds the index again from the database and replaces the one of the delegator, to be called once the tables are imported */
+    public static void reload(Delegator delegator) throws GenericEntityException {
+        ZipSalesTaxIndex index = load(delegator);
+        indexes.put(delegator.getDelegatorName(), index);
+    }
+
+    /** Marks the current thread as importing the tables, or not, so the changes of its records do not drop the index */
+    public static void setImporting(boolean isImporting) {
+        if (isImporting) {
+            importing.set(Boolean.TRUE);
+        } else {
+            importing.remove();
+        }
+    }
+
+    /** Returns true if the current thread is importing the tables */
+    public static boolean isImporting() {
+        return Boolean.TRUE.equals(importing.get());
+    }
+
+    /** Drops the index of the delegator once the current transaction, if any, commits; the next calculation builds it again */
+    public static void clear(Delegator delegator) throws GenericTransactionException {
+        if (isImporting()) {
+            return;
+        }
+        final String delegatorName = delegator.getDelegatorName();
+        if (!TransactionUtil.isTransactionInPlace()) {
+            indexes.remove(delegatorName);
+            return;
+        }
+        TransactionUtil.registerSynchronization(new Synchronization() {
+            @Override
+            public void beforeCompletion() {
+            }
+
+            @Override
+            public void afterCompletion(int status) {
+                if (status == Status.STATUS_COMMITTED) {
+                    indexes.remove(delegatorName);
+                }
+            }
+        });
+    }
+
+    /**
+     * Gets the tax entry of the zip code for the city: the county default of the city, or the first entry of the city,
+     * or the general default of the zip code, or its first entry, the latest fromDate first.
+     * @return the entry or null if the zip code is unknown
+     */
+    public TaxEntry getTaxEntry(String zipCode, String city) {
+        int i = zipCode != null ? Arrays.binarySearch(zipCodes, zipCode) : -1;
+        if (i < 0) {
+            return null;
+        }
+        ZipEntries entries = zipEntries[i];
+        if (city != null) {
+            TaxEntry cityEntry = entries.byCity.get(city.toUpperCase());
+            if (cityEntry != null) {
+                return cityEntry;
+            }
+        }
+        return entries.defaultEntry;
+    }
+
+    /**
+     * Gets the rules of the state as filtered by the flat tax calculation: by city when there is more than one, then
+     * by date when there is still more than one.
+     */
+    public List<Rule> getRules(String stateCode, String city, Timestamp moment) {
+        Rule[] stateRules = rulesByState.get(stateCode);
+        if (stateRules == null) {
+            return new ArrayList<Rule>();
+        }
+        List<Rule> rules = Arrays.asList(stateRules);
+        if (rules.size() > 1) {
+            String upperCity = city != null ? city.toUpperCase() : null;
+            List<Rule> cityRules = new ArrayList<Rule>();
+            for (Rule rule : rules) {
+                if (upperCity != null ? upperCity.equals(rule.city) : rule.city == null) {
+                    cityRules.add(rule);
+                }
+            }
+            rules = cityRules;
+        }
+        if (rules.size() > 1) {
+            List<Rule> activeRules = new ArrayList<Rule>();
+            for (Rule rule : rules) {
+                if (rule.isActive(moment)) {
+                    activeRules.add(rule);
+                }
+            }
+            rules = activeRules;
+        }
+        return rules;
+    }
+
+    private static ZipSalesTaxIndex load(Delegator delegator) throws GenericEntityException {
+        // sorted here as the binary search expects, the collation of the database may order the zip codes otherwise
+        TreeMap<String, ZipEntries> zipEntries = new TreeMap<String, ZipEntries>();
+        EntityListIterator taxLookups = null;
+        try {
+            // the order of the records of each zip code, latest fromDate first, does not depend on the collation
+            taxLookups = EntityQuery.use(delegator).from("ZipSalesTaxLookup").orderBy("zipCode", "-fromDate").queryIterator();
+            GenericValue taxLookup;
+            while ((taxLookup = taxLookups.next()) != null) {
+                String zipCode = taxLookup.getString("zipCode");
+                if (zipCode == null) {
+                    continue;
+                }
+                ZipEntries entries = zipEntries.get(zipCode);
+                if (entries == null) {
+                    entries = new ZipEntries();
+                    zipEntries.put(zipCode, entries);
+                }
+                entries.add(taxLookup);
+            }
+        } finally {
+            if (taxLookups != null) {
+                taxLookups.close();
+            }
+        }
+
+        Map<String, List<Rule>> ruleLists = new HashMap<String, List<Rule>>();
+        List<GenericValue> ruleLookups = EntityQuery.use(delegator).from("ZipSalesRuleLookup").orderBy("stateCode", "-fromDate").queryList();
+        for (GenericValue ruleLookup : ruleLookups) {
+            String stateCode = ruleLookup.getString("stateCode");
+            List<Rule> rules = ruleLists.get(stateCode);
+            if (rules == null) {
+                rules = new ArrayList<Rule>();
+                ruleLists.put(stateCode, rules);
+            }
+            rules.add(new Rule(ruleLookup));
+        }
+        Map<String, Rule[]> rulesByState = new HashMap<String, Rule[]>();
+        for (Map.Entry<String, List<Rule>> entry : ruleLists.entrySet()) {
+            rulesByState.put(entry.getKey(), entry.getValue().toArray(new Rule[entry.getValue().size()]));
+        }
+
+        String[] zipCodes = zipEntries.keySet().toArray(new String[zipEntries.size()]);
+        ZipEntries[] entries = zipEntries.values().toArray(new ZipEntries[zipEntries.size()]);
+        for (ZipEntries zipEntry : entries) {
+            zipEntry.resolve();
+        }
+        Debug.logInfo("Loaded the zip sales tax tables: " + zipCodes.length + " zip codes, " + ruleLookups.size() + " rules", module);
+        return new ZipSalesTaxIndex(zipCodes, entries, rulesByState);
+    }
+
+    /** The entries of one zip code resolved per city */
+    private static final class ZipEntries {
+        private final Map<String, TaxEntry> byCity = new HashMap<String, TaxEntry>();
+        private TaxEntry defaultEntry = null;
+        // only used while loading
+        private Map<String, TaxEntry> countyDefaults = new HashMap<String, TaxEntry>();
+        private TaxEntry firstEntry = null;
+        private TaxEntry generalDefault = null;
+        private int size = 0;
+
+        /** Adds a ZipSalesTaxLookup record of the zip code, they are added latest fromDate first */
+        private void add(GenericValue taxLookup) {
+            TaxEntry entry = new TaxEntry(taxLookup);
+            if (firstEntry == null) {
+                firstEntry = entry;
+            }
+            if (generalDefault == null && "Y".equals(taxLookup.getString("generalDefault"))) {
+                generalDefault = entry;
+            }
+            if (!byCity.containsKey(entry.city)) {
+                byCity.put(entry.city, entry);
+            }
+            if (!countyDefaults.containsKey(entry.city) && "Y".equals(taxLookup.getString("countyDefault"))) {
+                countyDefaults.put(entry.city, entry);
+            }
+            size++;
+        }
+
+        /** Resolves the entries once all the records of the zip code are added */
+        private void resolve() {
+            // with more than one entry for a city its county default wins
+            byCity.putAll(countyDefaults);
+            // with a single entry it is used whatever the city
+            defaultEntry = generalDefault != null && size > 1 ? generalDefault : firstEntry;
+            if (size == 1) {
+                byCity.clear();
+            }
+            countyDefaults = null;
+            firstEntry = null;
+            generalDefault = null;
+        }
+    }
+
+    /** The fields of a ZipSalesTaxLookup record used by the tax calculation */
+    public static final class TaxEntry {
+        private final String city;
+        private final String stateCode;
+        private final BigDecimal comboSalesTax;
+        private final BigDecimal comboUseTax;
+
+        private TaxEntry(GenericValue taxLookup) {
+            this.city = taxLookup.getString("city");
+            this.stateCode = taxLookup.getString("stateCode");
+            this.comboSalesTax = taxLookup.getBigDecimal("comboSalesTax");
+            this.comboUseTax = taxLookup.getBigDecimal("comboUseTax");
+        }
+
+        public String getStateCode() {
+            return stateCode;
+        }
+
+        public BigDecimal getComboTaxRate(boolean isUseTax) {
+            return isUseTax ? comboUseTax : comboSalesTax;
+        }
+    }
+
+    /** The fields of a ZipSalesRuleLookup record used by the tax calculation */
+    public static final class Rule {
+        private final String city;
+        private final Timestamp fromDate;
+        private final Timestamp thruDate;
+        private final String idCode;
+        private final String taxable;
+        private final String shipCond;
+
+        private Rule(GenericValue ruleLookup) {
+            this.city = ruleLookup.getString("city");
+            this.fromDate = ruleLookup.getTimestamp("fromDate");
+            this.thruDate = ruleLookup.getModelEntity().isField("thruDate") ? ruleLookup.getTimestamp("thruDate") : null;
+            this.idCode = ruleLookup.getString("idCode");
+            this.taxable = ruleLookup.getString("taxable");
+            this.shipCond = ruleLookup.getString("shipCond");
+        }
+
+        private boolean isActive(Timestamp moment) {
+            return (thruDate == null || thruDate.after(moment)) && (fromDate == null || !fromDate.after(moment));
+        }
+
+        public String getIdCode() {
+            return idCode;
+        }
+
+        public String getTaxable() {
+            return taxable;
+        }
+
+        public String getShipCond() {
+            return shipCond;
+        }
+    }
+}
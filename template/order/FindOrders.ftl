@@ -65,10 +65,12 @@ function toggleOrderIdList() {
 
 // -->
 
-    function paginateOrderList(viewSize, viewIndex, hideFields) {
+    function paginateOrderList(viewSize, viewIndex, hideFields, afterOrderDate, afterOrderId) {
         document.paginationForm.viewSize.value = viewSize;
         document.paginationForm.viewIndex.value = viewIndex;
         document.paginationForm.hideFields.value = hideFields;
+        document.paginationForm.afterOrderDate.value = afterOrderDate;
+        document.paginationForm.afterOrderId.value = afterOrderId;
         document.paginationForm.submit();
     }
 
@@ -84,6 +86,7 @@ function toggleOrderIdList() {
   </#if>
   <input type="hidden" name="viewSize" value="${viewSize}"/>
   <input type="hidden" name="viewIndex" value="${viewIndex}"/>
+  <input type="hidden" name="skipOrderCount" value="${skipOrderCount!}"/>
   <input type='hidden' name='correspondingPoId' value='${requestParameters.correspondingPoId!}'/>
   <input type='hidden' name='internalCode' value='${requestParameters.internalCode!}'/>
   <input type='hidden' name='productId' value='${requestParameters.productId!}'/>
@@ -122,6 +125,7 @@ function toggleOrderIdList() {
 <input type="hidden" name="hideFields" value="Y"/>
 <input type="hidden" name="viewSize" value="${viewSize}"/>
 <input type="hidden" name="viewIndex" value="${viewIndex}"/>
+<input type="hidden" name="skipOrderCount" value="${skipOrderCount!}"/>
 
 <div id="findOrders" class="screenlet">
   <div class="screenlet-title-bar">
@@ -535,7 +539,8 @@ document.lookuporder.orderId.focus();
       <li class="h3">${uiLabelMap.OrderOrderFound}</li>
       <#if (orderList?has_content && 0 < orderList?size)>
         <#if (orderListSize > highIndex)>
-          <li><a href="javascript:paginateOrderList('${viewSize}', '${viewIndex+1}', '${requestParameters.hideFields?default("N")}')">${uiLabelMap.CommonNext}</a></li>
+          <#-- the next page is read from the last order of this one on -->
+          <li><a href="javascript:paginateOrderList('${viewSize}', '${viewIndex+1}', '${requestParameters.hideFields?default("N")}', '${(nextOrderDate!)?js}', '${(nextOrderId!)?js}')">${uiLabelMap.CommonNext}</a></li>
         <#else>
           <li><span class="disabled">${uiLabelMap.CommonNext}</span></li>
         </#if>
@@ -543,7 +548,7 @@ document.lookuporder.orderId.focus();
           <li><span>${lowIndex} - ${highIndex} ${uiLabelMap.CommonOf} ${orderListSize}</span></li>
         </#if>
         <#if (viewIndex > 1)>
-          <li><a href="javascript:paginateOrderList('${viewSize}', '${viewIndex-1}', '${requestParameters.hideFields?default("N")}')">${uiLabelMap.CommonPrevious}</a></li>
+          <li><a href="javascript:paginateOrderList('${viewSize}', '${viewIndex-1}', '${requestParameters.hideFields?default("N")}', '', '')">${uiLabelMap.CommonPrevious}</a></li>
         <#else>
           <li><span class="disabled">${uiLabelMap.CommonPrevious}</span></li>
         </#if>
@@ -556,6 +561,8 @@ document.lookuporder.orderId.focus();
       <input type="hidden" name="viewSize"/>
       <input type="hidden" name="viewIndex"/>
       <input type="hidden" name="hideFields"/>
+      <input type="hidden" name="afterOrderDate"/>
+      <input type="hidden" name="afterOrderId"/>
       <#if paramIdList?? && paramIdList?has_content>
         <#list paramIdList as paramIds>
           <#assign paramId = paramIds.split("=")/>